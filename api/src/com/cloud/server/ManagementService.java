@@ -37,6 +37,7 @@ import org.apache.cloudstack.api.command.admin.resource.ArchiveAlertsCmd;
 import org.apache.cloudstack.api.command.admin.resource.DeleteAlertsCmd;
 import org.apache.cloudstack.api.command.admin.resource.ListAlertsCmd;
 import org.apache.cloudstack.api.command.admin.resource.ListCapacityCmd;
+import org.apache.cloudstack.api.command.admin.resource.ListMetricsCmd;
 import org.apache.cloudstack.api.command.admin.resource.UploadCustomCertificateCmd;
 import org.apache.cloudstack.api.command.admin.systemvm.DestroySystemVmCmd;
 import org.apache.cloudstack.api.command.admin.systemvm.ListSystemVMsCmd;
@@ -280,6 +281,15 @@ public interface ManagementService {
      */
     List<? extends Capacity> listCapacities(ListCapacityCmd cmd);
 
+    /**
+     * Lists the recent history of the metrics of a host, a VM or a storage pool kept by the stats collector
+     *
+     * @param cmd
+     *            the command specifying the resource, the metric and the window
+     * @return a page of the summaries, one per metric, and the number of metrics
+     */
+    Pair<List<? extends ResourceMetric>, Integer> listMetrics(ListMetricsCmd cmd);
+
     /**
      * List system VMs by the given search criteria
      *
@@ -0,0 +1,52 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.Date;
+
+/**
+ * Summary of the recent history of one metric of a host, a VM or a storage pool, as kept in memory by the stats collector.
+ */
+public interface ResourceMetric {
+
+    public enum ResourceType {
+        Host, UserVm, StoragePool
+    }
+
+    String getName();
+
+    int getCount();
+
+    Date getStartDate();
+
+    Date getEndDate();
+
+    double getLast();
+
+    double getAverage();
+
+    double getMinimum();
+
+    double getMaximum();
+
+    double getPercentile95();
+
+    /**
+     * @return the change of the metric per second over the window
+     */
+    double getRate();
+}
@@ -424,6 +424,8 @@ public interface ResponseGenerator {
 
     UsageRecordResponse createUsageResponse(Usage usageRecord);
 
+    UsageRecordResponse createUsageTotalResponse(Usage usageTotal);
+
     TrafficMonitorResponse createTrafficMonitorResponse(Host trafficMonitor);
 
     VMSnapshotResponse createVMSnapshotResponse(VMSnapshot vmSnapshot);
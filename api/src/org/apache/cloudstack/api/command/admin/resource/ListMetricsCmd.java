@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.admin.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseListCmd;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.MetricResponse;
+
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.server.ResourceMetric;
+import com.cloud.utils.Pair;
+
+@APICommand(name = "listMetrics", description = "Lists the recent history of the metrics of a host, a virtual machine or a storage pool.",
+        responseObject = MetricResponse.class, since = "4.6.0", requestHasSensitiveInfo = false, responseHasSensitiveInfo = false)
+public class ListMetricsCmd extends BaseListCmd {
+
+    public static final Logger s_logger = Logger.getLogger(ListMetricsCmd.class.getName());
+
+    private static final String s_name = "listmetricsresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name = ApiConstants.RESOURCE_TYPE, type = CommandType.STRING, required = true,
+               description = "the type of the resource: Host, UserVm or StoragePool")
+    private String resourceType;
+
+    @Parameter(name = ApiConstants.RESOURCE_ID, type = CommandType.STRING, required = true, description = "the ID of the resource")
+    private String resourceId;
+
+    @Parameter(name = ApiConstants.NAME, type = CommandType.STRING, description = "the name of the metric, all the metrics of the resource if not specified")
+    private String name;
+
+    @Parameter(name = ApiConstants.DURATION, type = CommandType.INTEGER, description = "the length of the window in seconds, defaults to the stats.history.retention setting")
+    private Integer duration;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public ResourceMetric.ResourceType getResourceType() {
+        for (ResourceMetric.ResourceType type : ResourceMetric.ResourceType.values()) {
+            if (type.name().equalsIgnoreCase(resourceType)) {
+                return type;
+            }
+        }
+        throw new InvalidParameterValueException("Invalid resource type " + resourceType + ", supported types are Host, UserVm and StoragePool");
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Integer getDuration() {
+        if (duration != null && duration <= 0) {
+            throw new InvalidParameterValueException("Duration must be a positive number of seconds");
+        }
+        return duration;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public void execute() {
+        Pair<List<? extends ResourceMetric>, Integer> metrics = _mgr.listMetrics(this);
+        ListResponse<MetricResponse> response = new ListResponse<MetricResponse>();
+        List<MetricResponse> metricResponses = new ArrayList<MetricResponse>();
+        for (ResourceMetric metric : metrics.first()) {
+            MetricResponse metricResponse = new MetricResponse();
+            metricResponse.setResourceType(getResourceType().name());
+            metricResponse.setResourceId(resourceId);
+            metricResponse.setName(metric.getName());
+            metricResponse.setCount(metric.getCount());
+            metricResponse.setStartDate(metric.getStartDate());
+            metricResponse.setEndDate(metric.getEndDate());
+            metricResponse.setLast(metric.getLast());
+            metricResponse.setAverage(metric.getAverage());
+            metricResponse.setMinimum(metric.getMinimum());
+            metricResponse.setMaximum(metric.getMaximum());
+            metricResponse.setPercentile95(metric.getPercentile95());
+            metricResponse.setRate(metric.getRate());
+
+            metricResponse.setObjectName("metric");
+            metricResponses.add(metricResponse);
+        }
+
+        response.setResponses(metricResponses, metrics.second());
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
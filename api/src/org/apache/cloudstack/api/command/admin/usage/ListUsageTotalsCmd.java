@@ -0,0 +1,61 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.admin.usage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.UsageRecordResponse;
+import org.apache.cloudstack.usage.Usage;
+
+@APICommand(name = "listUsageTotals", description = "Lists the usage of accounts summed per zone, usage type and offering over whole days. "
+        + "The totals are read from the daily and monthly rollups the usage server keeps, the dates are taken as days.",
+        responseObject = UsageRecordResponse.class, since = "4.6.0", requestHasSensitiveInfo = false, responseHasSensitiveInfo = false)
+public class ListUsageTotalsCmd extends GetUsageRecordsCmd {
+    public static final Logger s_logger = Logger.getLogger(ListUsageTotalsCmd.class.getName());
+
+    private static final String s_name = "listusagetotalsresponse";
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public void execute() {
+        List<? extends Usage> usageTotals = _usageService.listUsageTotals(this);
+        ListResponse<UsageRecordResponse> response = new ListResponse<UsageRecordResponse>();
+        List<UsageRecordResponse> usageResponses = new ArrayList<UsageRecordResponse>();
+        for (Usage usageTotal : usageTotals) {
+            UsageRecordResponse usageResponse = _responseGenerator.createUsageTotalResponse(usageTotal);
+            usageResponse.setObjectName("usagetotal");
+            usageResponses.add(usageResponse);
+        }
+        response.setResponses(usageResponses);
+
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.response;
+
+import java.util.Date;
+
+import com.google.gson.annotations.SerializedName;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+
+public class MetricResponse extends BaseResponse {
+    @SerializedName(ApiConstants.RESOURCE_TYPE)
+    @Param(description = "the type of the resource")
+    private String resourceType;
+
+    @SerializedName(ApiConstants.RESOURCE_ID)
+    @Param(description = "the ID of the resource")
+    private String resourceId;
+
+    @SerializedName(ApiConstants.NAME)
+    @Param(description = "the name of the metric")
+    private String name;
+
+    @SerializedName("count")
+    @Param(description = "the number of samples in the window")
+    private Integer count;
+
+    @SerializedName(ApiConstants.START_DATE)
+    @Param(description = "the date of the oldest sample in the window")
+    private Date startDate;
+
+    @SerializedName(ApiConstants.END_DATE)
+    @Param(description = "the date of the latest sample in the window")
+    private Date endDate;
+
+    @SerializedName("last")
+    @Param(description = "the latest value of the metric")
+    private Double last;
+
+    @SerializedName("average")
+    @Param(description = "the average value of the metric over the window")
+    private Double average;
+
+    @SerializedName("minimum")
+    @Param(description = "the minimum value of the metric over the window")
+    private Double minimum;
+
+    @SerializedName("maximum")
+    @Param(description = "the maximum value of the metric over the window")
+    private Double maximum;
+
+    @SerializedName("percentile95")
+    @Param(description = "the 95th percentile of the metric over the window")
+    private Double percentile95;
+
+    @SerializedName("rate")
+    @Param(description = "the change of the metric per second over the window")
+    private Double rate;
+
+    public void setResourceType(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public void setResourceId(String resourceId) {
+        this.resourceId = resourceId;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setCount(Integer count) {
+        this.count = count;
+    }
+
+    public void setStartDate(Date startDate) {
+        this.startDate = startDate;
+    }
+
+    public void setEndDate(Date endDate) {
+        this.endDate = endDate;
+    }
+
+    public void setLast(Double last) {
+        this.last = last;
+    }
+
+    public void setAverage(Double average) {
+        this.average = average;
+    }
+
+    public void setMinimum(Double minimum) {
+        this.minimum = minimum;
+    }
+
+    public void setMaximum(Double maximum) {
+        this.maximum = maximum;
+    }
+
+    public void setPercentile95(Double percentile95) {
+        this.percentile95 = percentile95;
+    }
+
+    public void setRate(Double rate) {
+        this.rate = rate;
+    }
+}
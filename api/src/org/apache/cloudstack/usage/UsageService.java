@@ -19,6 +19,7 @@ package org.apache.cloudstack.usage;
 import com.cloud.utils.Pair;
 import org.apache.cloudstack.api.command.admin.usage.GenerateUsageRecordsCmd;
 import org.apache.cloudstack.api.command.admin.usage.GetUsageRecordsCmd;
+import org.apache.cloudstack.api.command.admin.usage.ListUsageTotalsCmd;
 import org.apache.cloudstack.api.command.admin.usage.RemoveRawUsageRecordsCmd;
 import org.apache.cloudstack.api.response.UsageTypeResponse;
 
@@ -54,6 +55,14 @@ public interface UsageService {
      */
     Pair<List<? extends Usage>, Integer> getUsageRecords(GetUsageRecordsCmd cmd);
 
+    /**
+     * Sums the usage of the days between the start and end date specified per account, zone, usage type and offering
+     * from the rollups kept by the usage server
+     *
+     * @return one usage record per account, zone, usage type and offering
+     */
+    List<? extends Usage> listUsageTotals(ListUsageTotalsCmd cmd);
+
     /**
      * Retrieves the timezone used for usage aggregation.  One day is represented as midnight to 11:59:59pm
      * in the given time zone
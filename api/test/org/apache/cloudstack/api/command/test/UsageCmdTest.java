@@ -28,6 +28,8 @@ import org.junit.rules.ExpectedException;
 import org.mockito.Mockito;
 
 import org.apache.cloudstack.api.command.admin.usage.GetUsageRecordsCmd;
+import org.apache.cloudstack.api.command.admin.usage.ListUsageTotalsCmd;
+import org.apache.cloudstack.api.response.ListResponse;
 import org.apache.cloudstack.usage.Usage;
 import org.apache.cloudstack.usage.UsageService;
 
@@ -70,4 +72,19 @@ public class UsageCmdTest extends TestCase {
 
     }
 
+    @Test
+    public void testListUsageTotalsEmptyResult() {
+        ListUsageTotalsCmd listUsageTotalsCmd = new ListUsageTotalsCmd();
+
+        UsageService usageService = Mockito.mock(UsageService.class);
+        Mockito.doReturn(new ArrayList<Usage>()).when(usageService).listUsageTotals(listUsageTotalsCmd);
+
+        listUsageTotalsCmd._usageService = usageService;
+        listUsageTotalsCmd.execute();
+
+        ListResponse<?> response = (ListResponse<?>)listUsageTotalsCmd.getResponseObject();
+        assertEquals("listusagetotalsresponse", response.getResponseName());
+        assertEquals(Integer.valueOf(0), response.getCount());
+    }
+
 }
@@ -29,6 +29,8 @@ public class PingRoutingCommand extends PingCommand {
 
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
+    // the report only has the vms whose state changed since the previous ping
+    boolean _partialHostVmStateReport = false;
 
     protected PingRoutingCommand() {
     }
@@ -42,6 +44,14 @@ public class PingRoutingCommand extends PingCommand {
         return this._hostVmStateReport;
     }
 
+    public boolean isPartialHostVmStateReport() {
+        return _partialHostVmStateReport;
+    }
+
+    public void setPartialHostVmStateReport(boolean partialHostVmStateReport) {
+        _partialHostVmStateReport = partialHostVmStateReport;
+    }
+
     public boolean isGatewayAccessible() {
         return _gatewayAccessible;
     }
@@ -0,0 +1,59 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+
+package com.cloud.agent.api;
+
+import java.util.Map;
+
+/*
+ * Carries the host and vm stats collected by a management server for the agents it owns
+ * to its MS peers, so that any node can answer stats queries for any host or vm. Either map
+ * is null when the command does not carry that kind of stats.
+ */
+public class PropagateStatsCommand extends Command {
+    public static final String TOPIC = "stats.propagate";
+
+    private long msId;
+    private Map<Long, HostStatsEntry> hostStats;
+    private Map<Long, VmStatsEntry> vmStats;
+
+    protected PropagateStatsCommand() {
+    }
+
+    public PropagateStatsCommand(long msId, Map<Long, HostStatsEntry> hostStats, Map<Long, VmStatsEntry> vmStats) {
+        this.msId = msId;
+        this.hostStats = hostStats;
+        this.vmStats = vmStats;
+    }
+
+    public long getMsId() {
+        return msId;
+    }
+
+    public Map<Long, HostStatsEntry> getHostStats() {
+        return hostStats;
+    }
+
+    public Map<Long, VmStatsEntry> getVmStats() {
+        return vmStats;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false; // standalone command and can be executed independent of other commands
+    }
+}
@@ -0,0 +1,43 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api.routing;
+
+import com.cloud.agent.api.Answer;
+
+/**
+ * Answer to the Finish of an aggregation, with the answers to the commands that were aggregated in the order they
+ * were queued. Those commands were only answered as queued when they were sent.
+ */
+public class AggregationControlAnswer extends Answer {
+    Answer[] commandAnswers;
+
+    protected AggregationControlAnswer() {
+        super();
+    }
+
+    public AggregationControlAnswer(AggregationControlCommand cmd, boolean success, String details, Answer[] commandAnswers) {
+        super(cmd, success, details);
+        this.commandAnswers = commandAnswers;
+    }
+
+    public Answer[] getCommandAnswers() {
+        return commandAnswers;
+    }
+}
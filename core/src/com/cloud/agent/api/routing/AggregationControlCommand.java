@@ -33,14 +33,29 @@ public class AggregationControlCommand extends NetworkElementCommand{
     }
 
     public AggregationControlCommand(Action action, String name, String ip, String guestIp) {
+        this(action, name, ip, guestIp, null);
+    }
+
+    /**
+     * @param aggregationId keeps this aggregation apart from the others on the router, only the commands carrying it
+     *        as their AGGREGATION_ID access detail are aggregated. Without it every command for the router is.
+     */
+    public AggregationControlCommand(Action action, String name, String ip, String guestIp, String aggregationId) {
         super();
         this.action = action;
         this.setAccessDetail(NetworkElementCommand.ROUTER_NAME, name);
         this.setAccessDetail(NetworkElementCommand.ROUTER_IP, ip);
         this.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, guestIp);
+        if (aggregationId != null) {
+            this.setAccessDetail(NetworkElementCommand.AGGREGATION_ID, aggregationId);
+        }
     }
 
     public Action getAction() {
         return action;
     }
+
+    public String getAggregationId() {
+        return getAccessDetail(NetworkElementCommand.AGGREGATION_ID);
+    }
 }
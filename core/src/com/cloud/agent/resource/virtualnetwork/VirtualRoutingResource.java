@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -44,6 +45,7 @@ import com.cloud.agent.api.CheckS2SVpnConnectionsCommand;
 import com.cloud.agent.api.GetDomRVersionAnswer;
 import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.GetRouterAlertsAnswer;
+import com.cloud.agent.api.routing.AggregationControlAnswer;
 import com.cloud.agent.api.routing.AggregationControlCommand;
 import com.cloud.agent.api.routing.AggregationControlCommand.Action;
 import com.cloud.agent.api.routing.GetRouterAlertsCommand;
@@ -110,11 +112,13 @@ public class VirtualRoutingResource {
                 return execute((AggregationControlCommand)cmd);
             }
 
-            if (_vrAggregateCommandsSet.containsKey(routerName)) {
-                _vrAggregateCommandsSet.get(routerName).add(cmd);
+            String aggregationKey = getAggregationKey(routerName, cmd.getAccessDetail(NetworkElementCommand.AGGREGATION_ID));
+            Queue<NetworkElementCommand> aggregateCommands = _vrAggregateCommandsSet.get(aggregationKey);
+            if (aggregateCommands != null) {
+                aggregateCommands.add(cmd);
                 aggregated = true;
                 // Clean up would be done after command has been executed
-                //TODO: Deal with group answer as well
+                // The answer to the execution is sent with the one to Finish
                 return new Answer(cmd);
             }
 
@@ -277,7 +281,7 @@ public class VirtualRoutingResource {
             throw new ConfigurationException("Unable to find the resource for VirtualRouterDeployer!");
         }
 
-        _vrAggregateCommandsSet = new HashMap<>();
+        _vrAggregateCommandsSet = new ConcurrentHashMap<>();
         return true;
     }
 
@@ -337,20 +341,36 @@ public class VirtualRoutingResource {
         return configItemFacade.generateConfig(cmd);
     }
 
+    /**
+     * Aggregations started without an id take all the commands for the router, the others only the commands
+     * carrying their id.
+     */
+    private String getAggregationKey(String routerName, String aggregationId) {
+        return aggregationId == null ? routerName : routerName + "/" + aggregationId;
+    }
+
     private Answer execute(AggregationControlCommand cmd) {
         Action action = cmd.getAction();
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
         assert routerName != null;
         assert cmd.getRouterAccessIp() != null;
+        String aggregationKey = getAggregationKey(routerName, cmd.getAggregationId());
 
         if (action == Action.Start) {
-            assert (!_vrAggregateCommandsSet.containsKey(routerName));
+            if (_vrAggregateCommandsSet.containsKey(aggregationKey)) {
+                s_logger.warn("Command aggregation " + aggregationKey + " is already started, the commands queued so far are kept");
+                return new Answer(cmd, true, "Command aggregation already started");
+            }
 
             Queue<NetworkElementCommand> queue = new LinkedBlockingQueue<>();
-            _vrAggregateCommandsSet.put(routerName, queue);
+            _vrAggregateCommandsSet.put(aggregationKey, queue);
             return new Answer(cmd, true, "Command aggregation started");
         } else if (action == Action.Finish) {
-            Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(routerName);
+            Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(aggregationKey);
+            if (queue == null) {
+                return new Answer(cmd, false, "Command aggregation " + aggregationKey + " is not started");
+            }
+            List<List<ConfigItem>> cfgs = new ArrayList<List<ConfigItem>>();
             int answerCounts = 0;
             try {
                 StringBuilder sb = new StringBuilder();
@@ -359,6 +379,7 @@ public class VirtualRoutingResource {
                 for (NetworkElementCommand command : queue) {
                     answerCounts += command.getAnswersCount();
                     List<ConfigItem> cfg = generateCommandCfg(command);
+                    cfgs.add(cfg);
                     if (cfg == null) {
                         s_logger.warn("Unknown commands for VirtualRoutingResource, but continue: " + cmd.toString());
                         continue;
@@ -381,20 +402,47 @@ public class VirtualRoutingResource {
 
                 ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), fileConfigItem);
                 if (!result.isSuccess()) {
-                    return new Answer(cmd, false, result.getDetails());
+                    return new AggregationControlAnswer(cmd, false, result.getDetails(), generateAggregatedAnswers(queue, cfgs, result));
                 }
 
                 result = applyConfigToVR(cmd.getRouterAccessIp(), scriptConfigItem, timeout);
                 if (!result.isSuccess()) {
-                    return new Answer(cmd, false, result.getDetails());
+                    return new AggregationControlAnswer(cmd, false, result.getDetails(), generateAggregatedAnswers(queue, cfgs, result));
                 }
 
-                return new Answer(cmd, true, "Command aggregation finished");
+                return new AggregationControlAnswer(cmd, true, "Command aggregation finished", generateAggregatedAnswers(queue, cfgs, result));
             } finally {
                 queue.clear();
-                _vrAggregateCommandsSet.remove(routerName);
+                _vrAggregateCommandsSet.remove(aggregationKey);
             }
         }
         return new Answer(cmd, false, "Fail to recongize aggregation action " + action.toString());
     }
+
+    /**
+     * The aggregated configuration is applied as a whole, every command gets the answer applyConfig gives
+     * for it with the result of the whole configuration.
+     */
+    private Answer[] generateAggregatedAnswers(Queue<NetworkElementCommand> queue, List<List<ConfigItem>> cfgs, ExecutionResult result) {
+        Answer[] answers = new Answer[queue.size()];
+        int i = 0;
+        for (NetworkElementCommand command : queue) {
+            List<ConfigItem> cfg = cfgs.get(i);
+            if (cfg == null) {
+                answers[i] = Answer.createUnsupportedCommandAnswer(command);
+            } else if (cfg.isEmpty()) {
+                answers[i] = new Answer(command, true, "Nothing to do");
+            } else if (cfg.size() == 1) {
+                answers[i] = new Answer(command, result.isSuccess(), result.getDetails());
+            } else {
+                String[] details = new String[cfg.size()];
+                for (int j = 0; j < cfg.size(); j++) {
+                    details[j] = cfg.get(j).getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + result.getDetails();
+                }
+                answers[i] = new GroupAnswer(command, result.isSuccess(), cfg.size(), details);
+            }
+            i++;
+        }
+        return answers;
+    }
 }
@@ -0,0 +1,235 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks which fixed size ranges of a download have been written to the
+ * local file. The map is persisted next to the download so that a ranged
+ * download can pick up where it left off after the agent is restarted.
+ */
+public class DownloadRangeMap {
+    private static final Logger s_logger = Logger.getLogger(DownloadRangeMap.class);
+
+    public static final String Filename = "download.ranges";
+
+    private static final String URL = "url";
+    private static final String TARGET = "target";
+    private static final String SIZE = "size";
+    private static final String RANGE_SIZE = "range.size";
+    private static final String DONE = "done";
+
+    private final File mapFile;
+    private final String url;
+    private final String targetPath;
+    private final long size;
+    private final long rangeSize;
+    private final int rangeCount;
+    private final BitSet done;
+
+    public DownloadRangeMap(File mapFile, String url, String targetPath, long size, long rangeSize) {
+        this(mapFile, url, targetPath, size, rangeSize, new BitSet());
+    }
+
+    private DownloadRangeMap(File mapFile, String url, String targetPath, long size, long rangeSize, BitSet done) {
+        this.mapFile = mapFile;
+        this.url = url;
+        this.targetPath = targetPath;
+        this.size = size;
+        this.rangeSize = rangeSize;
+        rangeCount = (int)((size + rangeSize - 1) / rangeSize);
+        this.done = done;
+    }
+
+    /**
+     * Load a previously saved map for the given url.
+     * @return the saved map, or null if there is none, it belongs to another url or its target is gone
+     */
+    public static DownloadRangeMap load(File mapFile, String url) {
+        if (!mapFile.exists()) {
+            return null;
+        }
+
+        Properties props = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mapFile);
+            props.load(in);
+        } catch (IOException e) {
+            s_logger.warn("Unable to read download range map " + mapFile.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    s_logger.debug("Failed to close " + mapFile.getAbsolutePath());
+                }
+            }
+        }
+
+        String targetPath = props.getProperty(TARGET);
+        if (!url.equals(props.getProperty(URL)) || targetPath == null || !new File(targetPath).exists()) {
+            s_logger.info("Ignoring stale download range map " + mapFile.getAbsolutePath());
+            return null;
+        }
+
+        try {
+            long size = Long.parseLong(props.getProperty(SIZE));
+            long rangeSize = Long.parseLong(props.getProperty(RANGE_SIZE));
+            if (size <= 0 || rangeSize <= 0) {
+                return null;
+            }
+            return new DownloadRangeMap(mapFile, url, targetPath, size, rangeSize, parseDone(props.getProperty(DONE, "")));
+        } catch (NumberFormatException e) {
+            s_logger.warn("Ignoring corrupted download range map " + mapFile.getAbsolutePath());
+            return null;
+        }
+    }
+
+    /**
+     * Persist the map. The new content is written to a temporary file first and
+     * renamed over the old one so a crash never leaves a half written map behind.
+     */
+    public synchronized void save() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(URL, url);
+        props.setProperty(TARGET, targetPath);
+        props.setProperty(SIZE, Long.toString(size));
+        props.setProperty(RANGE_SIZE, Long.toString(rangeSize));
+        props.setProperty(DONE, formatDone(done));
+
+        File tmp = new File(mapFile.getAbsolutePath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mapFile)) {
+            throw new IOException("Unable to rename " + tmp.getAbsolutePath() + " to " + mapFile.getAbsolutePath());
+        }
+    }
+
+    public void delete() {
+        mapFile.delete();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getTargetPath() {
+        return targetPath;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getRangeSize() {
+        return rangeSize;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    public long getRangeStart(int range) {
+        return range * rangeSize;
+    }
+
+    public long getRangeEnd(int range) {
+        return Math.min(size, (range + 1) * rangeSize);
+    }
+
+    public synchronized void markDone(int range) {
+        done.set(range);
+    }
+
+    public synchronized boolean isDone(int range) {
+        return done.get(range);
+    }
+
+    public synchronized boolean isComplete() {
+        return done.nextClearBit(0) >= rangeCount;
+    }
+
+    public synchronized long getCompletedBytes() {
+        long bytes = 0;
+        for (int i = done.nextSetBit(0); i >= 0 && i < rangeCount; i = done.nextSetBit(i + 1)) {
+            bytes += getRangeEnd(i) - getRangeStart(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of bytes from the start of the file that are downloaded without any gap
+     */
+    public synchronized long getContiguousBytes() {
+        int firstMissing = done.nextClearBit(0);
+        if (firstMissing >= rangeCount) {
+            return size;
+        }
+        return getRangeStart(firstMissing);
+    }
+
+    static String formatDone(BitSet done) {
+        StringBuilder sb = new StringBuilder();
+        for (int start = done.nextSetBit(0); start >= 0; start = done.nextSetBit(start)) {
+            int end = done.nextClearBit(start);
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(start);
+            if (end - 1 > start) {
+                sb.append('-').append(end - 1);
+            }
+            start = end;
+        }
+        return sb.toString();
+    }
+
+    static BitSet parseDone(String value) {
+        BitSet done = new BitSet();
+        for (String token : value.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            int dash = token.indexOf('-');
+            if (dash < 0) {
+                done.set(Integer.parseInt(token));
+            } else {
+                done.set(Integer.parseInt(token.substring(0, dash)), Integer.parseInt(token.substring(dash + 1)) + 1);
+            }
+        }
+        return done;
+    }
+}
@@ -23,10 +23,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
 import org.apache.commons.httpclient.Credentials;
@@ -41,6 +52,7 @@ import org.apache.commons.httpclient.NoHttpResponseException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
 
@@ -51,6 +63,7 @@ import com.cloud.agent.api.storage.Proxy;
 import com.cloud.storage.StorageLayer;
 import com.cloud.utils.Pair;
 import com.cloud.utils.UriUtils;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
  * Download a template file using HTTP
@@ -61,6 +74,8 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
 
     private static final int CHUNK_SIZE = 1024 * 1024; //1M
+    private static final long DEFAULT_RANGE_SIZE = 32L * 1024 * 1024; //32M
+    private static final int RANGE_RETRIES = 3;
     private String downloadUrl;
     private String toFile;
     public TemplateDownloader.Status status = TemplateDownloader.Status.NOT_STARTED;
@@ -80,14 +95,34 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private ResourceType resourceType = ResourceType.TEMPLATE;
     private final HttpMethodRetryHandler myretryhandler;
 
+    // ranged download state, only used when more than one connection is allowed
+    private final int connections;
+    private long rangeSize = DEFAULT_RANGE_SIZE;
+    private DownloadRangeMap rangeMap;
+    private String checksum;
+    private volatile String rangeError;
+    // the ranged download failed on the transfer itself, so what is on disk is worth keeping for a retry
+    private volatile boolean rangeErrorRecoverable;
+
     public HttpTemplateDownloader(StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
             String user, String password, Proxy proxy, ResourceType resourceType) {
+        this(storageLayer, downloadUrl, toDir, callback, maxTemplateSizeInBytes, user, password, proxy, resourceType, 1);
+    }
+
+    /**
+     * @param connections number of parallel connections to use. With more than one connection
+     *        the file is fetched as a set of byte ranges if the server supports it, and the
+     *        progress is kept in a {@link DownloadRangeMap} next to the download.
+     */
+    public HttpTemplateDownloader(StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
+            String user, String password, Proxy proxy, ResourceType resourceType, int connections) {
         _storage = storageLayer;
         this.downloadUrl = downloadUrl;
         setToDir(toDir);
         status = TemplateDownloader.Status.NOT_STARTED;
         this.resourceType = resourceType;
         this.maxTemplateSizeInBytes = maxTemplateSizeInBytes;
+        this.connections = connections;
 
         totalBytes = 0;
         client = new HttpClient(s_httpClientManager);
@@ -119,10 +154,21 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
             completionCallback = callback;
             //this.request.setFollowRedirects(false);
 
-            File f = File.createTempFile("dnld", "tmp_", new File(toDir));
+            File f = null;
+            if (connections > 1) {
+                rangeMap = DownloadRangeMap.load(new File(toDir, DownloadRangeMap.Filename), downloadUrl);
+                if (rangeMap != null) {
+                    f = new File(rangeMap.getTargetPath());
+                    s_logger.info("Found partial download of " + downloadUrl + " in " + f.getAbsolutePath());
+                }
+            }
 
-            if (_storage != null) {
-                _storage.setWorldReadableAndWriteable(f);
+            if (f == null) {
+                f = File.createTempFile("dnld", "tmp_", new File(toDir));
+
+                if (_storage != null) {
+                    _storage.setWorldReadableAndWriteable(f);
+                }
             }
 
             toFile = f.getAbsolutePath();
@@ -166,9 +212,20 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
             default:
 
         }
+        if (connections > 1 && probeRangeSupport()) {
+            return downloadInRanges(callback);
+        }
         int bytes = 0;
         File file = new File(toFile);
         try {
+            if (rangeMap != null) {
+                // a partial ranged download has holes, start over with a single connection
+                rangeMap.delete();
+                rangeMap = null;
+                RandomAccessFile partial = new RandomAccessFile(file, "rw");
+                partial.setLength(0);
+                partial.close();
+            }
 
             long localFileSize = 0;
             if (file.exists() && resume) {
@@ -252,14 +309,7 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                     out.seek(offset);
                     totalBytes += bytes;
                         if (!verifiedFormat && (offset >= 1048576 || offset >= remoteSize)) { //let's check format after we get 1MB or full file
-                        String uripath = null;
-                        try {
-                            URI str = new URI(getDownloadUrl());
-                            uripath = str.getPath();
-                        } catch (URISyntaxException e) {
-                            s_logger.warn("Invalid download url: " + getDownloadUrl() + ", This should not happen since we have validated the url before!!");
-                        }
-                        String unsupportedFormat = ImageStoreUtil.checkTemplateFormat(file.getAbsolutePath(), uripath);
+                        String unsupportedFormat = checkTemplateFormat(file);
                             if (unsupportedFormat == null || !unsupportedFormat.isEmpty()) {
                                  try {
                                      request.abort();
@@ -311,6 +361,332 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return 0;
     }
 
+    /**
+     * Check whether the server is able to serve byte ranges of the download and learn its size.
+     */
+    private boolean probeRangeSupport() {
+        HeadMethod head = new HeadMethod(downloadUrl);
+        head.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+        try {
+            int responseCode = client.executeMethod(head);
+            Header acceptRanges = head.getResponseHeader("Accept-Ranges");
+            Header contentLength = head.getResponseHeader("Content-Length");
+            if (responseCode != HttpStatus.SC_OK || acceptRanges == null || !"bytes".equalsIgnoreCase(acceptRanges.getValue()) || contentLength == null) {
+                s_logger.info("HTTP Server does not support ranged download of " + downloadUrl + ", using a single connection");
+                return false;
+            }
+            long size = Long.parseLong(contentLength.getValue());
+            if (size <= 0) {
+                return false;
+            }
+            remoteSize = size;
+            return true;
+        } catch (IOException e) {
+            s_logger.info("Unable to probe " + downloadUrl + " for ranged download, using a single connection: " + e.getMessage());
+            return false;
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    /**
+     * Download the file as fixed size ranges over several connections. Completed ranges are
+     * recorded in the range map so that a restarted download only fetches what is missing.
+     */
+    private long downloadInRanges(DownloadCompleteCallback callback) {
+        File file = new File(toFile);
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        ExecutorService executor = null;
+        RandomAccessFile out = null;
+        try {
+            if (remoteSize > maxTemplateSizeInBytes) {
+                s_logger.info("Remote size is too large: " + remoteSize + " , max=" + maxTemplateSizeInBytes);
+                status = Status.UNRECOVERABLE_ERROR;
+                errorString = "Download file size is too large";
+                return 0;
+            }
+
+            if (rangeMap == null || rangeMap.getSize() != remoteSize || !file.getAbsolutePath().equals(rangeMap.getTargetPath())) {
+                rangeMap = new DownloadRangeMap(new File(toDir, DownloadRangeMap.Filename), downloadUrl, file.getAbsolutePath(), remoteSize, rangeSize);
+                rangeMap.save();
+            }
+
+            Date start = new Date();
+
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(remoteSize);
+            final FileChannel channel = out.getChannel();
+
+            final Queue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+            for (int i = 0; i < rangeMap.getRangeCount(); i++) {
+                if (!rangeMap.isDone(i)) {
+                    pending.add(i);
+                }
+            }
+            totalBytes = rangeMap.getCompletedBytes();
+            rangeError = null;
+            rangeErrorRecoverable = false;
+
+            final ChecksumTracker tracker = new ChecksumTracker(channel);
+            tracker.update(true);
+
+            int workers = Math.max(1, Math.min(connections, pending.size()));
+            connectionManager.getParams().setDefaultMaxConnectionsPerHost(workers);
+            connectionManager.getParams().setMaxTotalConnections(workers);
+            final HttpClient rangeClient = new HttpClient(client.getParams(), connectionManager);
+            rangeClient.setState(client.getState());
+            rangeClient.setHostConfiguration(client.getHostConfiguration());
+
+            s_logger.info("Starting ranged download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , connections=" + workers + " , ranges left="
+                    + pending.size() + "/" + rangeMap.getRangeCount());
+
+            status = TemplateDownloader.Status.IN_PROGRESS;
+            executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("HttpRangeDownload"));
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetchRanges(rangeClient, channel, pending, tracker);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            Date finish = new Date();
+            downloadTime += finish.getTime() - start.getTime();
+
+            if (status == Status.ABORTED) {
+                return 0;
+            }
+            if (rangeError != null || !rangeMap.isComplete()) {
+                status = rangeError == null || rangeErrorRecoverable ? Status.RECOVERABLE_ERROR : Status.UNRECOVERABLE_ERROR;
+                errorString = rangeError != null ? rangeError : "Ranged download ended before all ranges were fetched";
+                return 0;
+            }
+
+            channel.force(true);
+            tracker.update(true);
+            checksum = tracker.getChecksum();
+            rangeMap.delete();
+
+            status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+            errorString = "Downloaded " + totalBytes + " bytes (download complete remote=" + remoteSize + "bytes)";
+            return totalBytes;
+        } catch (IOException ioe) {
+            status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            errorString = ioe.getMessage();
+        } catch (InterruptedException e) {
+            status = TemplateDownloader.Status.RECOVERABLE_ERROR;
+            errorString = "Interrupted while downloading " + downloadUrl;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            connectionManager.shutdown();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    s_logger.debug("Failed to close " + toFile + ": " + e.getMessage());
+                }
+            }
+            // after a recoverable error the range map and the partial file stay, a retry only fetches the missing ranges
+            if (status == Status.UNRECOVERABLE_ERROR || status == Status.ABORTED) {
+                if (rangeMap != null) {
+                    rangeMap.delete();
+                }
+                if (status == Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
+                    file.delete();
+                }
+            }
+            if (callback != null) {
+                callback.downloadComplete(status);
+            }
+        }
+        return 0;
+    }
+
+    private void fetchRanges(HttpClient rangeClient, FileChannel channel, Queue<Integer> pending, ChecksumTracker tracker) {
+        Integer range;
+        while (status == Status.IN_PROGRESS && rangeError == null && (range = pending.poll()) != null) {
+            boolean fetched = false;
+            int attempt = 0;
+            while (!fetched && status == Status.IN_PROGRESS) {
+                attempt++;
+                try {
+                    fetched = fetchRange(rangeClient, channel, range);
+                } catch (IOException e) {
+                    if (attempt >= RANGE_RETRIES) {
+                        rangeErrorRecoverable = true;
+                        rangeError = "Failed to download range " + range + " of " + downloadUrl + ": " + e.getMessage();
+                        return;
+                    }
+                    s_logger.warn("Failed to download range " + range + " of " + downloadUrl + ", retrying: " + e.getMessage());
+                }
+            }
+            if (!fetched) {
+                return;
+            }
+
+            try {
+                // the data has to be on disk before the map says it is there
+                channel.force(false);
+                rangeMap.markDone(range);
+                rangeMap.save();
+                if (range == 0) {
+                    String unsupportedFormat = checkTemplateFormat(new File(toFile));
+                    if (unsupportedFormat == null || !unsupportedFormat.isEmpty()) {
+                        rangeError = "Template content is unsupported, or mismatch between selected format and template content. Found  : " + unsupportedFormat;
+                        return;
+                    }
+                    s_logger.debug("Verified format of downloading file " + toFile + " is supported");
+                }
+                tracker.update(false);
+            } catch (IOException e) {
+                rangeError = "Failed to record range " + range + " of " + toFile + ": " + e.getMessage();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the range was written completely, false if the download was stopped meanwhile
+     */
+    private boolean fetchRange(HttpClient rangeClient, FileChannel channel, int range) throws IOException {
+        long start = rangeMap.getRangeStart(range);
+        long end = rangeMap.getRangeEnd(range);
+        long position = start;
+        GetMethod get = new GetMethod(downloadUrl);
+        get.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, myretryhandler);
+        get.addRequestHeader("Range", "bytes=" + start + "-" + (end - 1));
+        try {
+            int responseCode = rangeClient.executeMethod(get);
+            if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException("HTTP Server returned " + responseCode + " (expected 206 Partial Content)");
+            }
+            InputStream in = get.getResponseBodyAsStream();
+            if (in == null) {
+                throw new IOException("HTTP Server returned no content");
+            }
+
+            byte[] block = new byte[CHUNK_SIZE];
+            while (position < end) {
+                if (status != Status.IN_PROGRESS) {
+                    get.abort();
+                    return false;
+                }
+                int bytes = in.read(block, 0, (int)Math.min(CHUNK_SIZE, end - position));
+                if (bytes < 0) {
+                    throw new IOException("Connection closed after " + (position - start) + " of " + (end - start) + " bytes");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                addDownloadedBytes(bytes);
+            }
+            return true;
+        } finally {
+            if (position < end) {
+                // the range is fetched again from the start
+                addDownloadedBytes(start - position);
+            }
+            get.releaseConnection();
+        }
+    }
+
+    private synchronized void addDownloadedBytes(long bytes) {
+        totalBytes += bytes;
+    }
+
+    /**
+     * Computes the MD5 sum of a ranged download while it is in progress. Ranges complete out of
+     * order, so the digest follows the contiguous downloaded prefix of the file and reads those
+     * bytes back while they are still cached, rather than reading the whole file again after
+     * the download is done.
+     */
+    private class ChecksumTracker {
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        private final ReentrantLock lock = new ReentrantLock();
+        private long digested = 0;
+
+        ChecksumTracker(FileChannel channel) throws IOException {
+            this.channel = channel;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Unable to compute MD5 sums", e);
+            }
+        }
+
+        /**
+         * @param wait if false and another thread is already updating the digest, return
+         *        right away since that thread or the final update picks up the new data
+         */
+        void update(boolean wait) throws IOException {
+            if (wait) {
+                lock.lock();
+            } else if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                long contiguous = rangeMap.getContiguousBytes();
+                while (digested < contiguous) {
+                    buffer.clear();
+                    buffer.limit((int)Math.min(buffer.capacity(), contiguous - digested));
+                    int bytes = channel.read(buffer, digested);
+                    if (bytes < 0) {
+                        throw new IOException("Unexpected end of file at " + digested);
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    digested += bytes;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String getChecksum() {
+            lock.lock();
+            try {
+                return String.format("%032x", new BigInteger(1, digest.digest()));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return empty string if the downloaded file looks like a supported format, what it looks like otherwise
+     */
+    protected String checkTemplateFormat(File file) {
+        String uripath = null;
+        try {
+            URI str = new URI(getDownloadUrl());
+            uripath = str.getPath();
+        } catch (URISyntaxException e) {
+            s_logger.warn("Invalid download url: " + getDownloadUrl() + ", This should not happen since we have validated the url before!!");
+        }
+        return ImageStoreUtil.checkTemplateFormat(file.getAbsolutePath(), uripath);
+    }
+
+    /**
+     * @return MD5 sum of the file computed during a ranged download, null if none was computed
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setRangeSize(long rangeSize) {
+        this.rangeSize = rangeSize;
+    }
+
     public String getDownloadUrl() {
         return downloadUrl;
     }
@@ -357,6 +733,9 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 if (f.exists()) {
                     f.delete();
                 }
+                if (rangeMap != null) {
+                    rangeMap.delete();
+                }
                 return true;
 
             default:
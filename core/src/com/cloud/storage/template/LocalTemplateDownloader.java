@@ -20,18 +20,14 @@
 package com.cloud.storage.template;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.storage.FileCopier;
 
 public class LocalTemplateDownloader extends TemplateDownloaderBase implements TemplateDownloader {
     public static final Logger s_logger = Logger.getLogger(LocalTemplateDownloader.class);
@@ -61,46 +57,32 @@ public class LocalTemplateDownloader extends TemplateDownloaderBase implements T
         }
         File dst = new File(_toFile);
 
-        FileChannel fic = null;
-        FileChannel foc = null;
-        FileInputStream fis = null;
-        FileOutputStream fos = null;
-
         try {
             if (_storage != null) {
                 dst.createNewFile();
                 _storage.setWorldReadableAndWriteable(dst);
             }
 
-            ByteBuffer buffer = ByteBuffer.allocate(1024 * 512);
-
-            try {
-                fis = new FileInputStream(src);
-            } catch (FileNotFoundException e) {
+            if (!src.exists()) {
                 s_logger.warn("Unable to find " + _downloadUrl);
                 _errorString = "Unable to find " + _downloadUrl;
                 return -1;
             }
-            fic = fis.getChannel();
-            try {
-                fos = new FileOutputStream(dst);
-            } catch (FileNotFoundException e) {
-                s_logger.warn("Unable to find " + _toFile);
-                return -1;
-            }
-            foc = fos.getChannel();
 
             _remoteSize = src.length();
             _totalBytes = 0;
             _status = TemplateDownloader.Status.IN_PROGRESS;
 
-            try {
-                while (_status != Status.ABORTED && fic.read(buffer) != -1) {
-                    buffer.flip();
-                    int count = foc.write(buffer);
-                    _totalBytes += count;
-                    buffer.clear();
+            FileCopier copier = new FileCopier();
+            copier.setProgressListener(new FileCopier.ProgressListener() {
+                @Override
+                public boolean onProgress(long copied, long total) {
+                    _totalBytes = copied;
+                    return _status != Status.ABORTED;
                 }
+            });
+            try {
+                copier.copy(src, dst);
             } catch (IOException e) {
                 s_logger.warn("Unable to download", e);
             }
@@ -119,38 +101,6 @@ public class LocalTemplateDownloader extends TemplateDownloaderBase implements T
             _errorString = e.getMessage();
             return 0;
         } finally {
-            if (fic != null) {
-                try {
-                    fic.close();
-                } catch (IOException e) {
-                    s_logger.info("[ignore] error while closing file input channel.");
-                }
-            }
-
-            if (foc != null) {
-                try {
-                    foc.close();
-                } catch (IOException e) {
-                    s_logger.info("[ignore] error while closing file output channel.");
-                }
-            }
-
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    s_logger.info("[ignore] error while closing file input stream.");
-                }
-            }
-
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    s_logger.info("[ignore] error while closing file output stream.");
-                }
-            }
-
             if (_status == Status.UNRECOVERABLE_ERROR && dst.exists()) {
                 dst.delete();
             }
@@ -0,0 +1,159 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.naming.ConfigurationException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.AggregationControlAnswer;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SavePasswordCommand;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.ExecutionResult;
+
+public class VirtualRoutingResourceAggregationTest implements VirtualRouterDeployer {
+    private static final String ROUTERIP = "169.254.3.4";
+    private static final String ROUTERGUESTIP = "10.200.1.1";
+    private static final String ROUTERNAME = "r-4-VM";
+
+    private VirtualRoutingResource _resource;
+    private final List<String> _files = new ArrayList<String>();
+    private boolean _scriptResult = true;
+
+    @Override
+    public ExecutionResult executeInVR(final String routerIp, final String script, final String args) {
+        return executeInVR(routerIp, script, args, 60);
+    }
+
+    @Override
+    public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final int timeout) {
+        return new ExecutionResult(_scriptResult, _scriptResult ? null : "reload failed");
+    }
+
+    @Override
+    public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
+        _files.add(content);
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult prepareCommand(final NetworkElementCommand cmd) {
+        cmd.setRouterAccessIp(ROUTERIP);
+        return new ExecutionResult(true, null);
+    }
+
+    @Override
+    public ExecutionResult cleanupCommand(final NetworkElementCommand cmd) {
+        return new ExecutionResult(true, null);
+    }
+
+    @Before
+    public void setup() throws ConfigurationException {
+        _resource = new VirtualRoutingResource(this);
+        _resource.configure("VRResource", new HashMap<String, Object>());
+    }
+
+    private SavePasswordCommand createCommand(final String vmIp, final String aggregationId) {
+        final SavePasswordCommand cmd = new SavePasswordCommand("password", vmIp, "i-2-3-VM", true);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        if (aggregationId != null) {
+            cmd.setAccessDetail(NetworkElementCommand.AGGREGATION_ID, aggregationId);
+        }
+        return cmd;
+    }
+
+    private Answer execute(final Action action, final String aggregationId) {
+        return _resource.executeRequest(new AggregationControlCommand(action, ROUTERNAME, ROUTERIP, ROUTERGUESTIP, aggregationId));
+    }
+
+    @Test
+    public void testAggregationsAreKeptApartById() {
+        assertTrue(execute(Action.Start, null).getResult());
+        assertTrue(execute(Action.Start, "a").getResult());
+        assertTrue(_resource.executeRequest(createCommand("10.1.1.2", "a")).getResult());
+        assertTrue(_resource.executeRequest(createCommand("10.1.1.3", null)).getResult());
+        assertTrue(_files.isEmpty());
+
+        final Answer finishA = execute(Action.Finish, "a");
+        assertTrue(finishA.getResult());
+        assertEquals(1, _files.size());
+        assertTrue(_files.get(0).contains("10.1.1.2"));
+        assertFalse(_files.get(0).contains("10.1.1.3"));
+        assertEquals(1, ((AggregationControlAnswer)finishA).getCommandAnswers().length);
+
+        assertTrue(execute(Action.Finish, null).getResult());
+        assertEquals(2, _files.size());
+        assertTrue(_files.get(1).contains("10.1.1.3"));
+        assertFalse(_files.get(1).contains("10.1.1.2"));
+    }
+
+    @Test
+    public void testFinishAnswersEveryAggregatedCommand() {
+        final SavePasswordCommand first = createCommand("10.1.1.2", "a");
+        final SavePasswordCommand second = createCommand("10.1.1.3", "a");
+        assertTrue(execute(Action.Start, "a").getResult());
+        _resource.executeRequest(first);
+        _resource.executeRequest(second);
+        _scriptResult = false;
+
+        final Answer finish = execute(Action.Finish, "a");
+
+        assertFalse(finish.getResult());
+        final Answer[] answers = ((AggregationControlAnswer)finish).getCommandAnswers();
+        assertEquals(2, answers.length);
+        for (final Answer answer : answers) {
+            assertFalse(answer.getResult());
+        }
+    }
+
+    @Test
+    public void testCommandAnswersAreSentWithFinish() {
+        assertTrue(execute(Action.Start, "a").getResult());
+        _resource.executeRequest(createCommand("10.1.1.2", "a"));
+        final Answer[] answers = new Answer[] {execute(Action.Finish, "a")};
+
+        final Gson gson = GsonHelper.getGson();
+        final Answer[] received = gson.fromJson(gson.toJson(answers, Answer[].class), Answer[].class);
+
+        final Answer[] commandAnswers = ((AggregationControlAnswer)received[0]).getCommandAnswers();
+        assertEquals(1, commandAnswers.length);
+        assertTrue(commandAnswers[0].getResult());
+    }
+
+    @Test
+    public void testFinishWithoutStartFails() {
+        assertFalse(execute(Action.Finish, "a").getResult());
+    }
+}
@@ -0,0 +1,264 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.cloud.storage.template.TemplateDownloader.Status;
+
+public class HttpTemplateDownloaderTest {
+    private static final int RANGE_SIZE = 256 * 1024;
+
+    private final byte[] content = new byte[5 * 1024 * 1024 + 123];
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private volatile boolean acceptRanges = true;
+    private volatile int failingRangeStart = -1;
+    private HttpServer server;
+    private String url;
+    private File toDir;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(content);
+
+        // downloads from loopback addresses and unusual ports are refused, so
+        // the stand-in server listens on port 8080 of an external address
+        InetAddress address = null;
+        for (NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            for (InetAddress candidate : Collections.list(nic.getInetAddresses())) {
+                if (candidate instanceof Inet4Address && !candidate.isLoopbackAddress() && !candidate.isLinkLocalAddress()) {
+                    address = candidate;
+                }
+            }
+        }
+        Assume.assumeTrue(address != null);
+        try {
+            server = HttpServer.create(new InetSocketAddress(address, 8080), 0);
+        } catch (IOException e) {
+            Assume.assumeNoException(e);
+        }
+        server.createContext("/template.raw", new RangeHandler());
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+
+        url = "http://" + address.getHostAddress() + ":8080/template.raw";
+        toDir = Files.createTempDirectory("httpdownload").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (toDir != null) {
+            FileUtils.deleteDirectory(toDir);
+        }
+    }
+
+    @Test
+    public void testRangedDownload() throws Exception {
+        HttpTemplateDownloader td = createDownloader(4);
+        long bytes = td.download(false, null);
+
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(content.length, bytes);
+        assertArrayEquals(content, Files.readAllBytes(new File(td.getToFile()).toPath()));
+        assertEquals(md5(content), td.getChecksum());
+        assertEquals((content.length + RANGE_SIZE - 1) / RANGE_SIZE, rangeRequests.get());
+        assertEquals(100, td.getDownloadPercent());
+        assertFalse(new File(toDir, DownloadRangeMap.Filename).exists());
+    }
+
+    @Test
+    public void testRangedDownloadResumes() throws Exception {
+        // a previous run got the first 8 ranges and range 10 before the agent went away
+        File partial = new File(toDir, "dnldpartial.tmp_");
+        RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+        raf.setLength(content.length);
+        raf.write(content, 0, 8 * RANGE_SIZE);
+        raf.seek(10 * RANGE_SIZE);
+        raf.write(content, 10 * RANGE_SIZE, RANGE_SIZE);
+        raf.close();
+
+        DownloadRangeMap map = new DownloadRangeMap(new File(toDir, DownloadRangeMap.Filename), url, partial.getAbsolutePath(), content.length, RANGE_SIZE);
+        for (int i = 0; i < 8; i++) {
+            map.markDone(i);
+        }
+        map.markDone(10);
+        map.save();
+
+        HttpTemplateDownloader td = createDownloader(4);
+        assertEquals(partial.getAbsolutePath(), td.getToFile());
+        td.download(true, null);
+
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(content.length - 9 * RANGE_SIZE, bytesServed.get());
+        assertArrayEquals(content, Files.readAllBytes(partial.toPath()));
+        assertEquals(md5(content), td.getChecksum());
+    }
+
+    @Test
+    public void testFailedRangeKeepsPartialDownload() throws Exception {
+        failingRangeStart = 3 * RANGE_SIZE;
+        HttpTemplateDownloader td = createDownloader(4);
+        td.download(false, null);
+
+        assertEquals(Status.RECOVERABLE_ERROR, td.getStatus());
+        assertTrue(new File(toDir, DownloadRangeMap.Filename).exists());
+        assertTrue(new File(td.getToFile()).exists());
+
+        failingRangeStart = -1;
+        rangeRequests.set(0);
+        td.download(true, null);
+
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertArrayEquals(content, Files.readAllBytes(new File(td.getToFile()).toPath()));
+        assertEquals(md5(content), td.getChecksum());
+        assertTrue(rangeRequests.get() < (content.length + RANGE_SIZE - 1) / RANGE_SIZE);
+    }
+
+    @Test
+    public void testFallbackWithoutRangeSupport() throws Exception {
+        acceptRanges = false;
+        HttpTemplateDownloader td = createDownloader(4);
+        td.download(false, null);
+
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(0, rangeRequests.get());
+        assertArrayEquals(content, Files.readAllBytes(new File(td.getToFile()).toPath()));
+        assertEquals(null, td.getChecksum());
+    }
+
+    @Test
+    public void testRangeMapEncoding() {
+        DownloadRangeMap map = new DownloadRangeMap(new File(toDir, DownloadRangeMap.Filename), url, "/tmp/x", 10 * RANGE_SIZE + 1, RANGE_SIZE);
+        assertEquals(11, map.getRangeCount());
+        assertEquals(10 * RANGE_SIZE + 1, map.getRangeEnd(10));
+        for (int i : new int[] {0, 1, 2, 5, 7, 8}) {
+            map.markDone(i);
+        }
+        assertEquals(3 * RANGE_SIZE, map.getContiguousBytes());
+        assertEquals(6 * RANGE_SIZE, map.getCompletedBytes());
+        assertFalse(map.isComplete());
+
+        String encoded = DownloadRangeMap.formatDone(DownloadRangeMap.parseDone("0-2,5,7-8"));
+        assertEquals("0-2,5,7-8", encoded);
+    }
+
+    @Test
+    public void testStaleRangeMapIsIgnored() throws Exception {
+        DownloadRangeMap map = new DownloadRangeMap(new File(toDir, DownloadRangeMap.Filename), url, new File(toDir, "gone").getAbsolutePath(), content.length, RANGE_SIZE);
+        map.save();
+        assertEquals(null, DownloadRangeMap.load(new File(toDir, DownloadRangeMap.Filename), url));
+
+        map = new DownloadRangeMap(new File(toDir, DownloadRangeMap.Filename), "http://elsewhere/t.raw", toDir.getAbsolutePath(), content.length, RANGE_SIZE);
+        map.save();
+        assertEquals(null, DownloadRangeMap.load(new File(toDir, DownloadRangeMap.Filename), url));
+        assertTrue(DownloadRangeMap.load(new File(toDir, DownloadRangeMap.Filename), "http://elsewhere/t.raw") != null);
+    }
+
+    private HttpTemplateDownloader createDownloader(int connections) {
+        HttpTemplateDownloader td = new HttpTemplateDownloader(null, url, toDir.getAbsolutePath(), null, TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES, null, null,
+                null, null, connections) {
+            @Override
+            protected String checkTemplateFormat(File file) {
+                return "";
+            }
+        };
+        td.setRangeSize(RANGE_SIZE);
+        assertTrue(td.isInited());
+        return td;
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)));
+    }
+
+    private class RangeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (acceptRanges) {
+                    exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                }
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().add("Content-Length", Integer.toString(content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+
+                int start = 0;
+                int end = content.length;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (acceptRanges && range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(bounds[0]);
+                    end = bounds.length > 1 ? Integer.parseInt(bounds[1]) + 1 : content.length;
+                    if (start == failingRangeStart) {
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + content.length);
+                    exchange.sendResponseHeaders(206, end - start);
+                    rangeRequests.incrementAndGet();
+                } else {
+                    exchange.sendResponseHeaders(200, content.length);
+                }
+                OutputStream out = exchange.getResponseBody();
+                out.write(content, start, end - start);
+                out.close();
+                bytesServed.addAndGet(end - start);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
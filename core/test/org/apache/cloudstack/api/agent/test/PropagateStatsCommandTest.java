@@ -0,0 +1,62 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+//
+
+package org.apache.cloudstack.api.agent.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.PropagateStatsCommand;
+import com.cloud.serializer.GsonHelper;
+import com.google.gson.Gson;
+
+public class PropagateStatsCommandTest {
+
+    @Test
+    public void testExecuteInSequence() {
+        PropagateStatsCommand cmd = new PropagateStatsCommand(1L, null, null);
+        assertFalse(cmd.executeInSequence());
+    }
+
+    @Test
+    public void testSerialization() {
+        Map<Long, HostStatsEntry> hostStats = new HashMap<Long, HostStatsEntry>();
+        hostStats.put(42L, new HostStatsEntry(42L, 12.5, 1.0, 2.0, "host", 1024.0, 512.0, 0, 0));
+        Gson gson = GsonHelper.getGson();
+
+        String json = gson.toJson(new Command[] {new PropagateStatsCommand(7L, hostStats, null)});
+        Command[] cmds = gson.fromJson(json, Command[].class);
+
+        assertEquals(1, cmds.length);
+        assertTrue(cmds[0] instanceof PropagateStatsCommand);
+        PropagateStatsCommand cmd = (PropagateStatsCommand)cmds[0];
+        assertEquals(7L, cmd.getMsId());
+        assertNull(cmd.getVmStats());
+        assertEquals(12.5, cmd.getHostStats().get(42L).getCpuUtilization(), 0);
+        assertEquals(512.0, cmd.getHostStats().get(42L).getFreeMemoryKBs(), 0);
+    }
+}
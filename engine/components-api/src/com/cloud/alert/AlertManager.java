@@ -35,6 +35,12 @@ public interface AlertManager extends Manager, AlertService {
         "Alert", "0.75", "Percentage (as a value between 0 and 1) of allocated storage utilization above which alerts will be sent about low storage available.", true,
         ConfigKey.Scope.Cluster, null);
 
+    static final ConfigKey<Integer> CapacityAuditInterval = new ConfigKey<Integer>("Alert", Integer.class, "capacity.audit.interval", "86400",
+        "Minimum interval (in seconds) between two full cpu/memory capacity audits of all hosts run by the capacity checker. Host capacity is otherwise kept up to date from VM state transitions.",
+        true);
+    static final ConfigKey<Integer> CapacityAuditWorkers = new ConfigKey<Integer>("Alert", Integer.class, "capacity.audit.workers", "4",
+        "Number of hosts whose cpu/memory capacity is audited in parallel during a full capacity audit.", false);
+
     void clearAlert(AlertType alertType, long dataCenterId, long podId);
 
     void recalculateCapacity();
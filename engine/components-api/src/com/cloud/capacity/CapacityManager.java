@@ -16,10 +16,13 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.Map;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
 import com.cloud.host.Host;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.storage.VMTemplateVO;
 import com.cloud.vm.VirtualMachine;
 
@@ -69,6 +72,20 @@ public interface CapacityManager {
 
     void updateCapacityForHost(Host host);
 
+    /**
+     * Recomputes the cpu/memory capacity of a host from the VMs placed on it and
+     * calibrates op_host_capacity if it has drifted.
+     * @param host the host to recompute
+     * @param offeringsMap all service offerings (including removed ones) keyed by id
+     * @return true if the stored capacity had drifted and was corrected
+     */
+    boolean updateCapacityForHost(Host host, Map<Long, ServiceOfferingVO> offeringsMap);
+
+    /**
+     * @return all service offerings, including removed ones, keyed by id
+     */
+    Map<Long, ServiceOfferingVO> listServiceOfferingsById();
+
     /**
      * @param pool storage pool
      * @param templateForVmCreation template that will be used for vm creation
@@ -46,6 +46,8 @@ import javax.net.ssl.SSLEngine;
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
@@ -59,6 +61,7 @@ import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PropagateResourceEventCommand;
+import com.cloud.agent.api.PropagateStatsCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.transport.Request;
@@ -123,6 +126,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     ConfigurationDao _configDao;
     @Inject
     ConfigDepot _configDepot;
+    @Inject
+    MessageBus _messageBus;
 
     protected ClusteredAgentManagerImpl() {
         super();
@@ -1344,6 +1349,17 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 final ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 final String response = handleScheduleHostScanTaskCommand(cmd);
                 return response;
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateStatsCommand) {
+                final PropagateStatsCommand cmd = (PropagateStatsCommand)cmds[0];
+
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Intercepting command to propagate stats from management server " + cmd.getMsId());
+                }
+                _messageBus.publish(null, PropagateStatsCommand.TOPIC, PublishScope.LOCAL, cmd);
+
+                final Answer[] answers = new Answer[1];
+                answers[0] = new Answer(cmd, true, null);
+                return _gson.toJson(answers);
             }
 
             try {
@@ -2761,7 +2761,11 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
             if (cmd instanceof PingRoutingCommand) {
                 final PingRoutingCommand ping = (PingRoutingCommand)cmd;
                 if (ping.getHostVmStateReport() != null) {
-                    _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport());
+                    if (ping.isPartialHostVmStateReport()) {
+                        _syncMgr.processHostVmStateChangeReport(agentId, ping.getHostVmStateReport());
+                    } else {
+                        _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport());
+                    }
                 }
 
                 // take the chance to scan VMs that are stuck in transitional states
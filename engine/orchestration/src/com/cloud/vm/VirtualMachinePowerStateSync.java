@@ -29,5 +29,8 @@ public interface VirtualMachinePowerStateSync {
     // to adapt legacy ping report
     void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
+    // report that only has the vms whose state changed, the vms missing from it are not considered gone
+    void processHostVmStateChangeReport(long hostId, Map<String, HostVmStateReportEntry> report);
+
     Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states);
 }
@@ -70,7 +70,20 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         processReport(hostId, translatedInfo);
     }
 
+    @Override
+    public void processHostVmStateChangeReport(long hostId, Map<String, HostVmStateReportEntry> report) {
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Process host VM state change report from ping process. host: " + hostId);
+
+        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
+        processReport(hostId, translatedInfo, false);
+    }
+
     private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+        processReport(hostId, translatedInfo, true);
+    }
+
+    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo, boolean checkMissing) {
 
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
@@ -91,6 +104,12 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             }
         }
 
+        if (!checkMissing) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("Done with process of VM state change report. host: " + hostId);
+            return;
+        }
+
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
                 VirtualMachine.State.Stopping, VirtualMachine.State.Starting);
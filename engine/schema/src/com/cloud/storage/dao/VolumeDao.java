@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.storage.dao;
 
+import java.util.Date;
 import java.util.List;
 
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
@@ -75,6 +76,14 @@ public interface VolumeDao extends GenericDao<VolumeVO, Long>, StateDao<Volume.S
 
     List<VolumeVO> listVolumesToBeDestroyed();
 
+    /**
+     * Lists the volumes left in Expunging state by an expunge that was interrupted, for example by a
+     * management server restart.
+     *
+     * @param updatedBefore only volumes whose state did not change since this date are returned
+     */
+    List<VolumeVO> listStaleExpungingVolumes(Date updatedBefore);
+
     ImageFormat getImageFormat(Long volumeId);
 
     List<VolumeVO> findReadyRootVolumesByInstance(long instanceId);
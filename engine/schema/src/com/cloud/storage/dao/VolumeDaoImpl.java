@@ -63,6 +63,7 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
     protected final GenericSearchBuilder<VolumeVO, Long> ActiveTemplateSearch;
     protected final SearchBuilder<VolumeVO> InstanceStatesSearch;
     protected final SearchBuilder<VolumeVO> AllFieldsSearch;
+    protected final SearchBuilder<VolumeVO> StaleExpungingSearch;
     protected GenericSearchBuilder<VolumeVO, Long> CountByAccount;
     protected GenericSearchBuilder<VolumeVO, SumCount> primaryStorageSearch;
     protected GenericSearchBuilder<VolumeVO, SumCount> primaryStorageSearch2;
@@ -318,6 +319,11 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         AllFieldsSearch.and("name", AllFieldsSearch.entity().getName(), Op.EQ);
         AllFieldsSearch.done();
 
+        StaleExpungingSearch = createSearchBuilder();
+        StaleExpungingSearch.and("state", StaleExpungingSearch.entity().getState(), Op.EQ);
+        StaleExpungingSearch.and("updated", StaleExpungingSearch.entity().getUpdated(), Op.LT);
+        StaleExpungingSearch.done();
+
         DetachedAccountIdSearch = createSearchBuilder();
         DetachedAccountIdSearch.and("accountId", DetachedAccountIdSearch.entity().getAccountId(), Op.EQ);
         DetachedAccountIdSearch.and("destroyed", DetachedAccountIdSearch.entity().getState(), Op.NEQ);
@@ -465,6 +471,15 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         return listBy(sc);
     }
 
+    @Override
+    public List<VolumeVO> listStaleExpungingVolumes(Date updatedBefore) {
+        SearchCriteria<VolumeVO> sc = StaleExpungingSearch.create();
+        sc.setParameters("state", Volume.State.Expunging);
+        sc.setParameters("updated", updatedBefore);
+
+        return listBy(sc);
+    }
+
     @Override
     public boolean updateState(com.cloud.storage.Volume.State currentState, Event event, com.cloud.storage.Volume.State nextState, Volume vo, Object data) {
 
@@ -25,7 +25,9 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.SearchCriteria;
 
+import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 public interface UsageDao extends GenericDao<UsageVO, Long> {
     void deleteRecordsForAccount(Long accountId);
@@ -55,4 +57,26 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     void saveUsageRecords(List<UsageVO> usageRecords);
 
     void removeOldUsageRecords(int days);
+
+    /**
+     * Removes the usage records of an aggregation run, i.e. all records that start and end within the given range.
+     *
+     * @throws com.cloud.utils.exception.CloudRuntimeException if the records could not be removed
+     */
+    void removeUsageRecords(Date startDate, Date endDate);
+
+    /**
+     * Recomputes the daily and monthly usage_rollup rows of every day touched by the given range from the
+     * cloud_usage records, days and months are the calendar ones of the given timezone. Runs in the current
+     * transaction and throws CloudRuntimeException on failure.
+     */
+    void updateUsageRollups(Date startDate, Date endDate, TimeZone tz);
+
+    /**
+     * Sums the usage_rollup rows of the days from startDate to endDate per account, zone, usage type and offering.
+     * The monthly rows are read when the range covers whole months. The returned records are not persisted,
+     * their start and end dates are the ones of the range.
+     */
+    List<UsageVO> listUsageTotals(Long accountId, Long domainId, List<Long> domainIds, Long usageType, Date startDate, Date endDate, TimeZone tz, Long startIndex,
+            Long pageSize);
 }
@@ -34,7 +34,10 @@ import javax.ejb.Local;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Types;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
@@ -46,6 +49,7 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
     private static final String DELETE_ALL = "DELETE FROM cloud_usage";
     private static final String DELETE_ALL_BY_ACCOUNTID = "DELETE FROM cloud_usage WHERE account_id = ?";
     private static final String DELETE_ALL_BY_INTERVAL = "DELETE FROM cloud_usage WHERE end_date < DATE_SUB(CURRENT_DATE(), INTERVAL ? DAY)";
+    private static final String DELETE_ALL_BY_RANGE = "DELETE FROM cloud_usage WHERE start_date >= ? AND end_date <= ?";
     private static final String INSERT_ACCOUNT = "INSERT INTO cloud_usage.account (id, account_name, type, domain_id, removed, cleanup_needed) VALUES (?,?,?,?,?,?)";
     private static final String INSERT_USER_STATS =
             "INSERT INTO cloud_usage.user_statistics (id, data_center_id, account_id, public_ip_address, device_id, device_type, network_id, net_bytes_received,"
@@ -72,6 +76,18 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             "usage_type, raw_usage, vm_instance_id, vm_name, offering_id, template_id, "
             + "usage_id, type, size, network_id, start_date, end_date, virtual_size) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?)";
 
+    private static final String DELETE_ROLLUPS = "DELETE FROM cloud_usage.usage_rollup WHERE period = ? AND period_start >= ? AND period_start < ?";
+    private static final String INSERT_DAY_ROLLUPS = "INSERT INTO cloud_usage.usage_rollup (period, period_start, zone_id, account_id, domain_id, usage_type, "
+            + "offering_id, raw_usage, records) SELECT 'DAY', ?, zone_id, account_id, MAX(domain_id), usage_type, "
+            + "IFNULL(offering_id, 0) AS offering, SUM(raw_usage), COUNT(*) FROM cloud_usage.cloud_usage WHERE start_date >= ? AND start_date < ? "
+            + "GROUP BY zone_id, account_id, usage_type, offering";
+    private static final String INSERT_MONTH_ROLLUPS = "INSERT INTO cloud_usage.usage_rollup (period, period_start, zone_id, account_id, domain_id, usage_type, "
+            + "offering_id, raw_usage, records) SELECT 'MONTH', DATE_FORMAT(period_start, '%Y-%m-01') AS month, zone_id, account_id, MAX(domain_id), usage_type, "
+            + "offering_id, SUM(raw_usage), SUM(records) FROM cloud_usage.usage_rollup WHERE period = 'DAY' AND period_start >= ? AND period_start < ? "
+            + "GROUP BY month, zone_id, account_id, usage_type, offering_id";
+    private static final String LIST_USAGE_TOTALS = "SELECT zone_id, account_id, MAX(domain_id), usage_type, offering_id, SUM(raw_usage), SUM(records) "
+            + "FROM cloud_usage.usage_rollup WHERE period = ? AND period_start >= ? AND period_start <= ?";
+
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     public UsageDaoImpl() {
@@ -469,4 +485,176 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             txn.close();
         }
     }
+
+    @Override
+    public void removeUsageRecords(Date startDate, Date endDate) {
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            pstmt = txn.prepareAutoCloseStatement(DELETE_ALL_BY_RANGE);
+            pstmt.setString(1, DateUtil.getDateDisplayString(s_gmtTimeZone, startDate));
+            pstmt.setString(2, DateUtil.getDateDisplayString(s_gmtTimeZone, endDate));
+            pstmt.executeUpdate();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error removing cloud_usage records between " + startDate + " and " + endDate, ex);
+            throw new CloudRuntimeException("Unable to remove usage records between " + startDate + " and " + endDate, ex);
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Override
+    public void updateUsageRollups(Date startDate, Date endDate, TimeZone tz) {
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dayFormat.setTimeZone(tz);
+
+        Calendar cal = Calendar.getInstance(tz);
+        cal.setTime(startDate);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        Date firstDay = cal.getTime();
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        Date firstMonth = cal.getTime();
+
+        cal.setTime(endDate);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        Date nextDay = cal.getTime();
+        cal.add(Calendar.DAY_OF_MONTH, -1);
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        cal.add(Calendar.MONTH, 1);
+        Date nextMonth = cal.getTime();
+
+        // runs in the transaction of the usage job, a failure fails the job and rolls back its usage records as well
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            pstmt = txn.prepareAutoCloseStatement(DELETE_ROLLUPS);
+            pstmt.setString(1, "DAY");
+            pstmt.setString(2, dayFormat.format(firstDay));
+            pstmt.setString(3, dayFormat.format(nextDay));
+            pstmt.executeUpdate();
+
+            // cloud_usage dates are in GMT, bound every day separately so days across a DST change get their own offset
+            pstmt = txn.prepareAutoCloseStatement(INSERT_DAY_ROLLUPS);
+            cal.setTime(firstDay);
+            while (cal.getTime().before(nextDay)) {
+                Date dayStart = cal.getTime();
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+                pstmt.setString(1, dayFormat.format(dayStart));
+                pstmt.setString(2, DateUtil.getDateDisplayString(s_gmtTimeZone, dayStart));
+                pstmt.setString(3, DateUtil.getDateDisplayString(s_gmtTimeZone, cal.getTime()));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+
+            pstmt = txn.prepareAutoCloseStatement(DELETE_ROLLUPS);
+            pstmt.setString(1, "MONTH");
+            pstmt.setString(2, dayFormat.format(firstMonth));
+            pstmt.setString(3, dayFormat.format(nextMonth));
+            pstmt.executeUpdate();
+
+            pstmt = txn.prepareAutoCloseStatement(INSERT_MONTH_ROLLUPS);
+            pstmt.setString(1, dayFormat.format(firstMonth));
+            pstmt.setString(2, dayFormat.format(nextMonth));
+            pstmt.executeUpdate();
+            txn.commit();
+        } catch (Exception ex) {
+            s_logger.error("error updating the usage rollups between " + startDate + " and " + endDate, ex);
+            throw new CloudRuntimeException("Unable to update the usage rollups between " + startDate + " and " + endDate, ex);
+        }
+    }
+
+    @Override
+    public List<UsageVO> listUsageTotals(Long accountId, Long domainId, List<Long> domainIds, Long usageType, Date startDate, Date endDate, TimeZone tz,
+            Long startIndex, Long pageSize) {
+        List<UsageVO> totals = new ArrayList<UsageVO>();
+
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dayFormat.setTimeZone(tz);
+        String period = "DAY";
+        Calendar cal = Calendar.getInstance(tz);
+        cal.setTime(startDate);
+        if (cal.get(Calendar.DAY_OF_MONTH) == 1) {
+            cal.setTime(endDate);
+            if (cal.get(Calendar.DAY_OF_MONTH) == cal.getActualMaximum(Calendar.DAY_OF_MONTH)) {
+                period = "MONTH";
+            }
+        }
+
+        StringBuilder sql = new StringBuilder(LIST_USAGE_TOTALS);
+        if (accountId != null) {
+            sql.append(" AND account_id = ?");
+        }
+        if (domainId != null) {
+            sql.append(" AND domain_id = ?");
+        }
+        if (domainIds != null) {
+            sql.append(" AND domain_id IN (");
+            for (int i = 0; i < domainIds.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+        }
+        if (usageType != null) {
+            sql.append(" AND usage_type = ?");
+        }
+        sql.append(" GROUP BY account_id, zone_id, usage_type, offering_id ORDER BY account_id, zone_id, usage_type, offering_id");
+        if (pageSize != null) {
+            sql.append(" LIMIT ").append(startIndex == null ? 0 : startIndex).append(",").append(pageSize);
+        }
+
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+        try {
+            int i = 1;
+            pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            pstmt.setString(i++, period);
+            pstmt.setString(i++, dayFormat.format(startDate));
+            pstmt.setString(i++, dayFormat.format(endDate));
+            if (accountId != null) {
+                pstmt.setLong(i++, accountId);
+            }
+            if (domainId != null) {
+                pstmt.setLong(i++, domainId);
+            }
+            if (domainIds != null) {
+                for (Long id : domainIds) {
+                    pstmt.setLong(i++, id);
+                }
+            }
+            if (usageType != null) {
+                pstmt.setLong(i++, usageType);
+            }
+
+            DecimalFormat dFormat = new DecimalFormat("#.######");
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                //zone_id, account_id, domain_id, usage_type, offering_id, raw_usage, records
+                Long offeringId = rs.getLong(5);
+                if (offeringId == 0) {
+                    offeringId = null;
+                }
+                double rawUsage = rs.getDouble(6);
+                String description = "Total of " + rs.getLong(7) + " usage records";
+                totals.add(new UsageVO(rs.getLong(1), rs.getLong(2), rs.getLong(3), description, dFormat.format(rawUsage), rs.getInt(4), rawUsage, null, null,
+                        offeringId, null, null, null, startDate, endDate));
+            }
+        } catch (Exception ex) {
+            s_logger.error("error listing the usage totals between " + startDate + " and " + endDate, ex);
+            throw new CloudRuntimeException("Unable to list the usage totals between " + startDate + " and " + endDate, ex);
+        } finally {
+            txn.close();
+        }
+        return totals;
+    }
 }
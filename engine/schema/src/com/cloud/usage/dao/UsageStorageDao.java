@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.List;
 
 import com.cloud.usage.UsageStorageVO;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDao;
 
 public interface UsageStorageDao extends GenericDao<UsageStorageVO, Long> {
@@ -29,6 +30,14 @@ public interface UsageStorageDao extends GenericDao<UsageStorageVO, Long> {
 
     public List<UsageStorageVO> getUsageRecords(Long accountId, Long domainId, Date startDate, Date endDate, boolean limit, int page);
 
+    /**
+     * Clips the usage_storage entries of an account to the given range and sums their durations in the database.
+     *
+     * @return one entry per storage id, zone and storage type, carrying the source and sizes of its latest entry and
+     *         paired with the time in milliseconds it was stored in the range
+     */
+    public List<Pair<UsageStorageVO, Long>> getUsageDurations(long accountId, Date startDate, Date endDate);
+
     List<UsageStorageVO> listById(long accountId, long id, int type);
 
     List<UsageStorageVO> listByIdAndZone(long accountId, long id, int type, long dcId);
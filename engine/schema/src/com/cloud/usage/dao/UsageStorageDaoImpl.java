@@ -32,6 +32,7 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.usage.UsageStorageVO;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -52,6 +53,15 @@ public class UsageStorageDaoImpl extends GenericDaoBase<UsageStorageVO, Long> im
             + "WHERE domain_id = ? AND ((deleted IS NULL) OR (created BETWEEN ? AND ?) OR " + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?)))";
     protected static final String GET_ALL_USAGE_RECORDS = "SELECT id, zone_id, account_id, domain_id, storage_type, source_id, size, created, deleted, virtual_size "
         + "FROM usage_storage " + "WHERE (deleted IS NULL) OR (created BETWEEN ? AND ?) OR " + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))";
+    // the created/deleted columns are in GMT, their distance to the epoch in ms is compared with the range as Date.getTime(),
+    // source and sizes are taken from the latest entry of the group
+    protected static final String GET_USAGE_DURATIONS_BY_ACCOUNT = "SELECT id, zone_id, storage_type, "
+        + "SUBSTRING_INDEX(GROUP_CONCAT(IFNULL(source_id, 0) ORDER BY created DESC), ',', 1), SUBSTRING_INDEX(GROUP_CONCAT(size ORDER BY created DESC), ',', 1), "
+        + "SUBSTRING_INDEX(GROUP_CONCAT(IFNULL(virtual_size, 0) ORDER BY created DESC), ',', 1), "
+        + "SUM(LEAST(IFNULL(TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', deleted) * 1000, ?), ?) - GREATEST(TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', created) * 1000, ?) + 1) "
+        + "FROM usage_storage WHERE account_id = ? AND ((deleted IS NULL) OR (created BETWEEN ? AND ?) OR "
+        + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))) "
+        + "AND TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', created) * 1000 <= ? GROUP BY id, zone_id, storage_type";
 
     private final SearchBuilder<UsageStorageVO> IdSearch;
     private final SearchBuilder<UsageStorageVO> IdZoneSearch;
@@ -216,4 +226,49 @@ public class UsageStorageDaoImpl extends GenericDaoBase<UsageStorageVO, Long> im
         }
         return usageRecords;
     }
+
+    @Override
+    public List<Pair<UsageStorageVO, Long>> getUsageDurations(long accountId, Date startDate, Date endDate) {
+        List<Pair<UsageStorageVO, Long>> usageDurations = new ArrayList<Pair<UsageStorageVO, Long>>();
+
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        int i = 1;
+        try (PreparedStatement pstmt = txn.prepareStatement(GET_USAGE_DURATIONS_BY_ACCOUNT);) {
+            pstmt.setLong(i++, endDate.getTime());
+            pstmt.setLong(i++, endDate.getTime());
+            pstmt.setLong(i++, startDate.getTime());
+            pstmt.setLong(i++, accountId);
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setLong(i++, endDate.getTime());
+
+            try (ResultSet rs = pstmt.executeQuery();) {
+                while (rs.next()) {
+                    //id, zone_id, storage_type, source_id, size, virtual_size, duration
+                    long id = rs.getLong(1);
+                    long zoneId = rs.getLong(2);
+                    int type = rs.getInt(3);
+                    Long sourceId = Long.valueOf(rs.getLong(4));
+                    long size = rs.getLong(5);
+                    Long virtualSize = Long.valueOf(rs.getLong(6));
+                    long duration = rs.getLong(7);
+
+                    usageDurations.add(new Pair<UsageStorageVO, Long>(new UsageStorageVO(id, zoneId, accountId, 0, type, sourceId, size, virtualSize, null, null),
+                        duration));
+                }
+            } catch (SQLException e) {
+                throw new CloudException("getUsageDurations:" + e.getMessage(), e);
+            }
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.error("getUsageDurations:Exception:" + e.getMessage(), e);
+        } finally {
+            txn.close();
+        }
+        return usageDurations;
+    }
 }
@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.List;
 
 import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDao;
 
 public interface UsageVMInstanceDao extends GenericDao<UsageVMInstanceVO, Long> {
@@ -28,4 +29,12 @@ public interface UsageVMInstanceDao extends GenericDao<UsageVMInstanceVO, Long>
     public void delete(UsageVMInstanceVO instance);
 
     public List<UsageVMInstanceVO> getUsageRecords(long userId, Date startDate, Date endDate);
+
+    /**
+     * Clips the usage_vm_instance entries of an account to the given range and sums their durations in the database.
+     *
+     * @return one entry per vm, service offering, usage type, cpu and memory, carrying the name, zone, template and
+     *         hypervisor of its latest entry and paired with the time in milliseconds it was used in the range
+     */
+    public List<Pair<UsageVMInstanceVO, Long>> getUsageDurations(long accountId, Date startDate, Date endDate);
 }
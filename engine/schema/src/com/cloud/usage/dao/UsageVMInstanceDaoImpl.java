@@ -30,6 +30,7 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.usage.UsageVMInstanceVO;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.TransactionLegacy;
 
@@ -45,6 +46,16 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
         "SELECT usage_type, zone_id, account_id, vm_instance_id, vm_name, cpu_speed, cpu_cores, memory, service_offering_id, template_id, hypervisor_type, start_date, end_date "
             + "FROM usage_vm_instance WHERE account_id = ? AND ((end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR "
             + "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?)))";
+    // the start_date/end_date columns are in GMT, their distance to the epoch in ms is compared with the range as Date.getTime(),
+    // name, zone, template and hypervisor are taken from the latest entry of the group
+    protected static final String GET_USAGE_DURATIONS_BY_ACCOUNT = "SELECT vm_instance_id, service_offering_id, usage_type, cpu_speed, cpu_cores, memory, "
+        + "SUBSTRING_INDEX(GROUP_CONCAT(vm_name ORDER BY start_date DESC), ',', 1), SUBSTRING_INDEX(GROUP_CONCAT(zone_id ORDER BY start_date DESC), ',', 1), "
+        + "SUBSTRING_INDEX(GROUP_CONCAT(template_id ORDER BY start_date DESC), ',', 1), "
+        + "SUBSTRING_INDEX(GROUP_CONCAT(IFNULL(hypervisor_type, '') ORDER BY start_date DESC), ',', 1), "
+        + "SUM(LEAST(IFNULL(TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', end_date) * 1000, ?), ?) - GREATEST(TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', start_date) * 1000, ?) + 1) "
+        + "FROM usage_vm_instance WHERE account_id = ? AND ((end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR "
+        + "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?))) "
+        + "AND TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', start_date) * 1000 <= ? GROUP BY vm_instance_id, service_offering_id, usage_type, cpu_speed, cpu_cores, memory";
 
     public UsageVMInstanceDaoImpl() {
     }
@@ -149,4 +160,67 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
         }
         return usageInstances;
     }
+
+    @Override
+    public List<Pair<UsageVMInstanceVO, Long>> getUsageDurations(long accountId, Date startDate, Date endDate) {
+        List<Pair<UsageVMInstanceVO, Long>> usageDurations = new ArrayList<Pair<UsageVMInstanceVO, Long>>();
+
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+
+        try {
+            int i = 1;
+            pstmt = txn.prepareAutoCloseStatement(GET_USAGE_DURATIONS_BY_ACCOUNT);
+            pstmt.setLong(i++, endDate.getTime());
+            pstmt.setLong(i++, endDate.getTime());
+            pstmt.setLong(i++, startDate.getTime());
+            pstmt.setLong(i++, accountId);
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setLong(i++, endDate.getTime());
+
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                //vm_instance_id, service_offering_id, usage_type, cpu_speed, cpu_cores, memory, vm_name, zone_id, template_id, hypervisor_type, duration
+                long vmId = rs.getLong(1);
+                long soId = rs.getLong(2);
+                int usageType = rs.getInt(3);
+                Long cpuSpeed = rs.getLong(4);
+                if (rs.wasNull()) {
+                    cpuSpeed = null;
+                }
+                Long cpuCores = rs.getLong(5);
+                if (rs.wasNull()) {
+                    cpuCores = null;
+                }
+                Long memory = rs.getLong(6);
+                if (rs.wasNull()) {
+                    memory = null;
+                }
+                String vmName = rs.getString(7);
+                long zoneId = rs.getLong(8);
+                long tId = rs.getLong(9);
+                String hypervisorType = rs.getString(10);
+                if (hypervisorType.isEmpty()) {
+                    hypervisorType = null;
+                }
+                long duration = rs.getLong(11);
+
+                UsageVMInstanceVO usageInstance =
+                    new UsageVMInstanceVO(usageType, zoneId, accountId, vmId, vmName, soId, tId, cpuSpeed, cpuCores, memory, hypervisorType, null, null);
+                usageDurations.add(new Pair<UsageVMInstanceVO, Long>(usageInstance, duration));
+            }
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.warn("Error getting usage durations", e);
+        } finally {
+            txn.close();
+        }
+
+        return usageDurations;
+    }
 }
@@ -28,4 +28,11 @@ public interface UsageVMSnapshotDao extends GenericDao<UsageVMSnapshotVO, Long>
     public List<UsageVMSnapshotVO> getUsageRecords(Long accountId, Long domainId, Date startDate, Date endDate);
 
     UsageVMSnapshotVO getPreviousUsageRecord(UsageVMSnapshotVO rec);
+
+    /**
+     * Marks the records processed at or after the given date as unprocessed again, to undo a failed aggregation run.
+     *
+     * @throws com.cloud.utils.exception.CloudRuntimeException if the records could not be updated
+     */
+    void clearProcessed(Date since);
 }
@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.List;
 
 import com.cloud.usage.UsageVolumeVO;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDao;
 
 public interface UsageVolumeDao extends GenericDao<UsageVolumeVO, Long> {
@@ -28,4 +29,11 @@ public interface UsageVolumeDao extends GenericDao<UsageVolumeVO, Long> {
     public void update(UsageVolumeVO usage);
 
     public List<UsageVolumeVO> getUsageRecords(Long accountId, Long domainId, Date startDate, Date endDate, boolean limit, int page);
+
+    /**
+     * Clips the usage_volume entries of an account to the given range and sums their durations in the database.
+     *
+     * @return one entry per volume, disk offering and size, paired with the time in milliseconds it was allocated in the range
+     */
+    public List<Pair<UsageVolumeVO, Long>> getUsageDurations(long accountId, Date startDate, Date endDate);
 }
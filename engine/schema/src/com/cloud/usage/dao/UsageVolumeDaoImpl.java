@@ -32,6 +32,7 @@ import org.springframework.stereotype.Component;
 
 import com.cloud.usage.UsageVolumeVO;
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.TransactionLegacy;
 
@@ -50,6 +51,14 @@ public class UsageVolumeDaoImpl extends GenericDaoBase<UsageVolumeVO, Long> impl
         + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?)))";
     protected static final String GET_ALL_USAGE_RECORDS = "SELECT id, zone_id, account_id, domain_id, disk_offering_id, template_id, size, created, deleted "
         + "FROM usage_volume " + "WHERE (deleted IS NULL) OR (created BETWEEN ? AND ?) OR " + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))";
+    // the created/deleted columns are in GMT, their distance to the epoch in ms is compared with the range as Date.getTime(),
+    // zone and template are taken from the latest entry of the group
+    protected static final String GET_USAGE_DURATIONS_BY_ACCOUNT = "SELECT id, SUBSTRING_INDEX(GROUP_CONCAT(zone_id ORDER BY created DESC), ',', 1), "
+        + "IFNULL(disk_offering_id, 0) AS do_id, SUBSTRING_INDEX(GROUP_CONCAT(IFNULL(template_id, 0) ORDER BY created DESC), ',', 1), size, "
+        + "SUM(LEAST(IFNULL(TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', deleted) * 1000, ?), ?) - GREATEST(TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', created) * 1000, ?) + 1) "
+        + "FROM usage_volume " + "WHERE account_id = ? AND ((deleted IS NULL) OR (created BETWEEN ? AND ?) OR "
+        + "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))) "
+        + "AND TIMESTAMPDIFF(SECOND, '1970-01-01 00:00:00', created) * 1000 <= ? GROUP BY id, do_id, size";
 
     public UsageVolumeDaoImpl() {
     }
@@ -178,4 +187,54 @@ public class UsageVolumeDaoImpl extends GenericDaoBase<UsageVolumeVO, Long> impl
 
         return usageRecords;
     }
+
+    @Override
+    public List<Pair<UsageVolumeVO, Long>> getUsageDurations(long accountId, Date startDate, Date endDate) {
+        List<Pair<UsageVolumeVO, Long>> usageDurations = new ArrayList<Pair<UsageVolumeVO, Long>>();
+
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        PreparedStatement pstmt = null;
+
+        try {
+            int i = 1;
+            pstmt = txn.prepareAutoCloseStatement(GET_USAGE_DURATIONS_BY_ACCOUNT);
+            pstmt.setLong(i++, endDate.getTime());
+            pstmt.setLong(i++, endDate.getTime());
+            pstmt.setLong(i++, startDate.getTime());
+            pstmt.setLong(i++, accountId);
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setLong(i++, endDate.getTime());
+
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                //id, zoneId, disk_offering_id, template_id, size, duration
+                long vId = rs.getLong(1);
+                long zoneId = rs.getLong(2);
+                Long doId = Long.valueOf(rs.getLong(3));
+                if (doId == 0) {
+                    doId = null;
+                }
+                Long tId = Long.valueOf(rs.getLong(4));
+                if (tId == 0) {
+                    tId = null;
+                }
+                long size = rs.getLong(5);
+                long duration = rs.getLong(6);
+
+                usageDurations.add(new Pair<UsageVolumeVO, Long>(new UsageVolumeVO(vId, zoneId, accountId, 0, doId, tId, size, null, null), duration));
+            }
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.warn("Error getting usage durations", e);
+        } finally {
+            txn.close();
+        }
+
+        return usageDurations;
+    }
 }
@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.dao;
+
+import java.sql.SQLException;
+import java.util.Date;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.powermock.reflect.Whitebox;
+
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class UsageDaoImplTest {
+
+    private DataSource usageDataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        // the usage DB is unreachable
+        usageDataSource = Whitebox.getInternalState(TransactionLegacy.class, "s_usageDS");
+        DataSource failing = Mockito.mock(DataSource.class);
+        Mockito.when(failing.getConnection()).thenThrow(new SQLException("usage DB is down"));
+        Whitebox.setInternalState(TransactionLegacy.class, "s_usageDS", failing);
+    }
+
+    @After
+    public void tearDown() {
+        Whitebox.setInternalState(TransactionLegacy.class, "s_usageDS", usageDataSource);
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void testFailedRemovalOfUsageRecordsIsThrown() {
+        new UsageDaoImpl().removeUsageRecords(new Date(0), new Date());
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void testFailedClearingOfProcessedVmSnapshotsIsThrown() {
+        new UsageVMSnapshotDaoImpl().clearProcessed(new Date(0));
+    }
+}
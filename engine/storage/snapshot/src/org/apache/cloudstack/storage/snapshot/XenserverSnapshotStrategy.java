@@ -113,7 +113,9 @@ public class XenserverSnapshotStrategy extends SnapshotStrategyBase {
         SnapshotDataStoreVO parentSnapshotOnBackupStore = snapshotStoreDao.findLatestSnapshotForVolume(snapshot.getVolumeId(), DataStoreRole.Image);
         SnapshotDataStoreVO parentSnapshotOnPrimaryStore = snapshotStoreDao.findLatestSnapshotForVolume(snapshot.getVolumeId(), DataStoreRole.Primary);
         HypervisorType hypervisorType = snapshot.getBaseVolume().getHypervisorType();
-        if (parentSnapshotOnPrimaryStore != null && parentSnapshotOnBackupStore != null && hypervisorType == Hypervisor.HypervisorType.XenServer) { // CS does incremental backup only for XenServer
+        boolean deltaSupported = hypervisorType == Hypervisor.HypervisorType.XenServer ||
+                (hypervisorType == Hypervisor.HypervisorType.KVM && Boolean.parseBoolean(configDao.getValue("kvm.snapshot.incremental")));
+        if (parentSnapshotOnPrimaryStore != null && parentSnapshotOnBackupStore != null && deltaSupported) { // CS does incremental backup only for XenServer and, if enabled, KVM
 
             // In case of volume migration from one pool to other pool, CS should take full snapshot to avoid any issues with delta chain,
             // to check if this is a migrated volume, compare the current pool id of volume and store_id of oldest snapshot on primary for this volume.
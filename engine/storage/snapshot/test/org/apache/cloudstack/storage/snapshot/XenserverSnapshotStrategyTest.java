@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.snapshot;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
+import org.apache.cloudstack.engine.subsystem.api.storage.SnapshotInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.SnapshotService;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeInfo;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.storage.datastore.db.SnapshotDataStoreDao;
+import org.apache.cloudstack.storage.datastore.db.SnapshotDataStoreVO;
+
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.storage.DataStoreRole;
+import com.cloud.storage.VolumeVO;
+import com.cloud.storage.dao.VolumeDao;
+
+public class XenserverSnapshotStrategyTest {
+
+    private static final long VOLUME_ID = 1L;
+    private static final long POOL_ID = 7L;
+
+    private XenserverSnapshotStrategy strategy;
+    private ConfigurationDao configDao;
+    private SnapshotInfo snapshot;
+    private VolumeInfo volume;
+
+    @Before
+    public void setUp() {
+        strategy = new XenserverSnapshotStrategy();
+        configDao = mock(ConfigurationDao.class);
+        strategy.configDao = configDao;
+        strategy.snapshotSvr = mock(SnapshotService.class);
+        strategy.dataStoreMgr = mock(DataStoreManager.class);
+        strategy.snapshotStoreDao = mock(SnapshotDataStoreDao.class);
+        strategy.volumeDao = mock(VolumeDao.class);
+
+        snapshot = mock(SnapshotInfo.class);
+        volume = mock(VolumeInfo.class);
+        when(snapshot.getVolumeId()).thenReturn(VOLUME_ID);
+        when(snapshot.getBaseVolume()).thenReturn(volume);
+
+        // the previous snapshot is backed up and starts a chain, on the pool the volume is on
+        SnapshotDataStoreVO backupRef = mock(SnapshotDataStoreVO.class);
+        SnapshotDataStoreVO primaryRef = mock(SnapshotDataStoreVO.class);
+        when(backupRef.getParentSnapshotId()).thenReturn(0L);
+        when(primaryRef.getDataStoreId()).thenReturn(POOL_ID);
+        when(strategy.snapshotStoreDao.findLatestSnapshotForVolume(VOLUME_ID, DataStoreRole.Image)).thenReturn(backupRef);
+        when(strategy.snapshotStoreDao.findLatestSnapshotForVolume(VOLUME_ID, DataStoreRole.Primary)).thenReturn(primaryRef);
+        when(strategy.snapshotStoreDao.findOldestSnapshotForVolume(VOLUME_ID, DataStoreRole.Primary)).thenReturn(primaryRef);
+        VolumeVO volumeVO = mock(VolumeVO.class);
+        when(volumeVO.getPoolId()).thenReturn(POOL_ID);
+        when(strategy.volumeDao.findById(VOLUME_ID)).thenReturn(volumeVO);
+    }
+
+    private void backupSnapshot(HypervisorType hypervisorType, String kvmIncremental) {
+        when(volume.getHypervisorType()).thenReturn(hypervisorType);
+        when(configDao.getValue("kvm.snapshot.incremental")).thenReturn(kvmIncremental);
+        strategy.backupSnapshot(snapshot);
+    }
+
+    @Test
+    public void testXenServerBacksUpDelta() {
+        backupSnapshot(HypervisorType.XenServer, null);
+        verify(snapshot).addPayload(false);
+    }
+
+    @Test
+    public void testKvmBacksUpFullByDefault() {
+        backupSnapshot(HypervisorType.KVM, null);
+        verify(snapshot).addPayload(true);
+    }
+
+    @Test
+    public void testKvmBacksUpDeltaWhenIncrementalIsEnabled() {
+        backupSnapshot(HypervisorType.KVM, "true");
+        verify(snapshot).addPayload(false);
+    }
+
+    @Test
+    public void testOtherHypervisorsIgnoreKvmIncremental() {
+        backupSnapshot(HypervisorType.VMware, "true");
+        verify(snapshot).addPayload(true);
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.cloudstack.storage.volume;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -135,6 +136,10 @@ public class VolumeServiceImpl implements VolumeService {
     @Inject
     HostDao _hostDao;
 
+    // base image copies started by this management server, keyed by template_spool_ref id, with the
+    // requests that arrived for the same template and pool while the copy was in flight
+    private final Map<Long, List<BaseImageWaiter>> _baseImageCopies = new HashMap<Long, List<BaseImageWaiter>>();
+
     public VolumeServiceImpl() {
     }
 
@@ -435,6 +440,50 @@ public class VolumeServiceImpl implements VolumeService {
 
     }
 
+    private static class BaseImageWaiter {
+        final VolumeInfo volume;
+        final PrimaryDataStore dataStore;
+        final AsyncCallFuture<VolumeApiResult> future;
+
+        BaseImageWaiter(VolumeInfo volume, PrimaryDataStore dataStore, AsyncCallFuture<VolumeApiResult> future) {
+            this.volume = volume;
+            this.dataStore = dataStore;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Registers the request as a waiter if a copy of the base image is already in flight on this
+     * management server, otherwise marks the caller as the owner of a new copy.
+     * @return true if the request will be completed by the in-flight copy
+     */
+    boolean joinBaseImageCopy(long templatePoolRefId, VolumeInfo volume, PrimaryDataStore dataStore, AsyncCallFuture<VolumeApiResult> future) {
+        synchronized (_baseImageCopies) {
+            List<BaseImageWaiter> waiters = _baseImageCopies.get(templatePoolRefId);
+            if (waiters != null) {
+                waiters.add(new BaseImageWaiter(volume, dataStore, future));
+                return true;
+            }
+            _baseImageCopies.put(templatePoolRefId, new ArrayList<BaseImageWaiter>());
+            return false;
+        }
+    }
+
+    private List<BaseImageWaiter> finishBaseImageCopy(long templatePoolRefId) {
+        synchronized (_baseImageCopies) {
+            List<BaseImageWaiter> waiters = _baseImageCopies.remove(templatePoolRefId);
+            return waiters != null ? waiters : new ArrayList<BaseImageWaiter>();
+        }
+    }
+
+    private void failBaseImageWaiters(List<BaseImageWaiter> waiters, String error) {
+        for (BaseImageWaiter waiter : waiters) {
+            VolumeApiResult result = new VolumeApiResult(waiter.volume);
+            result.setResult(error);
+            waiter.future.complete(result);
+        }
+    }
+
     private TemplateInfo waitForTemplateDownloaded(PrimaryDataStore store, TemplateInfo template) {
         int storagePoolMaxWaitSeconds = NumbersUtil.parseInt(configDao.getValue(Config.StoragePoolMaxWaitSeconds.key()), 3600);
         int sleepTime = 120;
@@ -496,12 +545,19 @@ public class VolumeServiceImpl implements VolumeService {
         if (s_logger.isDebugEnabled()) {
             s_logger.info("lock is acquired for VMTemplateStoragePool " + templatePoolRefId);
         }
+        boolean copyOwner = false;
         try {
             if (templatePoolRef.getState() == ObjectInDataStoreStateMachine.State.Ready) {
                 s_logger.info("Template " + template.getUniqueName() + " is already copied to primary storage, skip copying");
                 createVolumeFromBaseImageAsync(volume, templateOnPrimaryStoreObj, dataStore, future);
                 return;
             }
+            if (joinBaseImageCopy(templatePoolRefId, volume, dataStore, future)) {
+                s_logger.info("Template " + template.getUniqueName() + " is already being copied to primary storage " + dataStore.getId() +
+                        ", volume " + volume.getId() + " will be created once that copy completes");
+                return;
+            }
+            copyOwner = true;
             templateOnPrimaryStoreObj.processEvent(Event.CreateOnlyRequested);
             motionSrv.copyAsync(template, templateOnPrimaryStoreObj, caller);
         } catch (Throwable e) {
@@ -511,6 +567,9 @@ public class VolumeServiceImpl implements VolumeService {
             VolumeApiResult result = new VolumeApiResult(volume);
             result.setResult(e.toString());
             future.complete(result);
+            if (copyOwner) {
+                failBaseImageWaiters(finishBaseImageCopy(templatePoolRefId), e.toString());
+            }
         } finally {
             if (s_logger.isDebugEnabled()) {
                 s_logger.info("releasing lock for VMTemplateStoragePool " + templatePoolRefId);
@@ -557,19 +616,36 @@ public class VolumeServiceImpl implements VolumeService {
     @DB
     protected Void copyBaseImageCallback(AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> callback, CreateBaseImageContext<VolumeApiResult> context) {
         CopyCommandResult result = callback.getResult();
-        VolumeApiResult res = new VolumeApiResult(context.getVolume());
-
-        AsyncCallFuture<VolumeApiResult> future = context.getFuture();
         DataObject templateOnPrimaryStoreObj = context.destObj;
+        // take the waiters out first so that they are completed whatever happens below, the request
+        // that started the copy is served like the ones that joined it
+        List<BaseImageWaiter> waiters = finishBaseImageCopy(context.getTemplatePoolId());
+        waiters.add(0, new BaseImageWaiter(context.getVolume(), context.getDataStore(), context.getFuture()));
         if (!result.isSuccess()) {
-            templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
-            res.setResult(result.getResult());
-            future.complete(res);
+            try {
+                templateOnPrimaryStoreObj.processEvent(Event.OperationFailed);
+            } finally {
+                failBaseImageWaiters(waiters, result.getResult());
+            }
             return null;
         }
 
-        templateOnPrimaryStoreObj.processEvent(Event.OperationSuccessed, result.getAnswer());
-        createVolumeFromBaseImageAsync(context.volume, templateOnPrimaryStoreObj, context.dataStore, future);
+        try {
+            templateOnPrimaryStoreObj.processEvent(Event.OperationSuccessed, result.getAnswer());
+        } catch (Exception e) {
+            s_logger.debug("failed to update the state of the base image on storage", e);
+            failBaseImageWaiters(waiters, e.toString());
+            return null;
+        }
+
+        for (BaseImageWaiter waiter : waiters) {
+            try {
+                createVolumeFromBaseImageAsync(waiter.volume, templateOnPrimaryStoreObj, waiter.dataStore, waiter.future);
+            } catch (Exception e) {
+                s_logger.debug("failed to create volume " + waiter.volume.getId() + " from base image", e);
+                failBaseImageWaiters(Collections.singletonList(waiter), e.toString());
+            }
+        }
         return null;
     }
 
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.storage.volume;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.CopyCommandResult;
+import org.apache.cloudstack.engine.subsystem.api.storage.DataObject;
+import org.apache.cloudstack.engine.subsystem.api.storage.ObjectInDataStoreStateMachine.Event;
+import org.apache.cloudstack.engine.subsystem.api.storage.PrimaryDataStore;
+import org.apache.cloudstack.engine.subsystem.api.storage.TemplateInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService.VolumeApiResult;
+import org.apache.cloudstack.framework.async.AsyncCallFuture;
+import org.apache.cloudstack.framework.async.AsyncCallbackDispatcher;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class VolumeServiceImplTest {
+
+    private static final long TEMPLATE_POOL_ID = 1L;
+
+    VolumeServiceImpl volumeService;
+    PrimaryDataStore dataStore;
+    DataObject templateOnPrimary;
+    AsyncCallbackDispatcher<VolumeServiceImpl, CopyCommandResult> callback;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp() {
+        volumeService = Mockito.spy(new VolumeServiceImpl());
+        dataStore = Mockito.mock(PrimaryDataStore.class);
+        templateOnPrimary = Mockito.mock(DataObject.class);
+        callback = Mockito.mock(AsyncCallbackDispatcher.class);
+    }
+
+    private VolumeServiceImpl.CreateBaseImageContext<VolumeApiResult> startCopy(VolumeInfo volume, AsyncCallFuture<VolumeApiResult> future) {
+        Assert.assertFalse(volumeService.joinBaseImageCopy(TEMPLATE_POOL_ID, volume, dataStore, future));
+        return volumeService.new CreateBaseImageContext<VolumeApiResult>(null, volume, dataStore, Mockito.mock(TemplateInfo.class), future, templateOnPrimary,
+                TEMPLATE_POOL_ID);
+    }
+
+    @Test
+    public void testFailingCallbackCompletesQueuedWaiters() {
+        AsyncCallFuture<VolumeApiResult> ownerFuture = new AsyncCallFuture<VolumeApiResult>();
+        AsyncCallFuture<VolumeApiResult> waiterFuture = new AsyncCallFuture<VolumeApiResult>();
+        VolumeServiceImpl.CreateBaseImageContext<VolumeApiResult> context = startCopy(Mockito.mock(VolumeInfo.class), ownerFuture);
+        Assert.assertTrue(volumeService.joinBaseImageCopy(TEMPLATE_POOL_ID, Mockito.mock(VolumeInfo.class), dataStore, waiterFuture));
+
+        CopyCommandResult result = new CopyCommandResult(null, null);
+        result.setResult("copy failed");
+        Mockito.when(callback.getResult()).thenReturn(result);
+        Mockito.doThrow(new CloudRuntimeException("state transition failed")).when(templateOnPrimary).processEvent(Event.OperationFailed);
+
+        try {
+            volumeService.copyBaseImageCallback(callback, context);
+            Assert.fail("the state transition failure should be reported");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+
+        Assert.assertTrue(ownerFuture.isDone());
+        Assert.assertTrue(waiterFuture.isDone());
+        // the copy is no longer in flight, the next request starts a new one
+        Assert.assertFalse(volumeService.joinBaseImageCopy(TEMPLATE_POOL_ID, Mockito.mock(VolumeInfo.class), dataStore, new AsyncCallFuture<VolumeApiResult>()));
+    }
+
+    @Test
+    public void testFailedVolumeCreationDoesNotBlockWaiters() throws Exception {
+        VolumeInfo ownerVolume = Mockito.mock(VolumeInfo.class);
+        VolumeInfo waiterVolume = Mockito.mock(VolumeInfo.class);
+        AsyncCallFuture<VolumeApiResult> ownerFuture = new AsyncCallFuture<VolumeApiResult>();
+        AsyncCallFuture<VolumeApiResult> waiterFuture = new AsyncCallFuture<VolumeApiResult>();
+        VolumeServiceImpl.CreateBaseImageContext<VolumeApiResult> context = startCopy(ownerVolume, ownerFuture);
+        Assert.assertTrue(volumeService.joinBaseImageCopy(TEMPLATE_POOL_ID, waiterVolume, dataStore, waiterFuture));
+
+        Mockito.when(callback.getResult()).thenReturn(new CopyCommandResult(null, null));
+        Mockito.doThrow(new CloudRuntimeException("create failed")).when(volumeService).createVolumeFromBaseImageAsync(ownerVolume, templateOnPrimary, dataStore, ownerFuture);
+        Mockito.doNothing().when(volumeService).createVolumeFromBaseImageAsync(waiterVolume, templateOnPrimary, dataStore, waiterFuture);
+
+        volumeService.copyBaseImageCallback(callback, context);
+
+        Assert.assertTrue(ownerFuture.isDone());
+        Assert.assertFalse(ownerFuture.get().isSuccess());
+        Mockito.verify(volumeService).createVolumeFromBaseImageAsync(waiterVolume, templateOnPrimary, dataStore, waiterFuture);
+    }
+}
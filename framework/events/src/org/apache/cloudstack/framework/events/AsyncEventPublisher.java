@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.framework.events;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Publishes events from a bounded in-memory queue on a background thread, so callers never wait
+ * for the message broker. Queued events are handed to the sink in batches. When the broker is too
+ * slow and the queue fills up, or the sink fails, events are dropped and counted instead of
+ * stalling the caller.
+ *
+ * When created with an EventJournal, events are appended to the journal instead of the queue and
+ * a failed batch is retried until the broker takes it. Publishing resumes from the journal
+ * checkpoint after a restart, so no event is lost while the broker is unavailable. A batch that
+ * keeps failing is tried one event at a time, and the events the broker rejects while it takes
+ * others are parked in the journal, so one bad event cannot hold up all that follow.
+ */
+public class AsyncEventPublisher implements AsyncEventPublisherMBean {
+    private static final Logger s_logger = Logger.getLogger(AsyncEventPublisher.class);
+
+    public interface EventSink {
+        /**
+         * publish a batch of events, returns once the broker has accepted all of them
+         */
+        void publish(List<Event> events) throws EventBusException;
+    }
+
+    private final String _name;
+    private final int _batchSize;
+    private final BlockingQueue<Event> _queue;
+    private final EventJournal _journal;
+    private final EventSink _sink;
+
+    // wait between attempts to publish a journaled batch the broker did not take
+    private static final long JOURNAL_RETRY_INTERVAL = 5000;
+    // failed attempts at a journaled batch before its events are tried one by one
+    private static final int JOURNAL_BATCH_RETRIES = 5;
+    private long _journalRetryInterval = JOURNAL_RETRY_INTERVAL;
+    private final Object _journalAppended = new Object();
+    private final AtomicLong _journaledCount = new AtomicLong();
+
+    private final AtomicLong _publishedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private final AtomicLong _parkedCount = new AtomicLong();
+    private final AtomicLong _batchCount = new AtomicLong();
+    private final AtomicLong _failedBatchCount = new AtomicLong();
+    private volatile long _lastPublishLatency;
+
+    private volatile boolean _stopped = true;
+    private Thread _worker;
+
+    public AsyncEventPublisher(String name, int queueSize, int batchSize, EventSink sink) {
+        _name = name;
+        _batchSize = Math.max(1, batchSize);
+        _queue = new ArrayBlockingQueue<Event>(Math.max(1, queueSize));
+        _journal = null;
+        _sink = sink;
+    }
+
+    public AsyncEventPublisher(String name, EventJournal journal, int batchSize, EventSink sink) {
+        _name = name;
+        _batchSize = Math.max(1, batchSize);
+        _queue = null;
+        _journal = journal;
+        _sink = sink;
+    }
+
+    /**
+     * queue an event for publishing, returns false if the queue is full and the event was dropped
+     */
+    public boolean publish(Event event) {
+        if (_journal != null) {
+            return journal(event);
+        }
+
+        if (_queue.offer(event)) {
+            return true;
+        }
+
+        // don't flood the log while the broker is down, one warning per thousand dropped events
+        if (_droppedCount.incrementAndGet() % 1000 == 1) {
+            s_logger.warn("Event publish queue of " + _name + " is full, dropped " + _droppedCount.get() + " events so far");
+        }
+        return false;
+    }
+
+    private boolean journal(Event event) {
+        try {
+            _journal.append(event);
+        } catch (IOException e) {
+            _droppedCount.incrementAndGet();
+            s_logger.warn("Failed to append event to the journal of " + _name + ", dropping it: " + e.getMessage());
+            return false;
+        }
+
+        _journaledCount.incrementAndGet();
+        synchronized (_journalAppended) {
+            _journalAppended.notifyAll();
+        }
+        return true;
+    }
+
+    public synchronized void start() {
+        if (_worker != null) {
+            return;
+        }
+
+        _stopped = false;
+        _worker = new NamedThreadFactory("EventPublisher-" + _name).newThread(new Runnable() {
+            @Override
+            public void run() {
+                if (_journal != null) {
+                    publishJournaledEvents();
+                } else {
+                    publishQueuedEvents();
+                }
+            }
+        });
+        _worker.setDaemon(true);
+        _worker.start();
+
+        try {
+            JmxUtil.registerMBean("EventBus", _name, this);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register MBean for event publisher " + _name, e);
+        }
+    }
+
+    /**
+     * stop publishing, events still queued are given up to the timeout to reach the broker
+     */
+    public synchronized void stop(long timeoutMillis) {
+        if (_worker == null) {
+            return;
+        }
+
+        _stopped = true;
+        synchronized (_journalAppended) {
+            _journalAppended.notifyAll();
+        }
+        try {
+            _worker.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            s_logger.debug("[ignored] interrupted while waiting for event publisher " + _name + " to stop");
+        }
+        if (getQueuedEventCount() > 0) {
+            s_logger.warn("Event publisher " + _name + " stopped with " + getQueuedEventCount() + " events not published");
+        }
+        _worker = null;
+
+        try {
+            JmxUtil.unregisterMBean("EventBus", _name);
+        } catch (Exception e) {
+            s_logger.debug("Failed to unregister MBean for event publisher " + _name, e);
+        }
+    }
+
+    private void publishQueuedEvents() {
+        List<Event> batch = new ArrayList<Event>(_batchSize);
+        while (!_stopped || !_queue.isEmpty()) {
+            try {
+                Event event = _queue.poll(1, TimeUnit.SECONDS);
+                if (event == null) {
+                    continue;
+                }
+                batch.add(event);
+                _queue.drainTo(batch, _batchSize - 1);
+
+                long startTick = System.currentTimeMillis();
+                try {
+                    _sink.publish(batch);
+                    _publishedCount.addAndGet(batch.size());
+                } catch (Throwable e) {
+                    _failedBatchCount.incrementAndGet();
+                    _droppedCount.addAndGet(batch.size());
+                    s_logger.warn("Failed to publish " + batch.size() + " events on " + _name + ", dropping them: " + e.getMessage());
+                }
+                _batchCount.incrementAndGet();
+                _lastPublishLatency = System.currentTimeMillis() - startTick;
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] event publisher " + _name + " interrupted while waiting for events");
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void publishJournaledEvents() {
+        List<Event> batch = new ArrayList<Event>(_batchSize);
+        long offset = _journal.getCheckpoint();
+        int failures = 0;
+        while (true) {
+            try {
+                long next = _journal.read(offset, _batchSize, batch);
+                if (batch.isEmpty()) {
+                    if (_stopped) {
+                        break;
+                    }
+                    synchronized (_journalAppended) {
+                        if (_journal.getWriteOffset() <= next) {
+                            _journalAppended.wait(1000);
+                        }
+                    }
+                    offset = next;
+                    continue;
+                }
+
+                long startTick = System.currentTimeMillis();
+                try {
+                    _sink.publish(batch);
+                } catch (Throwable e) {
+                    // keep the batch in the journal and try again, unless we are shutting down
+                    _failedBatchCount.incrementAndGet();
+                    s_logger.warn("Failed to publish " + batch.size() + " journaled events on " + _name + ", will retry: " + e.getMessage());
+                    if (++failures >= JOURNAL_BATCH_RETRIES) {
+                        failures = 0;
+                        long resume = publishOneByOne(batch, offset, next);
+                        if (resume != offset) {
+                            offset = resume;
+                            _journal.checkpoint(resume);
+                            continue;
+                        }
+                    }
+                    if (_stopped) {
+                        break;
+                    }
+                    synchronized (_journalAppended) {
+                        _journalAppended.wait(_journalRetryInterval);
+                    }
+                    continue;
+                }
+                _batchCount.incrementAndGet();
+                _lastPublishLatency = System.currentTimeMillis() - startTick;
+                _publishedCount.addAndGet(batch.size());
+
+                failures = 0;
+                offset = next;
+                _journal.checkpoint(next);
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] event publisher " + _name + " interrupted while waiting for events");
+            } catch (IOException e) {
+                s_logger.warn("Failed to update the journal checkpoint of " + _name + ": " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Publishes the events of a batch the broker keeps failing one at a time, and parks those it
+     * rejects when it takes others. When it takes none of them, nor the event after the batch,
+     * the broker is taken to be down and nothing is parked.
+     *
+     * @return the offset to continue from, offset if the batch is to be retried
+     */
+    private long publishOneByOne(List<Event> batch, long offset, long next) throws IOException {
+        List<Event> rejected = new ArrayList<Event>();
+        for (Event event : batch) {
+            if (!publishSingle(event)) {
+                rejected.add(event);
+            }
+        }
+
+        long resume = next;
+        if (rejected.size() == batch.size()) {
+            List<Event> probe = new ArrayList<Event>(1);
+            long afterProbe = _journal.read(next, 1, probe);
+            if (probe.isEmpty() || !publishSingle(probe.get(0))) {
+                return offset;
+            }
+            resume = afterProbe;
+        }
+
+        _journal.park(rejected);
+        _parkedCount.addAndGet(rejected.size());
+        s_logger.error("Parked " + rejected.size() + " events journaled on " + _name + " at offset " + offset + " that the broker does not take");
+        return resume;
+    }
+
+    private boolean publishSingle(Event event) {
+        try {
+            _sink.publish(Collections.singletonList(event));
+        } catch (Throwable e) {
+            return false;
+        }
+        _publishedCount.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public int getQueuedEventCount() {
+        if (_journal != null) {
+            // events journaled by this management server run, those replayed from an earlier run are not counted
+            return (int)Math.max(0, _journaledCount.get() - _publishedCount.get());
+        }
+        return _queue.size();
+    }
+
+    @Override
+    public long getPublishedEventCount() {
+        return _publishedCount.get();
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return _droppedCount.get();
+    }
+
+    @Override
+    public long getParkedEventCount() {
+        return _parkedCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return _batchCount.get();
+    }
+
+    @Override
+    public long getFailedBatchCount() {
+        return _failedBatchCount.get();
+    }
+
+    @Override
+    public long getLastPublishLatency() {
+        return _lastPublishLatency;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.framework.events;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Append-only journal of events kept on local disk, so events survive a broker outage or a
+ * management server restart until they have been published.
+ *
+ * The journal is a sequence of memory-mapped segment files of a fixed size, each named after the
+ * offset of its first byte. A record is the length of the JSON encoded event followed by the
+ * event itself, a zero length marks the end of the records in a segment. The offset of the first
+ * record not yet published is kept in a checkpoint file, which is only moved on once the segments
+ * are forced to disk. Segments below the checkpoint are removed when the journal rolls to a new
+ * segment, and at most maxSegments are kept in any case. Events the broker rejects can be parked,
+ * as JSON lines in a separate file, to be looked at and replayed by hand.
+ */
+public class EventJournal {
+    private static final Logger s_logger = Logger.getLogger(EventJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    static final String PARKED_FILE = "parked";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File _dir;
+    private final int _segmentSize;
+    private final int _maxSegments;
+    private final Gson _gson = new Gson();
+
+    // retained segments by base offset, the last one is written to
+    private final TreeMap<Long, MappedByteBuffer> _segments = new TreeMap<Long, MappedByteBuffer>();
+    private long _writeOffset;
+    // events before this offset are known to be on disk
+    private long _forcedOffset;
+    private long _checkpoint;
+
+    public EventJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        _dir = dir;
+        _segmentSize = segmentSize;
+        _maxSegments = Math.max(2, maxSegments);
+
+        if (!_dir.isDirectory() && !_dir.mkdirs()) {
+            throw new IOException("Unable to create event journal directory " + _dir);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        File[] files = _dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                _segments.put(base, map(base));
+            } catch (NumberFormatException e) {
+                s_logger.warn("Ignoring unknown file " + file + " in event journal");
+            }
+        }
+
+        if (_segments.isEmpty()) {
+            _segments.put(0L, map(0));
+        }
+
+        // find the end of the records in the last segment
+        Map.Entry<Long, MappedByteBuffer> last = _segments.lastEntry();
+        ByteBuffer buffer = last.getValue();
+        int position = 0;
+        while (position + 4 <= _segmentSize) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > _segmentSize) {
+                break;
+            }
+            position += 4 + length;
+        }
+        _writeOffset = last.getKey() + position;
+        _forcedOffset = _writeOffset;
+
+        _checkpoint = readCheckpoint();
+        if (_checkpoint < _segments.firstKey() || _checkpoint > _writeOffset) {
+            _checkpoint = _segments.firstKey();
+        }
+        s_logger.info("Opened event journal " + _dir + " with " + _segments.size() + " segments, " + (_writeOffset - _checkpoint) + " bytes of events to publish");
+    }
+
+    private MappedByteBuffer map(long base) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(_dir, base + SEGMENT_SUFFIX), "rw")) {
+            // the mapping stays valid after the file is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+        }
+    }
+
+    /**
+     * append an event to the journal
+     *
+     * @return the offset just after the event
+     */
+    public synchronized long append(Event event) throws IOException {
+        byte[] bits = _gson.toJson(event).getBytes(UTF8);
+        if (bits.length + 4 > _segmentSize) {
+            throw new IOException("Event of " + bits.length + " bytes does not fit in a journal segment");
+        }
+
+        long base = _segments.lastKey();
+        int position = (int)(_writeOffset - base);
+        if (position + 4 + bits.length > _segmentSize) {
+            base = roll(base);
+            position = 0;
+        }
+
+        ByteBuffer buffer = _segments.get(base).duplicate();
+        buffer.position(position + 4);
+        buffer.put(bits);
+        // the length goes last, a reader never sees a partially written record
+        buffer.putInt(position, bits.length);
+
+        _writeOffset = base + position + 4 + bits.length;
+        return _writeOffset;
+    }
+
+    private long roll(long base) throws IOException {
+        // nothing is written to the segment any more
+        force();
+        long next = base + _segmentSize;
+        _segments.put(next, map(next));
+
+        while (_segments.size() > 1 && (_segments.size() > _maxSegments || _segments.firstKey() + _segmentSize <= _checkpoint)) {
+            long oldest = _segments.firstKey();
+            if (oldest + _segmentSize > _checkpoint) {
+                s_logger.warn("Event journal " + _dir + " is full, dropping the unpublished events of segment " + oldest);
+                _checkpoint = oldest + _segmentSize;
+                writeCheckpoint(_checkpoint);
+            }
+            _segments.remove(oldest);
+            if (!new File(_dir, oldest + SEGMENT_SUFFIX).delete()) {
+                s_logger.warn("Unable to delete event journal segment " + oldest);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * read up to maxEvents events starting at the offset
+     *
+     * @return the offset just after the last event read
+     */
+    public synchronized long read(long offset, int maxEvents, List<Event> events) {
+        if (offset < _segments.firstKey()) {
+            offset = _segments.firstKey();
+        }
+
+        while (events.size() < maxEvents && offset < _writeOffset) {
+            long base = _segments.floorKey(offset);
+            int position = (int)(offset - base);
+            ByteBuffer buffer = _segments.get(base);
+            int length = position + 4 <= _segmentSize ? buffer.getInt(position) : 0;
+            if (length <= 0 || position + 4 + length > _segmentSize) {
+                // end of the records in this segment, continue with the next one
+                offset = base + _segmentSize;
+                continue;
+            }
+
+            byte[] bits = new byte[length];
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            record.get(bits);
+            try {
+                events.add(_gson.fromJson(new String(bits, UTF8), Event.class));
+            } catch (JsonParseException e) {
+                s_logger.warn("Skipping corrupted record at offset " + offset + " of event journal " + _dir);
+            }
+            offset += 4 + length;
+        }
+        return offset;
+    }
+
+    /**
+     * record that the events before the offset have been published
+     */
+    public synchronized void checkpoint(long offset) throws IOException {
+        if (offset > _checkpoint) {
+            // a checkpoint past the data on disk would skip the events still to publish after a crash
+            force();
+            _checkpoint = offset;
+            writeCheckpoint(offset);
+        }
+    }
+
+    /**
+     * write the appended events through to disk
+     */
+    public synchronized void force() {
+        if (_forcedOffset >= _writeOffset) {
+            return;
+        }
+        Long from = _segments.floorKey(_forcedOffset);
+        for (MappedByteBuffer segment : _segments.tailMap(from != null ? from : _segments.firstKey()).values()) {
+            segment.force();
+        }
+        _forcedOffset = _writeOffset;
+    }
+
+    /**
+     * set aside events the broker does not take, one JSON encoded event per line of the parked file
+     */
+    public synchronized void park(List<Event> events) throws IOException {
+        if (events.isEmpty()) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(_dir, PARKED_FILE), true)) {
+            for (Event event : events) {
+                out.write((_gson.toJson(event) + "\n").getBytes(UTF8));
+            }
+            out.getFD().sync();
+        }
+    }
+
+    public synchronized long getCheckpoint() {
+        return _checkpoint;
+    }
+
+    public synchronized long getWriteOffset() {
+        return _writeOffset;
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(_dir, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile checkpoint = new RandomAccessFile(file, "r")) {
+            return checkpoint.length() >= 8 ? checkpoint.readLong() : 0;
+        }
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        // written aside and renamed over the old one, a crash leaves either checkpoint but never a torn one
+        File tmp = new File(_dir, CHECKPOINT_FILE + ".tmp");
+        try (RandomAccessFile checkpoint = new RandomAccessFile(tmp, "rw")) {
+            checkpoint.setLength(0);
+            checkpoint.writeLong(offset);
+            checkpoint.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(_dir, CHECKPOINT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
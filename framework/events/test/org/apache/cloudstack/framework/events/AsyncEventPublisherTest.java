@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.framework.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.internal.util.reflection.Whitebox;
+
+public class AsyncEventPublisherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class RecordingSink implements AsyncEventPublisher.EventSink {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        boolean fail = false;
+        String poison = null;
+
+        @Override
+        public synchronized void publish(List<Event> events) throws EventBusException {
+            if (fail) {
+                throw new EventBusException("broker unavailable");
+            }
+            for (Event event : events) {
+                if (poison != null && poison.equals(event.getResourceUUID())) {
+                    throw new EventBusException("event rejected");
+                }
+            }
+            batchSizes.add(events.size());
+        }
+    }
+
+    @Test
+    public void testQueuedEventsArePublishedInBatches() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        AsyncEventPublisher publisher = new AsyncEventPublisher("test", 100, 4, sink);
+
+        // queue before starting so the first batches are full
+        for (int i = 0; i < 10; i++) {
+            assertTrue(publisher.publish(mock(Event.class)));
+        }
+        publisher.start();
+        publisher.stop(5000);
+
+        assertEquals(10, publisher.getPublishedEventCount());
+        assertEquals(0, publisher.getQueuedEventCount());
+        assertEquals(3, publisher.getBatchCount());
+        assertEquals(4, sink.batchSizes.get(0).intValue());
+        assertEquals(2, sink.batchSizes.get(2).intValue());
+    }
+
+    @Test
+    public void testEventsAreDroppedWhenQueueIsFull() {
+        AsyncEventPublisher publisher = new AsyncEventPublisher("test", 2, 10, new RecordingSink());
+
+        assertTrue(publisher.publish(mock(Event.class)));
+        assertTrue(publisher.publish(mock(Event.class)));
+        assertFalse(publisher.publish(mock(Event.class)));
+
+        assertEquals(2, publisher.getQueuedEventCount());
+        assertEquals(1, publisher.getDroppedEventCount());
+    }
+
+    @Test
+    public void testFailedBatchIsDropped() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.fail = true;
+        AsyncEventPublisher publisher = new AsyncEventPublisher("test", 10, 10, sink);
+
+        publisher.publish(mock(Event.class));
+        publisher.publish(mock(Event.class));
+        publisher.start();
+        publisher.stop(5000);
+
+        assertEquals(0, publisher.getPublishedEventCount());
+        assertEquals(2, publisher.getDroppedEventCount());
+        assertEquals(1, publisher.getFailedBatchCount());
+    }
+
+    @Test
+    public void testJournaledEventsAreReplayedAfterFailure() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.fail = true;
+        EventJournal journal = new EventJournal(folder.getRoot(), 4096, 4);
+        AsyncEventPublisher publisher = new AsyncEventPublisher("test", journal, 10, sink);
+
+        Event event = new Event("ManagementServer", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid");
+        assertTrue(publisher.publish(event));
+        assertTrue(publisher.publish(event));
+        publisher.start();
+        publisher.stop(5000);
+
+        assertEquals(0, publisher.getPublishedEventCount());
+        assertEquals(0, publisher.getDroppedEventCount());
+        assertEquals(0, journal.getCheckpoint());
+
+        // the broker is back, a new publisher picks up from the checkpoint
+        sink.fail = false;
+        publisher = new AsyncEventPublisher("test", new EventJournal(folder.getRoot(), 4096, 4), 10, sink);
+        publisher.start();
+        publisher.stop(5000);
+
+        assertEquals(2, publisher.getPublishedEventCount());
+        assertEquals(2, sink.batchSizes.get(0).intValue());
+    }
+
+    @Test
+    public void testPoisonEventIsParked() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.poison = "uuid-1";
+        EventJournal journal = new EventJournal(folder.getRoot(), 4096, 4);
+        AsyncEventPublisher publisher = new AsyncEventPublisher("test", journal, 10, sink);
+        Whitebox.setInternalState(publisher, "_journalRetryInterval", 10L);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(publisher.publish(new Event("ManagementServer", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid-" + i)));
+        }
+        publisher.start();
+        for (int i = 0; i < 500 && publisher.getParkedEventCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        publisher.stop(5000);
+
+        assertEquals(1, publisher.getParkedEventCount());
+        assertEquals(2, publisher.getPublishedEventCount());
+        assertEquals(journal.getWriteOffset(), journal.getCheckpoint());
+        List<String> parked = Files.readAllLines(new File(folder.getRoot(), EventJournal.PARKED_FILE).toPath(), Charset.forName("UTF-8"));
+        assertEquals(1, parked.size());
+        assertTrue(parked.get(0).contains("uuid-1"));
+    }
+
+    @Test
+    public void testBatchIsNotParkedWhileBrokerIsDown() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.fail = true;
+        EventJournal journal = new EventJournal(folder.getRoot(), 4096, 4);
+        AsyncEventPublisher publisher = new AsyncEventPublisher("test", journal, 10, sink);
+        Whitebox.setInternalState(publisher, "_journalRetryInterval", 10L);
+
+        assertTrue(publisher.publish(new Event("ManagementServer", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid-0")));
+        publisher.start();
+        for (int i = 0; i < 500 && publisher.getFailedBatchCount() < 12; i++) {
+            Thread.sleep(10);
+        }
+        publisher.stop(5000);
+
+        assertEquals(0, publisher.getParkedEventCount());
+        assertEquals(0, journal.getCheckpoint());
+        assertFalse(new File(folder.getRoot(), EventJournal.PARKED_FILE).exists());
+    }
+}
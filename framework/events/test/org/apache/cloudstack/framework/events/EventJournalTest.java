@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.framework.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Event createEvent(String uuid) {
+        Event event = new Event("ManagementServer", "ActionEvent", "VM.CREATE", "VirtualMachine", uuid);
+        event.setDescription("{\"event\":\"VM.CREATE\"}");
+        return event;
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        EventJournal journal = new EventJournal(folder.getRoot(), 4096, 4);
+        for (int i = 0; i < 5; i++) {
+            journal.append(createEvent("uuid-" + i));
+        }
+
+        List<Event> events = new ArrayList<Event>();
+        long next = journal.read(journal.getCheckpoint(), 3, events);
+        assertEquals(3, events.size());
+        assertEquals("uuid-0", events.get(0).getResourceUUID());
+        assertEquals("VM.CREATE", events.get(0).getEventType());
+        assertEquals("{\"event\":\"VM.CREATE\"}", events.get(0).getDescription());
+
+        events.clear();
+        assertEquals(journal.getWriteOffset(), journal.read(next, 10, events));
+        assertEquals(2, events.size());
+        assertEquals("uuid-4", events.get(1).getResourceUUID());
+    }
+
+    @Test
+    public void testReplayFromCheckpointAfterReopen() throws Exception {
+        EventJournal journal = new EventJournal(folder.getRoot(), 4096, 4);
+        for (int i = 0; i < 4; i++) {
+            journal.append(createEvent("uuid-" + i));
+        }
+        List<Event> events = new ArrayList<Event>();
+        journal.checkpoint(journal.read(journal.getCheckpoint(), 2, events));
+
+        EventJournal reopened = new EventJournal(folder.getRoot(), 4096, 4);
+        assertEquals(journal.getWriteOffset(), reopened.getWriteOffset());
+
+        events.clear();
+        reopened.read(reopened.getCheckpoint(), 10, events);
+        assertEquals(2, events.size());
+        assertEquals("uuid-2", events.get(0).getResourceUUID());
+
+        // appends go after the records found on disk
+        reopened.append(createEvent("uuid-4"));
+        events.clear();
+        reopened.read(reopened.getCheckpoint(), 10, events);
+        assertEquals(3, events.size());
+        assertEquals("uuid-4", events.get(2).getResourceUUID());
+    }
+
+    @Test
+    public void testReadAcrossSegments() throws Exception {
+        EventJournal journal = new EventJournal(folder.getRoot(), 512, 16);
+        for (int i = 0; i < 20; i++) {
+            journal.append(createEvent("uuid-" + i));
+        }
+        assertTrue(folder.getRoot().list().length > 2);
+
+        List<Event> events = new ArrayList<Event>();
+        journal.read(journal.getCheckpoint(), 100, events);
+        assertEquals(20, events.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("uuid-" + i, events.get(i).getResourceUUID());
+        }
+    }
+
+    @Test
+    public void testPublishedSegmentsAreRemoved() throws Exception {
+        File dir = folder.getRoot();
+        EventJournal journal = new EventJournal(dir, 512, 16);
+        for (int i = 0; i < 20; i++) {
+            journal.append(createEvent("uuid-" + i));
+        }
+        journal.checkpoint(journal.getWriteOffset());
+        journal.append(createEvent("uuid-20"));
+        for (int i = 0; i < 5; i++) {
+            journal.append(createEvent("uuid-" + (21 + i)));
+        }
+
+        assertFalse(new File(dir, "0.journal").exists());
+        List<Event> events = new ArrayList<Event>();
+        journal.read(journal.getCheckpoint(), 100, events);
+        assertEquals(6, events.size());
+        assertEquals("uuid-20", events.get(0).getResourceUUID());
+    }
+
+    @Test
+    public void testCheckpointSurvivesReopen() throws Exception {
+        File dir = folder.getRoot();
+        EventJournal journal = new EventJournal(dir, 4096, 4);
+        for (int i = 0; i < 5; i++) {
+            journal.append(createEvent("uuid-" + i));
+        }
+        List<Event> events = new ArrayList<Event>();
+        journal.checkpoint(journal.read(journal.getCheckpoint(), 2, events));
+        events.clear();
+        journal.checkpoint(journal.read(journal.getCheckpoint(), 1, events));
+
+        // the checkpoint is renamed into place, no temporary file is left behind
+        assertFalse(new File(dir, "checkpoint.tmp").exists());
+        journal = new EventJournal(dir, 4096, 4);
+        events.clear();
+        journal.read(journal.getCheckpoint(), 10, events);
+        assertEquals(2, events.size());
+        assertEquals("uuid-3", events.get(0).getResourceUUID());
+    }
+
+    @Test
+    public void testRetentionDropsOldestUnpublishedSegment() throws Exception {
+        EventJournal journal = new EventJournal(folder.getRoot(), 512, 2);
+        for (int i = 0; i < 20; i++) {
+            journal.append(createEvent("uuid-" + i));
+        }
+
+        // two segments and the checkpoint file
+        assertEquals(3, folder.getRoot().list().length);
+        List<Event> events = new ArrayList<Event>();
+        journal.read(journal.getCheckpoint(), 100, events);
+        assertTrue(events.size() < 20);
+        assertEquals("uuid-19", events.get(events.size() - 1).getResourceUUID());
+    }
+}
@@ -19,20 +19,28 @@
 
 package org.apache.cloudstack.mom.kafka;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
 import org.apache.log4j.Logger;
 
+import org.apache.cloudstack.framework.events.AsyncEventPublisher;
 import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.events.EventJournal;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
 
@@ -41,7 +49,9 @@ import com.cloud.utils.component.ManagerBase;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 
 @Local(value = EventBus.class)
@@ -49,15 +59,26 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     public static final String DEFAULT_TOPIC = "cloudstack";
     public static final String DEFAULT_SERIALIZER = "org.apache.kafka.common.serialization.StringSerializer";
+    public static final int DEFAULT_PUBLISH_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_PUBLISH_BATCH_SIZE = 100;
+    public static final long PUBLISH_ACK_TIMEOUT = 10000;
+    public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_JOURNAL_MAX_SEGMENTS = 16;
 
     private String _topic = null;
     private Producer<String,String> _producer;
+    private AsyncEventPublisher _publisher;
     private static final Logger s_logger = Logger.getLogger(KafkaEventBus.class);
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
 
         final Properties props = new Properties();
+        int publishQueueSize;
+        int publishBatchSize;
+        String journalDir;
+        int journalSegmentSize;
+        int journalMaxSegments;
 
         try (final FileInputStream is = new FileInputStream(PropertiesUtil.findConfigFile("kafka.producer.properties"));) {
             props.load(is);
@@ -67,6 +88,14 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
                 _topic = DEFAULT_TOPIC;
             }
 
+            // not producer settings, events are queued and sent in batches by our own publisher thread
+            publishQueueSize = NumbersUtil.parseInt((String)props.remove("publish.queue.size"), DEFAULT_PUBLISH_QUEUE_SIZE);
+            publishBatchSize = NumbersUtil.parseInt((String)props.remove("publish.batch.size"), DEFAULT_PUBLISH_BATCH_SIZE);
+            // when set, events are journaled on local disk until kafka acknowledges them
+            journalDir = (String)props.remove("journal.dir");
+            journalSegmentSize = NumbersUtil.parseInt((String)props.remove("journal.segment.size"), DEFAULT_JOURNAL_SEGMENT_SIZE);
+            journalMaxSegments = NumbersUtil.parseInt((String)props.remove("journal.max.segments"), DEFAULT_JOURNAL_MAX_SEGMENTS);
+
             if (!props.containsKey("key.serializer")) {
                 props.put("key.serializer", DEFAULT_SERIALIZER);
             }
@@ -79,6 +108,22 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
         }
 
         _producer = new KafkaProducer<String,String>(props);
+        AsyncEventPublisher.EventSink sink = new AsyncEventPublisher.EventSink() {
+            @Override
+            public void publish(List<Event> events) throws EventBusException {
+                publishEvents(events);
+            }
+        };
+        if (journalDir != null && !journalDir.isEmpty()) {
+            try {
+                EventJournal journal = new EventJournal(new File(journalDir), journalSegmentSize, journalMaxSegments);
+                _publisher = new AsyncEventPublisher("KafkaEventBus", journal, publishBatchSize, sink);
+            } catch (IOException e) {
+                throw new ConfigurationException("Could not open event journal in " + journalDir);
+            }
+        } else {
+            _publisher = new AsyncEventPublisher("KafkaEventBus", publishQueueSize, publishBatchSize, sink);
+        }
         _name = name;
 
         return true;
@@ -102,8 +147,25 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public void publish(Event event) throws EventBusException {
-        ProducerRecord<String, String> record = new ProducerRecord<String,String>(_topic, event.getResourceUUID(), event.getDescription());
-        _producer.send(record);
+        if (!_publisher.publish(event)) {
+            throw new EventBusException("Failed to publish event as it could not be queued");
+        }
+    }
+
+    private void publishEvents(List<Event> events) throws EventBusException {
+        List<Future<RecordMetadata>> acks = new ArrayList<Future<RecordMetadata>>(events.size());
+        for (Event event : events) {
+            ProducerRecord<String, String> record = new ProducerRecord<String,String>(_topic, event.getResourceUUID(), event.getDescription());
+            acks.add(_producer.send(record));
+        }
+
+        try {
+            for (Future<RecordMetadata> ack : acks) {
+                ack.get(PUBLISH_ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            throw new EventBusException("Failed to publish events due to " + e.getMessage());
+        }
     }
 
     @Override
@@ -113,11 +175,13 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public boolean start() {
+        _publisher.start();
         return true;
     }
 
     @Override
     public boolean stop() {
+        _publisher.stop(PUBLISH_ACK_TIMEOUT);
         return true;
     }
 }
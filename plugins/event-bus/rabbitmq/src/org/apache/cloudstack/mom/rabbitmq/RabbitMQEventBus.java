@@ -19,8 +19,10 @@
 
 package org.apache.cloudstack.mom.rabbitmq;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,9 +45,11 @@ import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 
+import org.apache.cloudstack.framework.events.AsyncEventPublisher;
 import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.events.EventJournal;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
@@ -82,6 +86,21 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private static Integer retryInterval;
 
+    // events are queued and published in batches by a background thread, see AsyncEventPublisher
+    private static Integer publishQueueSize;
+    private static Integer publishBatchSize;
+    private static final long PUBLISH_CONFIRM_TIMEOUT = 10000;
+
+    // when set, events are journaled on local disk until the broker confirms them
+    private static String journalDirectory;
+    private static final int JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int JOURNAL_MAX_SEGMENTS = 16;
+
+    private AsyncEventPublisher publisher;
+
+    // channel in confirm mode reused for all publishes, only touched by the publisher thread
+    private Channel publishChannel;
+
     // hashmap to book keep the registered subscribers
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> s_subscribers;
 
@@ -129,6 +148,14 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 retryInterval = 10000;// default to 10s to try out reconnect
             }
 
+            if (publishQueueSize == null) {
+                publishQueueSize = 10000;
+            }
+
+            if (publishBatchSize == null) {
+                publishBatchSize = 100;
+            }
+
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
@@ -136,6 +163,22 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         s_subscribers = new ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>>();
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
+        AsyncEventPublisher.EventSink sink = new AsyncEventPublisher.EventSink() {
+            @Override
+            public void publish(List<Event> events) throws EventBusException {
+                publishEvents(events);
+            }
+        };
+        if (journalDirectory != null && !journalDirectory.isEmpty()) {
+            try {
+                EventJournal journal = new EventJournal(new File(journalDirectory), JOURNAL_SEGMENT_SIZE, JOURNAL_MAX_SEGMENTS);
+                publisher = new AsyncEventPublisher("RabbitMQEventBus", journal, publishBatchSize, sink);
+            } catch (IOException e) {
+                throw new ConfigurationException("Unable to open event journal in " + journalDirectory + " due to " + e.getMessage());
+            }
+        } else {
+            publisher = new AsyncEventPublisher("RabbitMQEventBus", publishQueueSize, publishBatchSize, sink);
+        }
 
         return true;
     }
@@ -173,6 +216,18 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         RabbitMQEventBus.retryInterval = retryInterval;
     }
 
+    public static void setPublishQueueSize(Integer publishQueueSize) {
+        RabbitMQEventBus.publishQueueSize = publishQueueSize;
+    }
+
+    public static void setPublishBatchSize(Integer publishBatchSize) {
+        RabbitMQEventBus.publishBatchSize = publishBatchSize;
+    }
+
+    public static void setJournalDirectory(String journalDirectory) {
+        RabbitMQEventBus.journalDirectory = journalDirectory;
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -259,27 +314,54 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    // publish event on to the exchange created on AMQP server
+    // queue event for publishing on to the exchange created on AMQP server
     @Override
     public void publish(Event event) throws EventBusException {
+        if (!publisher.publish(event)) {
+            throw new EventBusException("Failed to publish event to message broker as it could not be queued");
+        }
+    }
 
-        String routingKey = createRoutingKey(event);
-        String eventDescription = event.getDescription();
-
+    // publish a batch of events over the shared publish channel, and wait for the broker to confirm them
+    private void publishEvents(List<Event> events) throws EventBusException {
         try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
+            Channel channel = getPublishChannel();
+            for (Event event : events) {
+                publishEventToExchange(channel, amqpExchangeName, createRoutingKey(event), event.getDescription());
+            }
+            channel.waitForConfirmsOrDie(PUBLISH_CONFIRM_TIMEOUT);
         } catch (AlreadyClosedException e) {
+            publishChannel = null;
             closeConnection();
             throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
         } catch (Exception e) {
+            closePublishChannel();
             throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
         }
     }
 
+    private Channel getPublishChannel() throws Exception {
+        if (publishChannel == null || !publishChannel.isOpen()) {
+            Channel channel = createChannel(getConnection());
+            createExchange(channel, amqpExchangeName);
+            channel.confirmSelect();
+            publishChannel = channel;
+        }
+        return publishChannel;
+    }
+
+    private void closePublishChannel() {
+        if (publishChannel == null)
+            return;
+
+        try {
+            publishChannel.abort();
+        } catch (Exception e) {
+            s_logger.warn("Failed to abort publish channel due to " + e.getMessage());
+        }
+        publishChannel = null;
+    }
+
     /** creates a routing key from the event details.
      *  created routing key will be used while publishing the message to exchange on AMQP server
      */
@@ -484,11 +566,15 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+        publisher.start();
         return true;
     }
 
     @Override
     public synchronized boolean stop() {
+        publisher.stop(PUBLISH_CONFIRM_TIMEOUT);
+        closePublishChannel();
+
         if (s_connection.isOpen()) {
             for (String subscriberId : s_subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = s_subscribers.get(subscriberId);
@@ -138,6 +138,7 @@ import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.OutputInterpreter.AllLinesParser;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.script.ScriptHelper;
 import com.cloud.utils.ssh.SshHelper;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.PowerState;
@@ -230,6 +231,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     protected String _guestCpuMode;
     protected String _guestCpuModel;
     protected boolean _noKvmClock;
+    protected LibvirtVmStateMonitor _vmStateMonitor;
     protected String _videoHw;
     protected int _videoRam;
     protected Pair<Integer,Integer> hostOsVersion;
@@ -243,6 +245,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    private final Map<String, DomainDevices> _domainDevices = new ConcurrentHashMap<String, DomainDevices>();
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -664,6 +667,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             throw new ConfigurationException("Unable to find the security_group.py");
         }
 
+        final int scriptHelpers = NumbersUtil.parseInt((String)params.get("script.helper.pool.size"), 0);
+        if (scriptHelpers > 0) {
+            ScriptHelper.initialize("python", Script.findScript("scripts/util", "script_helper.py"), scriptHelpers);
+        }
+
         _ovsTunnelPath = Script.findScript(networkScriptsDir, "ovstunnel.py");
         if (_ovsTunnelPath == null) {
             throw new ConfigurationException("Unable to find the ovstunnel.py");
@@ -800,6 +808,11 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         }
 
         LibvirtConnection.initialize(_hypervisorURI);
+
+        value = (String) params.get("vm.state.full.report.interval");
+        _vmStateMonitor = new LibvirtVmStateMonitor(this, NumbersUtil.parseInt(value, 10));
+        _vmStateMonitor.start();
+
         Connect conn = null;
         try {
             conn = LibvirtConnection.getConnection();
@@ -1271,6 +1284,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public boolean stop() {
+        ScriptHelper.shutdown();
         try {
             final Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1476,6 +1490,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "").toString());
+        invalidateDomainDevices(vmName);
     }
 
 
@@ -1487,6 +1502,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainDevices(vmName);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2304,6 +2320,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 s_logger.debug("Detaching device: " + xml);
                 dm.detachDevice(xml);
             }
+            invalidateDomainDevices(vmName);
         } catch (final LibvirtException e) {
             if (attach) {
                 s_logger.warn("Failed to attach device to " + vmName + ": " + e.getMessage());
@@ -2326,13 +2343,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public PingCommand getCurrentStatus(final long id) {
+        // only the vms whose state changed since the previous ping, unless a full report is due or there is no monitor
+        final Map<String, HostVmStateReportEntry> changedStates = _vmStateMonitor != null ? _vmStateMonitor.getChangedStates() : null;
+        final Map<String, HostVmStateReportEntry> vmStates = changedStates != null ? changedStates : this.getHostVmStateReport();
 
+        PingRoutingCommand ping;
         if (!_canBridgeFirewall) {
-            return new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, this.getHostVmStateReport());
+            ping = new PingRoutingCommand(com.cloud.host.Host.Type.Routing, id, vmStates);
         } else {
             final HashMap<String, Pair<Long, Long>> nwGrpStates = syncNetworkGroups(id);
-            return new PingRoutingWithNwGroupsCommand(getType(), id, this.getHostVmStateReport(), nwGrpStates);
+            ping = new PingRoutingWithNwGroupsCommand(getType(), id, vmStates, nwGrpStates);
         }
+        ping.setPartialHostVmStateReport(changedStates != null);
+        return ping;
     }
 
     @Override
@@ -2976,107 +2999,192 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         Calendar _timestamp;
     }
 
+    /**
+     * Devices of a running domain, parsed once from its xml. The domain id changes when the domain is
+     * started again, attaching or detaching devices has to invalidate the entry.
+     */
+    private static class DomainDevices {
+        final int _domainId;
+        final List<InterfaceDef> _interfaces;
+        final List<DiskDef> _disks;
+
+        DomainDevices(final int domainId, final List<InterfaceDef> interfaces, final List<DiskDef> disks) {
+            _domainId = domainId;
+            _interfaces = interfaces;
+            _disks = disks;
+        }
+    }
+
+    private DomainDevices getDomainDevices(final Domain dm, final String vmName) throws LibvirtException {
+        final int domainId = dm.getID();
+        DomainDevices devices = _domainDevices.get(vmName);
+        if (devices == null || devices._domainId != domainId) {
+            final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+            parser.parseDomainXML(dm.getXMLDesc(0));
+            devices = new DomainDevices(domainId, parser.getInterfaces(), parser.getDisks());
+            _domainDevices.put(vmName, devices);
+        }
+        return devices;
+    }
+
+    public void invalidateDomainDevices(final String vmName) {
+        _domainDevices.remove(vmName);
+    }
+
+    /**
+     * Collects the stats of all the vms in one pass: each domain is looked up once, the node info is read
+     * once per connection and the device lists come from the cache instead of the domain xml. A vm that
+     * cannot be found or read is left out of the result.
+     */
+    public HashMap<String, VmStatsEntry> getVmStats(final List<String> vmNames) throws LibvirtException {
+        final HashMap<String, VmStatsEntry> vmStats = new HashMap<String, VmStatsEntry>();
+        final List<Connect> conns = new ArrayList<Connect>();
+        if (_hypervisorType == HypervisorType.LXC) {
+            conns.add(getLibvirtUtilitiesHelper().getConnectionByType(HypervisorType.LXC.toString()));
+        }
+        conns.add(getLibvirtUtilitiesHelper().getConnectionByType(HypervisorType.KVM.toString()));
+
+        final Map<Connect, Integer> cpus = new HashMap<Connect, Integer>();
+        for (final String vmName : vmNames) {
+            Domain dm = null;
+            Connect conn = null;
+            for (final Connect c : conns) {
+                try {
+                    dm = c.domainLookupByName(vmName);
+                    conn = c;
+                    break;
+                } catch (final LibvirtException e) {
+                    s_logger.trace("Vm " + vmName + " not found: " + e.getMessage());
+                }
+            }
+            if (dm == null) {
+                s_logger.debug("Unable to find vm " + vmName + " to get its stats");
+                continue;
+            }
+            try {
+                Integer nodeCpus = cpus.get(conn);
+                if (nodeCpus == null) {
+                    nodeCpus = conn.nodeInfo().cpus;
+                    cpus.put(conn, nodeCpus);
+                }
+                vmStats.put(vmName, getVmStat(dm, vmName, nodeCpus));
+            } catch (final LibvirtException e) {
+                s_logger.debug("Can't get stats of vm " + vmName + ": " + e.toString());
+            } finally {
+                try {
+                    dm.free();
+                } catch (final LibvirtException e) {
+                    s_logger.trace("Ignoring libvirt error.", e);
+                }
+            }
+        }
+        return vmStats;
+    }
+
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
-            final DomainInfo info = dm.getInfo();
+            return getVmStat(dm, vmName, conn.nodeInfo().cpus);
+        } finally {
+            if (dm != null) {
+                dm.free();
+            }
+        }
+    }
 
-            final VmStatsEntry stats = new VmStatsEntry();
-            stats.setNumCPUs(info.nrVirtCpu);
-            stats.setEntityType("vm");
+    private VmStatsEntry getVmStat(final Domain dm, final String vmName, final int nodeCpus) throws LibvirtException {
+        final DomainInfo info = dm.getInfo();
 
-            /* get cpu utilization */
-            VmStats oldStats = null;
+        final VmStatsEntry stats = new VmStatsEntry();
+        stats.setNumCPUs(info.nrVirtCpu);
+        stats.setEntityType("vm");
 
-            final Calendar now = Calendar.getInstance();
+        /* get cpu utilization */
+        VmStats oldStats = null;
 
-            oldStats = _vmStats.get(vmName);
+        final Calendar now = Calendar.getInstance();
 
-            long elapsedTime = 0;
-            if (oldStats != null) {
-                elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
-                double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+        oldStats = _vmStats.get(vmName);
 
-                final NodeInfo node = conn.nodeInfo();
-                utilization = utilization / node.cpus;
-                if (utilization > 0) {
-                    stats.setCPUUtilization(utilization * 100);
-                }
+        long elapsedTime = 0;
+        if (oldStats != null) {
+            elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
+            double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
+
+            utilization = utilization / nodeCpus;
+            if (utilization > 0) {
+                stats.setCPUUtilization(utilization * 100);
             }
+        }
 
-            /* get network stats */
+        final DomainDevices devices = getDomainDevices(dm, vmName);
 
-            final List<InterfaceDef> vifs = getInterfaces(conn, vmName);
-            long rx = 0;
-            long tx = 0;
-            for (final InterfaceDef vif : vifs) {
-                final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
-                rx += ifStats.rx_bytes;
-                tx += ifStats.tx_bytes;
-            }
+        /* get network stats */
 
-            if (oldStats != null) {
-                final double deltarx = rx - oldStats._rx;
-                if (deltarx > 0) {
-                    stats.setNetworkReadKBs(deltarx / 1024);
-                }
-                final double deltatx = tx - oldStats._tx;
-                if (deltatx > 0) {
-                    stats.setNetworkWriteKBs(deltatx / 1024);
-                }
+        long rx = 0;
+        long tx = 0;
+        for (final InterfaceDef vif : devices._interfaces) {
+            final DomainInterfaceStats ifStats = dm.interfaceStats(vif.getDevName());
+            rx += ifStats.rx_bytes;
+            tx += ifStats.tx_bytes;
+        }
+
+        if (oldStats != null) {
+            final double deltarx = rx - oldStats._rx;
+            if (deltarx > 0) {
+                stats.setNetworkReadKBs(deltarx / 1024);
+            }
+            final double deltatx = tx - oldStats._tx;
+            if (deltatx > 0) {
+                stats.setNetworkWriteKBs(deltatx / 1024);
             }
+        }
 
-            /* get disk stats */
-            final List<DiskDef> disks = getDisks(conn, vmName);
-            long io_rd = 0;
-            long io_wr = 0;
-            long bytes_rd = 0;
-            long bytes_wr = 0;
-            for (final DiskDef disk : disks) {
-                final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
-                io_rd += blockStats.rd_req;
-                io_wr += blockStats.wr_req;
-                bytes_rd += blockStats.rd_bytes;
-                bytes_wr += blockStats.wr_bytes;
-            }
-
-            if (oldStats != null) {
-                final long deltaiord = io_rd - oldStats._ioRead;
-                if (deltaiord > 0) {
-                    stats.setDiskReadIOs(deltaiord);
-                }
-                final long deltaiowr = io_wr - oldStats._ioWrote;
-                if (deltaiowr > 0) {
-                    stats.setDiskWriteIOs(deltaiowr);
-                }
-                final double deltabytesrd = bytes_rd - oldStats._bytesRead;
-                if (deltabytesrd > 0) {
-                    stats.setDiskReadKBs(deltabytesrd / 1024);
-                }
-                final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
-                if (deltabyteswr > 0) {
-                    stats.setDiskWriteKBs(deltabyteswr / 1024);
-                }
-            }
-
-            /* save to Hashmap */
-            final VmStats newStat = new VmStats();
-            newStat._usedTime = info.cpuTime;
-            newStat._rx = rx;
-            newStat._tx = tx;
-            newStat._ioRead = io_rd;
-            newStat._ioWrote = io_wr;
-            newStat._bytesRead = bytes_rd;
-            newStat._bytesWrote = bytes_wr;
-            newStat._timestamp = now;
-            _vmStats.put(vmName, newStat);
-            return stats;
-        } finally {
-            if (dm != null) {
-                dm.free();
+        /* get disk stats */
+        long io_rd = 0;
+        long io_wr = 0;
+        long bytes_rd = 0;
+        long bytes_wr = 0;
+        for (final DiskDef disk : devices._disks) {
+            final DomainBlockStats blockStats = dm.blockStats(disk.getDiskLabel());
+            io_rd += blockStats.rd_req;
+            io_wr += blockStats.wr_req;
+            bytes_rd += blockStats.rd_bytes;
+            bytes_wr += blockStats.wr_bytes;
+        }
+
+        if (oldStats != null) {
+            final long deltaiord = io_rd - oldStats._ioRead;
+            if (deltaiord > 0) {
+                stats.setDiskReadIOs(deltaiord);
+            }
+            final long deltaiowr = io_wr - oldStats._ioWrote;
+            if (deltaiowr > 0) {
+                stats.setDiskWriteIOs(deltaiowr);
+            }
+            final double deltabytesrd = bytes_rd - oldStats._bytesRead;
+            if (deltabytesrd > 0) {
+                stats.setDiskReadKBs(deltabytesrd / 1024);
+            }
+            final double deltabyteswr = bytes_wr - oldStats._bytesWrote;
+            if (deltabyteswr > 0) {
+                stats.setDiskWriteKBs(deltabyteswr / 1024);
             }
         }
+
+        /* save to Hashmap */
+        final VmStats newStat = new VmStats();
+        newStat._usedTime = info.cpuTime;
+        newStat._rx = rx;
+        newStat._tx = tx;
+        newStat._ioRead = io_rd;
+        newStat._ioWrote = io_wr;
+        newStat._bytesRead = bytes_rd;
+        newStat._bytesWrote = bytes_wr;
+        newStat._timestamp = now;
+        _vmStats.put(vmName, newStat);
+        return stats;
     }
 
     private boolean canBridgeFirewall(final String prvNic) {
@@ -17,11 +17,15 @@
 package com.cloud.hypervisor.kvm.resource;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
+import org.libvirt.Library;
 import org.libvirt.LibvirtException;
+import org.libvirt.event.LifecycleListener;
 
 import com.cloud.hypervisor.Hypervisor;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
@@ -32,6 +36,8 @@ public class LibvirtConnection {
 
     static private Connect s_connection;
     static private String s_hypervisorURI;
+    static private final List<LifecycleListener> s_lifecycleListeners = new CopyOnWriteArrayList<LifecycleListener>();
+    static private Thread s_eventLoop;
 
     static public Connect getConnection() throws LibvirtException {
         return getConnection(s_hypervisorURI);
@@ -46,6 +52,7 @@ public class LibvirtConnection {
             conn = new Connect(hypervisorURI, false);
             s_logger.debug("Successfully connected to libvirt at: " + hypervisorURI);
             s_connections.put(hypervisorURI, conn);
+            registerLifecycleListeners(conn);
         } else {
             try {
                 conn.getVersion();
@@ -54,6 +61,7 @@ public class LibvirtConnection {
                 s_logger.debug("Opening a new libvirtd connection to: " + hypervisorURI);
                 conn = new Connect(hypervisorURI, false);
                 s_connections.put(hypervisorURI, conn);
+                registerLifecycleListeners(conn);
             }
         }
 
@@ -87,6 +95,61 @@ public class LibvirtConnection {
         s_hypervisorURI = hypervisorURI;
     }
 
+    /**
+     * Starts the libvirt event loop, must be called before the connections the events are wanted on are opened
+     */
+    static synchronized void startEventLoop() throws LibvirtException {
+        if (s_eventLoop != null) {
+            return;
+        }
+        Library.initEventLoop();
+        s_eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Library.runEventLoop();
+                } catch (InterruptedException e) {
+                    s_logger.debug("Libvirt event loop interrupted");
+                } catch (LibvirtException e) {
+                    s_logger.error("Libvirt event loop stopped", e);
+                }
+            }
+        }, "LibvirtEventLoop");
+        s_eventLoop.setDaemon(true);
+        s_eventLoop.start();
+    }
+
+    /**
+     * Registers a domain lifecycle listener on the current connections and on the connections opened later,
+     * a connection to libvirtd that is re-opened loses its listeners
+     */
+    static void addLifecycleListener(LifecycleListener listener) throws LibvirtException {
+        s_lifecycleListeners.add(listener);
+        for (Connect conn : s_connections.values()) {
+            conn.addLifecycleListener(listener);
+        }
+    }
+
+    static private void registerLifecycleListeners(Connect conn) {
+        for (LifecycleListener listener : s_lifecycleListeners) {
+            try {
+                conn.addLifecycleListener(listener);
+                if (listener instanceof ConnectionListener) {
+                    ((ConnectionListener)listener).onConnect(conn);
+                }
+            } catch (LibvirtException e) {
+                s_logger.warn("Unable to register domain lifecycle listener: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lifecycle listeners that need to know that events may have been missed while a connection was broken
+     */
+    interface ConnectionListener {
+        void onConnect(Connect conn);
+    }
+
     static String getHypervisorURI(String hypervisorType) {
         if ("LXC".equalsIgnoreCase(hypervisorType)) {
             return "lxc:///";
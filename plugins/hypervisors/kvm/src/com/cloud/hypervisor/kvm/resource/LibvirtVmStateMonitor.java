@@ -0,0 +1,143 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.DomainEventType;
+import org.libvirt.event.LifecycleListener;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * Keeps track of the vm power state changes reported by the libvirt domain lifecycle events, so that
+ * the pings only carry the vms whose state changed. A full report is sent every fullReportInterval
+ * pings, after the connection to libvirtd was re-opened, and whenever the events are not available.
+ */
+public class LibvirtVmStateMonitor implements LifecycleListener, LibvirtConnection.ConnectionListener {
+    private static final Logger s_logger = Logger.getLogger(LibvirtVmStateMonitor.class);
+
+    private final LibvirtComputingResource _resource;
+    private final int _fullReportInterval;
+
+    private final Map<String, HostVmStateReportEntry> _changes = new HashMap<String, HostVmStateReportEntry>();
+    private int _pingsSinceFullReport = 0;
+    private boolean _fullReportDue = true;
+    private boolean _enabled = false;
+    private volatile String _hostName;
+
+    public LibvirtVmStateMonitor(final LibvirtComputingResource resource, final int fullReportInterval) {
+        _resource = resource;
+        _fullReportInterval = fullReportInterval;
+    }
+
+    /**
+     * Subscribes to the domain lifecycle events, has to be called before the libvirt connections are opened
+     * @return false if the events are not available and every ping has to carry a full report
+     */
+    public boolean start() {
+        if (_fullReportInterval <= 1) {
+            return false;
+        }
+        try {
+            LibvirtConnection.startEventLoop();
+            LibvirtConnection.addLifecycleListener(this);
+        } catch (final LibvirtException e) {
+            s_logger.warn("Unable to subscribe to libvirt domain events, vm states will be polled on every ping: " + e.getMessage());
+            return false;
+        }
+        synchronized (this) {
+            _enabled = true;
+        }
+        s_logger.info("Subscribed to libvirt domain events, full vm state report every " + _fullReportInterval + " pings");
+        return true;
+    }
+
+    @Override
+    public int onLifecycleChange(final Domain domain, final DomainEvent event) {
+        recordStateChange(domain, event.getType());
+        return 0;
+    }
+
+    void recordStateChange(final Domain domain, final DomainEventType eventType) {
+        String vmName = null;
+        try {
+            vmName = domain.getName();
+            PowerState state = PowerState.PowerOff;
+            if (eventType != DomainEventType.UNDEFINED) {
+                try {
+                    state = _resource.convertToPowerState(domain.getInfo().state);
+                } catch (final LibvirtException e) {
+                    // transient domains are gone once they are stopped
+                    s_logger.trace("Domain " + vmName + " is gone after event " + eventType);
+                }
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Domain event " + eventType + " for " + vmName + ", power state " + state);
+            }
+            if (state != PowerState.PowerOn) {
+                _resource.invalidateDomainDevices(vmName);
+            }
+            if (state == PowerState.PowerUnknown) {
+                return;
+            }
+            synchronized (this) {
+                _changes.put(vmName, new HostVmStateReportEntry(state, _hostName));
+            }
+        } catch (final LibvirtException e) {
+            s_logger.warn("Unable to process domain event " + eventType + " for " + vmName + ", a full report will be sent: " + e.getMessage());
+            synchronized (this) {
+                _fullReportDue = true;
+            }
+        }
+    }
+
+    @Override
+    public void onConnect(final Connect conn) {
+        try {
+            _hostName = conn.getHostName();
+        } catch (final LibvirtException e) {
+            s_logger.trace("Ignoring libvirt error.", e);
+        }
+        // events may have been missed while the connection was broken
+        synchronized (this) {
+            _fullReportDue = true;
+        }
+    }
+
+    /**
+     * @return the vm states that changed since the previous ping, or null if a full report is to be sent instead
+     */
+    public synchronized Map<String, HostVmStateReportEntry> getChangedStates() {
+        if (!_enabled || _fullReportDue || ++_pingsSinceFullReport >= _fullReportInterval) {
+            _fullReportDue = false;
+            _pingsSinceFullReport = 0;
+            _changes.clear();
+            return null;
+        }
+        final Map<String, HostVmStateReportEntry> changes = new HashMap<String, HostVmStateReportEntry>(_changes);
+        _changes.clear();
+        return changes;
+    }
+}
@@ -23,7 +23,6 @@ import java.util.HashMap;
 import java.util.List;
 
 import org.apache.log4j.Logger;
-import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
 
 import com.cloud.agent.api.Answer;
@@ -43,19 +42,7 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
     public Answer execute(final GetVmStatsCommand command, final LibvirtComputingResource libvirtComputingResource) {
         final List<String> vmNames = command.getVmNames();
         try {
-            final HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            for (final String vmName : vmNames) {
-
-                final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
-
-                final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
-                final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName);
-                if (statEntry == null) {
-                    continue;
-                }
-
-                vmStatsNameMap.put(vmName, statEntry);
-            }
+            final HashMap<String, VmStatsEntry> vmStatsNameMap = libvirtComputingResource.getVmStats(vmNames);
             return new GetVmStatsAnswer(command, vmStatsNameMap);
         } catch (final LibvirtException e) {
             s_logger.debug("Can't get vm stats: " + e.toString());
@@ -712,6 +712,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             primaryPool = snapshotDisk.getPool();
 
             long size = 0;
+            String parentBackupPath = null;
             /**
              * Since Ceph version Dumpling (0.67.X) librbd / Qemu supports converting RBD
              * snapshots to RAW/QCOW2 files directly.
@@ -728,17 +729,27 @@ public class KVMStorageProcessor implements StorageProcessor {
                     s_logger.debug("Attempting to create " + snapDir.getAbsolutePath() + " recursively for snapshot storage");
                     FileUtils.forceMkdir(snapDir);
 
-                    final QemuImgFile srcFile =
-                            new QemuImgFile(KVMPhysicalDisk.RBDStringBuilder(primaryPool.getSourceHost(), primaryPool.getSourcePort(), primaryPool.getAuthUserName(),
-                                    primaryPool.getAuthSecret(), rbdSnapshot));
-                    srcFile.setFormat(PhysicalDiskFormat.RAW);
+                    if (isRbdDeltaBackupRequested(cmd.getOptions(), cmd.getCacheTO() != null, snapshot.getParentSnapshotPath(), destSnapshot.getParentSnapshotPath(),
+                            snapshotRelPath)) {
+                        if (backupRbdSnapshotDelta(primaryPool, snapshotDisk, snapshotName, snapshot.getParentSnapshotPath(), snapshotDestPath,
+                                destSnapshot.getParentSnapshotPath(), cmd.getWaitInMillSeconds())) {
+                            parentBackupPath = destSnapshot.getParentSnapshotPath();
+                        }
+                    }
 
-                    final QemuImgFile destFile = new QemuImgFile(snapshotFile);
-                    destFile.setFormat(snapshotDisk.getFormat());
+                    if (parentBackupPath == null) {
+                        final QemuImgFile srcFile =
+                                new QemuImgFile(KVMPhysicalDisk.RBDStringBuilder(primaryPool.getSourceHost(), primaryPool.getSourcePort(), primaryPool.getAuthUserName(),
+                                        primaryPool.getAuthSecret(), rbdSnapshot));
+                        srcFile.setFormat(PhysicalDiskFormat.RAW);
 
-                    s_logger.debug("Backing up RBD snapshot " + rbdSnapshot + " to " + snapshotFile);
-                    final QemuImg q = new QemuImg(cmd.getWaitInMillSeconds());
-                    q.convert(srcFile, destFile);
+                        final QemuImgFile destFile = new QemuImgFile(snapshotFile);
+                        destFile.setFormat(snapshotDisk.getFormat());
+
+                        s_logger.debug("Backing up RBD snapshot " + rbdSnapshot + " to " + snapshotFile);
+                        final QemuImg q = new QemuImg(cmd.getWaitInMillSeconds());
+                        q.convert(srcFile, destFile);
+                    }
 
                     final File snapFile = new File(snapshotFile);
                     if(snapFile.exists()) {
@@ -777,6 +788,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             final SnapshotObjectTO newSnapshot = new SnapshotObjectTO();
             newSnapshot.setPath(snapshotRelPath + File.separator + snapshotName);
             newSnapshot.setPhysicalSize(size);
+            newSnapshot.setParentSnapshotPath(parentBackupPath);
             return new CopyCmdAnswer(newSnapshot);
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to backup snapshot: ", e);
@@ -839,6 +851,59 @@ public class KVMStorageProcessor implements StorageProcessor {
         }
     }
 
+    /**
+     * The orchestration layer asks for a delta when the chain on secondary storage is shorter than
+     * snapshot.delta.max, the previous backup then holds the content of the previous RBD snapshot.
+     * Backups staged through a cache store and parents in another directory are always full.
+     */
+    protected static boolean isRbdDeltaBackupRequested(final Map<String, String> options, final boolean staged, final String prevSnapshotPath,
+            final String parentBackupPath, final String snapshotRelPath) {
+        return options != null && "false".equalsIgnoreCase(options.get("fullSnapshot")) && !staged && prevSnapshotPath != null && parentBackupPath != null &&
+                parentBackupPath.startsWith(snapshotRelPath + "/");
+    }
+
+    protected QemuImg createQemuImg(final int timeout) {
+        return new QemuImg(timeout);
+    }
+
+    /**
+     * Backs up an RBD snapshot as a qcow2 file holding only the clusters that changed since the
+     * previous RBD snapshot, on top of the backup of that snapshot. The delta refers to its parent
+     * by file name, so the chain stays valid wherever secondary storage is mounted and qemu-img
+     * reassembles it when the snapshot is restored.
+     *
+     * @return true if the delta was written, false if a full backup has to be made instead
+     */
+    protected boolean backupRbdSnapshotDelta(final KVMStoragePool primaryPool, final KVMPhysicalDisk snapshotDisk, final String snapshotName, final String prevSnapshotPath,
+            final String snapshotDestPath, final String parentBackupPath, final int timeout) {
+        final String prevSnapshotName = prevSnapshotPath.substring(prevSnapshotPath.lastIndexOf("/") + 1);
+        final String parentFileName = parentBackupPath.substring(parentBackupPath.lastIndexOf("/") + 1);
+        if (prevSnapshotName.equals(snapshotName) || !new File(snapshotDestPath + File.separator + parentFileName).exists()) {
+            return false;
+        }
+
+        final String snapshotFile = snapshotDestPath + File.separator + snapshotName;
+        final QemuImg q = createQemuImg(timeout);
+        final QemuImgFile deltaFile = new QemuImgFile(snapshotFile, snapshotDisk.getVirtualSize(), PhysicalDiskFormat.QCOW2);
+        final QemuImgFile prevSnapshot = new QemuImgFile(KVMPhysicalDisk.RBDStringBuilder(primaryPool.getSourceHost(), primaryPool.getSourcePort(),
+                primaryPool.getAuthUserName(), primaryPool.getAuthSecret(), snapshotDisk.getPath() + "@" + prevSnapshotName), PhysicalDiskFormat.RAW);
+        try {
+            s_logger.debug("Backing up RBD snapshot " + snapshotDisk.getPath() + "@" + snapshotName + " to " + snapshotFile + " as a delta against " + parentFileName);
+            final Map<String, String> options = new HashMap<String, String>();
+            options.put("backing_file", KVMPhysicalDisk.RBDStringBuilder(primaryPool.getSourceHost(), primaryPool.getSourcePort(), primaryPool.getAuthUserName(),
+                    primaryPool.getAuthSecret(), snapshotDisk.getPath() + "@" + snapshotName));
+            q.create(deltaFile, options);
+            // a safe rebase onto the previous snapshot copies in exactly the clusters that differ between the two snapshots
+            q.rebase(deltaFile, prevSnapshot, false);
+            q.rebase(deltaFile, new QemuImgFile(parentFileName), true);
+            return true;
+        } catch (final QemuImgException e) {
+            s_logger.warn("Failed to back up RBD snapshot " + snapshotName + " as a delta, making a full backup instead: " + e.getMessage());
+            new File(snapshotFile).delete();
+            return false;
+        }
+    }
+
     protected synchronized String attachOrDetachISO(final Connect conn, final String vmName, String isoPath, final boolean isAttach) throws LibvirtException, URISyntaxException,
     InternalErrorException {
         String isoXml = null;
@@ -938,6 +1003,8 @@ public class KVMStorageProcessor implements StorageProcessor {
             }
             throw e;
         } finally {
+            // the device list may have changed even if libvirt reported an error
+            resource.invalidateDomainDevices(vmName);
             if (dm != null) {
                 try {
                     dm.free();
@@ -1253,7 +1320,10 @@ public class KVMStorageProcessor implements StorageProcessor {
             final KVMStoragePool secondaryPool = storagePoolMgr.getStoragePoolByURI(nfsImageStore.getUrl() + File.separator + snapshotPath);
             final KVMPhysicalDisk snapshotDisk = secondaryPool.getPhysicalDisk(snapshotName);
 
-            if (volume.getFormat() == ImageFormat.RAW) {
+            if (snapshot.getParentSnapshotPath() != null) {
+                // incremental backups are qcow2 deltas on top of the previous backup, whatever the volume format is
+                snapshotDisk.setFormat(PhysicalDiskFormat.QCOW2);
+            } else if (volume.getFormat() == ImageFormat.RAW) {
                 snapshotDisk.setFormat(PhysicalDiskFormat.RAW);
             } else if (volume.getFormat() == ImageFormat.QCOW2) {
                 snapshotDisk.setFormat(PhysicalDiskFormat.QCOW2);
@@ -336,9 +336,37 @@ public class QemuImg {
 
     }
 
-    /* Changes the backing file of an image */
-    public void rebase() throws QemuImgException {
+    /**
+     * Changes the backing file of an image
+     *
+     * This method calls 'qemu-img rebase'. In safe mode qemu-img compares the
+     * old and the new backing file and copies every cluster that differs into
+     * the image, so its content stays the same. In unsafe mode only the
+     * backing file name in the header is changed.
+     *
+     * @param file
+     *            The image of which the backing file has to be changed
+     * @param backingFile
+     *            The new backing file, relative names are resolved against the
+     *            directory of the image
+     * @param unsafe
+     *            Flag to only rewrite the backing file name
+     * @return void
+     */
+    public void rebase(final QemuImgFile file, final QemuImgFile backingFile, final boolean unsafe) throws QemuImgException {
+        final Script s = new Script(_qemuImgPath, timeout);
+        s.add("rebase");
+        if (unsafe) {
+            s.add("-u");
+        }
+        s.add("-b");
+        s.add(backingFile.getFileName());
+        s.add(file.getFileName());
 
+        final String result = s.execute();
+        if (result != null) {
+            throw new QemuImgException(result);
+        }
     }
 
     /**
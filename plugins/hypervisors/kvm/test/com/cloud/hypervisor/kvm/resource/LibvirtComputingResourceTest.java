@@ -35,8 +35,8 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
@@ -145,6 +145,7 @@ import com.cloud.agent.api.to.VirtualMachineTO;
 import com.cloud.agent.api.to.VolumeTO;
 import com.cloud.agent.resource.virtualnetwork.VirtualRoutingResource;
 import com.cloud.exception.InternalErrorException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.hypervisor.kvm.resource.KVMHABase.NfsStoragePool;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
 import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
@@ -404,12 +405,18 @@ public class LibvirtComputingResourceTest {
 
     private static final String VMNAME = "test";
 
+    private static final String DOMAIN_XML = "<domain type='kvm'><name>test</name><devices>"
+            + "<disk type='file' device='disk'><driver name='qemu' type='qcow2'/><source file='/mnt/pool/disk'/><target dev='vda' bus='virtio'/></disk>"
+            + "<interface type='bridge'><mac address='02:00:00:00:00:01'/><source bridge='cloudbr0'/><target dev='vnet0'/><model type='virtio'/></interface>"
+            + "</devices></domain>";
+
     @Test
     public void testGetVmStat() throws LibvirtException {
         final Connect connect = Mockito.mock(Connect.class);
         final Domain domain = Mockito.mock(Domain.class);
         final DomainInfo domainInfo = new DomainInfo();
         Mockito.when(domain.getInfo()).thenReturn(domainInfo);
+        Mockito.when(domain.getXMLDesc(0)).thenReturn(DOMAIN_XML);
         Mockito.when(connect.domainLookupByName(VMNAME)).thenReturn(domain);
         final NodeInfo nodeInfo = new NodeInfo();
         nodeInfo.cpus = 8;
@@ -454,20 +461,7 @@ public class LibvirtComputingResourceTest {
 
         });
 
-        final LibvirtComputingResource libvirtComputingResource = new LibvirtComputingResource() {
-            @Override
-            public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
-                final InterfaceDef interfaceDef = new InterfaceDef();
-                return Arrays.asList(interfaceDef);
-            }
-
-            @Override
-            public List<DiskDef> getDisks(final Connect conn, final String vmName) {
-                final DiskDef diskDef = new DiskDef();
-                return Arrays.asList(diskDef);
-            }
-
-        };
+        final LibvirtComputingResource libvirtComputingResource = new LibvirtComputingResource();
         libvirtComputingResource.getVmStat(connect, VMNAME);
         final VmStatsEntry vmStat = libvirtComputingResource.getVmStat(connect, VMNAME);
         // network traffic as generated by the logic above, must be greater than zero
@@ -478,6 +472,55 @@ public class LibvirtComputingResourceTest {
         Assert.assertTrue(vmStat.getDiskWriteKBs() > 0);
     }
 
+    @Test
+    public void testGetVmStatsBulk() throws LibvirtException {
+        final int numVms = 200;
+        final Connect connect = Mockito.mock(Connect.class);
+        final LibvirtUtilitiesHelper libvirtUtilitiesHelper = Mockito.mock(LibvirtUtilitiesHelper.class);
+        when(libvirtUtilitiesHelper.getConnectionByType(HypervisorType.KVM.toString())).thenReturn(connect);
+        final NodeInfo nodeInfo = new NodeInfo();
+        nodeInfo.cpus = 8;
+        when(connect.nodeInfo()).thenReturn(nodeInfo);
+
+        final List<String> vmNames = new ArrayList<String>();
+        final List<Domain> domains = new ArrayList<Domain>();
+        for (int i = 0; i < numVms; i++) {
+            final String vmName = "i-2-" + i + "-VM";
+            final Domain domain = Mockito.mock(Domain.class);
+            when(domain.getInfo()).thenReturn(new DomainInfo());
+            when(domain.getID()).thenReturn(i + 1);
+            when(domain.getXMLDesc(0)).thenReturn(DOMAIN_XML);
+            when(domain.interfaceStats(Matchers.anyString())).thenReturn(new DomainInterfaceStats());
+            when(domain.blockStats(Matchers.anyString())).thenReturn(new DomainBlockStats());
+            when(connect.domainLookupByName(vmName)).thenReturn(domain);
+            vmNames.add(vmName);
+            domains.add(domain);
+        }
+        // a vm that is gone is left out of the answer
+        when(connect.domainLookupByName("i-2-gone-VM")).thenThrow(LibvirtException.class);
+        vmNames.add("i-2-gone-VM");
+
+        final LibvirtComputingResource lcr = Mockito.spy(new LibvirtComputingResource());
+        Mockito.doReturn(libvirtUtilitiesHelper).when(lcr).getLibvirtUtilitiesHelper();
+
+        lcr.getVmStats(vmNames);
+        final Map<String, VmStatsEntry> stats = lcr.getVmStats(vmNames);
+
+        Assert.assertEquals(numVms, stats.size());
+        // node info once per pass, domain xml parsed once per domain
+        verify(connect, times(2)).nodeInfo();
+        for (final Domain domain : domains) {
+            verify(domain, times(1)).getXMLDesc(0);
+            verify(domain, times(2)).interfaceStats("vnet0");
+            verify(domain, times(2)).blockStats("vda");
+        }
+
+        // attaching a device invalidates the cached device list
+        lcr.invalidateDomainDevices(vmNames.get(0));
+        lcr.getVmStats(vmNames.subList(0, 1));
+        verify(domains.get(0), times(2)).getXMLDesc(0);
+    }
+
     @Test
     public void getCpuSpeed() {
         Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
@@ -636,9 +679,6 @@ public class LibvirtComputingResourceTest {
 
     @Test
     public void testGetVmStatsCommand() {
-        final Connect conn = Mockito.mock(Connect.class);
-        final LibvirtUtilitiesHelper libvirtUtilitiesHelper = Mockito.mock(LibvirtUtilitiesHelper.class);
-
         final String vmName = "Test";
         final String uuid = "e8d6b4d0-bc6d-4613-b8bb-cb9e0600f3c6";
         final List<String> vms = new ArrayList<String>();
@@ -646,22 +686,14 @@ public class LibvirtComputingResourceTest {
 
         final GetVmStatsCommand command = new GetVmStatsCommand(vms, uuid, "hostname");
 
-        when(libvirtComputingResource.getLibvirtUtilitiesHelper()).thenReturn(libvirtUtilitiesHelper);
-        try {
-            when(libvirtUtilitiesHelper.getConnectionByVmName(vmName)).thenReturn(conn);
-        } catch (final LibvirtException e) {
-            fail(e.getMessage());
-        }
-
         final LibvirtRequestWrapper wrapper = LibvirtRequestWrapper.getInstance();
         assertNotNull(wrapper);
 
         final Answer answer = wrapper.execute(command, libvirtComputingResource);
         assertTrue(answer.getResult());
 
-        verify(libvirtComputingResource, times(1)).getLibvirtUtilitiesHelper();
         try {
-            verify(libvirtUtilitiesHelper, times(1)).getConnectionByVmName(vmName);
+            verify(libvirtComputingResource, times(1)).getVmStats(vms);
         } catch (final LibvirtException e) {
             fail(e.getMessage());
         }
@@ -0,0 +1,131 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Connect;
+import org.libvirt.Domain;
+import org.libvirt.DomainInfo;
+import org.libvirt.DomainInfo.DomainState;
+import org.libvirt.LibvirtException;
+import org.libvirt.event.DomainEventType;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class LibvirtVmStateMonitorTest {
+
+    private LibvirtComputingResource resource;
+    private LibvirtVmStateMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception {
+        resource = mock(LibvirtComputingResource.class);
+        when(resource.convertToPowerState(DomainState.VIR_DOMAIN_RUNNING)).thenReturn(PowerState.PowerOn);
+        when(resource.convertToPowerState(DomainState.VIR_DOMAIN_SHUTOFF)).thenReturn(PowerState.PowerOff);
+
+        monitor = new LibvirtVmStateMonitor(resource, 3);
+        // start() needs the native event loop, subscribing is what it enables
+        Whitebox.setInternalState(monitor, "_enabled", true);
+
+        final Connect conn = mock(Connect.class);
+        when(conn.getHostName()).thenReturn("kvm-host-1");
+        monitor.onConnect(conn);
+    }
+
+    private Domain createDomain(final String name, final DomainState state) throws LibvirtException {
+        final Domain domain = mock(Domain.class);
+        when(domain.getName()).thenReturn(name);
+        final DomainInfo info = new DomainInfo();
+        info.state = state;
+        when(domain.getInfo()).thenReturn(info);
+        return domain;
+    }
+
+    @Test
+    public void testOnlyChangedStatesAreReported() throws Exception {
+        // the first ping after connecting carries a full report
+        assertNull(monitor.getChangedStates());
+
+        monitor.recordStateChange(createDomain("i-2-3-VM", DomainState.VIR_DOMAIN_RUNNING), DomainEventType.STARTED);
+        final Map<String, HostVmStateReportEntry> changes = monitor.getChangedStates();
+        assertEquals(1, changes.size());
+        assertEquals(PowerState.PowerOn, changes.get("i-2-3-VM").getState());
+        assertEquals("kvm-host-1", changes.get("i-2-3-VM").getHost());
+
+        assertTrue(monitor.getChangedStates().isEmpty());
+    }
+
+    @Test
+    public void testFullReportEveryInterval() throws Exception {
+        assertNull(monitor.getChangedStates());
+        assertTrue(monitor.getChangedStates().isEmpty());
+        assertTrue(monitor.getChangedStates().isEmpty());
+        assertNull(monitor.getChangedStates());
+    }
+
+    @Test
+    public void testReconnectForcesFullReport() throws Exception {
+        assertNull(monitor.getChangedStates());
+        monitor.onConnect(mock(Connect.class));
+        assertNull(monitor.getChangedStates());
+    }
+
+    @Test
+    public void testUndefinedDomainIsReportedOff() throws Exception {
+        assertNull(monitor.getChangedStates());
+        final Domain domain = mock(Domain.class);
+        when(domain.getName()).thenReturn("i-2-3-VM");
+
+        monitor.recordStateChange(domain, DomainEventType.UNDEFINED);
+
+        verify(domain, never()).getInfo();
+        verify(resource).invalidateDomainDevices("i-2-3-VM");
+        assertEquals(PowerState.PowerOff, monitor.getChangedStates().get("i-2-3-VM").getState());
+    }
+
+    @Test
+    public void testFailedEventForcesFullReport() throws Exception {
+        assertNull(monitor.getChangedStates());
+        final Domain domain = mock(Domain.class);
+        when(domain.getName()).thenThrow(mock(LibvirtException.class));
+
+        monitor.recordStateChange(domain, DomainEventType.STOPPED);
+
+        assertNull(monitor.getChangedStates());
+    }
+
+    @Test
+    public void testDisabledMonitorAlwaysAsksForFullReport() throws Exception {
+        final LibvirtVmStateMonitor disabled = new LibvirtVmStateMonitor(resource, 3);
+        disabled.recordStateChange(createDomain("i-2-3-VM", DomainState.VIR_DOMAIN_SHUTOFF), DomainEventType.STOPPED);
+        assertNull(disabled.getChangedStates());
+        assertNull(disabled.getChangedStates());
+    }
+}
@@ -18,14 +18,63 @@
  */
 package com.cloud.hypervisor.kvm.storage;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.naming.ConfigurationException;
 
+import org.apache.cloudstack.utils.qemu.QemuImg;
+import org.apache.cloudstack.utils.qemu.QemuImgException;
+import org.apache.cloudstack.utils.qemu.QemuImgFile;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
 
 public class KVMStorageProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KVMStorageProcessor processor;
+    private QemuImg qemuImg;
+    private KVMStoragePool primaryPool;
+    private KVMPhysicalDisk snapshotDisk;
+
     @Before
     public void setUp() throws ConfigurationException {
+        processor = spy(new KVMStorageProcessor(mock(KVMStoragePoolManager.class), mock(LibvirtComputingResource.class)));
+        qemuImg = mock(QemuImg.class);
+        doReturn(qemuImg).when(processor).createQemuImg(anyInt());
+
+        primaryPool = mock(KVMStoragePool.class);
+        when(primaryPool.getSourceHost()).thenReturn("ceph-mon");
+        when(primaryPool.getSourcePort()).thenReturn(6789);
+        snapshotDisk = mock(KVMPhysicalDisk.class);
+        when(snapshotDisk.getPath()).thenReturn("rbd-pool/volume-1");
+        when(snapshotDisk.getVirtualSize()).thenReturn(1024L * 1024L);
     }
 
     @Test
@@ -37,4 +86,65 @@ public class KVMStorageProcessorTest {
     public void testCopyVolumeFromImageCacheToPrimary() throws Exception {
 
     }
+
+    @Test
+    public void testRbdDeltaBackupRequested() {
+        final Map<String, String> options = new HashMap<String, String>();
+        options.put("fullSnapshot", "false");
+        assertTrue(KVMStorageProcessor.isRbdDeltaBackupRequested(options, false, "rbd-pool/volume-1/snap-1", "snapshots/2/5/snap-1", "snapshots/2/5"));
+
+        // a full backup is asked for, the backup is staged, there is no previous snapshot or its backup is elsewhere
+        assertFalse(KVMStorageProcessor.isRbdDeltaBackupRequested(null, false, "rbd-pool/volume-1/snap-1", "snapshots/2/5/snap-1", "snapshots/2/5"));
+        options.put("fullSnapshot", "true");
+        assertFalse(KVMStorageProcessor.isRbdDeltaBackupRequested(options, false, "rbd-pool/volume-1/snap-1", "snapshots/2/5/snap-1", "snapshots/2/5"));
+        options.put("fullSnapshot", "false");
+        assertFalse(KVMStorageProcessor.isRbdDeltaBackupRequested(options, true, "rbd-pool/volume-1/snap-1", "snapshots/2/5/snap-1", "snapshots/2/5"));
+        assertFalse(KVMStorageProcessor.isRbdDeltaBackupRequested(options, false, null, "snapshots/2/5/snap-1", "snapshots/2/5"));
+        assertFalse(KVMStorageProcessor.isRbdDeltaBackupRequested(options, false, "rbd-pool/volume-1/snap-1", null, "snapshots/2/5"));
+        assertFalse(KVMStorageProcessor.isRbdDeltaBackupRequested(options, false, "rbd-pool/volume-1/snap-1", "snapshots/2/55/snap-1", "snapshots/2/5"));
+    }
+
+    @Test
+    public void testRbdDeltaIsRebasedOntoPreviousBackup() throws Exception {
+        final File destDir = folder.getRoot();
+        new File(destDir, "snap-1").createNewFile();
+
+        assertTrue(processor.backupRbdSnapshotDelta(primaryPool, snapshotDisk, "snap-2", "rbd-pool/volume-1/snap-1", destDir.getPath(), "snapshots/2/5/snap-1", 0));
+
+        final InOrder order = inOrder(qemuImg);
+        final ArgumentCaptor<QemuImgFile> backing = ArgumentCaptor.forClass(QemuImgFile.class);
+        order.verify(qemuImg).create(any(QemuImgFile.class), anyMapOf(String.class, String.class));
+        order.verify(qemuImg).rebase(any(QemuImgFile.class), backing.capture(), eq(false));
+        order.verify(qemuImg).rebase(any(QemuImgFile.class), backing.capture(), eq(true));
+        // the clusters are diffed against the previous RBD snapshot, the chain refers to the previous backup by name
+        assertTrue(backing.getAllValues().get(0).getFileName().contains("rbd-pool/volume-1@snap-1"));
+        assertEquals("snap-1", backing.getAllValues().get(1).getFileName());
+    }
+
+    @Test
+    public void testRbdDeltaNeedsPreviousBackup() throws Exception {
+        assertFalse(processor.backupRbdSnapshotDelta(primaryPool, snapshotDisk, "snap-2", "rbd-pool/volume-1/snap-1", folder.getRoot().getPath(),
+                "snapshots/2/5/snap-1", 0));
+        verify(qemuImg, never()).create(any(QemuImgFile.class), anyMapOf(String.class, String.class));
+    }
+
+    @Test
+    public void testRbdDeltaOfSameSnapshotIsFull() throws Exception {
+        new File(folder.getRoot(), "snap-1").createNewFile();
+        assertFalse(processor.backupRbdSnapshotDelta(primaryPool, snapshotDisk, "snap-1", "rbd-pool/volume-1/snap-1", folder.getRoot().getPath(),
+                "snapshots/2/5/snap-1", 0));
+        verify(qemuImg, never()).create(any(QemuImgFile.class), anyMapOf(String.class, String.class));
+    }
+
+    @Test
+    public void testFailedRbdDeltaIsRemoved() throws Exception {
+        final File destDir = folder.getRoot();
+        new File(destDir, "snap-1").createNewFile();
+        final File delta = new File(destDir, "snap-2");
+        delta.createNewFile();
+        doThrow(new QemuImgException("rebase failed")).when(qemuImg).rebase(any(QemuImgFile.class), any(QemuImgFile.class), anyBoolean());
+
+        assertFalse(processor.backupRbdSnapshotDelta(primaryPool, snapshotDisk, "snap-2", "rbd-pool/volume-1/snap-1", destDir.getPath(), "snapshots/2/5/snap-1", 0));
+        assertFalse(delta.exists());
+    }
 }
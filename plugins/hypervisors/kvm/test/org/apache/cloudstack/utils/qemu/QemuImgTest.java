@@ -261,6 +261,35 @@ public class QemuImgTest {
         }
     }
 
+    @Test
+    public void testRebase() throws QemuImgException {
+        String firstFileName = "/tmp/" + UUID.randomUUID() + ".qcow2";
+        String secondFileName = "/tmp/" + UUID.randomUUID() + ".qcow2";
+        String thirdFileName = "/tmp/" + UUID.randomUUID() + ".qcow2";
+
+        QemuImgFile firstFile = new QemuImgFile(firstFileName, 20480, PhysicalDiskFormat.QCOW2);
+        QemuImgFile secondFile = new QemuImgFile(secondFileName, 20480, PhysicalDiskFormat.QCOW2);
+        QemuImgFile thirdFile = new QemuImgFile(thirdFileName, PhysicalDiskFormat.QCOW2);
+
+        QemuImg qemu = new QemuImg(0);
+        qemu.create(firstFile);
+        qemu.create(secondFile);
+        qemu.create(thirdFile, firstFile);
+        qemu.rebase(thirdFile, secondFile, false);
+
+        Map<String, String> info = qemu.info(thirdFile);
+        if (info == null) {
+            fail("We didn't get any information back from qemu-img");
+        }
+
+        String backingFile = info.get(new String("backing_file"));
+        assertEquals(secondFileName, backingFile);
+
+        new File(firstFileName).delete();
+        new File(secondFileName).delete();
+        new File(thirdFileName).delete();
+    }
+
     @Test
     public void testConvertBasic() throws QemuImgException {
         long srcSize = 20480;
@@ -283,6 +283,10 @@ public class VmwareManagerImpl extends ManagerBase implements VmwareManager, Vmw
         _vCenterSessionTimeout = NumbersUtil.parseInt(_configDao.getValue(Config.VmwareVcenterSessionTimeout.key()), 1200) * 1000;
         s_logger.info("VmwareManagerImpl config - vmware.vcenter.session.timeout: " + _vCenterSessionTimeout);
 
+        int vCenterMaxSessions = NumbersUtil.parseInt(_configDao.getValue(Config.VmwareVcenterMaxSessions.key()), 128);
+        VmwareContextFactory.setSessionLimit(vCenterMaxSessions);
+        s_logger.info("VmwareManagerImpl config - vmware.vcenter.max.sessions: " + vCenterMaxSessions);
+
         _recycleHungWorker = _configDao.getValue(Config.VmwareRecycleHungWorker.key());
         if (_recycleHungWorker == null || _recycleHungWorker.isEmpty()) {
             _recycleHungWorker = "false";
@@ -28,6 +28,7 @@ import com.cloud.hypervisor.vmware.util.VmwareClient;
 import com.cloud.hypervisor.vmware.util.VmwareContext;
 import com.cloud.hypervisor.vmware.util.VmwareContextPool;
 import com.cloud.utils.StringUtils;
+import com.cloud.utils.mgmt.JmxUtil;
 
 @Component
 public class VmwareContextFactory {
@@ -47,6 +48,11 @@ public class VmwareContextFactory {
         // skip certificate check
         System.setProperty("axis.socketSecureFactory", "org.apache.axis.components.net.SunFakeTrustSocketFactory");
         s_pool = new VmwareContextPool();
+        try {
+            JmxUtil.registerMBean("VMware", "ContextPool", s_pool);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register MBean for VmwareContextPool", e);
+        }
     }
 
     @PostConstruct
@@ -55,7 +61,19 @@ public class VmwareContextFactory {
         s_clusterMgr = _clusterMgr;
     }
 
+    public static void setSessionLimit(int maxSessions) {
+        // callers beyond the limit wait up to half a minute for a session to be returned or closed before failing
+        s_pool.setSessionLimit(maxSessions, 30000);
+    }
+
     public static VmwareContext create(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
+        return create(vCenterAddress, vCenterUserName, vCenterPassword, false);
+    }
+
+    /**
+     * @param reserved whether getContext reserved the session slot for this session
+     */
+    private static VmwareContext create(String vCenterAddress, String vCenterUserName, String vCenterPassword, boolean reserved) throws Exception {
         assert (vCenterAddress != null);
         assert (vCenterUserName != null);
         assert (vCenterPassword != null);
@@ -77,21 +95,29 @@ public class VmwareContextFactory {
         context.registerStockObject("noderuninfo", String.format("%d-%d", s_clusterMgr.getManagementNodeId(), s_clusterMgr.getCurrentRunId()));
 
         context.setPoolInfo(s_pool, VmwareContextPool.composePoolKey(vCenterAddress, vCenterUserName));
-        s_pool.registerOutstandingContext(context);
+        s_pool.registerOutstandingContext(context, reserved);
 
         return context;
     }
 
     public static VmwareContext getContext(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
-        VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName);
-        if (context == null) {
-            context = create(vCenterAddress, vCenterUserName, vCenterPassword);
-        } else {
+        VmwareContext context;
+        while ((context = s_pool.getContext(vCenterAddress, vCenterUserName)) != null) {
             // Validate current context and verify if vCenter session timeout value of the context matches the timeout value set by Admin
-            if (!context.validate() || (context.getVimClient().getVcenterSessionTimeout() != s_vmwareMgr.getVcenterSessionTimeout())) {
-                s_logger.info("Validation of the context failed, dispose and create a new one");
-                context.close();
-                context = create(vCenterAddress, vCenterUserName, vCenterPassword);
+            if (context.validate() && context.getVimClient().getVcenterSessionTimeout() == s_vmwareMgr.getVcenterSessionTimeout()) {
+                break;
+            }
+            s_logger.info("Validation of the context failed, dispose and create a new one");
+            context.close();
+        }
+
+        if (context == null) {
+            // the pool reserved a session slot for us
+            try {
+                context = create(vCenterAddress, vCenterUserName, vCenterPassword, true);
+            } catch (Exception e) {
+                s_pool.releaseReservation(vCenterAddress, vCenterUserName);
+                throw e;
             }
         }
 
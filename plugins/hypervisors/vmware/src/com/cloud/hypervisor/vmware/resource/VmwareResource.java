@@ -238,6 +238,7 @@ import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfo;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineDiskInfoBuilder;
 import com.cloud.hypervisor.vmware.mo.VirtualMachineMO;
 import com.cloud.hypervisor.vmware.mo.VirtualSwitchType;
+import com.cloud.hypervisor.vmware.mo.VmInventoryCache;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHost;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostNetworkSummary;
 import com.cloud.hypervisor.vmware.mo.VmwareHypervisorHostResourceSummary;
@@ -313,6 +314,12 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
     protected ManagedObjectReference _morHyperHost;
     protected final static ThreadLocal<VmwareContext> s_serviceContext = new ThreadLocal<VmwareContext>();
+    // the VM inventory keeps its PropertyCollector in a vCenter session of its own, pooled sessions rotate between threads
+    private VmwareContext _vmInventoryContext;
+    private VmInventoryCache _vmInventory;
+    // guards the two above, the inventory calls vCenter and must not hold the resource monitor used by executeRequest
+    private final Object _vmInventoryLock = new Object();
+    private volatile int _vmInternalNameFieldKey;
     protected String _hostName;
 
     protected List<PropertyMapDynamicBean> _cmdMBeans = new ArrayList<PropertyMapDynamicBean>();
@@ -4529,73 +4536,68 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         return VirtualMachineGuestOsIdentifier.OTHER_GUEST;
     }
 
-    private HashMap<String, HostVmStateReportEntry> getHostVmStateReport() throws Exception {
-        VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
-
-        int key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
+    private String getVmInternalNameCustomField(VmwareHypervisorHost hyperHost) throws Exception {
+        int key = _vmInternalNameFieldKey;
         if (key == 0) {
-            s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
+            key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
+            if (key == 0) {
+                s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
+            } else {
+                _vmInternalNameFieldKey = key;
+            }
         }
-        String instanceNameCustomField = "value[" + key + "]";
-
-        // CLOUD_VM_INTERNAL_NAME stores the internal CS generated vm name. This was earlier stored in name. Now, name can be either the hostname or
-        // the internal CS name, but the custom field CLOUD_VM_INTERNAL_NAME always stores the internal CS name.
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "runtime.powerState", "config.template", instanceNameCustomField});
-
-        HashMap<String, HostVmStateReportEntry> newStates = new HashMap<String, HostVmStateReportEntry>();
-        if (ocs != null && ocs.length > 0) {
-            for (ObjectContent oc : ocs) {
-                List<DynamicProperty> objProps = oc.getPropSet();
-                if (objProps != null) {
-
-                    boolean isTemplate = false;
-                    String name = null;
-                    String VMInternalCSName = null;
-                    VirtualMachinePowerState powerState = VirtualMachinePowerState.POWERED_OFF;
-                    for (DynamicProperty objProp : objProps) {
-                        if (objProp.getName().equals("config.template")) {
-                            if (objProp.getVal().toString().equalsIgnoreCase("true")) {
-                                isTemplate = true;
-                            }
-                        } else if (objProp.getName().equals("runtime.powerState")) {
-                            powerState = (VirtualMachinePowerState)objProp.getVal();
-                        } else if (objProp.getName().equals("name")) {
-                            name = (String)objProp.getVal();
-                        } else if (objProp.getName().contains(instanceNameCustomField)) {
-                            if (objProp.getVal() != null)
-                                VMInternalCSName = ((CustomFieldStringValue)objProp.getVal()).getValue();
-                        } else {
-                            assert (false);
-                        }
-                    }
+        return "value[" + key + "]";
+    }
 
-                    if (VMInternalCSName != null)
-                        name = VMInternalCSName;
+    private ObjectContent[] getVmInventory(VmwareHypervisorHost hyperHost, String instanceNameCustomField) throws Exception {
+        String[] propertyPaths =
+                new String[] {"name", "runtime.powerState", "config.template", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField};
 
-                    if (!isTemplate) {
-                        newStates.put(name, new HostVmStateReportEntry(convertPowerState(powerState), hyperHost.getHyperHostName()));
-                    }
+        synchronized (_vmInventoryLock) {
+            if (_vmInventory != null && !_vmInventory.isTracking(hyperHost.getMor(), propertyPaths)) {
+                _vmInventory.destroy(_vmInventoryContext);
+                _vmInventory = null;
+            }
+            try {
+                // PropertyCollector filters live in the vCenter session, so the inventory holds on to the one session it was loaded in
+                if (_vmInventoryContext == null) {
+                    _vmInventoryContext = VmwareContextFactory.getContext(_vCenterAddress, _username, _password);
+                }
+                if (_vmInventory == null) {
+                    _vmInventory = new VmInventoryCache(hyperHost.getMor(), propertyPaths);
                 }
+                return _vmInventory.getVmProperties(_vmInventoryContext);
+            } catch (Exception e) {
+                // the session may be gone, start over with a new one on the next call
+                closeVmInventory();
+                throw e;
             }
         }
-        return newStates;
     }
 
+    private void closeVmInventory() {
+        synchronized (_vmInventoryLock) {
+            if (_vmInventoryContext != null) {
+                if (_vmInventory != null) {
+                    _vmInventory.destroy(_vmInventoryContext);
+                }
+                _vmInventoryContext.close();
+            }
+            _vmInventoryContext = null;
+            _vmInventory = null;
+        }
+    }
 
-    private HashMap<String, PowerState> getVmStates() throws Exception {
+    private HashMap<String, HostVmStateReportEntry> getHostVmStateReport() throws Exception {
         VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
 
-        int key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
-        if (key == 0) {
-            s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
-        }
-        String instanceNameCustomField = "value[" + key + "]";
+        String instanceNameCustomField = getVmInternalNameCustomField(hyperHost);
 
         // CLOUD_VM_INTERNAL_NAME stores the internal CS generated vm name. This was earlier stored in name. Now, name can be either the hostname or
         // the internal CS name, but the custom field CLOUD_VM_INTERNAL_NAME always stores the internal CS name.
-        ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "runtime.powerState", "config.template", instanceNameCustomField});
+        ObjectContent[] ocs = getVmInventory(hyperHost, instanceNameCustomField);
 
-        HashMap<String, PowerState> newStates = new HashMap<String, PowerState>();
+        HashMap<String, HostVmStateReportEntry> newStates = new HashMap<String, HostVmStateReportEntry>();
         if (ocs != null && ocs.length > 0) {
             for (ObjectContent oc : ocs) {
                 List<DynamicProperty> objProps = oc.getPropSet();
@@ -4617,8 +4619,6 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         } else if (objProp.getName().contains(instanceNameCustomField)) {
                             if (objProp.getVal() != null)
                                 VMInternalCSName = ((CustomFieldStringValue)objProp.getVal()).getValue();
-                        } else {
-                            assert (false);
                         }
                     }
 
@@ -4626,7 +4626,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         name = VMInternalCSName;
 
                     if (!isTemplate) {
-                        newStates.put(name, convertPowerState(powerState));
+                        newStates.put(name, new HostVmStateReportEntry(convertPowerState(powerState), hyperHost.getHyperHostName()));
                     }
                 }
             }
@@ -4634,7 +4634,13 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
         return newStates;
     }
 
-
+    private HashMap<String, PowerState> getVmStates() throws Exception {
+        HashMap<String, PowerState> newStates = new HashMap<String, PowerState>();
+        for (Map.Entry<String, HostVmStateReportEntry> entry : getHostVmStateReport().entrySet()) {
+            newStates.put(entry.getKey(), entry.getValue().getState());
+        }
+        return newStates;
+    }
 
     private HashMap<String, VmStatsEntry> getVmStats(List<String> vmNames) throws Exception {
         VmwareHypervisorHost hyperHost = getHyperHost(getServiceContext());
@@ -4656,14 +4662,9 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
             }
         }
 
-        int key = ((HostMO)hyperHost).getCustomFieldKey("VirtualMachine", CustomFieldConstants.CLOUD_VM_INTERNAL_NAME);
-        if (key == 0) {
-            s_logger.warn("Custom field " + CustomFieldConstants.CLOUD_VM_INTERNAL_NAME + " is not registered ?!");
-        }
-        String instanceNameCustomField = "value[" + key + "]";
+        String instanceNameCustomField = getVmInternalNameCustomField(hyperHost);
 
-        ObjectContent[] ocs =
-                hyperHost.getVmPropertiesOnHyperHost(new String[] {"name", "summary.config.numCpu", "summary.quickStats.overallCpuUsage", instanceNameCustomField});
+        ObjectContent[] ocs = getVmInventory(hyperHost, instanceNameCustomField);
         if (ocs != null && ocs.length > 0) {
             for (ObjectContent oc : ocs) {
                 List<DynamicProperty> objProps = oc.getPropSet();
@@ -4685,7 +4686,6 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                             maxCpuUsage = objProp.getVal().toString();
                         }
                     }
-                    new VirtualMachineMO(hyperHost.getContext(), oc.getObj());
                     if (vmInternalCSName != null) {
                         name = vmInternalCSName;
                     } else {
@@ -4696,8 +4696,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         continue;
                     }
 
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
-                    assert (vmMor != null);
+                    ManagedObjectReference vmMor = oc.getObj();
 
                     ArrayList<PerfMetricId> vmNetworkMetrics = new ArrayList<PerfMetricId>();
                     // get all the metrics from the available sample period
@@ -5021,6 +5020,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
 
     @Override
     public boolean stop() {
+        closeVmInventory();
         return true;
     }
 
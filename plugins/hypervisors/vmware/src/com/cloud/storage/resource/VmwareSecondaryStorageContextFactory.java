@@ -37,6 +37,13 @@ public class VmwareSecondaryStorageContextFactory {
     }
 
     public static VmwareContext create(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
+        return create(vCenterAddress, vCenterUserName, vCenterPassword, false);
+    }
+
+    /**
+     * @param reserved whether getContext reserved the session slot for this session
+     */
+    private static VmwareContext create(String vCenterAddress, String vCenterUserName, String vCenterPassword, boolean reserved) throws Exception {
         assert (vCenterAddress != null);
         assert (vCenterUserName != null);
         assert (vCenterPassword != null);
@@ -49,21 +56,29 @@ public class VmwareSecondaryStorageContextFactory {
         assert (context != null);
 
         context.setPoolInfo(s_pool, VmwareContextPool.composePoolKey(vCenterAddress, vCenterUserName));
-        s_pool.registerOutstandingContext(context);
+        s_pool.registerOutstandingContext(context, reserved);
 
         return context;
     }
 
     public static VmwareContext getContext(String vCenterAddress, String vCenterUserName, String vCenterPassword) throws Exception {
-        VmwareContext context = s_pool.getContext(vCenterAddress, vCenterUserName);
-        if (context == null) {
-            context = create(vCenterAddress, vCenterUserName, vCenterPassword);
-        } else {
+        VmwareContext context;
+        while ((context = s_pool.getContext(vCenterAddress, vCenterUserName)) != null) {
             // Validate current context and verify if vCenter session timeout value of the context matches the timeout value set by Admin
-            if (!context.validate() || (context.getVimClient().getVcenterSessionTimeout() != s_vCenterSessionTimeout)) {
-                s_logger.info("Validation of the context faild. dispose and create a new one");
-                context.close();
-                context = create(vCenterAddress, vCenterUserName, vCenterPassword);
+            if (context.validate() && context.getVimClient().getVcenterSessionTimeout() == s_vCenterSessionTimeout) {
+                break;
+            }
+            s_logger.info("Validation of the context faild. dispose and create a new one");
+            context.close();
+        }
+
+        if (context == null) {
+            // the pool reserved a session slot for us
+            try {
+                context = create(vCenterAddress, vCenterUserName, vCenterPassword, true);
+            } catch (Exception e) {
+                s_pool.releaseReservation(vCenterAddress, vCenterUserName);
+                throw e;
             }
         }
 
@@ -46,19 +46,13 @@ import java.util.concurrent.TimeoutException;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.cloudstack.storage.to.TemplateObjectTO;
 import org.apache.cloudstack.storage.to.VolumeObjectTO;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -203,7 +197,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         s_powerStatesTable.put(VmPowerState.UNRECOGNIZED, PowerState.PowerUnknown);
     }
 
-    private static PowerState convertToPowerState(final VmPowerState ps) {
+    protected static PowerState convertToPowerState(final VmPowerState ps) {
         final PowerState powerState = s_powerStatesTable.get(ps);
         return powerState == null ? PowerState.PowerUnknown : powerState;
     }
@@ -1983,37 +1977,6 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         }
     }
 
-    protected double getDataAverage(final Node dataNode, final int col, final int numRows) {
-        double value = 0;
-        final double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            final Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            final Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if (numRowsUsed == 0) {
-            if (!Double.isInfinite(value) && !Double.isNaN(value)) {
-                return value;
-            } else {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-                return dummy;
-            }
-        } else {
-            if (!Double.isInfinite(value / numRowsUsed) && !Double.isNaN(value / numRowsUsed)) {
-                return value / numRowsUsed;
-            } else {
-                s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-                return dummy;
-            }
-        }
-
-    }
-
     public HashMap<String, HashMap<String, VgpuTypesInfo>> getGPUGroupDetails(final Connection conn) throws XenAPIException, XmlRpcException {
         return null;
     }
@@ -2140,61 +2103,38 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     public HostStatsEntry getHostStats(final Connection conn, final GetHostStatsCommand cmd, final String hostGuid, final long hostId) {
 
         final HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        final Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1
-        // for host
+        final List<XsRrdUpdatesParser.Column> rrdData = getRRDData(conn, 1, new XsRrdUpdatesParser.ColumnFilter() {
+            @Override
+            public boolean accept(final String type, final String uuid, final String param) {
+                return type.equalsIgnoreCase("host");
+            }
+        }); // call rrd method with 1 for host
 
         if (rrdData == null) {
             return null;
         }
 
-        final Integer numRows = (Integer) rrdData[0];
-        final Integer numColumns = (Integer) rrdData[1];
-        final Node legend = (Node) rrdData[2];
-        final Node dataNode = (Node) rrdData[3];
-
-        final NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            final String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            final String[] columnMetadataList = columnMetadata.split(":");
+        for (final XsRrdUpdatesParser.Column column : rrdData) {
+            final String param = column.getParam();
 
-            if (columnMetadataList.length != 4) {
-                continue;
+            if (param.matches("pif_eth0_rx")) {
+                hostStats.setNetworkReadKBs(column.getAverage() / 1000);
+            } else if (param.matches("pif_eth0_tx")) {
+                hostStats.setNetworkWriteKBs(column.getAverage() / 1000);
+            } else if (param.contains("memory_total_kib")) {
+                hostStats.setTotalMemoryKBs(column.getAverage());
+            } else if (param.contains("memory_free_kib")) {
+                hostStats.setFreeMemoryKBs(column.getAverage());
+            } else if (param.matches("cpu_avg")) {
+                // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + column.getAverage());
             }
 
-            final String type = columnMetadataList[1];
-            final String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.matches("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows) / 1000);
-                } else if (param.matches("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows) / 1000);
-                } else if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                } else if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                } else if (param.matches("cpu_avg")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
-
-                /*
-                 * if (param.contains("loadavg")) {
-                 * hostStats.setAverageLoad((hostStats.getAverageLoad() +
-                 * getDataAverage(dataNode, col, numRows))); }
-                 */
-            }
+            /*
+             * if (param.contains("loadavg")) {
+             * hostStats.setAverageLoad((hostStats.getAverageLoad() +
+             * column.getAverage())); }
+             */
         }
 
         // add the host cpu utilization
@@ -2233,6 +2173,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         if (vm_map == null) {
             return vmStates;
         }
+        // resolve each resident host once rather than once per VM
+        final Map<String, String> hostUuids = new HashMap<String, String>();
         for (final VM.Record record : vm_map.values()) {
             if (record.isControlDomain || record.isASnapshot || record.isATemplate) {
                 continue; // Skip DOM0
@@ -2242,17 +2184,21 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             final Host host = record.residentOn;
             String host_uuid = null;
             if (!isRefNull(host)) {
-                try {
-                    host_uuid = host.getUuid(conn);
-                } catch (final BadServerResponse e) {
-                    s_logger.error("Failed to get host uuid for host " + host.toWireString(), e);
-                } catch (final XenAPIException e) {
-                    s_logger.error("Failed to get host uuid for host " + host.toWireString(), e);
-                } catch (final XmlRpcException e) {
-                    s_logger.error("Failed to get host uuid for host " + host.toWireString(), e);
+                host_uuid = hostUuids.get(host.toWireString());
+                if (host_uuid == null) {
+                    try {
+                        host_uuid = host.getUuid(conn);
+                        hostUuids.put(host.toWireString(), host_uuid);
+                    } catch (final BadServerResponse e) {
+                        s_logger.error("Failed to get host uuid for host " + host.toWireString(), e);
+                    } catch (final XenAPIException e) {
+                        s_logger.error("Failed to get host uuid for host " + host.toWireString(), e);
+                    } catch (final XmlRpcException e) {
+                        s_logger.error("Failed to get host uuid for host " + host.toWireString(), e);
+                    }
                 }
 
-                if (host_uuid.equalsIgnoreCase(_host.getUuid())) {
+                if (host_uuid != null && host_uuid.equalsIgnoreCase(_host.getUuid())) {
                     vmStates.put(record.nameLabel, new HostVmStateReportEntry(convertToPowerState(ps), host_uuid));
                 }
             }
@@ -2895,47 +2841,19 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return null;
     }
 
-    protected Object[] getRRDData(final Connection conn, final int flag) {
+    protected List<XsRrdUpdatesParser.Column> getRRDData(final Connection conn, final int flag, final XsRrdUpdatesParser.ColumnFilter filter) {
 
         /*
          * Note: 1 => called from host, hence host stats 2 => called from vm,
          * hence vm stats
          */
-        Document doc = null;
-
         try {
-            doc = getStatsRawXML(conn, flag == 1 ? true : false);
+            // stats are null when the host plugin call fails (host down state)
+            return getStatsRawXML(conn, flag == 1 ? true : false, filter);
         } catch (final Exception e1) {
             s_logger.warn("Error whilst collecting raw stats from plugin: ", e1);
             return null;
         }
-
-        if (doc == null) { // stats are null when the host plugin call fails
-            // (host down state)
-            return null;
-        }
-
-        final NodeList firstLevelChildren = doc.getChildNodes();
-        final NodeList secondLevelChildren = firstLevelChildren.item(0).getChildNodes();
-        final Node metaNode = secondLevelChildren.item(0);
-        final Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        final NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            final Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
     }
 
     @Override
@@ -2996,7 +2914,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return dynamicMinRam;
     }
 
-    protected Document getStatsRawXML(final Connection conn, final boolean host) {
+    protected List<XsRrdUpdatesParser.Column> getStatsRawXML(final Connection conn, final boolean host, final XsRrdUpdatesParser.ColumnFilter filter) {
         final Date currentDate = new Date();
         String urlStr = "http://" + _host.getIp() + "/rrd_updates?";
         urlStr += "session_id=" + conn.getSessionReference();
@@ -3009,21 +2927,16 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         BufferedReader in = null;
         try {
             url = new URL(urlStr);
-            url.openConnection();
             final URLConnection uc = url.openConnection();
             in = new BufferedReader(new InputStreamReader(uc.getInputStream()));
-            final InputSource statsSource = new InputSource(in);
-            return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
+            return XsRrdUpdatesParser.parse(in, filter);
         } catch (final MalformedURLException e) {
             s_logger.warn("Malformed URL?  come on...." + urlStr);
             return null;
         } catch (final IOException e) {
             s_logger.warn("Problems getting stats using " + urlStr, e);
             return null;
-        } catch (final SAXException e) {
-            s_logger.warn("Problems getting stats using " + urlStr, e);
-            return null;
-        } catch (final ParserConfigurationException e) {
+        } catch (final XMLStreamException e) {
             s_logger.warn("Problems getting stats using " + urlStr, e);
             return null;
         } finally {
@@ -3280,58 +3193,34 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
         }
 
-        final Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for
-        // vm
+        final List<XsRrdUpdatesParser.Column> rrdData = getRRDData(conn, 2, new XsRrdUpdatesParser.ColumnFilter() {
+            @Override
+            public boolean accept(final String type, final String uuid, final String param) {
+                return type.equals("vm") && vmResponseMap.containsKey(uuid);
+            }
+        }); // call rrddata with 2 for vm
 
         if (rrdData == null) {
             return null;
         }
 
-        final Integer numRows = (Integer) rrdData[0];
-        final Integer numColumns = (Integer) rrdData[1];
-        final Node legend = (Node) rrdData[2];
-        final Node dataNode = (Node) rrdData[3];
+        for (final XsRrdUpdatesParser.Column column : rrdData) {
+            final String param = column.getParam();
+            final VmStatsEntry vmStatsAnswer = vmResponseMap.get(column.getUuid());
 
-        final NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
+            vmStatsAnswer.setEntityType("vm");
 
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            final String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            final String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            final String type = columnMetadataList[1];
-            final String uuid = columnMetadataList[2];
-            final String param = columnMetadataList[3];
-
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                final VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
-
-                vmStatsAnswer.setEntityType("vm");
-
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows));
-                } else if (param.matches("vif_\\d*_rx")) {
-                    vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + getDataAverage(dataNode, col, numRows) / 1000);
-                } else if (param.matches("vif_\\d*_tx")) {
-                    vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + getDataAverage(dataNode, col, numRows) / 1000);
-                } else if (param.matches("vbd_.*_read")) {
-                    vmStatsAnswer.setDiskReadKBs(vmStatsAnswer.getDiskReadKBs() + getDataAverage(dataNode, col, numRows) / 1000);
-                } else if (param.matches("vbd_.*_write")) {
-                    vmStatsAnswer.setDiskWriteKBs(vmStatsAnswer.getDiskWriteKBs() + getDataAverage(dataNode, col, numRows) / 1000);
-                }
+            if (param.contains("cpu")) {
+                vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() + column.getAverage());
+            } else if (param.matches("vif_\\d*_rx")) {
+                vmStatsAnswer.setNetworkReadKBs(vmStatsAnswer.getNetworkReadKBs() + column.getAverage() / 1000);
+            } else if (param.matches("vif_\\d*_tx")) {
+                vmStatsAnswer.setNetworkWriteKBs(vmStatsAnswer.getNetworkWriteKBs() + column.getAverage() / 1000);
+            } else if (param.matches("vbd_.*_read")) {
+                vmStatsAnswer.setDiskReadKBs(vmStatsAnswer.getDiskReadKBs() + column.getAverage() / 1000);
+            } else if (param.matches("vbd_.*_write")) {
+                vmStatsAnswer.setDiskWriteKBs(vmStatsAnswer.getDiskWriteKBs() + column.getAverage() / 1000);
             }
         }
 
@@ -3380,10 +3269,6 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return null;
     }
 
-    protected String getXMLNodeValue(final Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
     public void handleSrAndVdiDetach(final String iqn, final Connection conn) throws Exception {
         final SR sr = getStorageRepository(conn, iqn);
 
@@ -0,0 +1,160 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xenserver.resource;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streaming parser for the rrd_updates document served by XenServer hosts.
+ *
+ * The document lists one legend entry per column ("AVERAGE:vm:&lt;uuid&gt;:cpu0") followed by one row of
+ * values per sample. Only the columns accepted by the filter are kept, and for each of them only a
+ * running sum is held while the rows stream by, so no DOM of the (possibly multi-MB) document is built.
+ */
+public class XsRrdUpdatesParser {
+    private static final Logger s_logger = Logger.getLogger(XsRrdUpdatesParser.class);
+
+    private static final XMLInputFactory s_factory = XMLInputFactory.newInstance();
+    static {
+        s_factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        s_factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        s_factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    public interface ColumnFilter {
+        boolean accept(String type, String uuid, String param);
+    }
+
+    public static class Column {
+        private final String type;
+        private final String uuid;
+        private final String param;
+        private double sum;
+        private int samples;
+
+        Column(final String type, final String uuid, final String param) {
+            this.type = type;
+            this.uuid = uuid;
+            this.param = param;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getParam() {
+            return param;
+        }
+
+        /**
+         * @return average of the samples that are not NaN, or 0 when the average is not a finite number
+         */
+        public double getAverage() {
+            final double value = samples == 0 ? sum : sum / samples;
+            if (Double.isInfinite(value) || Double.isNaN(value)) {
+                s_logger.warn("Found an invalid value (infinity/NaN) for " + type + ":" + uuid + ":" + param + ", samples=" + samples);
+                return 0;
+            }
+            return value;
+        }
+
+        void addSample(final double value) {
+            if (!Double.isNaN(value)) {
+                sum += value;
+                samples++;
+            }
+        }
+    }
+
+    /**
+     * @return the accepted columns, in legend order
+     */
+    public static List<Column> parse(final Reader in, final ColumnFilter filter) throws XMLStreamException {
+        // index of every legend entry, null for columns nobody asked for
+        final List<Column> legend = new ArrayList<Column>();
+        final List<Column> columns = new ArrayList<Column>();
+
+        final XMLStreamReader reader = s_factory.createXMLStreamReader(in);
+        try {
+            int valueIndex = -1;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+
+                final String name = reader.getLocalName();
+                if (name.equals("entry")) {
+                    final Column column = parseLegendEntry(reader.getElementText(), filter);
+                    legend.add(column);
+                    if (column != null) {
+                        columns.add(column);
+                    }
+                } else if (name.equals("row")) {
+                    valueIndex = 0;
+                } else if (name.equals("v")) {
+                    if (valueIndex >= 0 && valueIndex < legend.size() && legend.get(valueIndex) != null) {
+                        legend.get(valueIndex).addSample(parseValue(reader.getElementText()));
+                    }
+                    valueIndex++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return columns;
+    }
+
+    private static Column parseLegendEntry(final String entry, final ColumnFilter filter) {
+        if (entry == null) {
+            return null;
+        }
+
+        final String[] columnMetadataList = entry.split(":");
+        if (columnMetadataList.length != 4) {
+            return null;
+        }
+
+        final String type = columnMetadataList[1];
+        final String uuid = columnMetadataList[2];
+        final String param = columnMetadataList[3];
+        if (!filter.accept(type, uuid, param)) {
+            return null;
+        }
+        return new Column(type, uuid, param);
+    }
+
+    private static double parseValue(final String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (final NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
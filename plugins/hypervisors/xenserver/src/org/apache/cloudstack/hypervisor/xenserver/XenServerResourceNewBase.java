@@ -19,12 +19,15 @@ package org.apache.cloudstack.hypervisor.xenserver;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
 
+import com.cloud.agent.api.HostVmStateReportEntry;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.hypervisor.xenserver.resource.XenServer620SP1Resource;
 import com.cloud.utils.Pair;
@@ -52,7 +55,10 @@ import com.xensource.xenapi.VM;
  * This base class differs from CitrixResourceBase in the following ways:
  *   - VM states are detected using Event.from instead of polling.  This
  *     increases the number of threads CloudStack uses but the threads
- *     are mostly idle just waiting for events from XenServer.
+ *     are mostly idle just waiting for events from XenServer.  The
+ *     listener runs on the resource of the pool master and keeps the
+ *     power state of every VM in the pool, the resources of the other
+ *     hosts in the pool answer pings from it as well.
  *   - stats are collected through the http interface rather than Xapi plugin.
  *     This change may be promoted to CitrixResourceBase as it's also possible
  *     in previous versions of XenServer.
@@ -62,6 +68,8 @@ import com.xensource.xenapi.VM;
  */
 public class XenServerResourceNewBase extends XenServer620SP1Resource {
     private static final Logger s_logger = Logger.getLogger(XenServerResourceNewBase.class);
+    // pool uuid -> listener running on the resource of the pool master
+    private static final ConcurrentHashMap<String, VmEventListener> s_poolListeners = new ConcurrentHashMap<String, VmEventListener>();
     protected VmEventListener _listener = null;
 
     @Override
@@ -77,12 +85,12 @@ public class XenServerResourceNewBase extends XenServer620SP1Resource {
             final Host.Record masterRecord = poolr.master.getRecord(conn);
             if (_host.getUuid().equals(masterRecord.uuid)) {
                 _listener = new VmEventListener(true);
+                _listener.start();
 
-                //
-                // TODO disable event listener for now. Wait until everything else is ready
-                //
-
-                // _listener.start();
+                final VmEventListener previous = s_poolListeners.put(_host.getPool(), _listener);
+                if (previous != null && previous != _listener) {
+                    previous.signalStop();
+                }
             } else {
                 _listener = new VmEventListener(false);
             }
@@ -94,6 +102,25 @@ public class XenServerResourceNewBase extends XenServer620SP1Resource {
         return cmds;
     }
 
+    @Override
+    public boolean stop() {
+        if (_listener != null) {
+            _listener.signalStop();
+            s_poolListeners.remove(_host.getPool(), _listener);
+        }
+        return super.stop();
+    }
+
+    @Override
+    protected HashMap<String, HostVmStateReportEntry> getHostVmStateReport(final Connection conn) {
+        final VmEventListener listener = s_poolListeners.get(_host.getPool());
+        if (listener != null && listener.isSynced()) {
+            return listener.getHostVmStateReport(_host.getUuid());
+        }
+        // no listener for this pool in this management server, or it is still loading the VMs
+        return super.getHostVmStateReport(conn);
+    }
+
     protected void waitForTask2(final Connection c, final Task task, final long pollInterval, final long timeout) throws XenAPIException, XmlRpcException, TimeoutException {
         final long beginTime = System.currentTimeMillis();
         if (s_logger.isTraceEnabled()) {
@@ -149,16 +176,21 @@ public class XenServerResourceNewBase extends XenServer620SP1Resource {
 
 
     protected class VmEventListener extends Thread {
-        boolean _stop = false;
+        volatile boolean _stop = false;
         HashMap<String, Pair<String, VirtualMachine.State>> _changes = new HashMap<String, Pair<String, VirtualMachine.State>>();
         boolean _isMaster;
         Set<String> _classes;
         String _token = "";
+        // VM ref -> (name label, state), only VMs resident on a host
+        final Map<String, Pair<String, HostVmStateReportEntry>> _vmStates = new ConcurrentHashMap<String, Pair<String, HostVmStateReportEntry>>();
+        final Map<String, String> _hostUuids = new ConcurrentHashMap<String, String>();
+        volatile boolean _synced = false;
 
         public VmEventListener(final boolean isMaster) {
             _isMaster = isMaster;
             _classes = new HashSet<String>();
             _classes.add("VM");
+            setDaemon(true);
         }
 
         @Override
@@ -171,16 +203,36 @@ public class XenServerResourceNewBase extends XenServer620SP1Resource {
                     try {
                         results = Event.from(conn, _classes, _token, new Double(30));
                     } catch (final Exception e) {
+                        if (_stop) {
+                            // signalStop() interrupted the wait
+                            break;
+                        }
                         s_logger.error("Retrying the waiting on VM events due to: ", e);
+                        // events may have been missed, start over from a full snapshot of the VMs
+                        resync();
+                        try {
+                            Thread.sleep(1000);
+                        } catch (final InterruptedException ie) {
+                            s_logger.debug("Interrupted while waiting to retry VM events, stop=" + _stop);
+                        }
                         continue;
                     }
+                    if (_stop) {
+                        break;
+                    }
 
+                    // the first call with an empty token returns every VM in the pool
+                    final boolean initial = _token.isEmpty();
                     _token = results.token;
                     @SuppressWarnings("unchecked")
                     final
                     Set<Event.Record> events = results.events;
                     for (final Event.Record event : events) {
                         try {
+                            if (event.operation == Types.EventOperation.DEL) {
+                                _vmStates.remove(event.ref);
+                                continue;
+                            }
                             if (!(event.snapshot instanceof VM.Record)) {
                                 if (s_logger.isDebugEnabled()) {
                                     s_logger.debug("The snapshot is not a VM: " + event);
@@ -191,36 +243,45 @@ public class XenServerResourceNewBase extends XenServer620SP1Resource {
 
                             String hostUuid = null;
                             if (vm.residentOn != null && !vm.residentOn.toWireString().contains("OpaqueRef:NULL")) {
-                                hostUuid = vm.residentOn.getUuid(conn);
+                                hostUuid = _hostUuids.get(vm.residentOn.toWireString());
+                                if (hostUuid == null) {
+                                    hostUuid = vm.residentOn.getUuid(conn);
+                                    _hostUuids.put(vm.residentOn.toWireString(), hostUuid);
+                                }
                             }
-                            recordChanges(conn, vm, hostUuid);
+                            recordChanges(conn, event.ref, vm, hostUuid);
                         } catch (final Exception e) {
                             s_logger.error("Skipping over " + event, e);
                         }
                     }
+                    if (initial) {
+                        _synced = true;
+                        s_logger.debug("Loaded the power state of " + _vmStates.size() + " VMs in pool " + _host.getPool());
+                    }
                 } catch (final Throwable th) {
                     s_logger.error("Exception caught in eventlistener thread: ", th);
                 }
             }
         }
 
-        protected void recordChanges(final Connection conn, final VM.Record rec, final String hostUuid) {
+        protected void recordChanges(final Connection conn, final String ref, final VM.Record rec, final String hostUuid) {
+            if (rec.isControlDomain || rec.isASnapshot || rec.isATemplate || hostUuid == null) {
+                _vmStates.remove(ref);
+                return;
+            }
+            _vmStates.put(ref, new Pair<String, HostVmStateReportEntry>(rec.nameLabel, new HostVmStateReportEntry(convertToPowerState(rec.powerState), hostUuid)));
+        }
 
+        protected void resync() {
+            _synced = false;
+            _token = "";
+            _vmStates.clear();
         }
 
         @Override
         public void start() {
             if (_isMaster) {
-                // Throw away the initial set of events because they're history
-                final Connection conn = getConnection();
-                EventBatch results;
-                try {
-                    results = Event.from(conn, _classes, _token, new Double(30));
-                } catch (final Exception e) {
-                    s_logger.error("Retrying the waiting on VM events due to: ", e);
-                    throw new CloudRuntimeException("Unable to start a listener thread to listen to VM events", e);
-                }
-                _token = results.token;
+                // the initial set of events is used to load the current VM states
                 s_logger.debug("Starting the event listener thread for " + _host.getUuid());
                 super.start();
             }
@@ -230,6 +291,20 @@ public class XenServerResourceNewBase extends XenServer620SP1Resource {
             return _isMaster;
         }
 
+        public boolean isSynced() {
+            return _synced && !_stop && isAlive();
+        }
+
+        public HashMap<String, HostVmStateReportEntry> getHostVmStateReport(final String hostUuid) {
+            final HashMap<String, HostVmStateReportEntry> vmStates = new HashMap<String, HostVmStateReportEntry>();
+            for (final Pair<String, HostVmStateReportEntry> state : _vmStates.values()) {
+                if (hostUuid.equalsIgnoreCase(state.second().getHost())) {
+                    vmStates.put(state.first(), state.second());
+                }
+            }
+            return vmStates;
+        }
+
         public HashMap<String, Pair<String, VirtualMachine.State>> getChanges() {
             synchronized (_cluster.intern()) {
                 if (_changes.size() == 0) {
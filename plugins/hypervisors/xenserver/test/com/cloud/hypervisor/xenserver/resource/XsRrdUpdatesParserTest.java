@@ -0,0 +1,75 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.xenserver.resource;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+public class XsRrdUpdatesParserTest {
+
+    private static final String RRD_UPDATES = "<xport><meta><start>1400000000</start><step>60</step><end>1400000120</end>"
+            + "<rows>3</rows><columns>4</columns><legend>"
+            + "<entry>AVERAGE:vm:vm-uuid-1:cpu0</entry>"
+            + "<entry>AVERAGE:vm:vm-uuid-1:vif_0_rx</entry>"
+            + "<entry>AVERAGE:vm:vm-uuid-2:cpu0</entry>"
+            + "<entry>AVERAGE:host:host-uuid:cpu_avg</entry>"
+            + "</legend></meta><data>"
+            + "<row><t>1400000120</t><v>0.5</v><v>1000.0</v><v>NaN</v><v>0.2</v></row>"
+            + "<row><t>1400000060</t><v>0.3</v><v>NaN</v><v>NaN</v><v>0.4</v></row>"
+            + "<row><t>1400000000</t><v>0.1</v><v>3000.0</v><v>NaN</v><v>0.6</v></row>"
+            + "</data></xport>";
+
+    @Test
+    public void testAveragesOfAcceptedColumns() throws Exception {
+        final List<XsRrdUpdatesParser.Column> columns = XsRrdUpdatesParser.parse(new StringReader(RRD_UPDATES), new XsRrdUpdatesParser.ColumnFilter() {
+            @Override
+            public boolean accept(final String type, final String uuid, final String param) {
+                return type.equals("vm");
+            }
+        });
+
+        assertEquals(3, columns.size());
+        assertEquals("vm-uuid-1", columns.get(0).getUuid());
+        assertEquals("cpu0", columns.get(0).getParam());
+        assertEquals(0.3, columns.get(0).getAverage(), 0.0001);
+        // NaN samples are left out of the average
+        assertEquals("vif_0_rx", columns.get(1).getParam());
+        assertEquals(2000.0, columns.get(1).getAverage(), 0.0001);
+        // a column without any sample reports 0
+        assertEquals("vm-uuid-2", columns.get(2).getUuid());
+        assertEquals(0.0, columns.get(2).getAverage(), 0.0001);
+    }
+
+    @Test
+    public void testColumnsAfterSkippedOnesKeepTheirValues() throws Exception {
+        final List<XsRrdUpdatesParser.Column> columns = XsRrdUpdatesParser.parse(new StringReader(RRD_UPDATES), new XsRrdUpdatesParser.ColumnFilter() {
+            @Override
+            public boolean accept(final String type, final String uuid, final String param) {
+                return type.equalsIgnoreCase("host");
+            }
+        });
+
+        assertEquals(1, columns.size());
+        assertEquals("host", columns.get(0).getType());
+        assertEquals("cpu_avg", columns.get(0).getParam());
+        assertEquals(0.4, columns.get(0).getAverage(), 0.0001);
+    }
+}
@@ -0,0 +1,191 @@
+#!/usr/bin/python
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+
+# Long lived helper that runs scripts for the java agent (com.cloud.utils.script.ScriptHelper),
+# so that the agent does not fork itself and start a new interpreter for every script.
+#
+# Requests and responses are framed on stdin / stdout:
+#   request:  4 byte length, then the NUL separated work dir (may be empty) and command line
+#   response: 4 byte exit value, 4 byte length, then the combined stdout and stderr of the command
+#
+# Python scripts run in a child forked from this already initialized interpreter, anything else
+# is started as a regular process. On SIGTERM (the agent timing out a request) the running
+# command is killed along with the helper.
+
+import os
+import signal
+import struct
+import subprocess
+import sys
+import traceback
+
+# modules commonly imported by the agent scripts, loaded once for all the forked children
+import logging
+import re
+import socket
+import time
+
+try:
+    import runpy
+    CAN_RUN_IN_PROCESS = hasattr(runpy, 'run_path')
+except ImportError:
+    CAN_RUN_IN_PROCESS = False
+
+current_child = [None]
+
+
+def terminate(signum, frame):
+    if current_child[0] is not None:
+        try:
+            os.kill(current_child[0], signal.SIGKILL)
+        except OSError:
+            pass
+    os._exit(1)
+
+
+def read_exactly(stream, length):
+    data = b''
+    while len(data) < length:
+        chunk = stream.read(length - len(data))
+        if not chunk:
+            return None
+        data += chunk
+    return data
+
+
+def exit_value(status):
+    if os.WIFSIGNALED(status):
+        return 128 + os.WTERMSIG(status)
+    return os.WEXITSTATUS(status)
+
+
+def is_python_script(path):
+    if not CAN_RUN_IN_PROCESS or not os.path.isfile(path):
+        return False
+    try:
+        f = open(path, 'rb')
+        try:
+            first_line = f.readline(128)
+        finally:
+            f.close()
+    except (IOError, OSError):
+        return False
+    return first_line.startswith(b'#!') and b'python' in first_line
+
+
+def run_python(argv, work_dir, protocol_fds):
+    read_fd, write_fd = os.pipe()
+    pid = os.fork()
+    if pid == 0:
+        code = 1
+        try:
+            os.close(read_fd)
+            for fd in protocol_fds:
+                os.close(fd)
+            os.dup2(write_fd, 1)
+            os.dup2(write_fd, 2)
+            os.close(write_fd)
+            signal.signal(signal.SIGTERM, signal.SIG_DFL)
+            if work_dir:
+                os.chdir(work_dir)
+            sys.argv = argv
+            # like the interpreter does for a script, so that the script finds the modules next to it
+            sys.path[0] = os.path.dirname(os.path.abspath(argv[0]))
+            code = 0
+            try:
+                runpy.run_path(argv[0], run_name='__main__')
+            except SystemExit:
+                e = sys.exc_info()[1]
+                if e.code is None:
+                    code = 0
+                elif isinstance(e.code, int):
+                    code = e.code
+                else:
+                    sys.stderr.write(str(e.code) + '\n')
+                    code = 1
+            except:
+                traceback.print_exc()
+                code = 1
+        finally:
+            try:
+                sys.stdout.flush()
+                sys.stderr.flush()
+            finally:
+                os._exit(code)
+
+    current_child[0] = pid
+    os.close(write_fd)
+    chunks = []
+    while True:
+        chunk = os.read(read_fd, 65536)
+        if not chunk:
+            break
+        chunks.append(chunk)
+    os.close(read_fd)
+    status = os.waitpid(pid, 0)[1]
+    current_child[0] = None
+    return exit_value(status), b''.join(chunks)
+
+
+def run_process(argv, work_dir):
+    try:
+        p = subprocess.Popen(argv, stdin=open(os.devnull, 'rb'), stdout=subprocess.PIPE, stderr=subprocess.STDOUT,
+                             cwd=work_dir or None, close_fds=True)
+    except OSError:
+        e = sys.exc_info()[1]
+        return 127, ('Unable to execute %s: %s\n' % (argv[0], e)).encode('utf-8')
+    current_child[0] = p.pid
+    output = p.communicate()[0]
+    current_child[0] = None
+    if p.returncode < 0:
+        return 128 - p.returncode, output
+    return p.returncode, output
+
+
+def main():
+    # keep the protocol streams to ourselves, stray output of the helper goes to stderr
+    protocol_in = os.fdopen(os.dup(0), 'rb')
+    protocol_out = os.fdopen(os.dup(1), 'wb')
+    devnull = os.open(os.devnull, os.O_RDWR)
+    os.dup2(devnull, 0)
+    os.dup2(2, 1)
+    signal.signal(signal.SIGTERM, terminate)
+    protocol_fds = [protocol_in.fileno(), protocol_out.fileno()]
+
+    while True:
+        header = read_exactly(protocol_in, 4)
+        if header is None:
+            break
+        payload = read_exactly(protocol_in, struct.unpack('>i', header)[0])
+        if payload is None:
+            break
+        fields = payload.decode('utf-8').split('\0')
+        work_dir, argv = fields[0], fields[1:]
+
+        if is_python_script(argv[0]):
+            code, output = run_python(argv, work_dir, protocol_fds)
+        else:
+            code, output = run_process(argv, work_dir)
+
+        protocol_out.write(struct.pack('>ii', code, len(output)))
+        protocol_out.write(output)
+        protocol_out.flush()
+
+
+if __name__ == '__main__':
+    main()
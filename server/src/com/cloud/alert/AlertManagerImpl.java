@@ -25,8 +25,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -50,6 +54,7 @@ import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
@@ -81,6 +86,7 @@ import com.cloud.host.HostVO;
 import com.cloud.network.dao.IPAddressDao;
 import com.cloud.org.Grouping.AllocationState;
 import com.cloud.resource.ResourceManager;
+import com.cloud.service.ServiceOfferingVO;
 import com.cloud.storage.StorageManager;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
@@ -138,6 +144,10 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
     Map<Short, Double> _capacityTypeThresholdMap = new HashMap<Short, Double>();
 
     private final ExecutorService _executor;
+    private ExecutorService _capacityAuditExecutor;
+    // held while an audit runs, periodic audits skip a running one and forced ones wait for it
+    private final ReentrantLock _capacityAuditLock = new ReentrantLock();
+    private volatile long _lastCapacityAuditTime = 0;
 
     public AlertManagerImpl() {
         _executor = Executors.newCachedThreadPool(new NamedThreadFactory("Email-Alerts-Sender"));
@@ -218,6 +228,7 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     @Override
     public boolean start() {
+        _capacityAuditExecutor = Executors.newFixedThreadPool(Math.max(1, CapacityAuditWorkers.value()), new NamedThreadFactory("Capacity-Auditor"));
         _timer.schedule(new CapacityChecker(), INITIAL_CAPACITY_CHECK_DELAY, _capacityCheckPeriod);
         return true;
     }
@@ -225,6 +236,9 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
     @Override
     public boolean stop() {
         _timer.cancel();
+        if (_capacityAuditExecutor != null) {
+            _capacityAuditExecutor.shutdownNow();
+        }
         return true;
     }
 
@@ -261,30 +275,25 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     @Override
     public void recalculateCapacity() {
-        // FIXME: the right way to do this is to register a listener (see RouterStatsListener, VMSyncListener)
-        //        for the vm sync state.  The listener model has connects/disconnects to keep things in sync much better
-        //        than this model right now, so when a VM is started, we update the amount allocated, and when a VM
-        //        is stopped we updated the amount allocated, and when VM sync reports a changed state, we update
-        //        the amount allocated.  Hopefully it's limited to 3 entry points and will keep the amount allocated
-        //        per host accurate.
+        recalculateCapacity(true);
+    }
+
+    private void recalculateCapacity(boolean forceHostAudit) {
+        // Host cpu/ram capacity is kept up to date incrementally by CapacityManagerImpl from the VM state
+        // transitions, so the full per-host recalculation is only run as a periodic consistency audit
+        // (see capacity.audit.interval) or when explicitly requested.
 
         try {
 
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("recalculating system capacity");
-                s_logger.debug("Executing cpu/ram capacity update");
             }
 
-            // Calculate CPU and RAM capacities
-            //     get all hosts...even if they are not in 'UP' state
-            List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
-            if (hosts != null) {
-                for (HostVO host : hosts) {
-                    _capacityMgr.updateCapacityForHost(host);
-                }
+            if (forceHostAudit || isCapacityAuditDue()) {
+                auditHostCapacity(forceHostAudit);
             }
+
             if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Done executing cpu/ram capacity update");
                 s_logger.debug("Executing storage capacity update");
             }
             // Calculate storage pool capacity
@@ -351,6 +360,79 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
         }
     }
 
+    private boolean isCapacityAuditDue() {
+        return System.currentTimeMillis() - _lastCapacityAuditTime >= CapacityAuditInterval.value() * 1000L;
+    }
+
+    /**
+     * Recomputes the cpu/ram capacity of all routing hosts in parallel and reports the hosts whose
+     * capacity had drifted from what the VM state transitions accounted for. A forced audit, as
+     * requested by listCapacity fetchlatest=true, waits for the one in progress and runs after it.
+     */
+    protected void auditHostCapacity(boolean force) {
+        if (force) {
+            _capacityAuditLock.lock();
+        } else if (!_capacityAuditLock.tryLock()) {
+            s_logger.debug("A cpu/ram capacity audit is already in progress, skipping this one");
+            return;
+        }
+
+        try {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Executing cpu/ram capacity audit");
+            }
+            long startTime = System.currentTimeMillis();
+
+            //     get all hosts...even if they are not in 'UP' state
+            List<HostVO> hosts = _resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null);
+            if (hosts == null || hosts.isEmpty()) {
+                _lastCapacityAuditTime = System.currentTimeMillis();
+                return;
+            }
+
+            final Map<Long, ServiceOfferingVO> offeringsMap = _capacityMgr.listServiceOfferingsById();
+            final ConcurrentLinkedQueue<Long> driftedHosts = new ConcurrentLinkedQueue<Long>();
+            List<Future<?>> futures = new ArrayList<Future<?>>(hosts.size());
+            for (final HostVO host : hosts) {
+                futures.add(_capacityAuditExecutor.submit(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        try {
+                            if (_capacityMgr.updateCapacityForHost(host, offeringsMap)) {
+                                driftedHosts.add(host.getId());
+                            }
+                        } catch (Throwable t) {
+                            s_logger.warn("Failed to audit cpu/ram capacity of host " + host.getId(), t);
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    s_logger.warn("Interrupted while waiting for the cpu/ram capacity audit to finish");
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    s_logger.warn("Caught exception while auditing cpu/ram capacity", e.getCause());
+                }
+            }
+
+            _lastCapacityAuditTime = System.currentTimeMillis();
+            long elapsed = _lastCapacityAuditTime - startTime;
+            if (!driftedHosts.isEmpty()) {
+                s_logger.warn("cpu/ram capacity audit corrected drift on " + driftedHosts.size() + " of " + hosts.size() + " hosts in " + elapsed + " ms, hosts: " +
+                    driftedHosts);
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("cpu/ram capacity audit found no drift on " + hosts.size() + " hosts in " + elapsed + " ms");
+            }
+        } finally {
+            _capacityAuditLock.unlock();
+        }
+    }
+
     private void createOrUpdateVlanCapacity(long dcId, AllocationState capacityState) {
 
         SearchCriteria<CapacityVO> capacitySC = _capacityDao.createSearchCriteria();
@@ -431,7 +513,7 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     public void checkForAlerts() {
 
-        recalculateCapacity();
+        recalculateCapacity(false);
 
         // abort if we can't possibly send an alert...
         if (_emailAlert == null) {
@@ -850,7 +932,8 @@ public class AlertManagerImpl extends ManagerBase implements AlertManager, Confi
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {CPUCapacityThreshold, MemoryCapacityThreshold, StorageAllocatedCapacityThreshold, StorageCapacityThreshold};
+        return new ConfigKey<?>[] {CPUCapacityThreshold, MemoryCapacityThreshold, StorageAllocatedCapacityThreshold, StorageCapacityThreshold, CapacityAuditInterval,
+            CapacityAuditWorkers};
     }
 
     @Override
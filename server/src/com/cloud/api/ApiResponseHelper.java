@@ -3302,6 +3302,72 @@ public class ApiResponseHelper implements ResponseGenerator {
         return usageRecResponse;
     }
 
+    @Override
+    public UsageRecordResponse createUsageTotalResponse(Usage usageTotal) {
+        UsageRecordResponse usageRecResponse = new UsageRecordResponse();
+
+        Account account = ApiDBUtils.findAccountById(usageTotal.getAccountId());
+        if (account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
+            //find the project
+            Project project = ApiDBUtils.findProjectByProjectAccountIdIncludingRemoved(account.getId());
+            if (project != null) {
+                usageRecResponse.setProjectId(project.getUuid());
+                usageRecResponse.setProjectName(project.getName());
+            }
+        } else {
+            usageRecResponse.setAccountId(account.getUuid());
+            usageRecResponse.setAccountName(account.getAccountName());
+        }
+
+        Domain domain = ApiDBUtils.findDomainById(usageTotal.getDomainId());
+        if (domain != null) {
+            usageRecResponse.setDomainId(domain.getUuid());
+        }
+
+        if (usageTotal.getZoneId() != null) {
+            DataCenter zone = ApiDBUtils.findZoneById(usageTotal.getZoneId());
+            if (zone != null) {
+                usageRecResponse.setZoneId(zone.getUuid());
+            }
+        }
+        usageRecResponse.setDescription(usageTotal.getDescription());
+        usageRecResponse.setUsage(usageTotal.getUsageDisplay());
+        usageRecResponse.setUsageType(usageTotal.getUsageType());
+
+        if (usageTotal.getOfferingId() != null) {
+            if (usageTotal.getUsageType() == UsageTypes.RUNNING_VM || usageTotal.getUsageType() == UsageTypes.ALLOCATED_VM) {
+                ServiceOfferingVO svcOffering = _entityMgr.findByIdIncludingRemoved(ServiceOfferingVO.class, usageTotal.getOfferingId().toString());
+                if (svcOffering != null) {
+                    usageRecResponse.setOfferingId(svcOffering.getUuid());
+                }
+            } else if (usageTotal.getUsageType() == UsageTypes.VOLUME) {
+                DiskOfferingVO diskOff = _entityMgr.findByIdIncludingRemoved(DiskOfferingVO.class, usageTotal.getOfferingId().toString());
+                if (diskOff != null) {
+                    usageRecResponse.setOfferingId(diskOff.getUuid());
+                }
+            } else if (usageTotal.getUsageType() == UsageTypes.NETWORK_OFFERING) {
+                NetworkOfferingVO netOff = _entityMgr.findByIdIncludingRemoved(NetworkOfferingVO.class, usageTotal.getOfferingId().toString());
+                if (netOff != null) {
+                    usageRecResponse.setOfferingId(netOff.getUuid());
+                }
+            }
+        }
+
+        if (usageTotal.getRawUsage() != null) {
+            DecimalFormat decimalFormat = new DecimalFormat("###########.######");
+            usageRecResponse.setRawUsage(decimalFormat.format(usageTotal.getRawUsage()));
+        }
+
+        if (usageTotal.getStartDate() != null) {
+            usageRecResponse.setStartDate(getDateStringInternal(usageTotal.getStartDate()));
+        }
+        if (usageTotal.getEndDate() != null) {
+            usageRecResponse.setEndDate(getDateStringInternal(usageTotal.getEndDate()));
+        }
+
+        return usageRecResponse;
+    }
+
     public String getDateStringInternal(Date inputDate) {
         if (inputDate == null) {
             return null;
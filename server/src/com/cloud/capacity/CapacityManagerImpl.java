@@ -576,16 +576,25 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         return totalAllocatedSize;
     }
 
-    @DB
     @Override
     public void updateCapacityForHost(final Host host) {
-        // prepare the service offerings
+        updateCapacityForHost(host, listServiceOfferingsById());
+    }
+
+    @Override
+    public Map<Long, ServiceOfferingVO> listServiceOfferingsById() {
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
         for (ServiceOfferingVO offering : offerings) {
             offeringsMap.put(offering.getId(), offering);
         }
+        return offeringsMap;
+    }
 
+    @DB
+    @Override
+    public boolean updateCapacityForHost(final Host host, final Map<Long, ServiceOfferingVO> offeringsMap) {
+        boolean drifted = false;
         long usedCpu = 0;
         long usedMemory = 0;
         long reservedMemory = 0;
@@ -699,10 +708,12 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     s_logger.debug("Calibrate reserved cpu for host: " + host.getId() + " old reservedCpu:" + cpuCap.getReservedCapacity() + " new reservedCpu:" +
                         reservedCpu);
                     cpuCap.setReservedCapacity(reservedCpu);
+                    drifted = true;
                 }
                 if (cpuCap.getUsedCapacity() != usedCpu) {
                     s_logger.debug("Calibrate used cpu for host: " + host.getId() + " old usedCpu:" + cpuCap.getUsedCapacity() + " new usedCpu:" + usedCpu);
                     cpuCap.setUsedCapacity(usedCpu);
+                    drifted = true;
                 }
             }
 
@@ -726,6 +737,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     s_logger.debug("Calibrate reserved memory for host: " + host.getId() + " old reservedMem:" + memCap.getReservedCapacity() + " new reservedMem:" +
                         reservedMemory);
                     memCap.setReservedCapacity(reservedMemory);
+                    drifted = true;
                 }
                 if (memCap.getUsedCapacity() != usedMemory) {
                     /*
@@ -735,6 +747,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                      */
                     s_logger.debug("Calibrate used memory for host: " + host.getId() + " old usedMem: " + memCap.getUsedCapacity() + " new usedMem: " + usedMemory);
                     memCap.setUsedCapacity(usedMemory);
+                    drifted = true;
                 }
             }
 
@@ -767,9 +780,10 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     _capacityDao.persist(capacity);
                 }
             });
-
+            drifted = true;
         }
 
+        return drifted;
     }
 
     @Override
@@ -21,6 +21,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -59,6 +60,17 @@ public class ActionEventUtils {
     protected static EntityManager s_entityMgr;
     protected static ConfigurationDao s_configDao;
 
+    // the publish flag and the event bus lookup are refreshed periodically rather than for every event
+    private static final long EVENT_BUS_LOOKUP_INTERVAL = 30000;
+    private static volatile long s_eventBusLookupTime = 0;
+    private static volatile boolean s_publishActionEvent = false;
+
+    // uuids never change, the ones of the accounts, users, projects and entities of the published events are
+    // kept so that enriching an event does not query the DB on the caller's thread every time
+    private static final int UUID_CACHE_SIZE = 10000;
+    private static final String NO_UUID = "";
+    private static final ConcurrentHashMap<String, String> s_uuidCache = new ConcurrentHashMap<String, String>();
+
     public static final String EventDetails = "event_details";
     public static final String EventId = "event_id";
     public static final String EntityType = "entity_type";
@@ -188,16 +200,22 @@ public class ActionEventUtils {
     }
 
     private static void publishOnEventBus(long userId, long accountId, String eventCategory, String eventType, Event.State state, String description) {
-        String configKey = Config.PublishActionEvent.key();
-        String value = s_configDao.getValue(configKey);
-        boolean configValue = Boolean.parseBoolean(value);
-        if(!configValue)
-            return;
-        try {
-            s_eventBus = ComponentContext.getComponent(EventBus.class);
-        } catch (NoSuchBeanDefinitionException nbe) {
-            return; // no provider is configured to provide events bus, so just return
+        long now = System.currentTimeMillis();
+        if (now - s_eventBusLookupTime > EVENT_BUS_LOOKUP_INTERVAL) {
+            String configKey = Config.PublishActionEvent.key();
+            String value = s_configDao.getValue(configKey);
+            s_publishActionEvent = Boolean.parseBoolean(value);
+            if (s_publishActionEvent) {
+                try {
+                    s_eventBus = ComponentContext.getComponent(EventBus.class);
+                } catch (NoSuchBeanDefinitionException nbe) {
+                    s_eventBus = null; // no provider is configured to provide events bus
+                }
+            }
+            s_eventBusLookupTime = now;
         }
+        if (!s_publishActionEvent || s_eventBus == null)
+            return;
 
         // get the entity details for which ActionEvent is generated
         String entityType = null;
@@ -222,18 +240,18 @@ public class ActionEventUtils {
             new org.apache.cloudstack.framework.events.Event(ManagementService.Name, eventCategory, eventType, EventTypes.getEntityForEvent(eventType), entityUuid);
 
         Map<String, String> eventDescription = new HashMap<String, String>();
-        Project project = s_projectDao.findByProjectAccountId(accountId);
-        Account account = s_accountDao.findById(accountId);
-        User user = s_userDao.findById(userId);
+        String accountUuid = getAccountUuid(accountId);
+        String userUuid = getUserUuid(userId);
         // if account has been deleted, this might be called during cleanup of resources and results in null pointer
-        if (account == null)
+        if (accountUuid == null)
             return;
-        if (user == null)
+        if (userUuid == null)
             return;
-        if (project != null)
-            eventDescription.put("project", project.getUuid());
-        eventDescription.put("user", user.getUuid());
-        eventDescription.put("account", account.getUuid());
+        String projectUuid = getProjectUuid(accountId);
+        if (projectUuid != null)
+            eventDescription.put("project", projectUuid);
+        eventDescription.put("user", userUuid);
+        eventDescription.put("account", accountUuid);
         eventDescription.put("event", eventType);
         eventDescription.put("status", state.toString());
         eventDescription.put("entity", entityType);
@@ -254,20 +272,78 @@ public class ActionEventUtils {
         }
     }
 
+    private static String getAccountUuid(long accountId) {
+        String key = "account-" + accountId;
+        String uuid = s_uuidCache.get(key);
+        if (uuid == null) {
+            Account account = s_accountDao.findById(accountId);
+            if (account == null) {
+                return null;
+            }
+            uuid = cacheUuid(key, account.getUuid());
+        }
+        return uuid;
+    }
+
+    private static String getUserUuid(long userId) {
+        String key = "user-" + userId;
+        String uuid = s_uuidCache.get(key);
+        if (uuid == null) {
+            User user = s_userDao.findById(userId);
+            if (user == null) {
+                return null;
+            }
+            uuid = cacheUuid(key, user.getUuid());
+        }
+        return uuid;
+    }
+
+    /**
+     * @return the uuid of the project owning the account, null for the accounts that are not the one of a project
+     */
+    private static String getProjectUuid(long accountId) {
+        String key = "project-account-" + accountId;
+        String uuid = s_uuidCache.get(key);
+        if (uuid == null) {
+            Project project = s_projectDao.findByProjectAccountId(accountId);
+            uuid = cacheUuid(key, project != null ? project.getUuid() : NO_UUID);
+        }
+        return NO_UUID.equals(uuid) ? null : uuid;
+    }
+
+    private static String getEntityUuid(Class<?> entityType, long internalId) {
+        String key = entityType.getName() + "-" + internalId;
+        String uuid = s_uuidCache.get(key);
+        if (uuid == null) {
+            final Object objVO = s_entityMgr.findById(entityType, internalId);
+            uuid = cacheUuid(key, ((Identity)objVO).getUuid());
+        }
+        return uuid;
+    }
+
+    private static String cacheUuid(String key, String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        if (s_uuidCache.size() >= UUID_CACHE_SIZE) {
+            s_uuidCache.clear();
+        }
+        s_uuidCache.put(key, uuid);
+        return uuid;
+    }
+
     private static String getEntityUuid(Class<?> entityType, Object entityId){
 
         // entityId can be internal db id or UUID so accordingly call findbyId or return uuid directly
 
         if (entityId instanceof Long){
             // Its internal db id - use findById
-            final Object objVO = s_entityMgr.findById(entityType, (Long)entityId);
-            return ((Identity)objVO).getUuid();
+            return getEntityUuid(entityType, ((Long)entityId).longValue());
         } else if(entityId instanceof String){
             try{
                 // In case its an async job the internal db id would be a string because of json deserialization
                 Long internalId = Long.valueOf((String) entityId);
-                final Object objVO = s_entityMgr.findById(entityType, internalId);
-                return ((Identity)objVO).getUuid();
+                return getEntityUuid(entityType, internalId.longValue());
             } catch (NumberFormatException e){
                 // It is uuid - so return it
                 return (String)entityId;
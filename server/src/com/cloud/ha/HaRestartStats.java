@@ -0,0 +1,61 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time between the scheduling of HA work and the restart of its VM, in milliseconds, exported
+ * over JMX.
+ */
+public class HaRestartStats implements HaRestartStatsMBean {
+    private final AtomicLong _restartCount = new AtomicLong();
+    private final AtomicLong _totalMillis = new AtomicLong();
+    private final AtomicLong _maxMillis = new AtomicLong();
+    private volatile long _lastMillis;
+
+    public void recordRestart(long elapsed) {
+        _lastMillis = elapsed;
+        _totalMillis.addAndGet(elapsed);
+        _restartCount.incrementAndGet();
+        long max = _maxMillis.get();
+        while (elapsed > max && !_maxMillis.compareAndSet(max, elapsed)) {
+            max = _maxMillis.get();
+        }
+    }
+
+    @Override
+    public long getRestartCount() {
+        return _restartCount.get();
+    }
+
+    @Override
+    public long getLastTimeToRestart() {
+        return _lastMillis;
+    }
+
+    @Override
+    public long getAverageTimeToRestart() {
+        long count = _restartCount.get();
+        return count == 0 ? 0 : _totalMillis.get() / count;
+    }
+
+    @Override
+    public long getMaxTimeToRestart() {
+        return _maxMillis.get();
+    }
+}
@@ -19,9 +19,11 @@ package com.cloud.ha;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -72,6 +74,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.State;
@@ -82,7 +85,8 @@ import com.cloud.vm.dao.VMInstanceDao;
 /**
  * HighAvailabilityManagerImpl coordinates the HA process. VMs are registered with the HA Manager for HA. The request is stored
  * within a database backed work queue. HAManager has a number of workers that pick up these work items to perform HA on the
- * VMs.
+ * VMs. Work items are taken from the database by a dispatcher as soon as they are scheduled and handed to the workers through
+ * an in-memory queue in which HA of HA-enabled system VMs and routers comes first, followed by HA of HA-enabled user VMs.
  *
  * The HA process goes as follows: 1. Check with the list of Investigators to determine that the VM is no longer running. If a
  * Investigator finds the VM is still alive, the HA process is stopped and the state of the VM reverts back to its previous
@@ -94,7 +98,9 @@ import com.cloud.vm.dao.VMInstanceDao;
  * the VM.
  *
  * @config {@table || Param Name | Description | Values | Default || || workers | number of worker threads to spin off to do the
- *         processing | int | 1 || || time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
+ *         processing | int | 1 || || ha.workers.per.host | number of work items processed concurrently per host, 0 for no limit | int | 0 ||
+ *         || ha.workers.per.zone | number of work items processed concurrently per zone, 0 for no limit | int | 0 || ||
+ *         time.to.sleep | Time to sleep if no work items are found | seconds | 60 || || max.retries
  *         | number of times to retry start | int | 5 || || time.between.failure | Time elapsed between failures before we
  *         consider it as another retry | seconds | 3600 || || time.between.cleanup | Time to wait before the cleanup thread
  *         runs | seconds | 86400 || || force.ha | Force HA to happen even if the VM says no | boolean | false || ||
@@ -106,7 +112,16 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
     WorkerThread[] _workers;
-    boolean _stopped;
+    DispatcherThread _dispatcher;
+    final PriorityBlockingQueue<QueuedWork> _workQueue = new PriorityBlockingQueue<QueuedWork>();
+    final List<QueuedWork> _deferredWork = new LinkedList<QueuedWork>();
+    final Map<Long, Integer> _activeWorkPerHost = new HashMap<Long, Integer>();
+    final Map<Long, Integer> _activeWorkPerZone = new HashMap<Long, Integer>();
+    int _maxWorkersPerHost;
+    int _maxWorkersPerZone;
+    int _maxQueuedWork;
+    final HaRestartStats _restartStats = new HaRestartStats();
+    volatile boolean _stopped;
     long _timeToSleep;
     @Inject
     HighAvailabilityDao _haDao;
@@ -298,8 +313,8 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     }
 
     protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
+        if (_dispatcher != null) {
+            _dispatcher.wakeup();
         }
     }
 
@@ -591,7 +606,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
             VMInstanceVO started = _instanceDao.findById(vm.getId());
             if (started != null && started.getState() == VirtualMachine.State.Running) {
-                s_logger.info("VM is now restarted: " + vmId + " on " + started.getHostId());
+                s_logger.info("VM is now restarted: " + vmId + " on " + started.getHostId() + recordTimeToRestart(work));
                 return null;
             }
 
@@ -755,6 +770,21 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         return vms;
     }
 
+    /**
+     * Records the time elapsed between the scheduling of the HA work and the restart of its VM in
+     * the HaRestartStats MBean.
+     * @return a description of the time to restart suitable for logging
+     */
+    private String recordTimeToRestart(final HaWorkVO work) {
+        if (work.getCreated() == null) {
+            return "";
+        }
+        long elapsed = System.currentTimeMillis() - work.getCreated().getTime();
+        _restartStats.recordRestart(elapsed);
+        return ", " + elapsed + " ms after HA was scheduled (restarts: " + _restartStats.getRestartCount() + ", average: " + _restartStats.getAverageTimeToRestart() +
+            " ms, max: " + _restartStats.getMaxTimeToRestart() + " ms)";
+    }
+
     private void rescheduleWork(final HaWorkVO work, final long nextTime) {
         s_logger.info("Rescheduling work " + work + " to try again at " + new Date(nextTime << 10));
         work.setTimeToTry(nextTime);
@@ -818,6 +848,15 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (int i = 0; i < _workers.length; i++) {
             _workers[i] = new WorkerThread("HA-Worker-" + i);
         }
+        _dispatcher = new DispatcherThread("HA-Dispatcher");
+        // keep a bounded number of taken items in memory so that the remaining ones stay available to other management servers
+        _maxQueuedWork = count * 2;
+
+        value = params.get(Config.HAWorkersPerHost.key());
+        _maxWorkersPerHost = NumbersUtil.parseInt(value, 0);
+
+        value = params.get(Config.HAWorkersPerZone.key());
+        _maxWorkersPerZone = NumbersUtil.parseInt(value, 0);
 
         value = params.get("force.ha");
         _forceHA = Boolean.parseBoolean(value);
@@ -859,6 +898,12 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
         _executor = Executors.newScheduledThreadPool(count, new NamedThreadFactory("HA"));
 
+        try {
+            JmxUtil.registerMBean("HighAvailabilityManager", "HaRestartStats", _restartStats);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register MBean", e);
+        }
+
         return true;
     }
 
@@ -869,6 +914,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (final WorkerThread thread : _workers) {
             thread.start();
         }
+        _dispatcher.start();
 
         _executor.scheduleAtFixedRate(new CleanupTask(), _timeBetweenCleanups, _timeBetweenCleanups, TimeUnit.SECONDS);
 
@@ -899,14 +945,104 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
     }
 
-    protected class WorkerThread extends Thread {
-        public WorkerThread(String name) {
+    /**
+     * A work item taken by this management server, waiting in the in-memory queue for a worker.
+     */
+    protected static class QueuedWork implements Comparable<QueuedWork> {
+        // HA of HA-enabled system VMs and routers first, then HA of HA-enabled user VMs, then the rest
+        static final int PRIORITY_SYSTEM_VM_HA = 0;
+        static final int PRIORITY_USER_VM_HA = 1;
+        static final int PRIORITY_OTHER = 2;
+
+        final HaWorkVO work;
+        final long zoneId;
+        final int priority;
+
+        QueuedWork(HaWorkVO work, long zoneId, int priority) {
+            this.work = work;
+            this.zoneId = zoneId;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(QueuedWork other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return work.getId() < other.work.getId() ? -1 : (work.getId() == other.work.getId() ? 0 : 1);
+        }
+    }
+
+    protected QueuedWork queueWork(final HaWorkVO work) {
+        final VMInstanceVO vm = _instanceDao.findByIdIncludingRemoved(work.getInstanceId());
+        int priority = QueuedWork.PRIORITY_OTHER;
+        if (work.getWorkType() == WorkType.HA && vm != null && (_forceHA || vm.isHaEnabled())) {
+            priority = vm.getType() == VirtualMachine.Type.User ? QueuedWork.PRIORITY_USER_VM_HA : QueuedWork.PRIORITY_SYSTEM_VM_HA;
+        }
+        final QueuedWork queued = new QueuedWork(work, vm != null ? vm.getDataCenterId() : 0L, priority);
+        _workQueue.offer(queued);
+        return queued;
+    }
+
+    /**
+     * Reserves a per host and per zone slot for the work item.
+     * @return false if the work has been deferred until a slot is released
+     */
+    protected boolean acquireSlot(final QueuedWork queued) {
+        synchronized (_deferredWork) {
+            final Integer hostCount = _activeWorkPerHost.get(queued.work.getHostId());
+            final Integer zoneCount = _activeWorkPerZone.get(queued.zoneId);
+            if ((_maxWorkersPerHost > 0 && hostCount != null && hostCount >= _maxWorkersPerHost) ||
+                (_maxWorkersPerZone > 0 && zoneCount != null && zoneCount >= _maxWorkersPerZone)) {
+                _deferredWork.add(queued);
+                return false;
+            }
+            _activeWorkPerHost.put(queued.work.getHostId(), hostCount == null ? 1 : hostCount + 1);
+            _activeWorkPerZone.put(queued.zoneId, zoneCount == null ? 1 : zoneCount + 1);
+            return true;
+        }
+    }
+
+    protected void releaseSlot(final QueuedWork queued) {
+        synchronized (_deferredWork) {
+            decrement(_activeWorkPerHost, queued.work.getHostId());
+            decrement(_activeWorkPerZone, queued.zoneId);
+            // give the deferred items another chance now that a slot has been released
+            _workQueue.addAll(_deferredWork);
+            _deferredWork.clear();
+        }
+    }
+
+    private static void decrement(final Map<Long, Integer> counts, final long key) {
+        final Integer count = counts.get(key);
+        if (count == null || count <= 1) {
+            counts.remove(key);
+        } else {
+            counts.put(key, count - 1);
+        }
+    }
+
+    protected int getQueuedWorkCount() {
+        synchronized (_deferredWork) {
+            return _workQueue.size() + _deferredWork.size();
+        }
+    }
+
+    /**
+     * Moves the available work items from op_ha_work into the in-memory queue. The work is pulled as soon
+     * as it is scheduled, and every time.to.sleep seconds for the items that are retried later or
+     * released by other management servers.
+     */
+    protected class DispatcherThread extends Thread {
+        private boolean _signalled;
+
+        public DispatcherThread(String name) {
             super(name);
         }
 
         @Override
         public void run() {
-            s_logger.info("Starting work");
+            s_logger.info("Starting dispatching work");
             while (!_stopped) {
                 _managedContext.runWithContext(new Runnable() {
                     @Override
@@ -919,37 +1055,88 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         }
 
         private void runWithContext() {
-            HaWorkVO work = null;
             try {
-                s_logger.trace("Checking the database for work");
-                work = _haDao.take(_serverId);
-                if (work == null) {
-                    try {
-                        synchronized (this) {
-                            wait(_timeToSleep);
+                final int room = _maxQueuedWork - getQueuedWorkCount();
+                if (room > 0) {
+                    s_logger.trace("Checking the database for work");
+                    final List<HaWorkVO> works = _haDao.take(_serverId, room);
+                    for (final HaWorkVO work : works) {
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Queueing work " + work);
                         }
-                        return;
-                    } catch (final InterruptedException e) {
-                        s_logger.info("Interrupted");
-                        return;
+                        queueWork(work);
                     }
                 }
+                // woken up when new work is scheduled or when a worker has made room in the queue
+                waitForSignal(_timeToSleep);
+            } catch (final Throwable th) {
+                s_logger.error("Caught this throwable, ", th);
+                waitForSignal(_timeToSleep);
+            }
+        }
+
+        private synchronized void waitForSignal(final long timeout) {
+            try {
+                if (!_signalled && !_stopped) {
+                    wait(timeout);
+                }
+            } catch (final InterruptedException e) {
+                s_logger.info("Interrupted");
+            }
+            _signalled = false;
+        }
+
+        public synchronized void wakeup() {
+            _signalled = true;
+            notifyAll();
+        }
+    }
+
+    protected class WorkerThread extends Thread {
+        public WorkerThread(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            s_logger.info("Starting work");
+            while (!_stopped) {
+                final QueuedWork queued;
+                try {
+                    queued = _workQueue.poll(1, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    s_logger.info("Interrupted");
+                    continue;
+                }
+                if (queued == null || !acquireSlot(queued)) {
+                    continue;
+                }
+                try {
+                    _managedContext.runWithContext(new Runnable() {
+                        @Override
+                        public void run() {
+                            runWithContext(queued.work);
+                        }
+                    });
+                } finally {
+                    releaseSlot(queued);
+                    wakeupWorkers();
+                }
+            }
+            s_logger.info("Time to go home!");
+        }
 
+        private void runWithContext(final HaWorkVO work) {
+            try {
                 NDC.push("work-" + work.getId());
                 s_logger.info("Processing work " + work);
                 processWork(work);
             } catch (final Throwable th) {
                 s_logger.error("Caught this throwable, ", th);
             } finally {
-                if (work != null) {
-                    NDC.pop();
-                }
+                NDC.pop();
             }
         }
-
-        public synchronized void wakup() {
-            notifyAll();
-        }
     }
 
     @Override
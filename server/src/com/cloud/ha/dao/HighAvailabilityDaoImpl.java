@@ -148,30 +148,37 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
 
     @Override
     public HaWorkVO take(final long serverId) {
+        final List<HaWorkVO> works = take(serverId, 1);
+        return works.isEmpty() ? null : works.get(0);
+    }
+
+    @Override
+    public List<HaWorkVO> take(final long serverId, final int limit) {
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
         try {
             final SearchCriteria<HaWorkVO> sc = TBASearch.create();
             sc.setParameters("time", System.currentTimeMillis() >> 10);
             sc.setParameters("step", Step.Done, Step.Cancelled);
 
-            final Filter filter = new Filter(HaWorkVO.class, null, true, 0l, 1l);
+            final Filter filter = new Filter(HaWorkVO.class, "created", true, 0l, (long)limit);
 
             txn.start();
             final List<HaWorkVO> vos = lockRows(sc, filter, true);
             if (vos.size() == 0) {
                 txn.commit();
-                return null;
+                return vos;
             }
 
-            final HaWorkVO work = vos.get(0);
-            work.setServerId(serverId);
-            work.setDateTaken(new Date());
-
-            update(work.getId(), work);
+            final Date taken = new Date();
+            for (final HaWorkVO work : vos) {
+                work.setServerId(serverId);
+                work.setDateTaken(taken);
+                update(work.getId(), work);
+            }
 
             txn.commit();
 
-            return work;
+            return vos;
 
         } catch (final Throwable e) {
             throw new CloudRuntimeException("Unable to execute take", e);
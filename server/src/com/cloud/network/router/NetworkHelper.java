@@ -45,6 +45,17 @@ public interface NetworkHelper {
     public abstract boolean sendCommandsToRouter(VirtualRouter router,
             Commands cmds) throws AgentUnavailableException, ResourceUnavailableException;
 
+    /**
+     * Sends rule commands to the router, coalescing them with the other rule changes queued for
+     * the same router so that they are pushed and reloaded at once.
+     *
+     * @param router
+     * @param cmds
+     * @return the result of the commands, which get their own answers set
+     */
+    public abstract boolean sendCoalescedCommandsToRouter(VirtualRouter router,
+            Commands cmds) throws AgentUnavailableException, ResourceUnavailableException;
+
     public abstract void handleSingleWorkingRedundantRouter(
             List<? extends VirtualRouter> connectedRouters,
             List<? extends VirtualRouter> disconnectedRouters, String reason)
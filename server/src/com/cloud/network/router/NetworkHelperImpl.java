@@ -36,6 +36,9 @@ import org.cloud.network.router.deployment.RouterDeploymentDefinition;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
 import com.cloud.agent.api.to.NicTO;
 import com.cloud.agent.manager.Commands;
 import com.cloud.alert.AlertManager;
@@ -146,6 +149,8 @@ public class NetworkHelperImpl implements NetworkHelper {
     protected VirtualMachineManager _itMgr;
     @Inject
     protected IpAddressManager _ipAddrMgr;
+    @Inject
+    protected RouterRulesCoalescer _rulesCoalescer;
 
     protected final Map<HypervisorType, ConfigKey<String>> hypervisorsMap = new HashMap<>();
 
@@ -166,12 +171,46 @@ public class NetworkHelperImpl implements NetworkHelper {
                     + ", minimal required version : " + NetworkOrchestrationService.MinVRVersion.valueIn(router.getDataCenterId()));
             throw new ResourceUnavailableException("Unable to send command. Router requires upgrade", VirtualRouter.class, router.getId());
         }
+        // Keep track of the aggregations without id opened on the router, rule changes are not coalesced while one is open
+        final Command[] commands = cmds != null && cmds.toCommands() != null ? cmds.toCommands() : new Command[0];
+        int starts = 0;
+        int finishes = 0;
+        for (final Command cmd : commands) {
+            if (cmd instanceof AggregationControlCommand && ((AggregationControlCommand)cmd).getAggregationId() == null) {
+                if (((AggregationControlCommand)cmd).getAction() == Action.Start) {
+                    starts++;
+                } else {
+                    finishes++;
+                }
+            }
+        }
+        for (int i = 0; i < starts; i++) {
+            _rulesCoalescer.startAggregation(router.getId());
+        }
         Answer[] answers = null;
         try {
             answers = _agentMgr.send(router.getHostId(), cmds);
         } catch (final OperationTimedoutException e) {
             s_logger.warn("Timed Out", e);
             throw new AgentUnavailableException("Unable to send commands to virtual router ", router.getHostId(), e);
+        } finally {
+            int closed = finishes;
+            if (answers == null) {
+                // the router may or may not have got them, do not keep it from coalescing
+                closed = Math.max(starts, finishes);
+            } else {
+                // a Start the router did not take has nothing to finish
+                for (int i = 0; i < commands.length; i++) {
+                    final Command cmd = commands[i];
+                    if (cmd instanceof AggregationControlCommand && ((AggregationControlCommand)cmd).getAggregationId() == null
+                            && ((AggregationControlCommand)cmd).getAction() == Action.Start && (i >= answers.length || answers[i] == null || !answers[i].getResult())) {
+                        closed++;
+                    }
+                }
+            }
+            for (int i = 0; i < closed; i++) {
+                _rulesCoalescer.finishAggregation(router.getId());
+            }
         }
 
         if (answers == null || answers.length != cmds.size()) {
@@ -189,6 +228,15 @@ public class NetworkHelperImpl implements NetworkHelper {
         return result;
     }
 
+    @Override
+    public boolean sendCoalescedCommandsToRouter(final VirtualRouter router, final Commands cmds) throws AgentUnavailableException, ResourceUnavailableException {
+        final int window = VirtualNetworkApplianceManager.RouterRulesCoalesceWindow.value();
+        if (window < 0) {
+            return sendCommandsToRouter(router, cmds);
+        }
+        return _rulesCoalescer.apply(this, router, cmds, window);
+    }
+
     @Override
     public void handleSingleWorkingRedundantRouter(final List<? extends VirtualRouter> connectedRouters, final List<? extends VirtualRouter> disconnectedRouters,
             final String reason) throws ResourceUnavailableException {
@@ -0,0 +1,373 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.AggregationControlAnswer;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.manager.Commands;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Coalesces the rule changes applied to a virtual router. Pushes to a router are serialized, and
+ * the callers that arrive while a push is in flight are collected and pushed together in one
+ * aggregated configuration once it is done, so the router is only reloaded once for all of them.
+ * A window can be configured for the first caller to wait for more changes before pushing. Every
+ * caller gets the answers to its own commands.
+ *
+ * Each push is an aggregation of its own on the router, its commands carry its id, so it does not
+ * mix with the pushes of other management servers or with an aggregation opened by a network restart.
+ */
+public class RouterRulesCoalescer implements RouterRulesCoalescerMBean {
+    private static final Logger s_logger = Logger.getLogger(RouterRulesCoalescer.class);
+
+    private final ConcurrentHashMap<Long, RouterQueue> _routerQueues = new ConcurrentHashMap<Long, RouterQueue>();
+    // number of aggregations without id open on each router, e.g. by network restarts, the commands sent meanwhile join them
+    private final ConcurrentHashMap<Long, AtomicInteger> _openAggregations = new ConcurrentHashMap<Long, AtomicInteger>();
+
+    private final AtomicLong _batchCount = new AtomicLong();
+    private final AtomicLong _callCount = new AtomicLong();
+    private final AtomicLong _commandCount = new AtomicLong();
+    private final AtomicLong _totalApplyLatency = new AtomicLong();
+    private final AtomicLong _maxApplyLatency = new AtomicLong();
+    private volatile long _lastApplyLatency;
+
+    @PostConstruct
+    protected void registerMBean() {
+        try {
+            JmxUtil.registerMBean("VirtualRouter", "RouterRulesCoalescer", this);
+        } catch (final Exception e) {
+            s_logger.warn("Failed to register MBean", e);
+        }
+    }
+
+    /**
+     * Applies the commands to the router, together with the commands of the other callers for the
+     * same router that are queued behind the same push.
+     */
+    public boolean apply(final NetworkHelper nwHelper, final VirtualRouter router, final Commands cmds, final long window) throws AgentUnavailableException,
+    ResourceUnavailableException {
+        if (!canCoalesce(router, cmds)) {
+            return nwHelper.sendCommandsToRouter(router, cmds);
+        }
+
+        final long startTick = System.currentTimeMillis();
+        final RouterQueue queue = getRouterQueue(router.getId());
+        final Batch batch;
+        final int offset;
+        boolean leader = false;
+        synchronized (queue) {
+            if (queue._openBatch == null) {
+                queue._openBatch = new Batch();
+                leader = true;
+            }
+            batch = queue._openBatch;
+            offset = batch.add(cmds);
+        }
+
+        try {
+            if (leader) {
+                push(nwHelper, router, queue, batch, window);
+            }
+            return batch.awaitResult(router, cmds, offset);
+        } finally {
+            recordApplyLatency(System.currentTimeMillis() - startTick);
+        }
+    }
+
+    /**
+     * Records an aggregation without id opened on the router, the rule changes are sent directly until it is finished.
+     */
+    public void startAggregation(final long routerId) {
+        AtomicInteger count = _openAggregations.get(routerId);
+        if (count == null) {
+            final AtomicInteger newCount = new AtomicInteger();
+            count = _openAggregations.putIfAbsent(routerId, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public void finishAggregation(final long routerId) {
+        final AtomicInteger count = _openAggregations.get(routerId);
+        if (count == null) {
+            return;
+        }
+        int open = count.get();
+        while (open > 0 && !count.compareAndSet(open, open - 1)) {
+            open = count.get();
+        }
+    }
+
+    private boolean isAggregating(final long routerId) {
+        final AtomicInteger count = _openAggregations.get(routerId);
+        return count != null && count.get() > 0;
+    }
+
+    private RouterQueue getRouterQueue(final long routerId) {
+        RouterQueue queue = _routerQueues.get(routerId);
+        if (queue == null) {
+            final RouterQueue newQueue = new RouterQueue();
+            queue = _routerQueues.putIfAbsent(routerId, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    private boolean canCoalesce(final VirtualRouter router, final Commands cmds) {
+        if (cmds.size() == 0 || isAggregating(router.getId())) {
+            return false;
+        }
+        for (final Command cmd : cmds) {
+            if (!(cmd instanceof NetworkElementCommand) || cmd instanceof AggregationControlCommand) {
+                return false;
+            }
+            if (((NetworkElementCommand)cmd).getAccessDetail(NetworkElementCommand.ROUTER_IP) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void push(final NetworkHelper nwHelper, final VirtualRouter router, final RouterQueue queue, final Batch batch, final long window) {
+        if (window > 0) {
+            try {
+                Thread.sleep(window);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // One push at a time per router, callers arriving while the previous push is running still join this batch
+        synchronized (queue._pushLock) {
+            final List<Command> commands;
+            synchronized (queue) {
+                if (queue._openBatch == batch) {
+                    queue._openBatch = null;
+                }
+                commands = batch.close();
+            }
+
+            final String aggregationId = UUID.randomUUID().toString();
+            for (final Command cmd : commands) {
+                ((NetworkElementCommand)cmd).setAccessDetail(NetworkElementCommand.AGGREGATION_ID, aggregationId);
+            }
+            final NetworkElementCommand first = (NetworkElementCommand)commands.get(0);
+            final String routerName = first.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
+            final String routerIp = first.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+            final String routerGuestIp = first.getAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP);
+
+            final Commands aggregated = new Commands(Command.OnError.Continue);
+            aggregated.addCommand(new AggregationControlCommand(Action.Start, routerName, routerIp, routerGuestIp, aggregationId));
+            aggregated.addCommands(commands);
+            aggregated.addCommand(new AggregationControlCommand(Action.Finish, routerName, routerIp, routerGuestIp, aggregationId));
+
+            final long startTick = System.currentTimeMillis();
+            try {
+                final boolean result = nwHelper.sendCommandsToRouter(router, aggregated);
+                batch.complete(result, getExecutionAnswers(aggregated.getAnswers(), commands.size()), null);
+            } catch (final ResourceUnavailableException e) {
+                batch.complete(false, null, e);
+            } catch (final RuntimeException e) {
+                batch.complete(false, null, e);
+            }
+
+            _batchCount.incrementAndGet();
+            _commandCount.addAndGet(commands.size());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Pushed " + commands.size() + " commands of " + batch.getCallCount() + " rule changes to router " + router.getInstanceName() +
+                        " as one configuration in " + (System.currentTimeMillis() - startTick) + " ms");
+            }
+        }
+    }
+
+    /**
+     * The commands were answered as queued when they were sent, the answers to their execution come with the answer
+     * to Finish. An agent that does not send them only tells whether the whole configuration was applied.
+     */
+    private Answer[] getExecutionAnswers(final Answer[] answers, final int commandCount) {
+        if (answers == null || answers.length != commandCount + 2 || !(answers[answers.length - 1] instanceof AggregationControlAnswer)) {
+            return answers;
+        }
+        final Answer[] commandAnswers = ((AggregationControlAnswer)answers[answers.length - 1]).getCommandAnswers();
+        if (commandAnswers == null || commandAnswers.length != commandCount) {
+            return answers;
+        }
+        final Answer[] executionAnswers = answers.clone();
+        System.arraycopy(commandAnswers, 0, executionAnswers, 1, commandCount);
+        return executionAnswers;
+    }
+
+    private void recordApplyLatency(final long latency) {
+        _callCount.incrementAndGet();
+        _totalApplyLatency.addAndGet(latency);
+        _lastApplyLatency = latency;
+        long max = _maxApplyLatency.get();
+        while (latency > max && !_maxApplyLatency.compareAndSet(max, latency)) {
+            max = _maxApplyLatency.get();
+        }
+    }
+
+    @Override
+    public long getBatchCount() {
+        return _batchCount.get();
+    }
+
+    @Override
+    public long getCallCount() {
+        return _callCount.get();
+    }
+
+    @Override
+    public long getCommandCount() {
+        return _commandCount.get();
+    }
+
+    @Override
+    public int getPendingBatchCount() {
+        int pending = 0;
+        for (final RouterQueue queue : _routerQueues.values()) {
+            synchronized (queue) {
+                if (queue._openBatch != null) {
+                    pending++;
+                }
+            }
+        }
+        return pending;
+    }
+
+    @Override
+    public long getLastApplyLatency() {
+        return _lastApplyLatency;
+    }
+
+    @Override
+    public long getAverageApplyLatency() {
+        final long calls = _callCount.get();
+        return calls == 0 ? 0 : _totalApplyLatency.get() / calls;
+    }
+
+    @Override
+    public long getMaxApplyLatency() {
+        return _maxApplyLatency.get();
+    }
+
+    private static class RouterQueue {
+        // the batch callers join, guarded by the queue
+        private Batch _openBatch;
+        private final Object _pushLock = new Object();
+    }
+
+    private static class Batch {
+        private final List<Command> _commands = new ArrayList<Command>();
+        private int _callCount;
+        private boolean _done;
+        private boolean _result;
+        private Answer[] _answers;
+        private Exception _failure;
+
+        /**
+         * @return position of the commands in the batch
+         */
+        synchronized int add(final Commands cmds) {
+            final int offset = _commands.size();
+            for (final Command cmd : cmds) {
+                _commands.add(cmd);
+            }
+            _callCount++;
+            return offset;
+        }
+
+        synchronized List<Command> close() {
+            return new ArrayList<Command>(_commands);
+        }
+
+        synchronized int getCallCount() {
+            return _callCount;
+        }
+
+        synchronized void complete(final boolean result, final Answer[] answers, final Exception failure) {
+            _result = result;
+            _answers = answers;
+            _failure = failure;
+            _done = true;
+            notifyAll();
+        }
+
+        /**
+         * @return the result of the commands of one caller, which also get their answers
+         */
+        synchronized boolean awaitResult(final VirtualRouter router, final Commands cmds, final int offset) throws ResourceUnavailableException {
+            boolean interrupted = false;
+            while (!_done) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (_failure instanceof RuntimeException) {
+                throw new CloudRuntimeException("Unable to push the aggregated configuration to virtual router " + router.getInstanceName(), _failure);
+            } else if (_failure != null) {
+                throw new ResourceUnavailableException("Unable to push the aggregated configuration", VirtualRouter.class, router.getId(), _failure);
+            }
+
+            // answers are laid out as the commands were sent: Start, the commands of every caller, Finish
+            if (_answers == null || _answers.length != _commands.size() + 2) {
+                return _result;
+            }
+            final Answer[] answers = Arrays.copyOfRange(_answers, offset + 1, offset + 1 + cmds.size());
+            cmds.setAnswers(answers);
+            // the router applies the configuration in one go, if that fails all its rules do
+            if (!_answers[0].getResult() || !_answers[_answers.length - 1].getResult()) {
+                return false;
+            }
+            for (final Answer answer : answers) {
+                if (answer == null || !answer.getResult()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
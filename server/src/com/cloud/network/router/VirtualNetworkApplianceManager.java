@@ -65,6 +65,9 @@ public interface VirtualNetworkApplianceManager extends Manager, VirtualNetworkA
             "Interval (in seconds) to check for alerts in Virtual Router.", false, ConfigKey.Scope.Global, null);
     static final ConfigKey<Boolean> routerVersionCheckEnabled = new ConfigKey<Boolean>("Advanced", Boolean.class, "router.version.check", "true",
             "If true, router minimum required version is checked before sending command", false);
+    static final ConfigKey<Integer> RouterRulesCoalesceWindow = new ConfigKey<Integer>(Integer.class, "router.rules.coalesce.window", "Advanced", "0",
+            "Time (in milliseconds) a rule change applied to a virtual router waits for more changes to push with it as one configuration. Changes queued behind a push to the router are always pushed together, -1 to push each change on its own.",
+            true, ConfigKey.Scope.Global, null);
     static final ConfigKey<Boolean> UseExternalDnsServers = new ConfigKey<Boolean>(Boolean.class, "use.external.dns", "Advanced", "false",
             "Bypass internal dns, use external dns1 and dns2", true, ConfigKey.Scope.Zone, null);
 
@@ -17,13 +17,17 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
@@ -32,15 +36,19 @@ import com.cloud.network.security.SecurityGroupWork.Step;
 /**
  * Security Group Work Queue that is not shared with other management servers
  *
+ * The work is partitioned by the host the vm runs on: a consumer gets the work of a single host
+ * at a time, so that it can be sent to the host in one batch, and the hosts with pending work are
+ * served round robin. There is at most one work item per vm in the queue.
  */
 public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
     protected static Logger s_logger = Logger.getLogger(LocalSecurityGroupWorkQueue.class);
 
-    //protected Set<SecurityGroupWork> _currentWork = new HashSet<SecurityGroupWork>();
-    protected Set<SecurityGroupWork> _currentWork = new TreeSet<SecurityGroupWork>();
+    // partition of the vms whose host is not known
+    public static final long UNKNOWN_HOST = 0L;
 
-    private final ReentrantLock _lock = new ReentrantLock();
-    private final Condition _notEmpty = _lock.newCondition();
+    protected ConcurrentMap<Long, LocalSecurityGroupWork> _currentWork = new ConcurrentHashMap<Long, LocalSecurityGroupWork>();
+    private final Map<Long, HostPartition> _partitions = new ConcurrentHashMap<Long, HostPartition>();
+    private final LinkedBlockingQueue<HostPartition> _readyPartitions = new LinkedBlockingQueue<HostPartition>();
     private final AtomicInteger _count = new AtomicInteger(0);
 
     public static class LocalSecurityGroupWork implements SecurityGroupWork, Comparable<LocalSecurityGroupWork> {
@@ -103,77 +111,94 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
     }
 
-    @Override
-    public void submitWorkForVm(long vmId, long sequenceNumber) {
-        _lock.lock();
-        try {
-            SecurityGroupWork work = new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled);
-            boolean added = _currentWork.add(work);
-            if (added)
-                _count.incrementAndGet();
-        } finally {
-            _lock.unlock();
+    private static class HostPartition {
+        final Queue<LocalSecurityGroupWork> _work = new ConcurrentLinkedQueue<LocalSecurityGroupWork>();
+        // set while the partition is waiting in the ready queue
+        final AtomicBoolean _ready = new AtomicBoolean(false);
+    }
+
+    private HostPartition getPartition(long hostId) {
+        HostPartition partition = _partitions.get(hostId);
+        if (partition == null) {
+            synchronized (_partitions) {
+                partition = _partitions.get(hostId);
+                if (partition == null) {
+                    partition = new HostPartition();
+                    _partitions.put(hostId, partition);
+                }
+            }
         }
-        signalNotEmpty();
+        return partition;
+    }
 
+    private boolean addWork(HostPartition partition, LocalSecurityGroupWork work) {
+        synchronized (partition) {
+            // the single admission check, a vm can be submitted through different partitions at the same time
+            if (_currentWork.putIfAbsent(work.getInstanceId(), work) != null) {
+                return false;
+            }
+            partition._work.add(work);
+        }
+        _count.incrementAndGet();
+        if (partition._ready.compareAndSet(false, true)) {
+            _readyPartitions.add(partition);
+        }
+        return true;
+    }
+
+    @Override
+    public void submitWorkForVm(long vmId, long sequenceNumber) {
+        addWork(getPartition(UNKNOWN_HOST), new LocalSecurityGroupWork(vmId, sequenceNumber, Step.Scheduled));
     }
 
     @Override
     public int submitWorkForVms(Set<Long> vmIds) {
-        _lock.lock();
-        int newWork = _count.get();
-        try {
-            for (Long vmId : vmIds) {
-                SecurityGroupWork work = new LocalSecurityGroupWork(vmId, null, SecurityGroupWork.Step.Scheduled);
-                boolean added = _currentWork.add(work);
-                if (added)
-                    _count.incrementAndGet();
+        return submitWorkForVms(Collections.singletonMap(UNKNOWN_HOST, vmIds));
+    }
+
+    @Override
+    public int submitWorkForVms(Map<Long, Set<Long>> vmIdsByHost) {
+        int newWork = 0;
+        for (Map.Entry<Long, Set<Long>> entry : vmIdsByHost.entrySet()) {
+            HostPartition partition = getPartition(entry.getKey() != null ? entry.getKey() : UNKNOWN_HOST);
+            for (Long vmId : entry.getValue()) {
+                if (addWork(partition, new LocalSecurityGroupWork(vmId, null, SecurityGroupWork.Step.Scheduled))) {
+                    newWork++;
+                }
             }
-        } finally {
-            newWork = _count.get() - newWork;
-            _lock.unlock();
         }
-        signalNotEmpty();
         return newWork;
     }
 
     @Override
     public List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException {
         List<SecurityGroupWork> work = new ArrayList<SecurityGroupWork>(numberOfWorkItems);
-        _lock.lock();
-        int i = 0;
-        try {
-            while (_count.get() == 0) {
-                _notEmpty.await();
+        while (work.isEmpty()) {
+            HostPartition partition = _readyPartitions.take();
+            partition._ready.set(false);
+            synchronized (partition) {
+                while (work.size() < numberOfWorkItems) {
+                    LocalSecurityGroupWork w = partition._work.poll();
+                    if (w == null) {
+                        break;
+                    }
+                    // the work is gone if the queue was cleared meanwhile
+                    if (_currentWork.remove(w.getInstanceId()) != null) {
+                        _count.decrementAndGet();
+                        w.setStep(Step.Processing);
+                        work.add(w);
+                    }
+                }
             }
-            int n = Math.min(numberOfWorkItems, _count.get());
-            Iterator<SecurityGroupWork> iter = _currentWork.iterator();
-            while (i < n) {
-                SecurityGroupWork w = iter.next();
-                w.setStep(Step.Processing);
-                work.add(w);
-                iter.remove();
-                ++i;
+            // round robin, the rest of the work of this host waits for the other hosts
+            if (!partition._work.isEmpty() && partition._ready.compareAndSet(false, true)) {
+                _readyPartitions.add(partition);
             }
-        } finally {
-            int c = _count.addAndGet(-i);
-            if (c > 0)
-                _notEmpty.signal();
-            _lock.unlock();
         }
         return work;
 
     }
 
-    private void signalNotEmpty() {
-        _lock.lock();
-        try {
-            _notEmpty.signal();
-        } finally {
-            _lock.unlock();
-        }
-    }
-
     @Override
     public int size() {
         return _count.get();
@@ -181,29 +206,21 @@ public class LocalSecurityGroupWorkQueue implements SecurityGroupWorkQueue {
 
     @Override
     public void clear() {
-        _lock.lock();
-        try {
-            _currentWork.clear();
-            _count.set(0);
-        } finally {
-            _lock.unlock();
+        for (HostPartition partition : _partitions.values()) {
+            synchronized (partition) {
+                LocalSecurityGroupWork w;
+                while ((w = partition._work.poll()) != null) {
+                    if (_currentWork.remove(w.getInstanceId()) != null) {
+                        _count.decrementAndGet();
+                    }
+                }
+            }
         }
-
     }
 
     @Override
     public List<Long> getVmsInQueue() {
-        List<Long> vmIds = new ArrayList<Long>();
-        _lock.lock();
-        try {
-            Iterator<SecurityGroupWork> iter = _currentWork.iterator();
-            while (iter.hasNext()) {
-                vmIds.add(iter.next().getInstanceId());
-            }
-        } finally {
-            _lock.unlock();
-        }
-        return vmIds;
+        return new ArrayList<Long>(_currentWork.keySet());
     }
 
 }
@@ -27,4 +27,8 @@ public interface RuleUpdateLog {
 
     void logUpdateDetails(Long vmId, Long seqno);
 
+    void logRulesetApplied(Long vmId);
+
+    void logRulesetDiscarded(Long vmId);
+
 }
@@ -910,6 +910,12 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         _cleanupExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("NWGRP-Cleanup"));
     }
 
+    /**
+     * Called by the answer listener once a host has programmed the ruleset of a vm
+     */
+    protected void handleRulesetApplied(long vmId) {
+    }
+
     @Override
     public String getName() {
         return this.getClass().getName();
@@ -16,7 +16,10 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +33,8 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.Command.OnError;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
@@ -40,12 +45,17 @@ import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VirtualMachine.State;
 
 /**
- * Same as the base class -- except it uses the abstracted security group work queue
+ * Same as the base class -- except it uses the abstracted security group work queue.
+ * The work is queued per host and the rulesets of the vms of a host are sent to it in one request.
+ * Each vm still gets its full ruleset, only computing them is shared by the vms of a batch, see {@link RulesetCache}.
  *
  */
 @Local(value = {SecurityGroupManager.class, SecurityGroupService.class})
@@ -53,6 +63,11 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     SecurityGroupWorkQueue _workQueue = new LocalSecurityGroupWorkQueue();
     SecurityGroupWorkTracker _workTracker;
     SecurityManagerMBeanImpl _mBean;
+    int _workBatchSize;
+    SearchBuilder<UserVmVO> VmHostSearch;
+
+    // max number of vms looked up per query when grouping the scheduled vms per host
+    private static final int VM_HOST_LOOKUP_CHUNK = 1000;
 
     @Inject
     ManagedContext _managedContext;
@@ -120,7 +135,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 throw new CloudRuntimeException("Failed to create ruleset log entries");
             }
         }
-        int newJobs = _workQueue.submitWorkForVms(workItems);
+        int newJobs = _workQueue.submitWorkForVms(groupVmsByHost(workItems));
         _mBean.logScheduledDetails(workItems);
         p.stop();
         if (s_logger.isDebugEnabled()) {
@@ -129,6 +144,39 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         }
     }
 
+    /**
+     * Groups the vms by the host they currently run on, the vms without a host are keyed by null
+     */
+    protected Map<Long, Set<Long>> groupVmsByHost(Set<Long> vmIds) {
+        Map<Long, Set<Long>> vmIdsByHost = new HashMap<Long, Set<Long>>();
+        Set<Long> noHost = new HashSet<Long>(vmIds);
+        List<Long> ids = new ArrayList<Long>(vmIds);
+        for (int i = 0; i < ids.size(); i += VM_HOST_LOOKUP_CHUNK) {
+            SearchCriteria<UserVmVO> sc = VmHostSearch.create();
+            sc.setParameters("ids", ids.subList(i, Math.min(ids.size(), i + VM_HOST_LOOKUP_CHUNK)).toArray());
+            List<UserVmVO> vms = _userVMDao.search(sc, null);
+            if (vms == null) {
+                continue;
+            }
+            for (UserVmVO vm : vms) {
+                if (vm.getHostId() == null) {
+                    continue;
+                }
+                Set<Long> hostVms = vmIdsByHost.get(vm.getHostId());
+                if (hostVms == null) {
+                    hostVms = new HashSet<Long>();
+                    vmIdsByHost.put(vm.getHostId(), hostVms);
+                }
+                hostVms.add(vm.getId());
+                noHost.remove(vm.getId());
+            }
+        }
+        if (!noHost.isEmpty()) {
+            vmIdsByHost.put(null, noHost);
+        }
+        return vmIdsByHost;
+    }
+
     @Override
     public boolean start() {
         for (final WorkerThread thread : _workers) {
@@ -142,7 +190,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_workBatchSize);
+            // the work items are usually all for the same host, their rulesets share most of the groups
+            RulesetCache cache = new RulesetCache();
+            Map<Long, Commands> cmdsByHost = new HashMap<Long, Commands>();
             for (SecurityGroupWork work : workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -152,69 +203,101 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
                     if (rulesetLog == null) {
                         s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
+                        _mBean.logRulesetDiscarded(work.getInstanceId());
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
+                    UserVm vm = findVmForUpdate(work.getInstanceId());
+                    if (vm == null) {
+                        continue;
+                    }
+                    Commands cmds = cmdsByHost.get(vm.getHostId());
+                    if (cmds == null) {
+                        cmds = new Commands(OnError.Continue);
+                        cmdsByHost.put(vm.getHostId(), cmds);
+                    }
+                    cmds.addCommand(generateRulesetCmd(vm, work, cache));
                     _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
                 } catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
                     work.setStep(Step.Error);
+                    _mBean.logRulesetDiscarded(work.getInstanceId());
                 }
             }
+            for (Map.Entry<Long, Commands> entry : cmdsByHost.entrySet()) {
+                sendRulesetUpdates(entry.getKey(), entry.getValue());
+            }
         } catch (InterruptedException e1) {
             s_logger.warn("SG work: caught InterruptException", e1);
         }
     }
 
     public void sendRulesetUpdates(SecurityGroupWork work) {
-        Long userVmId = work.getInstanceId();
+        UserVm vm = findVmForUpdate(work.getInstanceId());
+        if (vm != null) {
+            sendRulesetUpdates(vm.getHostId(), new Commands(generateRulesetCmd(vm, work, new RulesetCache())));
+        }
+    }
+
+    /**
+     * @return the vm if it is running on a host, null if there are no rules to send to it
+     */
+    protected UserVm findVmForUpdate(Long userVmId) {
         UserVm vm = _userVMDao.findById(userVmId);
 
-        if (vm != null && vm.getState() == State.Running) {
+        if (vm != null && vm.getState() == State.Running && vm.getHostId() != null) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
-            Long agentId = vm.getHostId();
-            if (agentId != null) {
-                String privateIp = vm.getPrivateIpAddress();
-                NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
-                List<String> nicSecIps = null;
-                if (nic != null) {
-                    if (nic.getSecondaryIp()) {
-                        //get secondary ips of the vm
-                        long networkId = nic.getNetworkId();
-                        nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
-                    }
-                }
-                SecurityGroupRulesCmd cmd =
-                    generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
-                        ingressRules, egressRules, nicSecIps);
-                cmd.setMsId(_serverId);
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
-                }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
-                    }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
-                    _workTracker.handleException(agentId);
-                }
+            return vm;
+        }
+        if (s_logger.isDebugEnabled()) {
+            if (vm != null)
+                s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
+            else
+                s_logger.debug("Could not find vm: No rules sent to vm " + userVmId);
+        }
+        _mBean.logRulesetDiscarded(userVmId);
+        return null;
+    }
+
+    protected SecurityGroupRulesCmd generateRulesetCmd(UserVm vm, SecurityGroupWork work, RulesetCache cache) {
+        Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(vm.getId(), SecurityRuleType.IngressRule, cache);
+        Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(vm.getId(), SecurityRuleType.EgressRule, cache);
+        String privateIp = vm.getPrivateIpAddress();
+        NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
+        List<String> nicSecIps = null;
+        if (nic != null) {
+            if (nic.getSecondaryIp()) {
+                //get secondary ips of the vm
+                nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
             }
-        } else {
-            if (s_logger.isDebugEnabled()) {
-                if (vm != null)
-                    s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
-                else
-                    s_logger.debug("Could not find vm: No rules sent to vm " + userVmId);
+        }
+        SecurityGroupRulesCmd cmd =
+            generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
+                ingressRules, egressRules, nicSecIps);
+        cmd.setMsId(_serverId);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
+                cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
+                cmd.getSignature());
+        }
+        return cmd;
+    }
+
+    protected void sendRulesetUpdates(Long agentId, Commands cmds) {
+        try {
+            _agentMgr.send(agentId, cmds, _answerListener);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("SecurityGroupManager v2: sent " + cmds.size() + " ruleset updates to host " + agentId + " curr queue size=" + _workQueue.size());
+            }
+        } catch (AgentUnavailableException e) {
+            s_logger.debug("Unable to send updates for " + cmds.size() + " vms to agent " + agentId);
+            _workTracker.handleException(agentId);
+            for (Command cmd : cmds) {
+                if (cmd instanceof SecurityGroupRulesCmd) {
+                    _mBean.logRulesetDiscarded(((SecurityGroupRulesCmd)cmd).getVmId());
+                }
             }
         }
     }
@@ -232,12 +315,16 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, new RulesetCache());
+    }
+
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, RulesetCache cache) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
         List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
         for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
+            List<SecurityGroupRuleVO> rules = cache.getRules(mapVO.getSecurityGroupId(), type);
             for (SecurityGroupRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
@@ -245,14 +332,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
+                    cidrs.addAll(cache.getMemberCidrs(rule.getAllowedNetworkId()));
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -265,6 +345,48 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         return allowed;
     }
 
+    /**
+     * Ruleset computation cache: the rules and running members of the security groups are looked up once for all
+     * the vms of a batch of work instead of once per vm. It does not make the updates incremental, the full
+     * ruleset of every vm is still generated and sent, and the host rebuilds the chains of the vm from it.
+     */
+    protected class RulesetCache {
+        private final Map<Long, List<SecurityGroupRuleVO>> _ingressRules = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        private final Map<Long, List<SecurityGroupRuleVO>> _egressRules = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        private final Map<Long, List<String>> _memberCidrs = new HashMap<Long, List<String>>();
+
+        public List<SecurityGroupRuleVO> getRules(long securityGroupId, SecurityRuleType type) {
+            Map<Long, List<SecurityGroupRuleVO>> rulesByGroup = type == SecurityRuleType.IngressRule ? _ingressRules : _egressRules;
+            List<SecurityGroupRuleVO> rules = rulesByGroup.get(securityGroupId);
+            if (rules == null) {
+                rules = _securityGroupRuleDao.listBySecurityGroupId(securityGroupId, type);
+                rulesByGroup.put(securityGroupId, rules);
+            }
+            return rules;
+        }
+
+        public List<String> getMemberCidrs(long securityGroupId) {
+            List<String> cidrs = _memberCidrs.get(securityGroupId);
+            if (cidrs == null) {
+                List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+                cidrs = new ArrayList<String>(allowedInstances.size());
+                for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+                    //here, we differ from the superclass: instead of creating N more queries to the
+                    //nics table, we use what's already there in the VO since the listBySecurityGroup already
+                    //did a join with the nics table
+                    cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+                }
+                _memberCidrs.put(securityGroupId, cidrs);
+            }
+            return cidrs;
+        }
+    }
+
+    @Override
+    protected void handleRulesetApplied(long vmId) {
+        _mBean.logRulesetApplied(vmId);
+    }
+
     public int getQueueSize() {
         return _workQueue.size();
     }
@@ -286,6 +408,14 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
+        _workBatchSize = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 20);
+        if (_workBatchSize < 1) {
+            _workBatchSize = 1;
+        }
+
+        VmHostSearch = _userVMDao.createSearchBuilder();
+        VmHostSearch.and("ids", VmHostSearch.entity().getId(), SearchCriteria.Op.IN);
+        VmHostSearch.done();
         return result;
     }
 
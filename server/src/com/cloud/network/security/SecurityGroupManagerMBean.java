@@ -41,6 +41,16 @@ public interface SecurityGroupManagerMBean {
 
     int getQueueSize();
 
+    long getConvergedCount();
+
+    long getAverageTimeToConverge();
+
+    long getMaxTimeToConverge();
+
+    long getLastTimeToConverge();
+
+    int getUnconvergedVmCount();
+
     List<Long> getVmsInQueue();
 
     void scheduleRulesetUpdateForVm(Long vmId);
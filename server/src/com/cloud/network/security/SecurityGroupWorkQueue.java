@@ -17,6 +17,7 @@
 package com.cloud.network.security;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -30,6 +31,15 @@ public interface SecurityGroupWorkQueue {
 
     int submitWorkForVms(Set<Long> vmIds);
 
+    /**
+     * Queues work for vms grouped by the host they run on, the vms whose host is not known are keyed by null
+     * @return number of vms for which new work was queued
+     */
+    int submitWorkForVms(Map<Long, Set<Long>> vmIdsByHost);
+
+    /**
+     * Blocks until there is work, the work returned is for the vms of a single host
+     */
     List<SecurityGroupWork> getWork(int numberOfWorkItems) throws InterruptedException;
 
     int size();
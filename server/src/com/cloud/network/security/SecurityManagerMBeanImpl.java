@@ -22,6 +22,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
@@ -37,6 +39,12 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     //keep track of last scheduled, last update sent and last seqno sent per vm. Make it available over JMX
     Map<Long, Date> _scheduleTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
     Map<Long, Date> _updateTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
+    //time (ms) at which a vm was first scheduled since the last time its ruleset was applied, always on
+    ConcurrentMap<Long, Long> _unconvergedSince = new ConcurrentHashMap<Long, Long>(4000, 100, 64);
+    AtomicLong _convergedCount = new AtomicLong(0);
+    AtomicLong _totalTimeToConverge = new AtomicLong(0);
+    AtomicLong _maxTimeToConverge = new AtomicLong(0);
+    AtomicLong _lastTimeToConverge = new AtomicLong(0);
 
     protected SecurityManagerMBeanImpl(SecurityGroupManagerImpl2 securityGroupManager) {
         super(SecurityGroupManagerMBean.class, false);
@@ -58,6 +66,10 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
 
     @Override
     public void logScheduledDetails(Set<Long> vmIds) {
+        Long now = System.currentTimeMillis();
+        for (Long vmId : vmIds) {
+            _unconvergedSince.putIfAbsent(vmId, now);
+        }
         if (_monitoringEnabled) {
             for (Long vmId : vmIds) {
                 _scheduleTimestamps.put(vmId, new Date());
@@ -65,6 +77,53 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
         }
     }
 
+    @Override
+    public void logRulesetApplied(Long vmId) {
+        Long since = _unconvergedSince.remove(vmId);
+        if (since == null) {
+            return;
+        }
+        long took = System.currentTimeMillis() - since;
+        _convergedCount.incrementAndGet();
+        _totalTimeToConverge.addAndGet(took);
+        _lastTimeToConverge.set(took);
+        long max = _maxTimeToConverge.get();
+        while (took > max && !_maxTimeToConverge.compareAndSet(max, took)) {
+            max = _maxTimeToConverge.get();
+        }
+    }
+
+    @Override
+    public void logRulesetDiscarded(Long vmId) {
+        _unconvergedSince.remove(vmId);
+    }
+
+    @Override
+    public long getConvergedCount() {
+        return _convergedCount.get();
+    }
+
+    @Override
+    public long getAverageTimeToConverge() {
+        long count = _convergedCount.get();
+        return count == 0 ? 0 : _totalTimeToConverge.get() / count;
+    }
+
+    @Override
+    public long getMaxTimeToConverge() {
+        return _maxTimeToConverge.get();
+    }
+
+    @Override
+    public long getLastTimeToConverge() {
+        return _lastTimeToConverge.get();
+    }
+
+    @Override
+    public int getUnconvergedVmCount() {
+        return _unconvergedSince.size();
+    }
+
     @Override
     public void enableUpdateMonitor(boolean enable) {
         _monitoringEnabled = enable;
@@ -148,6 +148,7 @@ import org.apache.cloudstack.api.command.admin.resource.CleanVMReservationsCmd;
 import org.apache.cloudstack.api.command.admin.resource.DeleteAlertsCmd;
 import org.apache.cloudstack.api.command.admin.resource.ListAlertsCmd;
 import org.apache.cloudstack.api.command.admin.resource.ListCapacityCmd;
+import org.apache.cloudstack.api.command.admin.resource.ListMetricsCmd;
 import org.apache.cloudstack.api.command.admin.resource.UploadCustomCertificateCmd;
 import org.apache.cloudstack.api.command.admin.router.ConfigureOvsElementCmd;
 import org.apache.cloudstack.api.command.admin.router.ConfigureVirtualRouterElementCmd;
@@ -204,6 +205,7 @@ import org.apache.cloudstack.api.command.admin.usage.GetUsageRecordsCmd;
 import org.apache.cloudstack.api.command.admin.usage.ListTrafficMonitorsCmd;
 import org.apache.cloudstack.api.command.admin.usage.ListTrafficTypeImplementorsCmd;
 import org.apache.cloudstack.api.command.admin.usage.ListTrafficTypesCmd;
+import org.apache.cloudstack.api.command.admin.usage.ListUsageTotalsCmd;
 import org.apache.cloudstack.api.command.admin.usage.ListUsageTypesCmd;
 import org.apache.cloudstack.api.command.admin.usage.RemoveRawUsageRecordsCmd;
 import org.apache.cloudstack.api.command.admin.usage.UpdateTrafficTypeCmd;
@@ -633,6 +635,7 @@ import com.cloud.user.dao.SSHKeyPairDao;
 import com.cloud.user.dao.UserDao;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
+import com.cloud.utils.StringUtils;
 import com.cloud.utils.PasswordGenerator;
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ComponentLifecycle;
@@ -2549,6 +2552,39 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         return capacities;
     }
 
+    @Override
+    public Pair<List<? extends ResourceMetric>, Integer> listMetrics(final ListMetricsCmd cmd) {
+        final ResourceMetric.ResourceType resourceType = cmd.getResourceType();
+        final String uuid = cmd.getResourceId();
+        Long resourceId = null;
+        switch (resourceType) {
+            case Host:
+                final HostVO host = _hostDao.findByUuid(uuid);
+                resourceId = host == null ? null : host.getId();
+                break;
+            case UserVm:
+                final UserVmVO vm = _userVmDao.findByUuid(uuid);
+                resourceId = vm == null ? null : vm.getId();
+                break;
+            case StoragePool:
+                final StoragePoolVO pool = _poolDao.findByUuid(uuid);
+                resourceId = pool == null ? null : pool.getId();
+                break;
+        }
+        if (resourceId == null) {
+            throw new InvalidParameterValueException("Unable to find " + resourceType + " with id " + uuid);
+        }
+
+        final StatsCollector statsCollector = StatsCollector.getInstance();
+        final long duration = cmd.getDuration() != null ? cmd.getDuration() * 1000L : statsCollector.getStatsHistoryRetention();
+        final List<? extends ResourceMetric> metrics = statsCollector.getMetrics(resourceType, resourceId, cmd.getName(), duration);
+        final List<? extends ResourceMetric> wPagination = StringUtils.applyPagination(metrics, cmd.getStartIndex(), cmd.getPageSizeVal());
+        if (wPagination != null) {
+            return new Pair<List<? extends ResourceMetric>, Integer>(wPagination, metrics.size());
+        }
+        return new Pair<List<? extends ResourceMetric>, Integer>(metrics, metrics.size());
+    }
+
     @Override
     public long getMemoryOrCpuCapacityByHost(final Long hostId, final short capacityType) {
 
@@ -2630,6 +2666,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         cmdList.add(UpdateRegionCmd.class);
         cmdList.add(ListAlertsCmd.class);
         cmdList.add(ListCapacityCmd.class);
+        cmdList.add(ListMetricsCmd.class);
         cmdList.add(UploadCustomCertificateCmd.class);
         cmdList.add(ConfigureVirtualRouterElementCmd.class);
         cmdList.add(CreateVirtualRouterElementCmd.class);
@@ -2671,6 +2708,7 @@ public class ManagementServerImpl extends ManagerBase implements ManagementServe
         cmdList.add(ListTrafficTypeImplementorsCmd.class);
         cmdList.add(ListTrafficTypesCmd.class);
         cmdList.add(ListUsageTypesCmd.class);
+        cmdList.add(ListUsageTotalsCmd.class);
         cmdList.add(UpdateTrafficTypeCmd.class);
         cmdList.add(CreateUserCmd.class);
         cmdList.add(DeleteUserCmd.class);
@@ -22,14 +22,19 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
@@ -42,6 +47,8 @@ import org.apache.cloudstack.engine.subsystem.api.storage.DataStoreManager;
 import org.apache.cloudstack.engine.subsystem.api.storage.EndPoint;
 import org.apache.cloudstack.engine.subsystem.api.storage.EndPointSelector;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.ImageStoreDao;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
@@ -51,12 +58,17 @@ import org.apache.cloudstack.utils.graphite.GraphiteException;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetStorageStatsCommand;
 import com.cloud.agent.api.HostStatsEntry;
 import com.cloud.agent.api.PerformanceMonitorCommand;
+import com.cloud.agent.api.PropagateStatsCommand;
 import com.cloud.agent.api.VgpuTypesInfo;
 import com.cloud.agent.api.VmDiskStatsEntry;
 import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.cluster.ClusterManagerListener;
+import com.cloud.cluster.ManagementServerHost;
 import com.cloud.cluster.ManagementServerHostVO;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.exception.StorageUnavailableException;
@@ -88,6 +100,8 @@ import com.cloud.network.as.dao.ConditionDao;
 import com.cloud.network.as.dao.CounterDao;
 import com.cloud.resource.ResourceManager;
 import com.cloud.resource.ResourceState;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.server.ResourceMetric.ResourceType;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
@@ -117,6 +131,7 @@ import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VmStats;
 import com.cloud.vm.dao.UserVmDao;
 import com.cloud.vm.dao.VMInstanceDao;
+import com.google.gson.Gson;
 
 /**
  * Provides real time stats for various agent resources up to x seconds
@@ -141,6 +156,18 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     public static final Logger s_logger = Logger.getLogger(StatsCollector.class.getName());
 
+    public static final String METRIC_CPU_UTILIZATION = "cpu.utilization";
+    public static final String METRIC_MEMORY_FREE_KBS = "memory.free_kbs";
+    public static final String METRIC_MEMORY_USED = "memory.used";
+    public static final String METRIC_NETWORK_READ_KBS = "network.read_kbs";
+    public static final String METRIC_NETWORK_WRITE_KBS = "network.write_kbs";
+    public static final String METRIC_DISK_READ_KBS = "disk.read_kbs";
+    public static final String METRIC_DISK_WRITE_KBS = "disk.write_kbs";
+    public static final String METRIC_DISK_READ_IOPS = "disk.read_iops";
+    public static final String METRIC_DISK_WRITE_IOPS = "disk.write_iops";
+    public static final String METRIC_STORAGE_USED_BYTES = "storage.used_bytes";
+    public static final String METRIC_STORAGE_CAPACITY_BYTES = "storage.capacity_bytes";
+
     private static StatsCollector s_instance = null;
 
     private ScheduledExecutorService _executor = null;
@@ -198,12 +225,26 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private ServiceOfferingDao _serviceOfferingDao;
     @Inject
     private HostGpuGroupsDao _hostGpuGroupsDao;
+    @Inject
+    private ClusterManager _clusterMgr;
+    @Inject
+    private MessageBus _messageBus;
+
+    private ExecutorService _collectorExecutor = null;
+    private long _hostStatsTimeout = 60000L;
+    private final Gson _gson = GsonHelper.getGson();
 
     private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
+    // host stats received from the MS peers, by the id of the management server owning the hosts
+    private final ConcurrentHashMap<Long, Map<Long, HostStats>> _peerHostStats = new ConcurrentHashMap<Long, Map<Long, HostStats>>();
     private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
     private final ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
     private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
     private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+    private StatsHistory _statsHistory;
+    private long _statsHistoryRetention;
+    private long _statsHistoryDownsamplingInterval;
+    private long _statsHistoryDownsampledRetention;
 
     long hostStatsInterval = -1L;
     long hostAndVmStatsInterval = -1L;
@@ -245,12 +286,53 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     @Override
     public boolean start() {
         init(_configDao.getConfiguration());
+
+        _messageBus.subscribe(PropagateStatsCommand.TOPIC, new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                onPeerStats((PropagateStatsCommand)args);
+            }
+        });
+        _clusterMgr.registerListener(new ClusterManagerListener() {
+            @Override
+            public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+            }
+
+            @Override
+            public void onManagementNodeLeft(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+                for (ManagementServerHost node : nodeList) {
+                    _peerHostStats.remove(node.getMsid());
+                }
+            }
+
+            @Override
+            public void onManagementNodeIsolated() {
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        if (_collectorExecutor != null) {
+            _collectorExecutor.shutdownNow();
+        }
+        if (_diskStatsUpdateExecutor != null) {
+            _diskStatsUpdateExecutor.shutdownNow();
+        }
         return true;
     }
 
     private void init(Map<String, String> configs) {
         _executor = Executors.newScheduledThreadPool(4, new NamedThreadFactory("StatsCollector"));
 
+        int collectorWorkers = NumbersUtil.parseInt(configs.get("stats.collector.workers"), 8);
+        _collectorExecutor = Executors.newFixedThreadPool(Math.max(collectorWorkers, 1), new NamedThreadFactory("StatsCollector-Worker"));
+        _hostStatsTimeout = NumbersUtil.parseLong(configs.get("stats.collector.host.timeout"), 60L) * 1000L;
+
         hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), 60000L);
         hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
         storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
@@ -258,6 +340,17 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         autoScaleStatsInterval = NumbersUtil.parseLong(configs.get("autoscale.stats.interval"), 60000L);
         vmDiskStatsInterval = NumbersUtil.parseInt(configs.get("vm.disk.stats.interval"), 0);
 
+        _statsHistoryRetention = NumbersUtil.parseLong(configs.get("stats.history.retention"), 900L) * 1000L;
+        _statsHistoryDownsamplingInterval = NumbersUtil.parseLong(configs.get("stats.history.downsampling.interval"), 300L) * 1000L;
+        _statsHistoryDownsampledRetention = NumbersUtil.parseLong(configs.get("stats.history.downsampled.retention"), 3600L) * 1000L;
+        long statsInterval = Long.MAX_VALUE;
+        for (long interval : new long[] {hostStatsInterval, hostAndVmStatsInterval, storageStatsInterval}) {
+            if (interval > 0) {
+                statsInterval = Math.min(statsInterval, interval);
+            }
+        }
+        _statsHistory = new StatsHistory(statsInterval, _statsHistoryRetention, _statsHistoryDownsamplingInterval, _statsHistoryDownsampledRetention);
+
         /* URI to send statistics to. Currently only Graphite is supported */
         String externalStatsUri = configs.get("stats.output.uri");
         if (externalStatsUri != null && !externalStatsUri.equals("")) {
@@ -300,6 +393,10 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             _executor.scheduleWithFixedDelay(new StorageCollector(), 15000L, storageStatsInterval, TimeUnit.MILLISECONDS);
         }
 
+        // pruned on its own, whichever of the collectors above are running
+        long pruneInterval = Math.max(_statsHistoryDownsamplingInterval, 60000L);
+        _executor.scheduleWithFixedDelay(new StatsHistoryPruner(), pruneInterval, pruneInterval, TimeUnit.MILLISECONDS);
+
         if (autoScaleStatsInterval > 0) {
             _executor.scheduleWithFixedDelay(new AutoScaleMonitor(), 15000L, autoScaleStatsInterval, TimeUnit.MILLISECONDS);
         }
@@ -374,35 +471,34 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalDhcp.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
-                ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+                // only the hosts whose agents are connected to this management server, the MS peers collect the others
+                sc.addAnd("managementServerId", SearchCriteria.Op.EQ, mgmtSrvrId);
                 List<HostVO> hosts = _hostDao.search(sc, null);
-                for (HostVO host : hosts) {
-                    HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
-                    if (stats != null) {
-                        hostStats.put(host.getId(), stats);
-                    } else {
-                        s_logger.warn("Received invalid host stats for host: " + host.getId());
-                    }
-                }
-                _hostStats = hostStats;
-                // Get a subset of hosts with GPU support from the list of "hosts"
-                List<HostVO> gpuEnabledHosts = new ArrayList<HostVO>();
-                if (hostIds != null) {
-                    for (HostVO host : hosts) {
-                        if (hostIds.contains(host.getId())) {
-                            gpuEnabledHosts.add(host);
+
+                final ConcurrentHashMap<Long, HostStatsEntry> hostStats = new ConcurrentHashMap<Long, HostStatsEntry>();
+                // Check the hosts with GPU support, or all the hosts managed by CloudStack if they are not known yet
+                final List<Long> gpuEnabledHostIds = hostIds;
+                collectFromHosts("host stats", hosts, new HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
+                        if (stats != null) {
+                            hostStats.put(host.getId(), stats);
+                            recordHostStats(host.getId(), stats);
+                        } else {
+                            s_logger.warn("Received invalid host stats for host: " + host.getId());
+                        }
+
+                        if (gpuEnabledHostIds == null || gpuEnabledHostIds.contains(host.getId())) {
+                            HashMap<String, HashMap<String, VgpuTypesInfo>> groupDetails = _resourceMgr.getGPUStatistics(host);
+                            if (groupDetails != null) {
+                                _resourceMgr.updateGPUDetails(host.getId(), groupDetails);
+                            }
                         }
                     }
-                } else {
-                    // Check for all the hosts managed by CloudStack.
-                    gpuEnabledHosts = hosts;
-                }
-                for (HostVO host : gpuEnabledHosts) {
-                    HashMap<String, HashMap<String, VgpuTypesInfo>> groupDetails = _resourceMgr.getGPUStatistics(host);
-                    if (groupDetails != null) {
-                        _resourceMgr.updateGPUDetails(host.getId(), groupDetails);
-                    }
-                }
+                });
+                _hostStats = new ConcurrentHashMap<Long, HostStats>(hostStats);
+                propagateStats(hostStats, null);
                 hostIds = _hostGpuGroupsDao.listHostIds();
             } catch (Throwable t) {
                 s_logger.error("Error trying to retrieve host stats", t);
@@ -425,109 +521,268 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.LocalSecondaryStorage.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.TrafficMonitor.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
+                sc.addAnd("managementServerId", SearchCriteria.Op.EQ, mgmtSrvrId);
                 List<HostVO> hosts = _hostDao.search(sc, null);
 
-                /* HashMap for metrics to be send to Graphite */
-                HashMap metrics = new HashMap<String, Integer>();
+                final ConcurrentHashMap<Long, VmStatsEntry> vmStats = new ConcurrentHashMap<Long, VmStatsEntry>();
+                collectFromHosts("VM stats", hosts, new HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) throws Exception {
+                        collectVmStats(host, vmStats);
+                    }
+                });
+                propagateStats(null, vmStats);
 
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
+            } catch (Throwable t) {
+                s_logger.error("Error trying to retrieve VM stats", t);
+            }
+        }
+    }
 
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
-                    }
+    class StatsHistoryPruner extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                _statsHistory.prune(System.currentTimeMillis() - _statsHistoryDownsampledRetention);
+            } catch (Throwable t) {
+                s_logger.error("Error trying to prune the stats history", t);
+            }
+        }
+    }
+
+    private interface HostStatsTask {
+        void collect(HostVO host) throws Exception;
+    }
 
+    /**
+     * Runs the task for each of the hosts on the bounded collector pool, so a slow or unresponsive
+     * agent only holds up one worker. The results are waited for at most the configured timeout in
+     * total, the hosts that have not answered by then are skipped for the current run.
+     */
+    private void collectFromHosts(final String statsName, List<HostVO> hosts, final HostStatsTask task) {
+        Map<Long, Future<?>> futures = new LinkedHashMap<Long, Future<?>>();
+        for (final HostVO host : hosts) {
+            futures.put(host.getId(), _collectorExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
                     try {
-                        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+                        task.collect(host);
+                    } catch (Exception e) {
+                        s_logger.debug("Failed to get " + statsName + " for host with ID: " + host.getId());
+                    }
+                }
+            }));
+        }
 
-                        if (vmStatsById != null) {
-                            VmStatsEntry statsInMemory = null;
+        long deadline = System.currentTimeMillis() + _hostStatsTimeout;
+        for (Map.Entry<Long, Future<?>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                s_logger.warn("Timed out retrieving " + statsName + " for host: " + entry.getKey() + ", skipping it for this run");
+            } catch (ExecutionException e) {
+                s_logger.warn("Failed to retrieve " + statsName + " for host: " + entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                s_logger.debug("Interrupted while retrieving " + statsName);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
-
-                                if (statsInMemory == null) {
-                                    //no stats exist for this vm, directly persist
-                                    _VmStats.put(vmId, statsForCurrentIteration);
-                                } else {
-                                    //update each field
-                                    statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-                                    statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-                                    statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-                                    statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-                                    statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                    statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                    statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                    statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-
-                                    _VmStats.put(vmId, statsInMemory);
-                                }
+    private void collectVmStats(HostVO host, Map<Long, VmStatsEntry> vmStats) throws Exception {
+        /* HashMap for metrics to be send to Graphite */
+        HashMap metrics = new HashMap<String, Integer>();
 
-                                /**
-                                 * Add statistics to HashMap only when they should be send to a external stats collector
-                                 * Performance wise it seems best to only append to the HashMap when needed
-                                 */
-                                if (externalStatsEnabled) {
-                                    VMInstanceVO vmVO = _vmInstance.findById(vmId);
-                                    String vmName = vmVO.getUuid();
-
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
-                                }
+        List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+        List<Long> vmIds = new ArrayList<Long>();
 
-                            }
+        for (UserVmVO vm : vms) {
+            vmIds.add(vm.getId());
+        }
 
-                            /**
-                             * Send the metrics to a external stats collector
-                             * We send it on a per-host basis to prevent that we flood the host
-                             * Currently only Graphite is supported
-                             */
-                            if (!metrics.isEmpty()) {
-                                if (externalStatsType != null && externalStatsType == externalStatsProtocol.GRAPHITE) {
+        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+        if (vmStatsById == null) {
+            return;
+        }
 
-                                    if (externalStatsPort == -1) {
-                                        externalStatsPort = 2003;
-                                    }
+        Set<Long> vmIdSet = vmStatsById.keySet();
+        for (Long vmId : vmIdSet) {
+            VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
+            recordVmStats(vmId, statsForCurrentIteration);
+            mergeVmStats(vmId, statsForCurrentIteration);
+            // the peers add up the counters of each iteration themselves
+            vmStats.put(vmId, statsForCurrentIteration);
+
+            /**
+             * Add statistics to HashMap only when they should be send to a external stats collector
+             * Performance wise it seems best to only append to the HashMap when needed
+             */
+            if (externalStatsEnabled) {
+                VMInstanceVO vmVO = _vmInstance.findById(vmId);
+                String vmName = vmVO.getUuid();
+
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
+            }
 
-                                    s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
+        }
 
-                                    try {
-                                        GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
-                                        g.sendMetrics(metrics);
-                                    } catch (GraphiteException e) {
-                                        s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
-                                    }
+        /**
+         * Send the metrics to a external stats collector
+         * We send it on a per-host basis to prevent that we flood the host
+         * Currently only Graphite is supported
+         */
+        if (!metrics.isEmpty()) {
+            if (externalStatsType != null && externalStatsType == externalStatsProtocol.GRAPHITE) {
 
-                                    metrics.clear();
-                                }
-                            }
-                        }
+                if (externalStatsPort == -1) {
+                    externalStatsPort = 2003;
+                }
 
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-                        continue;
-                    }
+                s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
+
+                try {
+                    GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
+                    g.sendMetrics(metrics);
+                } catch (GraphiteException e) {
+                    s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
                 }
+            }
+        }
+    }
 
-            } catch (Throwable t) {
-                s_logger.error("Error trying to retrieve VM stats", t);
+    /**
+     * Shares the stats collected for the hosts owned by this management server with the MS peers.
+     * A null map is not propagated, leaving what the peers know of it untouched.
+     */
+    private void propagateStats(Map<Long, HostStatsEntry> hostStats, Map<Long, VmStatsEntry> vmStats) {
+        try {
+            Command[] cmds = new Command[] {new PropagateStatsCommand(mgmtSrvrId, hostStats, vmStats)};
+            _clusterMgr.broadcast(0, _gson.toJson(cmds));
+        } catch (Exception e) {
+            s_logger.warn("Unable to propagate stats to the management server peers", e);
+        }
+    }
+
+    private void onPeerStats(PropagateStatsCommand cmd) {
+        if (cmd.getMsId() == mgmtSrvrId) {
+            return;
+        }
+
+        if (cmd.getHostStats() != null) {
+            Map<Long, HostStats> hostStats = new HashMap<Long, HostStats>();
+            for (Map.Entry<Long, HostStatsEntry> entry : cmd.getHostStats().entrySet()) {
+                hostStats.put(entry.getKey(), entry.getValue());
+                recordHostStats(entry.getKey(), entry.getValue());
+            }
+            _peerHostStats.put(cmd.getMsId(), hostStats);
+        }
+
+        if (cmd.getVmStats() != null) {
+            for (Map.Entry<Long, VmStatsEntry> entry : cmd.getVmStats().entrySet()) {
+                mergeVmStats(entry.getKey(), entry.getValue());
+                recordVmStats(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds the stats of one collection run to the ones in memory, the counters are summed up.
+     * The entries in memory are never modified, a new one replaces them so that the collector
+     * and the merges of the peer stats do not lose each other's updates.
+     */
+    private void mergeVmStats(long vmId, VmStatsEntry statsForCurrentIteration) {
+        while (true) {
+            VmStatsEntry statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
+            if (statsInMemory == null) {
+                //no stats exist for this vm, directly persist
+                if (_VmStats.putIfAbsent(vmId, copyVmStats(statsForCurrentIteration)) == null) {
+                    return;
+                }
+                continue;
+            }
+
+            //update each field
+            VmStatsEntry mergedStats = copyVmStats(statsInMemory);
+            mergedStats.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+            mergedStats.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+            mergedStats.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+            mergedStats.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+            mergedStats.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
+            mergedStats.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
+            mergedStats.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
+            mergedStats.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
+            if (_VmStats.replace(vmId, statsInMemory, mergedStats)) {
+                return;
             }
         }
     }
 
+    private static VmStatsEntry copyVmStats(VmStatsEntry stats) {
+        VmStatsEntry copy = new VmStatsEntry(stats.getCPUUtilization(), stats.getNetworkReadKBs(), stats.getNetworkWriteKBs(), stats.getDiskReadKBs(),
+                stats.getDiskWriteKBs(), stats.getNumCPUs(), stats.getEntityType());
+        copy.setDiskReadIOs(stats.getDiskReadIOs());
+        copy.setDiskWriteIOs(stats.getDiskWriteIOs());
+        return copy;
+    }
+
     public VmStats getVmStats(long id) {
         return _VmStats.get(id);
     }
 
+    private void recordHostStats(long hostId, HostStats stats) {
+        long now = System.currentTimeMillis();
+        _statsHistory.record(ResourceType.Host, hostId, now, METRIC_CPU_UTILIZATION, stats.getCpuUtilization());
+        _statsHistory.record(ResourceType.Host, hostId, now, METRIC_MEMORY_FREE_KBS, stats.getFreeMemoryKBs());
+        _statsHistory.record(ResourceType.Host, hostId, now, METRIC_MEMORY_USED, stats.getUsedMemory());
+        _statsHistory.record(ResourceType.Host, hostId, now, METRIC_NETWORK_READ_KBS, stats.getNetworkReadKBs());
+        _statsHistory.record(ResourceType.Host, hostId, now, METRIC_NETWORK_WRITE_KBS, stats.getNetworkWriteKBs());
+    }
+
+    private void recordVmStats(long vmId, VmStats stats) {
+        long now = System.currentTimeMillis();
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_CPU_UTILIZATION, stats.getCPUUtilization());
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_NETWORK_READ_KBS, stats.getNetworkReadKBs());
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_NETWORK_WRITE_KBS, stats.getNetworkWriteKBs());
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_DISK_READ_KBS, stats.getDiskReadKBs());
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_DISK_WRITE_KBS, stats.getDiskWriteKBs());
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_DISK_READ_IOPS, stats.getDiskReadIOs());
+        _statsHistory.record(ResourceType.UserVm, vmId, now, METRIC_DISK_WRITE_IOPS, stats.getDiskWriteIOs());
+    }
+
+    private void recordStoragePoolStats(long poolId, StorageStats stats) {
+        long now = System.currentTimeMillis();
+        _statsHistory.record(ResourceType.StoragePool, poolId, now, METRIC_STORAGE_USED_BYTES, stats.getByteUsed());
+        _statsHistory.record(ResourceType.StoragePool, poolId, now, METRIC_STORAGE_CAPACITY_BYTES, stats.getCapacityBytes());
+    }
+
+    /**
+     * @return how long the stats are kept at full resolution, in milliseconds
+     */
+    public long getStatsHistoryRetention() {
+        return _statsHistoryRetention;
+    }
+
+    /**
+     * @param metric the name of the metric, null for all the metrics of the resource
+     * @param duration the length of the window in milliseconds
+     * @return the summary of the recent history of the metrics of the resource
+     */
+    public List<StatsHistory.MetricSummary> getMetrics(ResourceType type, long resourceId, String metric, long duration) {
+        if (_statsHistory == null) {
+            return new ArrayList<StatsHistory.MetricSummary>();
+        }
+        return _statsHistory.summarize(type, resourceId, metric, duration, System.currentTimeMillis());
+    }
+
     class VmDiskStatsUpdaterTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -744,6 +999,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         Answer answer = _storageManager.sendToPool(pool, command);
                         if (answer != null && answer.getResult()) {
                             storagePoolStats.put(pool.getId(), (StorageStats)answer);
+                            recordStoragePoolStats(pool.getId(), (StorageStats)answer);
 
                             // Seems like we have dynamically updated the pool size since the prev. size and the current do not match
                             if (_storagePoolStats.get(poolId) != null && _storagePoolStats.get(poolId).getCapacityBytes() != ((StorageStats)answer).getCapacityBytes()) {
@@ -833,6 +1089,14 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         }
                         params.put("total_counter", String.valueOf(total_counter));
 
+                        // answer from the collected stats history when it covers the counters and the VMs of the group
+                        HashMap<Long, Double> historyCounter = getAvgCounterFromStatsHistory(asGroupVmVOs, params, total_counter);
+                        if (historyCounter != null) {
+                            s_logger.debug("[AutoScale] Using the stats history of the group VMs");
+                            doScaleAction(asGroup.getId(), getAutoscaleAction(historyCounter, asGroup.getId(), currentVM, params));
+                            continue;
+                        }
+
                         PerformanceMonitorCommand perfMon = new PerformanceMonitorCommand(params, 20);
 
                         try {
@@ -885,15 +1149,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                                         }
                                     }
 
-                                    String scaleAction = getAutoscaleAction(avgCounter, asGroup.getId(), currentVM, params);
-                                    if (scaleAction != null) {
-                                        s_logger.debug("[AutoScale] Doing scale action: " + scaleAction + " for group " + asGroup.getId());
-                                        if (scaleAction.equals("scaleup")) {
-                                            _asManager.doScaleUp(asGroup.getId(), 1);
-                                        } else {
-                                            _asManager.doScaleDown(asGroup.getId());
-                                        }
-                                    }
+                                    doScaleAction(asGroup.getId(), getAutoscaleAction(avgCounter, asGroup.getId(), currentVM, params));
                                 }
                             }
 
@@ -910,6 +1166,42 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
         }
 
+        private void doScaleAction(long groupId, String scaleAction) {
+            if (scaleAction != null) {
+                s_logger.debug("[AutoScale] Doing scale action: " + scaleAction + " for group " + groupId);
+                if (scaleAction.equals("scaleup")) {
+                    _asManager.doScaleUp(groupId, 1);
+                } else {
+                    _asManager.doScaleDown(groupId);
+                }
+            }
+        }
+
+        /**
+         * Sums up, per counter, the average of each VM of the group over the counter duration, the way the
+         * answer of the PerformanceMonitorCommand is summed up.
+         * @return null if a counter is not a cpu counter or if there is no history for one of the VMs
+         */
+        private HashMap<Long, Double> getAvgCounterFromStatsHistory(List<AutoScaleVmGroupVmMapVO> asGroupVmVOs, Map<String, String> params, int totalCounter) {
+            HashMap<Long, Double> avgCounter = new HashMap<Long, Double>();
+            for (int i = 1; i <= totalCounter; i++) {
+                if (!Counter.Source.cpu.toString().equals(params.get("counter" + i))) {
+                    return null;
+                }
+                long duration = NumbersUtil.parseLong(params.get("duration" + i), 0) * 1000L;
+                double sum = 0;
+                for (AutoScaleVmGroupVmMapVO asGroupVmVO : asGroupVmVOs) {
+                    List<StatsHistory.MetricSummary> metrics = getMetrics(ResourceType.UserVm, asGroupVmVO.getInstanceId(), METRIC_CPU_UTILIZATION, duration);
+                    if (metrics.isEmpty() || metrics.get(0).getCount() == 0) {
+                        return null;
+                    }
+                    sum += metrics.get(0).getAverage();
+                }
+                avgCounter.put((long)i, sum);
+            }
+            return avgCounter;
+        }
+
         private boolean is_native(long groupId) {
             List<AutoScaleVmGroupPolicyMapVO> vos = _asGroupPolicyDao.listByVmGroupId(groupId);
             for (AutoScaleVmGroupPolicyMapVO vo : vos) {
@@ -1059,7 +1351,16 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     }
 
     public HostStats getHostStats(long hostId) {
-        return _hostStats.get(hostId);
+        HostStats stats = _hostStats.get(hostId);
+        if (stats == null) {
+            for (Map<Long, HostStats> peerHostStats : _peerHostStats.values()) {
+                stats = peerHostStats.get(hostId);
+                if (stats != null) {
+                    break;
+                }
+            }
+        }
+        return stats;
     }
 
     public StorageStats getStoragePoolStats(long id) {
@@ -0,0 +1,188 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.server.ResourceMetric.ResourceType;
+import com.cloud.utils.stats.TimeSeriesRingBuffer;
+
+/**
+ * Short term history of the stats collected for hosts, VMs and storage pools. Every metric of every resource
+ * is kept twice: at full resolution for stats.history.retention seconds, and averaged over
+ * stats.history.downsampling.interval seconds for stats.history.downsampled.retention seconds.
+ */
+public class StatsHistory {
+    private final Map<ResourceType, ConcurrentHashMap<Long, ResourceHistory>> _histories = new EnumMap<ResourceType, ConcurrentHashMap<Long, ResourceHistory>>(
+        ResourceType.class);
+    private final long _retention;
+    private final int _rawCapacity;
+    private final long _downsamplingInterval;
+    private final int _downsampledCapacity;
+
+    /**
+     * @param sampleInterval the interval between two samples in milliseconds
+     * @param retention how long the full resolution samples are kept, in milliseconds
+     * @param downsamplingInterval the resolution of the downsampled history in milliseconds
+     * @param downsampledRetention how long the downsampled history is kept, in milliseconds
+     */
+    public StatsHistory(long sampleInterval, long retention, long downsamplingInterval, long downsampledRetention) {
+        for (ResourceType type : ResourceType.values()) {
+            _histories.put(type, new ConcurrentHashMap<Long, ResourceHistory>());
+        }
+        _retention = retention;
+        _rawCapacity = (int)Math.max(1, retention / Math.max(1, sampleInterval));
+        _downsamplingInterval = Math.max(1, downsamplingInterval);
+        _downsampledCapacity = (int)Math.max(1, downsampledRetention / _downsamplingInterval);
+    }
+
+    public void record(ResourceType type, long resourceId, long timestamp, String metric, double value) {
+        ConcurrentHashMap<Long, ResourceHistory> histories = _histories.get(type);
+        ResourceHistory history = histories.get(resourceId);
+        if (history == null) {
+            ResourceHistory newHistory = new ResourceHistory();
+            history = histories.putIfAbsent(resourceId, newHistory);
+            if (history == null) {
+                history = newHistory;
+            }
+        }
+        history.record(timestamp, metric, value);
+    }
+
+    /**
+     * @param metric the name of the metric, null for all the metrics of the resource
+     * @param duration the length of the window in milliseconds
+     * @return the summary of the metrics over the window, empty if nothing was collected for the resource
+     */
+    public List<MetricSummary> summarize(ResourceType type, long resourceId, String metric, long duration, long now) {
+        List<MetricSummary> summaries = new ArrayList<MetricSummary>();
+        ResourceHistory history = _histories.get(type).get(resourceId);
+        if (history == null) {
+            return summaries;
+        }
+
+        // the full resolution history is used as long as it covers the window
+        int tier = duration <= _retention ? 0 : 1;
+        for (Map.Entry<String, TimeSeriesRingBuffer[]> entry : history._metrics.entrySet()) {
+            if (metric == null || metric.equals(entry.getKey())) {
+                summaries.add(new MetricSummary(entry.getKey(), entry.getValue()[tier].summarize(now - duration)));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Forgets the resources for which nothing has been recorded since the given time.
+     */
+    public void prune(long olderThan) {
+        for (ConcurrentHashMap<Long, ResourceHistory> histories : _histories.values()) {
+            Iterator<ResourceHistory> it = histories.values().iterator();
+            while (it.hasNext()) {
+                if (it.next()._lastRecorded < olderThan) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private class ResourceHistory {
+        private final ConcurrentHashMap<String, TimeSeriesRingBuffer[]> _metrics = new ConcurrentHashMap<String, TimeSeriesRingBuffer[]>();
+        private volatile long _lastRecorded;
+
+        void record(long timestamp, String metric, double value) {
+            TimeSeriesRingBuffer[] buffers = _metrics.get(metric);
+            if (buffers == null) {
+                TimeSeriesRingBuffer[] newBuffers =
+                    new TimeSeriesRingBuffer[] {new TimeSeriesRingBuffer(_rawCapacity, 0), new TimeSeriesRingBuffer(_downsampledCapacity, _downsamplingInterval)};
+                buffers = _metrics.putIfAbsent(metric, newBuffers);
+                if (buffers == null) {
+                    buffers = newBuffers;
+                }
+            }
+            for (TimeSeriesRingBuffer buffer : buffers) {
+                buffer.add(timestamp, value);
+            }
+            _lastRecorded = timestamp;
+        }
+    }
+
+    public static class MetricSummary implements ResourceMetric {
+        private final String _name;
+        private final TimeSeriesRingBuffer.Summary _summary;
+
+        MetricSummary(String name, TimeSeriesRingBuffer.Summary summary) {
+            _name = name;
+            _summary = summary;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public int getCount() {
+            return _summary.getCount();
+        }
+
+        @Override
+        public Date getStartDate() {
+            return _summary.getCount() == 0 ? null : new Date(_summary.getFirstTimestamp());
+        }
+
+        @Override
+        public Date getEndDate() {
+            return _summary.getCount() == 0 ? null : new Date(_summary.getLastTimestamp());
+        }
+
+        @Override
+        public double getLast() {
+            return _summary.getLast();
+        }
+
+        @Override
+        public double getAverage() {
+            return _summary.getAverage();
+        }
+
+        @Override
+        public double getMinimum() {
+            return _summary.getMinimum();
+        }
+
+        @Override
+        public double getMaximum() {
+            return _summary.getMaximum();
+        }
+
+        @Override
+        public double getPercentile95() {
+            return _summary.getPercentile(95);
+        }
+
+        @Override
+        public double getRate() {
+            return _summary.getRate();
+        }
+    }
+}
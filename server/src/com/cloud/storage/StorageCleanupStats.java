@@ -0,0 +1,78 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of the volume expunges of the storage garbage collector, exported over JMX. The backlog
+ * is the number of volumes the last run failed to expunge and left for the next one.
+ */
+public class StorageCleanupStats implements StorageCleanupStatsMBean {
+    private final AtomicLong _runCount = new AtomicLong();
+    private final AtomicLong _totalExpunged = new AtomicLong();
+    private final AtomicLong _totalReclaimed = new AtomicLong();
+    private volatile long _lastRunDuration;
+    private volatile long _lastExpunged;
+    private volatile long _lastReclaimed;
+    private volatile long _backlog;
+
+    public void recordRun(long duration, long expunged, long reclaimed, long backlog) {
+        _runCount.incrementAndGet();
+        _totalExpunged.addAndGet(expunged);
+        _totalReclaimed.addAndGet(reclaimed);
+        _lastRunDuration = duration;
+        _lastExpunged = expunged;
+        _lastReclaimed = reclaimed;
+        _backlog = backlog;
+    }
+
+    @Override
+    public long getRunCount() {
+        return _runCount.get();
+    }
+
+    @Override
+    public long getLastRunDuration() {
+        return _lastRunDuration;
+    }
+
+    @Override
+    public long getLastExpungedVolumeCount() {
+        return _lastExpunged;
+    }
+
+    @Override
+    public long getLastReclaimedBytes() {
+        return _lastReclaimed;
+    }
+
+    @Override
+    public long getExpungeBacklog() {
+        return _backlog;
+    }
+
+    @Override
+    public long getTotalExpungedVolumeCount() {
+        return _totalExpunged.get();
+    }
+
+    @Override
+    public long getTotalReclaimedBytes() {
+        return _totalReclaimed.get();
+    }
+}
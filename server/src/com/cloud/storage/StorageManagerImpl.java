@@ -32,10 +32,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -184,6 +188,7 @@ import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.vm.dao.VMInstanceDao;
@@ -297,6 +302,9 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
     protected SearchBuilder<StoragePoolVO> LocalStorageSearch;
 
     ScheduledExecutorService _executor = null;
+    ExecutorService _cleanupExecutor = null;
+    int _cleanupPoolConcurrency;
+    final StorageCleanupStats _cleanupStats = new StorageCleanupStats();
     boolean _storageCleanupEnabled;
     boolean _templateCleanupEnabled = true;
     int _storageCleanupInterval;
@@ -484,6 +492,15 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         int wrks = NumbersUtil.parseInt(workers, 10);
         _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("StorageManager-Scavenger"));
 
+        int cleanupWorkers = NumbersUtil.parseInt(configs.get(Config.StorageCleanupWorkers.key()), 16);
+        _cleanupPoolConcurrency = NumbersUtil.parseInt(configs.get(Config.StorageCleanupPoolConcurrency.key()), 4);
+        _cleanupExecutor = Executors.newFixedThreadPool(Math.max(cleanupWorkers, 1), new NamedThreadFactory("StorageManager-Cleanup"));
+        try {
+            JmxUtil.registerMBean("StorageManager", "StorageCleanup", _cleanupStats);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register MBean", e);
+        }
+
         _agentMgr.registerForHostEvents(ComponentContext.inject(LocalStoragePoolListener.class), true, false, false);
 
         _serverId = _msServer.getId();
@@ -543,6 +560,7 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         if (_storageCleanupEnabled) {
             _executor.shutdown();
         }
+        _cleanupExecutor.shutdown();
         return true;
     }
 
@@ -1077,48 +1095,24 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         try {
             if (scanLock.lock(3)) {
                 try {
-                    // Cleanup primary storage pools
+                    // Cleanup primary storage pools, one task per pool
                     if (_templateCleanupEnabled) {
                         List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-                        for (StoragePoolVO pool : storagePools) {
-                            try {
-
-                                List<VMTemplateStoragePoolVO> unusedTemplatesInPool = _tmpltMgr.getUnusedTemplatesInPool(pool);
-                                s_logger.debug("Storage pool garbage collector found " + unusedTemplatesInPool.size() + " templates to clean up in storage pool: " +
-                                        pool.getName());
-                                for (VMTemplateStoragePoolVO templatePoolVO : unusedTemplatesInPool) {
-                                    if (templatePoolVO.getDownloadState() != VMTemplateStorageResourceAssoc.Status.DOWNLOADED) {
-                                        s_logger.debug("Storage pool garbage collector is skipping template with ID: " + templatePoolVO.getTemplateId() +
-                                               " on pool " +  templatePoolVO.getPoolId() +  " because it is not completely downloaded.");
-                                        continue;
-                                    }
-
-                                    if (!templatePoolVO.getMarkedForGC()) {
-                                        templatePoolVO.setMarkedForGC(true);
-                                        _vmTemplatePoolDao.update(templatePoolVO.getId(), templatePoolVO);
-                                        s_logger.debug("Storage pool garbage collector has marked template with ID: " + templatePoolVO.getTemplateId() +
-                                               " on pool " +  templatePoolVO.getPoolId() +  " for garbage collection.");
-                                        continue;
-                                    }
-
-                                    _tmpltMgr.evictTemplateFromStoragePool(templatePoolVO);
+                        List<Future<?>> poolTasks = new ArrayList<Future<?>>();
+                        for (final StoragePoolVO pool : storagePools) {
+                            poolTasks.add(_cleanupExecutor.submit(new ManagedContextRunnable() {
+                                @Override
+                                protected void runInContext() {
+                                    cleanupTemplatesInPool(pool);
                                 }
-                            } catch (Exception e) {
-                                s_logger.warn("Problem cleaning up primary storage pool " + pool, e);
-                            }
+                            }));
                         }
+                        waitForCleanupTasks(poolTasks);
                     }
 
                     cleanupSecondaryStorage(recurring);
 
-                    List<VolumeVO> vols = _volsDao.listVolumesToBeDestroyed();
-                    for (VolumeVO vol : vols) {
-                        try {
-                            volService.expungeVolumeAsync(volFactory.getVolume(vol.getId()));
-                        } catch (Exception e) {
-                            s_logger.warn("Unable to destroy volume " + vol.getUuid(), e);
-                        }
-                    }
+                    expungeVolumes(listVolumesToExpunge());
 
                     // remove snapshots in Error state
                     List<SnapshotVO> snapshots = _snapshotDao.listAllByStatus(Snapshot.State.Error);
@@ -1232,6 +1226,113 @@ public class StorageManagerImpl extends ManagerBase implements StorageManager, C
         }
     }
 
+    protected void cleanupTemplatesInPool(StoragePoolVO pool) {
+        try {
+            List<VMTemplateStoragePoolVO> unusedTemplatesInPool = _tmpltMgr.getUnusedTemplatesInPool(pool);
+            s_logger.debug("Storage pool garbage collector found " + unusedTemplatesInPool.size() + " templates to clean up in storage pool: " +
+                    pool.getName());
+            for (VMTemplateStoragePoolVO templatePoolVO : unusedTemplatesInPool) {
+                if (templatePoolVO.getDownloadState() != VMTemplateStorageResourceAssoc.Status.DOWNLOADED) {
+                    s_logger.debug("Storage pool garbage collector is skipping template with ID: " + templatePoolVO.getTemplateId() +
+                           " on pool " +  templatePoolVO.getPoolId() +  " because it is not completely downloaded.");
+                    continue;
+                }
+
+                if (!templatePoolVO.getMarkedForGC()) {
+                    templatePoolVO.setMarkedForGC(true);
+                    _vmTemplatePoolDao.update(templatePoolVO.getId(), templatePoolVO);
+                    s_logger.debug("Storage pool garbage collector has marked template with ID: " + templatePoolVO.getTemplateId() +
+                           " on pool " +  templatePoolVO.getPoolId() +  " for garbage collection.");
+                    continue;
+                }
+
+                _tmpltMgr.evictTemplateFromStoragePool(templatePoolVO);
+            }
+        } catch (Exception e) {
+            s_logger.warn("Problem cleaning up primary storage pool " + pool, e);
+        }
+    }
+
+    protected List<VolumeVO> listVolumesToExpunge() {
+        List<VolumeVO> vols = _volsDao.listVolumesToBeDestroyed();
+        // pick up expunges that were interrupted, e.g. by a management server restart
+        Date staleBefore = new Date(System.currentTimeMillis() - Math.max(_storageCleanupInterval, 3600) * 1000L);
+        vols.addAll(_volsDao.listStaleExpungingVolumes(staleBefore));
+        return vols;
+    }
+
+    /**
+     * Expunges the volumes in parallel, at most _cleanupPoolConcurrency at a time on each
+     * primary storage pool, and records the capacity reclaimed and the volumes left behind in the
+     * StorageCleanup MBean.
+     */
+    protected void expungeVolumes(List<VolumeVO> vols) {
+        if (vols.isEmpty()) {
+            _cleanupStats.recordRun(0, 0, 0, 0);
+            return;
+        }
+
+        Map<Long, ConcurrentLinkedQueue<VolumeVO>> volsByPool = new HashMap<Long, ConcurrentLinkedQueue<VolumeVO>>();
+        for (VolumeVO vol : vols) {
+            Long poolId = vol.getPoolId() != null ? vol.getPoolId() : 0L;
+            ConcurrentLinkedQueue<VolumeVO> queue = volsByPool.get(poolId);
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<VolumeVO>();
+                volsByPool.put(poolId, queue);
+            }
+            queue.add(vol);
+        }
+
+        final AtomicLong expunged = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong reclaimed = new AtomicLong();
+        long start = System.currentTimeMillis();
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (final ConcurrentLinkedQueue<VolumeVO> queue : volsByPool.values()) {
+            int workers = Math.max(1, Math.min(_cleanupPoolConcurrency, queue.size()));
+            for (int i = 0; i < workers; i++) {
+                tasks.add(_cleanupExecutor.submit(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        VolumeVO vol;
+                        while ((vol = queue.poll()) != null) {
+                            try {
+                                VolumeApiResult result = volService.expungeVolumeAsync(volFactory.getVolume(vol.getId())).get();
+                                if (result.isSuccess()) {
+                                    expunged.incrementAndGet();
+                                    reclaimed.addAndGet(vol.getSize() != null ? vol.getSize() : 0);
+                                } else {
+                                    failed.incrementAndGet();
+                                    s_logger.warn("Unable to destroy volume " + vol.getUuid() + ": " + result.getResult());
+                                }
+                            } catch (Exception e) {
+                                failed.incrementAndGet();
+                                s_logger.warn("Unable to destroy volume " + vol.getUuid(), e);
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+        waitForCleanupTasks(tasks);
+
+        _cleanupStats.recordRun(System.currentTimeMillis() - start, expunged.get(), reclaimed.get(), failed.get());
+        s_logger.info("Storage garbage collector expunged " + expunged.get() + " of " + vols.size() + " volumes on " + volsByPool.size() + " pools in " +
+                (System.currentTimeMillis() - start) + " ms, reclaimed " + reclaimed.get() + " bytes, " + failed.get() + " volumes are left for the next run");
+    }
+
+    private void waitForCleanupTasks(List<Future<?>> tasks) {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                s_logger.debug("Interrupted while waiting for storage cleanup tasks", e);
+            } catch (ExecutionException e) {
+                s_logger.warn("Storage cleanup task failed", e.getCause());
+            }
+        }
+    }
+
     @DB
     List<Long> findAllVolumeIdInSnapshotTable(Long storeId) {
         String sql = "SELECT volume_id from snapshots, snapshot_store_ref WHERE snapshots.id = snapshot_store_ref.snapshot_id and store_id=? GROUP BY volume_id";
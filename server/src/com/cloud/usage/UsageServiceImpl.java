@@ -57,6 +57,7 @@ import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.dao.VMInstanceDao;
 import org.apache.cloudstack.api.command.admin.usage.GenerateUsageRecordsCmd;
 import org.apache.cloudstack.api.command.admin.usage.GetUsageRecordsCmd;
+import org.apache.cloudstack.api.command.admin.usage.ListUsageTotalsCmd;
 import org.apache.cloudstack.api.command.admin.usage.RemoveRawUsageRecordsCmd;
 import org.apache.cloudstack.api.response.UsageTypeResponse;
 import org.apache.cloudstack.context.CallContext;
@@ -160,16 +161,24 @@ public class UsageServiceImpl extends ManagerBase implements UsageService, Manag
         return true;
     }
 
-    @Override
-    public Pair<List<? extends Usage>, Integer> getUsageRecords(GetUsageRecordsCmd cmd) {
+    /**
+     * The accounts and domains a usage query of the caller is limited to.
+     */
+    private static class UsageQueryScope {
+        // null to query the usage of all the accounts in the domains of the scope
+        private Long accountId;
+        private Long domainId;
+        // the sub domains of a domain admin
+        private List<Long> domainIds;
+    }
+
+    private UsageQueryScope getUsageQueryScope(GetUsageRecordsCmd cmd) {
         Long accountId = cmd.getAccountId();
         Long domainId = cmd.getDomainId();
         String accountName = cmd.getAccountName();
         Account userAccount = null;
         Account caller = CallContext.current().getCallingAccount();
-        Long usageType = cmd.getUsageType();
         Long projectId = cmd.getProjectId();
-        String usageId = cmd.getUsageId();
 
         if (projectId != null) {
             if (accountId != null) {
@@ -216,6 +225,31 @@ public class UsageServiceImpl extends ManagerBase implements UsageService, Manag
             s_logger.debug("Account details not available. Using userContext accountId: " + accountId);
         }
 
+        UsageQueryScope scope = new UsageQueryScope();
+        if (accountId != -1 && accountId != Account.ACCOUNT_ID_SYSTEM && !isAdmin && !isDomainAdmin) {
+            scope.accountId = accountId;
+        }
+
+        if (isDomainAdmin) {
+            SearchCriteria<DomainVO> sdc = _domainDao.createSearchCriteria();
+            sdc.addOr("path", SearchCriteria.Op.LIKE, _domainDao.findById(caller.getDomainId()).getPath() + "%");
+            List<DomainVO> domains = _domainDao.search(sdc, null);
+            List<Long> domainIds = new ArrayList<Long>();
+            for (DomainVO domain : domains)
+                domainIds.add(domain.getId());
+            scope.domainIds = domainIds;
+        }
+
+        scope.domainId = domainId;
+        return scope;
+    }
+
+    @Override
+    public Pair<List<? extends Usage>, Integer> getUsageRecords(GetUsageRecordsCmd cmd) {
+        UsageQueryScope scope = getUsageQueryScope(cmd);
+        Long usageType = cmd.getUsageType();
+        String usageId = cmd.getUsageId();
+
         Date startDate = cmd.getStartDate();
         Date endDate = cmd.getEndDate();
         if (startDate.after(endDate)) {
@@ -226,7 +260,7 @@ public class UsageServiceImpl extends ManagerBase implements UsageService, Manag
         Date adjustedEndDate = computeAdjustedTime(endDate, usageTZ);
 
         if (s_logger.isDebugEnabled()) {
-            s_logger.debug("getting usage records for account: " + accountId + ", domainId: " + domainId + ", between " + adjustedStartDate + " and " + adjustedEndDate +
+            s_logger.debug("getting usage records for account: " + scope.accountId + ", domainId: " + scope.domainId + ", between " + adjustedStartDate + " and " + adjustedEndDate +
                 ", using pageSize: " + cmd.getPageSizeVal() + " and startIndex: " + cmd.getStartIndex());
         }
 
@@ -234,22 +268,16 @@ public class UsageServiceImpl extends ManagerBase implements UsageService, Manag
 
         SearchCriteria<UsageVO> sc = _usageDao.createSearchCriteria();
 
-        if (accountId != -1 && accountId != Account.ACCOUNT_ID_SYSTEM && !isAdmin && !isDomainAdmin) {
-            sc.addAnd("accountId", SearchCriteria.Op.EQ, accountId);
+        if (scope.accountId != null) {
+            sc.addAnd("accountId", SearchCriteria.Op.EQ, scope.accountId);
         }
 
-        if (isDomainAdmin) {
-            SearchCriteria<DomainVO> sdc = _domainDao.createSearchCriteria();
-            sdc.addOr("path", SearchCriteria.Op.LIKE, _domainDao.findById(caller.getDomainId()).getPath() + "%");
-            List<DomainVO> domains = _domainDao.search(sdc, null);
-            List<Long> domainIds = new ArrayList<Long>();
-            for (DomainVO domain : domains)
-                domainIds.add(domain.getId());
-            sc.addAnd("domainId", SearchCriteria.Op.IN, domainIds.toArray());
+        if (scope.domainIds != null) {
+            sc.addAnd("domainId", SearchCriteria.Op.IN, scope.domainIds.toArray());
         }
 
-        if (domainId != null) {
-            sc.addAnd("domainId", SearchCriteria.Op.EQ, domainId);
+        if (scope.domainId != null) {
+            sc.addAnd("domainId", SearchCriteria.Op.EQ, scope.domainId);
         }
 
         if (usageType != null) {
@@ -368,6 +396,52 @@ public class UsageServiceImpl extends ManagerBase implements UsageService, Manag
         return new Pair<List<? extends Usage>, Integer>(usageRecords.first(), usageRecords.second());
     }
 
+    @Override
+    public List<? extends Usage> listUsageTotals(ListUsageTotalsCmd cmd) {
+        UsageQueryScope scope = getUsageQueryScope(cmd);
+
+        if (cmd.getUsageId() != null) {
+            throw new InvalidParameterValueException("Usage totals are summed per account, usage type and offering, usageid is not supported");
+        }
+
+        Date startDate = cmd.getStartDate();
+        Date endDate = cmd.getEndDate();
+        if (startDate.after(endDate)) {
+            throw new InvalidParameterValueException("Incorrect Date Range. Start date: " + startDate + " is after end date:" + endDate);
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("getting usage totals for account: " + scope.accountId + ", domainId: " + scope.domainId + ", between " + startDate + " and " + endDate +
+                ", using pageSize: " + cmd.getPageSizeVal() + " and startIndex: " + cmd.getStartIndex());
+        }
+
+        TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+        try {
+            // the rollup days are the ones of the usage aggregation timezone
+            return _usageDao.listUsageTotals(scope.accountId, scope.domainId, scope.domainIds, cmd.getUsageType(), toUsageTimezoneDay(startDate),
+                    toUsageTimezoneDay(endDate), _usageTimezone, cmd.getStartIndex(), cmd.getPageSizeVal());
+        } finally {
+            txn.close();
+
+            // switch back to VMOPS_DB
+            TransactionLegacy swap = TransactionLegacy.open(TransactionLegacy.CLOUD_DB);
+            swap.close();
+        }
+    }
+
+    /**
+     * The API parses dates at midnight of the management server timezone, returns midnight of the same
+     * calendar day in the usage aggregation timezone.
+     */
+    private Date toUsageTimezoneDay(Date date) {
+        Calendar local = Calendar.getInstance();
+        local.setTime(date);
+        Calendar usage = Calendar.getInstance(_usageTimezone);
+        usage.clear();
+        usage.set(local.get(Calendar.YEAR), local.get(Calendar.MONTH), local.get(Calendar.DAY_OF_MONTH));
+        return usage.getTime();
+    }
+
     @Override
     public TimeZone getUsageTimezone() {
         return _usageTimezone;
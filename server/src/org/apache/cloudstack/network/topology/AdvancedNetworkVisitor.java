@@ -107,7 +107,7 @@ public class AdvancedNetworkVisitor extends BasicNetworkVisitor {
         final List<? extends NetworkACLItem> rules = acls.getRules();
         _commandSetupHelper.createNetworkACLsCommands(rules, router, commands, network.getId(), acls.isPrivateGateway());
 
-        return _networkGeneralHelper.sendCommandsToRouter(router, commands);
+        return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, commands);
     }
 
     @Override
@@ -100,7 +100,7 @@ public class BasicNetworkVisitor extends NetworkTopologyVisitor {
         final Commands cmds = new Commands(Command.OnError.Continue);
         _commandSetupHelper.createApplyStaticNatCommands(rules, router, cmds, network.getId());
 
-        return _networkGeneralHelper.sendCommandsToRouter(router, cmds);
+        return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, cmds);
     }
 
     @Override
@@ -112,7 +112,7 @@ public class BasicNetworkVisitor extends NetworkTopologyVisitor {
         final Commands cmds = new Commands(Command.OnError.Continue);
         _commandSetupHelper.createApplyLoadBalancingRulesCommands(rules, router, cmds, network.getId());
 
-        return _networkGeneralHelper.sendCommandsToRouter(router, cmds);
+        return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, cmds);
     }
 
     @SuppressWarnings("unchecked")
@@ -130,25 +130,25 @@ public class BasicNetworkVisitor extends NetworkTopologyVisitor {
 
             _commandSetupHelper.createApplyLoadBalancingRulesCommands(loadbalancingRules, router, cmds, network.getId());
 
-            return _networkGeneralHelper.sendCommandsToRouter(router, cmds);
+            return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, cmds);
 
         } else if (purpose == Purpose.PortForwarding) {
 
             _commandSetupHelper.createApplyPortForwardingRulesCommands((List<? extends PortForwardingRule>) rules, router, cmds, network.getId());
 
-            return _networkGeneralHelper.sendCommandsToRouter(router, cmds);
+            return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, cmds);
 
         } else if (purpose == Purpose.StaticNat) {
 
             _commandSetupHelper.createApplyStaticNatRulesCommands((List<StaticNatRule>) rules, router, cmds, network.getId());
 
-            return _networkGeneralHelper.sendCommandsToRouter(router, cmds);
+            return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, cmds);
 
         } else if (purpose == Purpose.Firewall) {
 
             _commandSetupHelper.createApplyFirewallRulesCommands(rules, router, cmds, network.getId());
 
-            return _networkGeneralHelper.sendCommandsToRouter(router, cmds);
+            return _networkGeneralHelper.sendCoalescedCommandsToRouter(router, cmds);
 
         }
         s_logger.warn("Unable to apply rules of purpose: " + rules.get(0).getPurpose());
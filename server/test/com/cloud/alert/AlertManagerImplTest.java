@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.alert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.util.reflection.Whitebox;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.capacity.CapacityManager;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.resource.ResourceManager;
+import com.cloud.service.ServiceOfferingVO;
+
+public class AlertManagerImplTest {
+
+    private AlertManagerImpl alertMgr;
+    private CapacityManager capacityMgr;
+    private ExecutorService auditExecutor;
+    private HostVO host;
+
+    // the first host audit blocks until released
+    private final CountDownLatch auditStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseAudit = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        alertMgr = new AlertManagerImpl();
+        capacityMgr = mock(CapacityManager.class);
+        ResourceManager resourceMgr = mock(ResourceManager.class);
+        auditExecutor = Executors.newFixedThreadPool(2);
+        alertMgr._capacityMgr = capacityMgr;
+        Whitebox.setInternalState(alertMgr, "_resourceMgr", resourceMgr);
+        Whitebox.setInternalState(alertMgr, "_capacityAuditExecutor", auditExecutor);
+
+        host = mock(HostVO.class);
+        when(host.getId()).thenReturn(1L);
+        when(resourceMgr.listAllNotInMaintenanceHostsInOneZone(Host.Type.Routing, null)).thenReturn(Arrays.asList(host));
+        when(capacityMgr.listServiceOfferingsById()).thenReturn(new HashMap<Long, ServiceOfferingVO>());
+        when(capacityMgr.updateCapacityForHost(eq(host), anyMapOf(Long.class, ServiceOfferingVO.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                auditStarted.countDown();
+                releaseAudit.await(10, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        releaseAudit.countDown();
+        auditExecutor.shutdownNow();
+    }
+
+    private Thread startAudit(final boolean force) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                alertMgr.auditHostCapacity(force);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testPeriodicAuditSkipsRunningAudit() throws Exception {
+        Thread running = startAudit(true);
+        assertTrue(auditStarted.await(10, TimeUnit.SECONDS));
+
+        alertMgr.auditHostCapacity(false);
+
+        releaseAudit.countDown();
+        running.join(10000);
+        verify(capacityMgr, times(1)).updateCapacityForHost(any(Host.class), anyMapOf(Long.class, ServiceOfferingVO.class));
+    }
+
+    @Test
+    public void testForcedAuditWaitsForRunningAudit() throws Exception {
+        Thread running = startAudit(false);
+        assertTrue(auditStarted.await(10, TimeUnit.SECONDS));
+
+        Thread forced = startAudit(true);
+        forced.join(200);
+        assertTrue(forced.isAlive());
+
+        releaseAudit.countDown();
+        running.join(10000);
+        forced.join(10000);
+        assertFalse(forced.isAlive());
+        // the forced audit ran after the one it waited for
+        verify(capacityMgr, times(2)).updateCapacityForHost(any(Host.class), anyMapOf(Long.class, ServiceOfferingVO.class));
+    }
+
+    @Test
+    public void testAuditRecordsItsTime() {
+        releaseAudit.countDown();
+
+        alertMgr.auditHostCapacity(false);
+
+        assertEquals(0, auditStarted.getCount());
+        long lastAudit = (Long)Whitebox.getInternalState(alertMgr, "_lastCapacityAuditTime");
+        assertTrue(System.currentTimeMillis() - lastAudit < 10000);
+    }
+}
@@ -0,0 +1,105 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventBus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.powermock.reflect.Whitebox;
+
+import com.cloud.event.dao.EventDao;
+import com.cloud.projects.dao.ProjectDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
+import com.cloud.user.User;
+import com.cloud.user.UserVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.user.dao.UserDao;
+
+public class ActionEventUtilsTest {
+
+    private AccountDao accountDao;
+    private UserDao userDao;
+    private ProjectDao projectDao;
+    private EventBus eventBus;
+    private AccountVO account;
+    private UserVO user;
+
+    @Before
+    public void setUp() throws Exception {
+        account = new AccountVO("testaccount", 1, "networkdomain", Account.ACCOUNT_TYPE_NORMAL, UUID.randomUUID().toString());
+        account.setId(2L);
+        user = new UserVO(3, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString(), User.Source.UNKNOWN);
+        CallContext.register(user, account);
+
+        accountDao = mock(AccountDao.class);
+        when(accountDao.findById(2L)).thenReturn(account);
+        when(accountDao.findByIdIncludingRemoved(2L)).thenReturn(account);
+        userDao = mock(UserDao.class);
+        when(userDao.findById(3L)).thenReturn(user);
+        projectDao = mock(ProjectDao.class);
+        EventDao eventDao = mock(EventDao.class);
+        when(eventDao.persist(any(EventVO.class))).thenReturn(new EventVO());
+        eventBus = mock(EventBus.class);
+
+        Whitebox.setInternalState(ActionEventUtils.class, "s_accountDao", accountDao);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_userDao", userDao);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_projectDao", projectDao);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_eventDao", eventDao);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_eventBus", eventBus);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_publishActionEvent", true);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_eventBusLookupTime", Long.MAX_VALUE);
+        Whitebox.<Map<?, ?>>getInternalState(ActionEventUtils.class, "s_uuidCache").clear();
+    }
+
+    @After
+    public void tearDown() {
+        Whitebox.setInternalState(ActionEventUtils.class, "s_eventBusLookupTime", 0L);
+        Whitebox.setInternalState(ActionEventUtils.class, "s_eventBus", (EventBus)null);
+        CallContext.unregister();
+    }
+
+    @Test
+    public void testEventEnrichmentIsLookedUpOnce() throws Exception {
+        ActionEventUtils.onActionEvent(3L, 2L, 1L, EventTypes.EVENT_USER_LOGIN, "first");
+        ActionEventUtils.onActionEvent(3L, 2L, 1L, EventTypes.EVENT_USER_LOGIN, "second");
+
+        ArgumentCaptor<Event> events = ArgumentCaptor.forClass(Event.class);
+        verify(eventBus, times(2)).publish(events.capture());
+        for (Event event : events.getAllValues()) {
+            Assert.assertTrue(event.getDescription().contains(account.getUuid()));
+            Assert.assertTrue(event.getDescription().contains(user.getUuid()));
+        }
+        verify(accountDao, times(1)).findById(2L);
+        verify(userDao, times(1)).findById(3L);
+        verify(projectDao, times(1)).findByProjectAccountId(2L);
+    }
+}
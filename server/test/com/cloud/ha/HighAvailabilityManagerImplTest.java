@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.ha;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -245,4 +247,58 @@ public class HighAvailabilityManagerImplTest {
     public void processWorkWithRetryCountNotExceeded() {
         processWorkWithRetryCount(3, Step.Scheduled);
     }
+
+    @Test
+    public void restartStatsTrackTimeToRestart() {
+        HaRestartStats stats = highAvailabilityManager._restartStats;
+        stats.recordRestart(1000);
+        stats.recordRestart(3000);
+        stats.recordRestart(2000);
+
+        assertEquals(3, stats.getRestartCount());
+        assertEquals(2000, stats.getLastTimeToRestart());
+        assertEquals(2000, stats.getAverageTimeToRestart());
+        assertEquals(3000, stats.getMaxTimeToRestart());
+    }
+
+    private HaWorkVO queueHaWork(long vmId, VirtualMachine.Type type) {
+        VMInstanceVO vm = Mockito.mock(VMInstanceVO.class);
+        Mockito.when(vm.getType()).thenReturn(type);
+        Mockito.when(vm.isHaEnabled()).thenReturn(true);
+        Mockito.when(vm.getDataCenterId()).thenReturn(1l);
+        Mockito.when(_instanceDao.findByIdIncludingRemoved(vmId)).thenReturn(vm);
+        HaWorkVO work = Mockito.mock(HaWorkVO.class);
+        Mockito.when(work.getId()).thenReturn(vmId);
+        Mockito.when(work.getInstanceId()).thenReturn(vmId);
+        Mockito.when(work.getHostId()).thenReturn(1l);
+        Mockito.when(work.getWorkType()).thenReturn(WorkType.HA);
+        highAvailabilityManager.queueWork(work);
+        return work;
+    }
+
+    @Test
+    public void queuedWorkIsPrioritizedForSystemVms() {
+        HaWorkVO userVmWork = queueHaWork(1l, VirtualMachine.Type.User);
+        HaWorkVO routerWork = queueHaWork(2l, VirtualMachine.Type.DomainRouter);
+
+        assertEquals(routerWork, highAvailabilityManager._workQueue.poll().work);
+        assertEquals(userVmWork, highAvailabilityManager._workQueue.poll().work);
+    }
+
+    @Test
+    public void queuedWorkIsDeferredWhenHostLimitIsReached() {
+        highAvailabilityManager._maxWorkersPerHost = 1;
+        queueHaWork(1l, VirtualMachine.Type.User);
+        queueHaWork(2l, VirtualMachine.Type.User);
+
+        HighAvailabilityManagerImpl.QueuedWork first = highAvailabilityManager._workQueue.poll();
+        HighAvailabilityManagerImpl.QueuedWork second = highAvailabilityManager._workQueue.poll();
+        assertTrue(highAvailabilityManager.acquireSlot(first));
+        assertFalse(highAvailabilityManager.acquireSlot(second));
+        assertTrue(highAvailabilityManager._workQueue.isEmpty());
+
+        highAvailabilityManager.releaseSlot(first);
+        assertEquals(second, highAvailabilityManager._workQueue.poll());
+        assertTrue(highAvailabilityManager.acquireSlot(second));
+    }
 }
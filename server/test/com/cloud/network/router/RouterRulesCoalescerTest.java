@@ -0,0 +1,233 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.router;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.routing.AggregationControlAnswer;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SetFirewallRulesCommand;
+import com.cloud.agent.api.to.FirewallRuleTO;
+import com.cloud.agent.manager.Commands;
+
+public class RouterRulesCoalescerTest {
+
+    private static final long ROUTER_ID = 1L;
+
+    private final RouterRulesCoalescer coalescer = new RouterRulesCoalescer();
+    private final VirtualRouter router = mock(VirtualRouter.class);
+    private final NetworkHelper nwHelper = mock(NetworkHelper.class);
+    private final List<Commands> pushed = new ArrayList<Commands>();
+    // holds the first push until released, so that the other callers queue up behind it
+    private final CountDownLatch firstPush = new CountDownLatch(1);
+    private Command failingCommand;
+
+    @Before
+    public void setUp() throws Exception {
+        when(router.getId()).thenReturn(ROUTER_ID);
+        when(nwHelper.sendCommandsToRouter(any(VirtualRouter.class), any(Commands.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Exception {
+                final Commands cmds = (Commands)invocation.getArguments()[1];
+                final boolean first;
+                synchronized (pushed) {
+                    pushed.add(cmds);
+                    first = pushed.size() == 1;
+                }
+                if (first) {
+                    firstPush.await(10, TimeUnit.SECONDS);
+                }
+
+                final Command[] commands = cmds.toCommands();
+                final com.cloud.agent.api.Answer[] answers = new com.cloud.agent.api.Answer[commands.length];
+                if (!(commands[0] instanceof AggregationControlCommand)) {
+                    for (int i = 0; i < commands.length; i++) {
+                        answers[i] = new com.cloud.agent.api.Answer(commands[i]);
+                    }
+                    cmds.setAnswers(answers);
+                    return true;
+                }
+
+                // like the router, queue the commands and answer their execution with Finish
+                final com.cloud.agent.api.Answer[] commandAnswers = new com.cloud.agent.api.Answer[commands.length - 2];
+                for (int i = 1; i < commands.length - 1; i++) {
+                    answers[i] = new com.cloud.agent.api.Answer(commands[i], true, "Command aggregated");
+                    commandAnswers[i - 1] = new com.cloud.agent.api.Answer(commands[i], commands[i] != failingCommand, null);
+                }
+                answers[0] = new com.cloud.agent.api.Answer(commands[0]);
+                answers[commands.length - 1] = new AggregationControlAnswer((AggregationControlCommand)commands[commands.length - 1], true, null, commandAnswers);
+                cmds.setAnswers(answers);
+                return true;
+            }
+        });
+    }
+
+    private List<Future<Boolean>> applyConcurrently(final List<Commands> callers) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(callers.size());
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        results.add(executor.submit(createApply(callers.get(0))));
+        while (pushed.isEmpty()) {
+            Thread.sleep(10);
+        }
+        for (int i = 1; i < callers.size(); i++) {
+            results.add(executor.submit(createApply(callers.get(i))));
+        }
+        // wait for the next batch to be started, then give its callers time to join it
+        while (coalescer.getPendingBatchCount() == 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        firstPush.countDown();
+        executor.shutdown();
+        return results;
+    }
+
+    private Callable<Boolean> createApply(final Commands cmds) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return coalescer.apply(nwHelper, router, cmds, 0);
+            }
+        };
+    }
+
+    private Commands createRuleCommands() {
+        final SetFirewallRulesCommand cmd = new SetFirewallRulesCommand(new ArrayList<FirewallRuleTO>());
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, "r-1-VM");
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_IP, "169.254.0.10");
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_GUEST_IP, "10.1.1.1");
+        return new Commands(cmd);
+    }
+
+    @Test
+    public void testRuleChangesQueuedBehindAPushArePushedOnce() throws Exception {
+        final int callers = 5;
+        final List<Commands> cmds = new ArrayList<Commands>();
+        for (int i = 0; i < callers; i++) {
+            cmds.add(createRuleCommands());
+        }
+        for (final Future<Boolean> result : applyConcurrently(cmds)) {
+            assertTrue(result.get());
+        }
+
+        assertEquals(2, pushed.size());
+        final Command[] pushedCmds = pushed.get(1).toCommands();
+        assertEquals(callers - 1 + 2, pushedCmds.length);
+        assertEquals(Action.Start, ((AggregationControlCommand)pushedCmds[0]).getAction());
+        assertEquals(Action.Finish, ((AggregationControlCommand)pushedCmds[pushedCmds.length - 1]).getAction());
+        assertEquals(2, coalescer.getBatchCount());
+        assertEquals(callers, coalescer.getCallCount());
+        assertEquals(callers, coalescer.getCommandCount());
+    }
+
+    @Test
+    public void testEveryCallerGetsItsOwnAnswers() throws Exception {
+        final List<Commands> cmds = new ArrayList<Commands>();
+        for (int i = 0; i < 3; i++) {
+            cmds.add(createRuleCommands());
+        }
+        failingCommand = cmds.get(1).toCommands()[0];
+        final List<Future<Boolean>> results = applyConcurrently(cmds);
+
+        assertTrue(results.get(0).get());
+        assertFalse(results.get(1).get());
+        assertTrue(results.get(2).get());
+        assertEquals(2, pushed.size());
+        for (final Commands caller : cmds) {
+            assertEquals(1, caller.getAnswers().length);
+            assertEquals(caller.toCommands()[0] != failingCommand, caller.getAnswers()[0].getResult());
+        }
+    }
+
+    @Test
+    public void testRuleChangesAreSentDirectlyDuringAggregation() throws Exception {
+        final Commands cmds = createRuleCommands();
+        firstPush.countDown();
+
+        coalescer.startAggregation(ROUTER_ID);
+        assertTrue(coalescer.apply(nwHelper, router, cmds, 500));
+
+        verify(nwHelper, times(1)).sendCommandsToRouter(router, cmds);
+        assertEquals(0, coalescer.getBatchCount());
+    }
+
+    @Test
+    public void testEveryPushIsAnAggregationOfItsOwn() throws Exception {
+        final List<Commands> cmds = new ArrayList<Commands>();
+        for (int i = 0; i < 3; i++) {
+            cmds.add(createRuleCommands());
+        }
+        for (final Future<Boolean> result : applyConcurrently(cmds)) {
+            assertTrue(result.get());
+        }
+
+        assertEquals(2, pushed.size());
+        final List<String> ids = new ArrayList<String>();
+        for (final Commands push : pushed) {
+            final Command[] pushedCmds = push.toCommands();
+            final String id = ((AggregationControlCommand)pushedCmds[0]).getAggregationId();
+            assertNotNull(id);
+            for (final Command cmd : pushedCmds) {
+                assertEquals(id, ((NetworkElementCommand)cmd).getAccessDetail(NetworkElementCommand.AGGREGATION_ID));
+            }
+            ids.add(id);
+        }
+        assertFalse(ids.get(0).equals(ids.get(1)));
+    }
+
+    @Test
+    public void testRuleChangesAreCoalescedOnceEveryAggregationIsFinished() throws Exception {
+        firstPush.countDown();
+
+        coalescer.startAggregation(ROUTER_ID);
+        coalescer.startAggregation(ROUTER_ID);
+        coalescer.finishAggregation(ROUTER_ID);
+        final Commands direct = createRuleCommands();
+        assertTrue(coalescer.apply(nwHelper, router, direct, 0));
+        verify(nwHelper, times(1)).sendCommandsToRouter(router, direct);
+
+        coalescer.finishAggregation(ROUTER_ID);
+        coalescer.finishAggregation(ROUTER_ID);
+        assertTrue(coalescer.apply(nwHelper, router, createRuleCommands(), 0));
+        assertEquals(1, coalescer.getBatchCount());
+    }
+}
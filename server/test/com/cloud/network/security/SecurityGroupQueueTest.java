@@ -17,8 +17,10 @@
 package com.cloud.network.security;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -216,4 +218,37 @@ public class SecurityGroupQueueTest extends TestCase {
         _testDequeueOneJob(10, 1, 10);
     }
 
+    public void testWorkIsPartitionedByHost() throws InterruptedException {
+        SecurityGroupWorkQueue hostQueue = new LocalSecurityGroupWorkQueue();
+        Map<Long, Set<Long>> vmIdsByHost = new HashMap<Long, Set<Long>>();
+        for (long hostId = 1; hostId <= 3; hostId++) {
+            Set<Long> vmIds = new HashSet<Long>();
+            for (long i = 0; i < 5; i++) {
+                vmIds.add(hostId * 100 + i);
+            }
+            vmIdsByHost.put(hostId, vmIds);
+        }
+        assertEquals(15, hostQueue.submitWorkForVms(vmIdsByHost));
+        // already queued
+        assertEquals(0, hostQueue.submitWorkForVms(vmIdsByHost));
+
+        Set<Long> hostsServed = new HashSet<Long>();
+        for (int i = 0; i < 6; i++) {
+            List<SecurityGroupWork> work = hostQueue.getWork(3);
+            Set<Long> hosts = new HashSet<Long>();
+            for (SecurityGroupWork w : work) {
+                hosts.add(w.getInstanceId() / 100);
+            }
+            assertEquals(1, hosts.size());
+            if (i < 3) {
+                // round robin between the hosts
+                assertTrue(hostsServed.add(hosts.iterator().next()));
+                assertEquals(3, work.size());
+            } else {
+                assertEquals(2, work.size());
+            }
+        }
+        assertEquals(0, hostQueue.size());
+    }
+
 }
@@ -0,0 +1,163 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeDataFactory;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeInfo;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService;
+import org.apache.cloudstack.engine.subsystem.api.storage.VolumeService.VolumeApiResult;
+import org.apache.cloudstack.framework.async.AsyncCallFuture;
+
+import com.cloud.storage.dao.VolumeDao;
+
+public class StorageManagerImplTest {
+
+    private StorageManagerImpl storageMgr;
+    private VolumeDataFactory volFactory;
+    private VolumeService volService;
+
+    // volumes being expunged right now, and the most ever seen, per pool
+    private final ConcurrentHashMap<Long, AtomicInteger> inFlight = new ConcurrentHashMap<Long, AtomicInteger>();
+    private final ConcurrentHashMap<Long, AtomicInteger> maxInFlight = new ConcurrentHashMap<Long, AtomicInteger>();
+
+    @Before
+    public void setUp() {
+        storageMgr = new StorageManagerImpl();
+        volFactory = mock(VolumeDataFactory.class);
+        volService = mock(VolumeService.class);
+        storageMgr.volFactory = volFactory;
+        storageMgr.volService = volService;
+        storageMgr._volsDao = mock(VolumeDao.class);
+        storageMgr._cleanupExecutor = Executors.newFixedThreadPool(8);
+        storageMgr._cleanupPoolConcurrency = 2;
+        storageMgr._storageCleanupInterval = 600;
+
+        when(volService.expungeVolumeAsync(any(VolumeInfo.class))).thenAnswer(new Answer<AsyncCallFuture<VolumeApiResult>>() {
+            @Override
+            public AsyncCallFuture<VolumeApiResult> answer(InvocationOnMock invocation) throws Throwable {
+                VolumeInfo volume = (VolumeInfo)invocation.getArguments()[0];
+                long poolId = volume.getPoolId();
+                inFlight.putIfAbsent(poolId, new AtomicInteger());
+                maxInFlight.putIfAbsent(poolId, new AtomicInteger());
+                synchronized (maxInFlight) {
+                    int running = inFlight.get(poolId).incrementAndGet();
+                    if (running > maxInFlight.get(poolId).get()) {
+                        maxInFlight.get(poolId).set(running);
+                    }
+                }
+                Thread.sleep(20);
+                inFlight.get(poolId).decrementAndGet();
+
+                VolumeApiResult result = new VolumeApiResult(volume);
+                if (volume.getId() % 5 == 0) {
+                    result.setResult("delete failed");
+                }
+                AsyncCallFuture<VolumeApiResult> future = new AsyncCallFuture<VolumeApiResult>();
+                future.complete(result);
+                return future;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        storageMgr._cleanupExecutor.shutdownNow();
+    }
+
+    private VolumeVO createVolume(long id, long poolId) {
+        VolumeVO vol = mock(VolumeVO.class);
+        when(vol.getId()).thenReturn(id);
+        when(vol.getPoolId()).thenReturn(poolId);
+        when(vol.getSize()).thenReturn(1024L);
+        when(vol.getUuid()).thenReturn("vol-" + id);
+        VolumeInfo volume = mock(VolumeInfo.class);
+        when(volume.getId()).thenReturn(id);
+        when(volume.getPoolId()).thenReturn(poolId);
+        when(volFactory.getVolume(id)).thenReturn(volume);
+        return vol;
+    }
+
+    @Test
+    public void testVolumesAreExpungedInParallelPerPool() {
+        List<VolumeVO> vols = new ArrayList<VolumeVO>();
+        for (long id = 1; id <= 20; id++) {
+            vols.add(createVolume(id, id % 2 == 0 ? 1L : 2L));
+        }
+
+        storageMgr.expungeVolumes(vols);
+
+        for (long poolId = 1; poolId <= 2; poolId++) {
+            assertEquals(2, maxInFlight.get(poolId).get());
+        }
+        // every fifth volume fails and is left for the next run
+        StorageCleanupStats stats = storageMgr._cleanupStats;
+        assertEquals(1, stats.getRunCount());
+        assertEquals(16, stats.getLastExpungedVolumeCount());
+        assertEquals(16 * 1024L, stats.getLastReclaimedBytes());
+        assertEquals(4, stats.getExpungeBacklog());
+    }
+
+    @Test
+    public void testEmptyRunClearsBacklog() {
+        storageMgr.expungeVolumes(Arrays.asList(createVolume(5, 1L)));
+        assertEquals(1, storageMgr._cleanupStats.getExpungeBacklog());
+
+        storageMgr.expungeVolumes(new ArrayList<VolumeVO>());
+        assertEquals(0, storageMgr._cleanupStats.getExpungeBacklog());
+        assertEquals(0, storageMgr._cleanupStats.getLastExpungedVolumeCount());
+        assertEquals(2, storageMgr._cleanupStats.getRunCount());
+    }
+
+    @Test
+    public void testStaleExpungingVolumesArePickedUp() {
+        VolumeVO destroyed = createVolume(1, 1L);
+        VolumeVO stale = createVolume(2, 1L);
+        when(storageMgr._volsDao.listVolumesToBeDestroyed()).thenReturn(new ArrayList<VolumeVO>(Arrays.asList(destroyed)));
+        when(storageMgr._volsDao.listStaleExpungingVolumes(any(Date.class))).thenReturn(Arrays.asList(stale));
+
+        long now = System.currentTimeMillis();
+        List<VolumeVO> vols = storageMgr.listVolumesToExpunge();
+
+        assertEquals(Arrays.asList(destroyed, stale), vols);
+        // an expunge counts as stale once it has not changed for at least an hour
+        ArgumentCaptor<Date> staleBefore = ArgumentCaptor.forClass(Date.class);
+        verify(storageMgr._volsDao).listStaleExpungingVolumes(staleBefore.capture());
+        assertTrue(staleBefore.getValue().getTime() <= now - 3600 * 1000L);
+    }
+}
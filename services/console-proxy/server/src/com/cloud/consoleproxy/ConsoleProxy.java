@@ -70,6 +70,7 @@ public class ConsoleProxy {
     static int httpCmdListenPort = 8001;
     static int reconnectMaxRetry = 5;
     static int readTimeoutSeconds = 90;
+    static int thumbnailRefreshMillis = 2000;
     static int keyboardType = KEYBOARD_RAW;
     static String factoryClzName;
     static boolean standaloneStart = false;
@@ -158,6 +159,12 @@ public class ConsoleProxy {
             readTimeoutSeconds = Integer.parseInt(s);
             s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
         }
+
+        s = conf.getProperty("consoleproxy.thumbnailRefreshMillis");
+        if (s != null) {
+            thumbnailRefreshMillis = Integer.parseInt(s);
+            s_logger.info("Setting thumbnailRefreshMillis=" + thumbnailRefreshMillis);
+        }
     }
 
     public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -44,6 +44,8 @@ public interface ConsoleProxyClient {
 
     Image getClientScaledImage(int width, int height);                  // client thumbnail support
 
+    byte[] getClientThumbnailJpeg(int width, int height);               // cached, encoded thumbnail
+
     String onAjaxClientStart(String title, List<String> languages, String guest);
 
     String onAjaxClientUpdate();
@@ -72,6 +74,12 @@ public interface ConsoleProxyClient {
 
     String getClientTag();
 
+    long getClientBytesReceived();
+
+    long getClientCpuTime();                                            // in milliseconds
+
+    long getClientMemoryUsage();                                        // frame buffer and cached images, in bytes
+
     //
     // Setup/house-keeping
     //
@@ -16,9 +16,18 @@
 // under the License.
 package com.cloud.consoleproxy;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
 
 import org.apache.log4j.Logger;
 
@@ -46,6 +55,14 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected TileTracker tracker;
     protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
 
+    // bumped on every frame buffer change, encoded images of an older version are stale
+    protected AtomicLong frameBufferVersion = new AtomicLong();
+    // frame buffer version last handed out to a viewer
+    protected AtomicLong fetchedFrameBufferVersion = new AtomicLong();
+    // encoded thumbnails by size and the last full frame, shared by all viewers of this client
+    protected final Map<String, EncodedImage> thumbnailCache = new HashMap<String, EncodedImage>();
+    protected EncodedImage frameBufferJpeg;
+
     protected ConsoleProxyClientParam clientParam;
     protected String clientToken;
 
@@ -94,6 +111,41 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return null;
     }
 
+    @Override
+    public byte[] getClientThumbnailJpeg(int width, int height) {
+        onFrontEndFetch();
+
+        String key = width + "x" + height;
+        synchronized (thumbnailCache) {
+            long version = frameBufferVersion.get();
+            EncodedImage thumbnail = thumbnailCache.get(key);
+            if (thumbnail != null && (thumbnail.version == version || System.currentTimeMillis() - thumbnail.time < ConsoleProxy.thumbnailRefreshMillis))
+                return thumbnail.bits;
+
+            Image scaledImage = getClientScaledImage(width, height);
+            if (scaledImage == null)
+                return null;
+
+            BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D bufImageGraphics = bufferedImage.createGraphics();
+            bufImageGraphics.drawImage(scaledImage, 0, 0, null);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
+            try {
+                ImageIO.write(bufferedImage, "jpg", bos);
+            } catch (IOException e) {
+                s_logger.warn("Unable to encode thumbnail of " + key, e);
+                return null;
+            }
+
+            // viewers ask for a few sizes only, drop them all if the cache is abused with arbitrary ones
+            if (thumbnailCache.size() >= 8 && !thumbnailCache.containsKey(key))
+                thumbnailCache.clear();
+            thumbnail = new EncodedImage(bos.toByteArray(), version);
+            thumbnailCache.put(key, thumbnail);
+            return thumbnail.bits;
+        }
+    }
+
     @Override
     public abstract void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers);
 
@@ -125,6 +177,28 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return clientParam.getClientHostPassword();
     }
 
+    @Override
+    public long getClientBytesReceived() {
+        return 0;
+    }
+
+    @Override
+    public long getClientCpuTime() {
+        return 0;
+    }
+
+    @Override
+    public long getClientMemoryUsage() {
+        long usage = (long)tracker.getTrackWidth() * tracker.getTrackHeight() * 4;
+        synchronized (thumbnailCache) {
+            for (EncodedImage thumbnail : thumbnailCache.values())
+                usage += thumbnail.bits.length;
+            if (frameBufferJpeg != null)
+                usage += frameBufferJpeg.bits.length;
+        }
+        return usage;
+    }
+
     @Override
     public String getClientTag() {
         if (clientParam.getClientTag() != null)
@@ -144,6 +218,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     @Override
     public void onFramebufferSizeChange(int w, int h) {
         tracker.resize(w, h);
+        frameBufferVersion.incrementAndGet();
 
         synchronized (this) {
             framebufferResized = true;
@@ -159,6 +234,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         if (s_logger.isTraceEnabled())
             s_logger.trace("Frame buffer update {" + x + "," + y + "," + w + "," + h + "}");
         tracker.invalidate(new Rectangle(x, y, w, h));
+        frameBufferVersion.incrementAndGet();
 
         signalTileDirtyEvent();
     }
@@ -168,10 +244,20 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     //
     public byte[] getFrameBufferJpeg() {
         FrameBufferCanvas canvas = getFrameBufferCavas();
-        if (canvas != null)
-            return canvas.getFrameBufferJpeg();
-
-        return null;
+        if (canvas == null)
+            return null;
+
+        // viewers joining a console that did not change since the last one reuse its full frame
+        synchronized (thumbnailCache) {
+            long version = frameBufferVersion.get();
+            if (frameBufferJpeg == null || frameBufferJpeg.version != version) {
+                byte[] bits = canvas.getFrameBufferJpeg();
+                if (bits == null)
+                    return null;
+                frameBufferJpeg = new EncodedImage(bits, version);
+            }
+            return frameBufferJpeg.bits;
+        }
     }
 
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
@@ -182,6 +268,8 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     }
 
     private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
+        onFrontEndFetch();
+
         byte[] imgBits;
         if (init)
             imgBits = getFrameBufferJpeg();
@@ -412,6 +500,25 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 
     protected abstract FrameBufferCanvas getFrameBufferCavas();
 
+    /**
+     * Called whenever a viewer takes the current frame buffer content, protocol
+     * implementations may resume frame buffer updates they held back for it.
+     */
+    protected void onFrontEndFetch() {
+        fetchedFrameBufferVersion.set(frameBufferVersion.get());
+    }
+
+    protected static class EncodedImage {
+        private final byte[] bits;
+        private final long version;
+        private final long time = System.currentTimeMillis();
+
+        public EncodedImage(byte[] bits, long version) {
+            this.bits = bits;
+            this.version = version;
+        }
+    }
+
     public ConsoleProxyClientParam getClientParam() {
         return clientParam;
     }
@@ -67,6 +67,9 @@ public class ConsoleProxyClientStatsCollector {
                 conn.tag = client.getClientTag();
                 conn.createTime = client.getClientCreateTime();
                 conn.lastUsedTime = client.getClientLastFrontEndActivityTime();
+                conn.bytesReceived = client.getClientBytesReceived();
+                conn.cpuTime = client.getClientCpuTime();
+                conn.memoryUsage = client.getClientMemoryUsage();
                 conns.add(conn);
             }
         }
@@ -81,6 +84,9 @@ public class ConsoleProxyClientStatsCollector {
         public String tag;
         public long createTime;
         public long lastUsedTime;
+        public long bytesReceived;
+        public long cpuTime;
+        public long memoryUsage;
 
         public ConsoleProxyConnection() {
         }
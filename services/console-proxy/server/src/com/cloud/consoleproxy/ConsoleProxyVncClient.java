@@ -17,8 +17,11 @@
 package com.cloud.consoleproxy;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
@@ -47,6 +50,10 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
     private VncClient client;
     private Thread worker;
     private volatile boolean workerDone = false;
+    private volatile long workerCpuTime = 0;
+
+    // set when a frame buffer update request is held back until viewers catch up
+    private final AtomicBoolean updateDeferred = new AtomicBoolean(false);
 
     private int lastModifierStates = 0;
     private int lastPointerMask = 0;
@@ -107,6 +114,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
                 }
 
                 s_logger.info("Receiver thread stopped.");
+                workerCpuTime = getWorkerCpuTime();
                 workerDone = true;
                 client.getClientListener().onClientClose();
             }
@@ -136,10 +144,52 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
 
     @Override
     public void onFramebufferUpdate(int x, int y, int w, int h) {
+        long version = frameBufferVersion.get();
         super.onFramebufferUpdate(x, y, w, h);
+
+        // don't pull more updates from the host while viewers have not fetched the previous ones,
+        // a slow browser would otherwise keep the proxy decoding frames nobody looks at
+        if (version > fetchedFrameBufferVersion.get()) {
+            updateDeferred.set(true);
+
+            // re-check, a viewer may have fetched before the flag was set
+            if (version > fetchedFrameBufferVersion.get() || !updateDeferred.compareAndSet(true, false))
+                return;
+        }
         client.requestUpdate(false);
     }
 
+    @Override
+    protected void onFrontEndFetch() {
+        super.onFrontEndFetch();
+        if (updateDeferred.compareAndSet(true, false))
+            client.requestUpdate(false);
+    }
+
+    @Override
+    public long getClientBytesReceived() {
+        if (client != null)
+            return client.getBytesReceived();
+        return 0;
+    }
+
+    @Override
+    public long getClientCpuTime() {
+        if (workerDone)
+            return workerCpuTime;
+        return getWorkerCpuTime();
+    }
+
+    private long getWorkerCpuTime() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (worker == null || !threadBean.isThreadCpuTimeSupported())
+            return 0;
+
+        // -1 once the thread is gone
+        long nanos = threadBean.getThreadCpuTime(worker.getId());
+        return nanos > 0 ? nanos / 1000000 : 0;
+    }
+
     @Override
     public void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers) {
         if (client == null)
@@ -22,10 +22,13 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.spec.KeySpec;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -44,6 +47,7 @@ public class VncClient {
     private Socket socket;
     private DataInputStream is;
     private DataOutputStream os;
+    private final AtomicLong bytesReceived = new AtomicLong();
 
     private final VncScreenDescription screen = new VncScreenDescription();
 
@@ -157,7 +161,7 @@ public class VncClient {
     }
 
     private void doConnect(String password) throws IOException {
-        is = new DataInputStream(socket.getInputStream());
+        is = new DataInputStream(new CountingInputStream(socket.getInputStream(), bytesReceived));
         os = new DataOutputStream(socket.getOutputStream());
 
         // Initialize connection
@@ -455,4 +459,44 @@ public class VncClient {
     public boolean isHostConnected() {
         return receiver != null && receiver.isConnectionAlive();
     }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Counts the bytes read from VNC server, for the per session stats.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        public CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                counter.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0)
+                counter.addAndGet(count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = super.skip(n);
+            if (count > 0)
+                counter.addAndGet(count);
+            return count;
+        }
+    }
 }
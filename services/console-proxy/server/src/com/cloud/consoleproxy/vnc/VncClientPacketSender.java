@@ -25,6 +25,10 @@ import java.awt.event.MouseMotionListener;
 import java.io.DataOutputStream;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import com.cloud.consoleproxy.util.Logger;
@@ -38,22 +42,40 @@ import com.cloud.consoleproxy.vnc.packet.client.SetPixelFormatPacket;
 public class VncClientPacketSender implements Runnable, PaintNotificationListener, KeyListener, MouseListener, MouseMotionListener, FrameBufferUpdateListener {
     private static final Logger s_logger = Logger.getLogger(VncClientPacketSender.class);
 
+    // Closes the sessions whose VNC server stopped reading, the blocked write is failed by closing the socket
+    private static final ScheduledExecutorService s_writeWatchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VNC-Write-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final long DEFAULT_WRITE_TIMEOUT_MS = 30000;
+
     // Queue for outgoing packets
     private final BlockingQueue<ClientPacket> queue = new ArrayBlockingQueue<ClientPacket>(30);
 
     private final DataOutputStream os;
     private final VncScreenDescription screen;
     private final VncClient vncConnection;
+    private final long writeTimeoutMs;
 
-    private boolean connectionAlive = true;
+    private volatile boolean connectionAlive = true;
 
     // Don't send update request again until we receive next frame buffer update
     private boolean updateRequestSent = false;
 
     public VncClientPacketSender(DataOutputStream os, VncScreenDescription screen, VncClient vncConnection) {
+        this(os, screen, vncConnection, DEFAULT_WRITE_TIMEOUT_MS);
+    }
+
+    VncClientPacketSender(DataOutputStream os, VncScreenDescription screen, VncClient vncConnection, long writeTimeoutMs) {
         this.os = os;
         this.screen = screen;
         this.vncConnection = vncConnection;
+        this.writeTimeoutMs = writeTimeoutMs;
 
         sendSetPixelFormat();
         sendSetEncodings();
@@ -61,37 +83,67 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
     }
 
     public void sendClientPacket(ClientPacket packet) {
-        queue.add(packet);
+        if (!connectionAlive)
+            return;
+        if (!queue.offer(packet)) {
+            // the writer of this session has been blocked on its VNC server for a while, the write timeout is about to close it
+            s_logger.info("Packet queue is full, shutdown connection");
+            shutdownConnection();
+        }
+    }
+
+    private void shutdownConnection() {
+        if (connectionAlive) {
+            closeConnection();
+            vncConnection.shutdown();
+        }
     }
 
+    /**
+     * Writes out the queued packets, runs on the writer thread of the session.
+     */
     @Override
     public void run() {
         try {
             while (connectionAlive) {
                 ClientPacket packet = queue.poll(1, TimeUnit.SECONDS);
-                if (packet != null) {
-                    packet.write(os);
+                if (packet == null)
+                    continue;
+
+                // closing the connection fails the blocked write and ends the session
+                ScheduledFuture<?> watchdog = s_writeWatchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        s_logger.info("Writing to VNC server timed out after " + writeTimeoutMs + " ms, shutdown connection");
+                        shutdownConnection();
+                    }
+                }, writeTimeoutMs, TimeUnit.MILLISECONDS);
+                try {
+                    do {
+                        packet.write(os);
+                    } while (connectionAlive && (packet = queue.poll()) != null);
                     os.flush();
+                } finally {
+                    watchdog.cancel(false);
                 }
             }
         } catch (Throwable e) {
-            s_logger.error("Unexpected exception: ", e);
             if (connectionAlive) {
-                closeConnection();
+                s_logger.error("Unexpected exception: ", e);
             }
         } finally {
             s_logger.info("Sending thread exit processing, shutdown connection");
-            vncConnection.shutdown();
+            shutdownConnection();
         }
     }
 
     private void sendSetEncodings() {
-        queue.add(new SetEncodingsPacket(RfbConstants.SUPPORTED_ENCODINGS_ARRAY));
+        sendClientPacket(new SetEncodingsPacket(RfbConstants.SUPPORTED_ENCODINGS_ARRAY));
     }
 
     private void sendSetPixelFormat() {
         if (!screen.isRGB888_32_LE()) {
-            queue.add(new SetPixelFormatPacket(screen, 32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0));
+            sendClientPacket(new SetPixelFormatPacket(screen, 32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0));
         }
     }
 
@@ -100,14 +152,14 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
     }
 
     public void requestFullScreenUpdate() {
-        queue.add(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen.getFramebufferHeight()));
+        sendClientPacket(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen.getFramebufferHeight()));
         updateRequestSent = true;
     }
 
     @Override
     public void imagePaintedOnScreen() {
         if (!updateRequestSent) {
-            queue.add(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(),
+            sendClientPacket(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(),
                 screen.getFramebufferHeight()));
             updateRequestSent = true;
         }
@@ -120,12 +172,12 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
 
     @Override
     public void mouseDragged(MouseEvent e) {
-        queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+        sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
     }
 
     @Override
     public void mouseMoved(MouseEvent e) {
-        queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+        sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
     }
 
     @Override
@@ -135,12 +187,12 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
 
     @Override
     public void mousePressed(MouseEvent e) {
-        queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+        sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+        sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
     }
 
     @Override
@@ -180,13 +232,13 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
     @Override
     public void keyPressed(KeyEvent e) {
         ClientPacket request = new KeyboardEventPacket(RfbConstants.KEY_DOWN, mapAwtKeyToVncKey(e.getKeyCode()));
-        queue.add(request);
+        sendClientPacket(request);
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
         ClientPacket request = new KeyboardEventPacket(RfbConstants.KEY_UP, mapAwtKeyToVncKey(e.getKeyCode()));
-        queue.add(request);
+        sendClientPacket(request);
     }
 
     private int mapAwtKeyToVncKey(int key) {
@@ -0,0 +1,146 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.consoleproxy;
+
+import java.awt.image.BufferedImage;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+public class ConsoleProxyClientBaseTest {
+
+    private FrameBufferCanvas canvas;
+    private ConsoleProxyClientBase client;
+
+    @Before
+    public void setUp() {
+        canvas = Mockito.mock(FrameBufferCanvas.class);
+        Mockito.when(canvas.getFrameBufferScaledImage(Mockito.anyInt(), Mockito.anyInt())).thenReturn(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB));
+        Mockito.when(canvas.getFrameBufferJpeg()).thenReturn(new byte[] {1, 2, 3});
+
+        client = new ConsoleProxyClientBase() {
+            @Override
+            public boolean isHostConnected() {
+                return true;
+            }
+
+            @Override
+            public boolean isFrontEndAlive() {
+                return true;
+            }
+
+            @Override
+            public void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers) {
+            }
+
+            @Override
+            public void sendClientMouseEvent(InputEventType event, int x, int y, int code, int modifiers) {
+            }
+
+            @Override
+            public void initClient(ConsoleProxyClientParam param) {
+            }
+
+            @Override
+            public void closeClient() {
+            }
+
+            @Override
+            public void onClientConnected() {
+            }
+
+            @Override
+            public void onClientClose() {
+            }
+
+            @Override
+            protected FrameBufferCanvas getFrameBufferCavas() {
+                return canvas;
+            }
+        };
+    }
+
+    @Test
+    public void testThumbnailIsEncodedOnce() {
+        byte[] first = client.getClientThumbnailJpeg(144, 110);
+        byte[] second = client.getClientThumbnailJpeg(144, 110);
+
+        Assert.assertNotNull(first);
+        Assert.assertSame(first, second);
+        Mockito.verify(canvas, Mockito.times(1)).getFrameBufferScaledImage(144, 110);
+    }
+
+    @Test
+    public void testThumbnailIsCachedBySize() {
+        client.getClientThumbnailJpeg(144, 110);
+        client.getClientThumbnailJpeg(320, 240);
+        client.getClientThumbnailJpeg(144, 110);
+
+        Mockito.verify(canvas, Mockito.times(1)).getFrameBufferScaledImage(144, 110);
+        Mockito.verify(canvas, Mockito.times(1)).getFrameBufferScaledImage(320, 240);
+    }
+
+    @Test
+    public void testStaleThumbnailIsRefreshed() {
+        int refreshMillis = ConsoleProxy.thumbnailRefreshMillis;
+        ConsoleProxy.thumbnailRefreshMillis = 0;
+        try {
+            client.getClientThumbnailJpeg(144, 110);
+            client.onFramebufferUpdate(0, 0, 10, 10);
+            client.getClientThumbnailJpeg(144, 110);
+
+            Mockito.verify(canvas, Mockito.times(2)).getFrameBufferScaledImage(144, 110);
+        } finally {
+            ConsoleProxy.thumbnailRefreshMillis = refreshMillis;
+        }
+    }
+
+    @Test
+    public void testFrameBufferJpegIsReusedUntilUpdate() {
+        client.getFrameBufferJpeg();
+        client.getFrameBufferJpeg();
+        Mockito.verify(canvas, Mockito.times(1)).getFrameBufferJpeg();
+
+        client.onFramebufferUpdate(0, 0, 10, 10);
+        client.getFrameBufferJpeg();
+        Mockito.verify(canvas, Mockito.times(2)).getFrameBufferJpeg();
+    }
+
+    @Test
+    public void testFrontEndFetchCatchesUpWithFrameBuffer() {
+        client.onFramebufferUpdate(0, 0, 10, 10);
+        Assert.assertTrue(client.frameBufferVersion.get() > client.fetchedFrameBufferVersion.get());
+
+        client.getClientThumbnailJpeg(144, 110);
+        Assert.assertEquals(client.frameBufferVersion.get(), client.fetchedFrameBufferVersion.get());
+    }
+
+    @Test
+    public void testMemoryUsageCountsCachedImages() {
+        long usage = client.getClientMemoryUsage();
+        Assert.assertEquals(800 * 600 * 4, usage);
+
+        client.getFrameBufferJpeg();
+        Assert.assertEquals(usage + 3, client.getClientMemoryUsage());
+    }
+}
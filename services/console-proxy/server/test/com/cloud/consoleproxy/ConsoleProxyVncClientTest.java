@@ -0,0 +1,60 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.consoleproxy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.cloud.consoleproxy.vnc.VncClient;
+
+public class ConsoleProxyVncClientTest {
+
+    private VncClient vnc;
+    private ConsoleProxyVncClient client;
+
+    @Before
+    public void setUp() {
+        vnc = Mockito.mock(VncClient.class);
+        client = new ConsoleProxyVncClient();
+        Whitebox.setInternalState(client, "client", vnc);
+    }
+
+    @Test
+    public void testUpdatesAreDeferredUntilViewersFetch() {
+        // nothing pending, the next update is requested right away
+        client.onFramebufferUpdate(0, 0, 10, 10);
+        Mockito.verify(vnc, Mockito.times(1)).requestUpdate(false);
+
+        // the viewers have not fetched the previous update yet
+        client.onFramebufferUpdate(0, 0, 10, 10);
+        client.onFramebufferUpdate(0, 0, 10, 10);
+        Mockito.verify(vnc, Mockito.times(1)).requestUpdate(false);
+
+        // the fetch releases the deferred request, once
+        client.onFrontEndFetch();
+        Mockito.verify(vnc, Mockito.times(2)).requestUpdate(false);
+        client.onFrontEndFetch();
+        Mockito.verify(vnc, Mockito.times(2)).requestUpdate(false);
+
+        // caught up again
+        client.onFramebufferUpdate(0, 0, 10, 10);
+        Mockito.verify(vnc, Mockito.times(3)).requestUpdate(false);
+    }
+}
@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.consoleproxy.vnc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.consoleproxy.vnc.packet.client.KeyboardEventPacket;
+
+public class VncClientPacketSenderTest {
+
+    @Test
+    public void testPacketsAreWrittenInOrder() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        VncScreenDescription screen = new VncScreenDescription();
+        screen.setFramebufferSize(800, 600);
+        VncClient connection = Mockito.mock(VncClient.class);
+
+        VncClientPacketSender sender = new VncClientPacketSender(new DataOutputStream(bos), screen, connection);
+        new Thread(sender).start();
+        sender.sendClientPacket(new KeyboardEventPacket(RfbConstants.KEY_DOWN, 0x61));
+
+        // pixel format, encodings and the first full update request go out before the key
+        int expectedSize = 20 + 4 + 4 * RfbConstants.SUPPORTED_ENCODINGS_ARRAY.length + 10 + 8;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bos.size() < expectedSize && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        byte[] bits = bos.toByteArray();
+        Assert.assertEquals(expectedSize, bits.length);
+        Assert.assertEquals(RfbConstants.CLIENT_SET_PIXEL_FORMAT, bits[0]);
+        Assert.assertEquals(RfbConstants.CLIENT_SET_ENCODINGS, bits[20]);
+        Assert.assertEquals(RfbConstants.CLIENT_FRAMEBUFFER_UPDATE_REQUEST, bits[expectedSize - 18]);
+        Assert.assertEquals(RfbConstants.CLIENT_KEYBOARD_EVENT, bits[expectedSize - 8]);
+        Mockito.verify(connection, Mockito.never()).shutdown();
+
+        sender.closeConnection();
+    }
+
+    /**
+     * @return a VNC server connection that stops reading, the write blocks until the socket is closed by the shutdown of the session
+     */
+    private static OutputStream createStuckStream(VncClient connection) {
+        final CountDownLatch closed = new CountDownLatch(1);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                closed.countDown();
+                return null;
+            }
+        }).when(connection).shutdown();
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Socket closed");
+            }
+        };
+    }
+
+    @Test
+    public void testStuckWriteShutsDownConnection() throws Exception {
+        VncScreenDescription screen = new VncScreenDescription();
+        screen.setFramebufferSize(800, 600);
+        VncClient connection = Mockito.mock(VncClient.class);
+
+        VncClientPacketSender sender = new VncClientPacketSender(new DataOutputStream(createStuckStream(connection)), screen, connection, 200);
+        new Thread(sender).start();
+
+        Mockito.verify(connection, Mockito.timeout(5000)).shutdown();
+        // packets of a dropped session are not queued any more
+        for (int i = 0; i < 50; i++)
+            sender.sendClientPacket(new KeyboardEventPacket(RfbConstants.KEY_DOWN, 0x61));
+    }
+
+    @Test
+    public void testStuckSessionDoesNotAffectOthers() throws Exception {
+        VncScreenDescription screen = new VncScreenDescription();
+        screen.setFramebufferSize(800, 600);
+        VncClient stuckConnection = Mockito.mock(VncClient.class);
+        VncClientPacketSender stuck = new VncClientPacketSender(new DataOutputStream(createStuckStream(stuckConnection)), screen, stuckConnection, 2000);
+        new Thread(stuck).start();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        VncClient connection = Mockito.mock(VncClient.class);
+        VncClientPacketSender sender = new VncClientPacketSender(new DataOutputStream(bos), screen, connection);
+        new Thread(sender).start();
+
+        // far more packets than a queue holds, the healthy session keeps writing while the other one is stuck
+        for (int i = 0; i < 100; i++) {
+            stuck.sendClientPacket(new KeyboardEventPacket(RfbConstants.KEY_DOWN, 0x61));
+            sender.sendClientPacket(new KeyboardEventPacket(RfbConstants.KEY_DOWN, 0x61));
+            Thread.sleep(5);
+        }
+
+        Mockito.verify(stuckConnection, Mockito.timeout(5000)).shutdown();
+        Mockito.verify(connection, Mockito.never()).shutdown();
+        sender.closeConnection();
+    }
+}
@@ -240,6 +240,8 @@ public class SecondaryStorageManagerImpl extends ManagerBase implements Secondar
     VolumeDataStoreDao _volumeStoreDao;
     private long _capacityScanInterval = DEFAULT_CAPACITY_SCAN_INTERVAL;
     private int _secStorageVmMtuSize;
+    private int _downloadConnections;
+    private long _copyBandwidthLimit;
 
     private String _instance;
     private boolean _useSSlCopy;
@@ -825,6 +827,8 @@ public class SecondaryStorageManagerImpl extends ManagerBase implements Secondar
         Map<String, String> configs = _configDao.getConfiguration("management-server", params);
 
         _secStorageVmMtuSize = NumbersUtil.parseInt(configs.get("secstorage.vm.mtu.size"), DEFAULT_SS_VM_MTUSIZE);
+        _downloadConnections = NumbersUtil.parseInt(configs.get("secstorage.download.connections"), 1);
+        _copyBandwidthLimit = NumbersUtil.parseLong(configs.get("secstorage.copy.bandwidth.limit"), 0);
         String useServiceVM = _configDao.getValue("secondary.storage.vm");
         boolean _useServiceVM = false;
         if ("true".equalsIgnoreCase(useServiceVM)) {
@@ -1073,6 +1077,8 @@ public class SecondaryStorageManagerImpl extends ManagerBase implements Secondar
         buf.append(" sslcopy=").append(Boolean.toString(_useSSlCopy));
         buf.append(" role=").append(vm.getRole().toString());
         buf.append(" mtu=").append(_secStorageVmMtuSize);
+        buf.append(" download.connections=").append(_downloadConnections);
+        buf.append(" copy.bandwidth.limit=").append(_copyBandwidthLimit);
 
         boolean externalDhcp = false;
         String externalDhcpStr = _configDao.getValue("direct.attach.network.externalIpAllocator.enabled");
@@ -16,7 +16,6 @@
 // under the License.
 package org.apache.cloudstack.storage.resource;
 
-import static com.cloud.utils.S3Utils.mputFile;
 import static com.cloud.utils.S3Utils.putFile;
 import static com.cloud.utils.StringUtils.join;
 import static java.lang.String.format;
@@ -155,13 +154,14 @@ import com.cloud.storage.template.TemplateProp;
 import com.cloud.storage.template.VhdProcessor;
 import com.cloud.storage.template.VmdkProcessor;
 import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.S3TransferEngine;
 import com.cloud.utils.S3Utils;
-import com.cloud.utils.S3Utils.FileNamingStrategy;
 import com.cloud.utils.SwiftUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.storage.FileCopier;
 import com.cloud.vm.SecondaryStorageVm;
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
@@ -193,6 +193,8 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     protected StorageLayer _storage;
     protected boolean _inSystemVM = false;
     boolean _sslCopy = false;
+    long _copyBandwidthLimit = 0;
+    S3TransferEngine _s3TransferEngine;
 
     protected DownloadManager _dlMgr;
     protected UploadManager _upldMgr;
@@ -386,16 +388,8 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 }
             }
 
-            File destFile = S3Utils.getFile(s3, s3.getBucketName(), srcData.getPath(), downloadDirectory, new FileNamingStrategy() {
-                @Override
-                public String determineFileName(final String key) {
-                    return substringAfterLast(key, S3Utils.SEPARATOR);
-                }
-            });
-
-            if (destFile == null) {
-                return new CopyCmdAnswer("Can't find template");
-            }
+            final String key = srcData.getPath();
+            File destFile = _s3TransferEngine.download(s3, s3.getBucketName(), key, new File(downloadDirectory, substringAfterLast(key, S3Utils.SEPARATOR)));
 
             return postProcessing(destFile, downloadPath, destPath, srcData, destData);
         } catch (Exception e) {
@@ -494,7 +488,27 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             String fileName = templateName + "." + srcFormat.getFileExtension();
             String destFileFullPath = destFile.getAbsolutePath() + File.separator + fileName;
             s_logger.debug("copy snapshot " + srcFile.getAbsolutePath() + " to template " + destFileFullPath);
-            Script.runSimpleBashScript("cp " + srcFile.getAbsolutePath() + " " + destFileFullPath);
+            String checksum = null;
+            if (srcData.getParentSnapshotPath() != null) {
+                // an incremental backup is a qcow2 delta on top of the previous backup, flatten the chain into the template
+                Script command = new Script("qemu-img", cmd.getWait() * 1000, s_logger);
+                command.add("convert");
+                command.add("-O", srcFormat.toString().toLowerCase());
+                command.add(srcFile.getAbsolutePath());
+                command.add(destFileFullPath);
+                String result = command.execute();
+                if (result != null) {
+                    s_logger.debug("Failed to convert snapshot " + srcFile.getAbsolutePath() + " to " + destFileFullPath + ": " + result);
+                    return new CopyCmdAnswer(result);
+                }
+            } else {
+                try {
+                    checksum = copyLocalFile(srcFile, new File(destFileFullPath));
+                } catch (IOException e) {
+                    s_logger.debug("Failed to copy snapshot " + srcFile.getAbsolutePath() + " to " + destFileFullPath + ": " + e.toString());
+                    return new CopyCmdAnswer(e.toString());
+                }
+            }
             String metaFileName = destFile.getAbsolutePath() + File.separator + "template.properties";
             File metaFile = new File(metaFileName);
             try {
@@ -544,6 +558,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                     newTemplate.setFormat(srcFormat);
                     newTemplate.setSize(prop.getSize());
                     newTemplate.setPhysicalSize(prop.getPhysicalSize());
+                    newTemplate.setChecksum(checksum);
                     return new CopyCmdAnswer(newTemplate);
                 } catch (ConfigurationException e) {
                     s_logger.debug("Failed to create template:" + e.toString());
@@ -561,6 +576,34 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         return new CopyCmdAnswer("");
     }
 
+    /**
+     * Copy a file between NFS mounts in process, keeping holes and computing
+     * the MD5 sum in the same pass.
+     *
+     * @return MD5 sum of the copied data
+     */
+    protected String copyLocalFile(final File srcFile, File destFile) throws IOException {
+        FileCopier copier = new FileCopier();
+        copier.setSparse(true);
+        copier.setChecksumAlgorithm("MD5");
+        copier.setBandwidthLimit(_copyBandwidthLimit);
+        copier.setProgressListener(new FileCopier.ProgressListener() {
+            private long lastReport = System.currentTimeMillis();
+
+            @Override
+            public boolean onProgress(long copied, long total) {
+                long now = System.currentTimeMillis();
+                if (s_logger.isDebugEnabled() && now - lastReport > 10000) {
+                    s_logger.debug("Copied " + copied + " of " + total + " bytes of " + srcFile.getAbsolutePath());
+                    lastReport = now;
+                }
+                return true;
+            }
+        });
+        copier.copy(srcFile, destFile);
+        return copier.getChecksum();
+    }
+
     protected File getFile(String path, String nfsPath) {
         String filePath = getRootDir(nfsPath) + File.separator + path;
         File f = new File(filePath);
@@ -911,7 +954,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             ImageFormat format = getTemplateFormat(srcFile.getName());
             String key = destData.getPath() + S3Utils.SEPARATOR + srcFile.getName();
             if (!s3.getSingleUpload(srcSize)) {
-                mputFile(s3, srcFile, bucket, key);
+                _s3TransferEngine.upload(s3, srcFile, bucket, key);
             } else {
                 putFile(s3, srcFile, bucket, key);
             }
@@ -2044,6 +2087,15 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         String value = (String)params.get("scripts.timeout");
         _timeout = NumbersUtil.parseInt(value, 1440) * 1000;
 
+        // MB per second for copies between NFS stores, 0 for no limit
+        value = (String)params.get("copy.bandwidth.limit");
+        _copyBandwidthLimit = NumbersUtil.parseLong(value, 0) * 1024 * 1024;
+
+        // part size in MB and number of parts in flight for transfers to and from S3
+        long s3PartSize = NumbersUtil.parseLong((String)params.get("s3.part.size"), 64) * 1024 * 1024;
+        int s3Concurrency = NumbersUtil.parseInt((String)params.get("s3.concurrency"), 4);
+        _s3TransferEngine = new S3TransferEngine(s3PartSize, s3Concurrency);
+
         _storage = (StorageLayer)params.get(StorageLayer.InstanceConfigKey);
         configureStorageLayerClass(params);
 
@@ -2483,6 +2535,9 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
 
     @Override
     public boolean stop() {
+        if (_s3TransferEngine != null) {
+            _s3TransferEngine.shutdown();
+        }
         return true;
     }
 
@@ -122,6 +122,7 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         private long templatePhysicalSize;
         private final long id;
         private final ResourceType resourceType;
+        private int retries;
 
         public DownloadJob(TemplateDownloader td, String jobId, long id, String tmpltName, ImageFormat format, boolean hvm, Long accountId, String descr, String cksum,
                 String installPathPrefix, ResourceType resourceType) {
@@ -182,6 +183,10 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             return installPathPrefix;
         }
 
+        public int nextRetry() {
+            return ++retries;
+        }
+
         public void cleanup() {
             if (td != null) {
                 String dnldPath = td.getDownloadLocalPath();
@@ -219,6 +224,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     }
 
     public static final Logger s_logger = Logger.getLogger(DownloadManagerImpl.class);
+    // attempts made on a download after a recoverable error before the job fails
+    private static final int MAX_DOWNLOAD_RETRIES = 3;
     private String _templateDir;
     private String _volumeDir;
     private String createTmpltScr;
@@ -230,6 +237,7 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private String listTmpltScr;
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int downloadConnections = 1;
 
     public void setThreadPool(ExecutorService threadPool) {
         this.threadPool = threadPool;
@@ -274,7 +282,14 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
             threadPool.execute(td);
             break;
         case RECOVERABLE_ERROR:
-            threadPool.execute(td);
+            if (dj.nextRetry() <= MAX_DOWNLOAD_RETRIES) {
+                s_logger.info("Retrying jobId: " + jobId + " after a recoverable error");
+                td.setResume(true);
+                threadPool.execute(td);
+            } else {
+                // give up on this job, but keep what was downloaded so far for the next download of the same url
+                td.setStatus(Status.UNRECOVERABLE_ERROR);
+            }
             break;
         case DOWNLOAD_FINISHED:
             if(td instanceof S3TemplateDownloader) {
@@ -397,7 +412,14 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         ResourceType resourceType = dnld.getResourceType();
 
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        String checkSum = null;
+        if (td instanceof HttpTemplateDownloader) {
+            // ranged downloads compute the sum while the data comes in
+            checkSum = ((HttpTemplateDownloader)td).getChecksum();
+        }
+        if (checkSum == null) {
+            checkSum = computeCheckSum(originalTemplate);
+        }
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
@@ -574,7 +596,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                     TemplateDownloader td;
                     if ((uri != null) && (uri.getScheme() != null)) {
                         if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                            td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType,
+                                    downloadConnections);
                         } else if (uri.getScheme().equalsIgnoreCase("file")) {
                             td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                         } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -989,6 +1012,9 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String)params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        value = (String)params.get("download.connections");
+        downloadConnections = NumbersUtil.parseInt(value, 1);
+
         String scriptsDir = (String)params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
@@ -413,3 +413,20 @@ CREATE TABLE `cloud`.`ldap_trust_map` (
   UNIQUE KEY `uk_ldap_trust_map__domain_id` (`domain_id`),
   CONSTRAINT `fk_ldap_trust_map__domain_id` FOREIGN KEY (`domain_id`) REFERENCES `domain` (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE `cloud_usage`.`usage_rollup` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `period` varchar(5) NOT NULL COMMENT 'DAY or MONTH',
+  `period_start` DATE NOT NULL COMMENT 'first day of the period in the usage aggregation timezone',
+  `zone_id` bigint unsigned NOT NULL,
+  `account_id` bigint unsigned NOT NULL,
+  `domain_id` bigint unsigned NOT NULL,
+  `usage_type` int(1) unsigned NOT NULL,
+  `offering_id` bigint unsigned NOT NULL DEFAULT 0,
+  `raw_usage` DOUBLE UNSIGNED NOT NULL,
+  `records` bigint unsigned NOT NULL COMMENT 'number of cloud_usage records summed up',
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `uk_usage_rollup` (`period`, `period_start`, `account_id`, `usage_type`, `zone_id`, `offering_id`),
+  INDEX `i_usage_rollup__account_id`(`account_id`, `period`, `period_start`),
+  INDEX `i_usage_rollup__domain_id`(`domain_id`, `period`, `period_start`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
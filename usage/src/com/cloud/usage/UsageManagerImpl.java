@@ -25,6 +25,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -81,6 +84,7 @@ import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.user.dao.VmDiskStatisticsDao;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -88,6 +92,7 @@ import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Component
 @Local(value = {UsageManager.class})
@@ -158,6 +163,13 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
 
     private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
     private final ScheduledExecutorService _heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
+    // parses accounts in parallel when usage.aggregation.workers is more than 1, null otherwise
+    private ExecutorService _parseExecutor = null;
+    // period of usage records left behind by a failed job because removing them failed as well
+    private Date _unremovedUsageStart = null;
+    private Date _unremovedUsageEnd = null;
+    private long _unremovedUsageTimeStart;
+    private int _aggregationWorkers = 1;
     private final ScheduledExecutorService _sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
     private Future _scheduledFuture = null;
     private Future _heartbeat = null;
@@ -203,6 +215,15 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             _sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
 
+        _aggregationWorkers = NumbersUtil.parseInt(configs.get("usage.aggregation.workers"), 1);
+        boolean aggregateInDb = Boolean.parseBoolean(configs.get("usage.aggregation.sql"));
+        VMInstanceUsageParser.setAggregateInDb(aggregateInDb);
+        StorageUsageParser.setAggregateInDb(aggregateInDb);
+        VolumeUsageParser.setAggregateInDb(aggregateInDb);
+        if (_aggregationWorkers > 1) {
+            _parseExecutor = Executors.newFixedThreadPool(_aggregationWorkers, new NamedThreadFactory("Usage-Parser"));
+        }
+
         if (aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()) {
             _usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
         }
@@ -306,6 +327,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        if (_parseExecutor != null) {
+            _parseExecutor.shutdownNow();
+        }
         return true;
     }
 
@@ -584,6 +608,12 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             try {
                 usageTxn.start();
 
+                // parsing the period again on top of the leftovers of a failed job would bill it twice
+                if (_unremovedUsageStart != null && !removeParsedUsage(_unremovedUsageStart, _unremovedUsageEnd, _unremovedUsageTimeStart)) {
+                    throw new CloudRuntimeException("Usage records of a failed usage job between " + _unremovedUsageStart + " and " + _unremovedUsageEnd +
+                            " are still in place");
+                }
+
                 // make sure start date is before all of our un-processed events (the events are ordered oldest
                 // to newest, so just test against the first event)
                 if ((events != null) && (events.size() > 0)) {
@@ -726,58 +756,50 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 }
 
                 while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = _accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                    if (_parseExecutor != null) {
+                        parsed = parseAccountsInParallel(currentStartDate, currentEndDate, recentlyDeletedDate);
+                        if (!parsed) {
+                            break;
+                        }
+                    } else {
+                        Long offset = Long.valueOf(0);
+                        Long limit = Long.valueOf(500);
+
+                        do {
+                            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                            accounts = _accountDao.listAll(filter);
+                            if ((accounts != null) && !accounts.isEmpty()) {
+                                for (AccountVO account : accounts) {
+                                    parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                                    numAcctsProcessed++;
+                                }
                             }
+                            offset = new Long(offset.longValue() + limit.longValue());
+                        } while ((accounts != null) && !accounts.isEmpty());
+
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
+                        numAcctsProcessed = 0;
 
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                                "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
+                        // reset offset
+                        offset = Long.valueOf(0);
+
+                        do {
+                            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+
+                            accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+
+                            if ((accounts != null) && !accounts.isEmpty()) {
+                                for (AccountVO account : accounts) {
+                                    parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                                    markPublicTemplatesDeleted(account);
+                                    numAcctsProcessed++;
                                 }
-                                numAcctsProcessed++;
                             }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
+                            offset = new Long(offset.longValue() + limit.longValue());
+                        } while ((accounts != null) && !accounts.isEmpty());
+                    }
 
                     currentStartDate = new Date(currentEndDate.getTime() + 1);
                     aggregateCal.setTime(currentEndDate);
@@ -793,12 +815,16 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 //        do we want to break out of processing accounts and rollback if there are errors?
                 if (!parsed) {
                     usageTxn.rollback();
+                    removeParsedUsage(startDate, endDate, timeStart);
                 } else {
+                    // shares usageTxn, if the rollup throws the job fails and its records are rolled back below
+                    _usageDao.updateUsageRollups(startDate, endDate, _usageTimezone);
                     success = true;
                 }
             } catch (Exception ex) {
                 s_logger.error("Exception in usage manager", ex);
                 usageTxn.rollback();
+                removeParsedUsage(startDate, endDate, timeStart);
             } finally {
                 // everything seemed to work...set endDate as the last success date
                 _usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
@@ -826,7 +852,135 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
-    private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
+    private void markPublicTemplatesDeleted(AccountVO account) {
+        List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+        for (Long templateId : publicTemplates) {
+            //mark public templates owned by deleted accounts as deleted
+            List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+            if (storageVOs.size() > 1) {
+                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                        "; marking them all as deleted...");
+            }
+            for (UsageStorageVO storageVO : storageVOs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                }
+                storageVO.setDeleted(account.getRemoved());
+                _usageStorageDao.update(storageVO);
+            }
+        }
+    }
+
+    /**
+     * Parses the usage of all active and recently deleted accounts for one aggregation period on the
+     * parser threads. Every account is parsed and committed in its own usage DB transaction, a failed
+     * run is undone by removeParsedUsage.
+     *
+     * @return true if the usage of every account was parsed
+     */
+    protected boolean parseAccountsInParallel(Date currentStartDate, Date currentEndDate, Date recentlyDeletedDate) throws InterruptedException {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        Long offset = Long.valueOf(0);
+        Long limit = Long.valueOf(500);
+        List<AccountVO> accounts = null;
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            accounts = _accountDao.listAll(filter);
+            if ((accounts != null) && !accounts.isEmpty()) {
+                for (AccountVO account : accounts) {
+                    results.add(submitAccountParser(account, currentStartDate, currentEndDate, false));
+                }
+            }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((accounts != null) && !accounts.isEmpty());
+
+        offset = Long.valueOf(0);
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+            if ((accounts != null) && !accounts.isEmpty()) {
+                for (AccountVO account : accounts) {
+                    results.add(submitAccountParser(account, currentStartDate, currentEndDate, true));
+                }
+            }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((accounts != null) && !accounts.isEmpty());
+
+        boolean parsed = true;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) {
+                    parsed = false;
+                }
+            } catch (ExecutionException e) {
+                s_logger.error("Exception while parsing usage", e.getCause());
+                parsed = false;
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("processed usage for " + results.size() + " accts on " + _aggregationWorkers + " parser threads, success: " + parsed);
+        }
+        return parsed;
+    }
+
+    private Future<Boolean> submitAccountParser(final AccountVO account, final Date currentStartDate, final Date currentEndDate, final boolean deleted) {
+        return _parseExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                try {
+                    txn.start();
+                    boolean parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                    if (deleted) {
+                        markPublicTemplatesDeleted(account);
+                    }
+                    txn.commit();
+                    return parsed;
+                } catch (RuntimeException e) {
+                    txn.rollback();
+                    throw e;
+                } finally {
+                    txn.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * The parser threads commit the usage of every account on their own, so when a parallel run fails
+     * the records it created are removed again to keep the period all-or-nothing. When that fails too,
+     * an alert is raised and no usage is parsed until the records are removed.
+     *
+     * @return false if the records could not be removed
+     */
+    protected boolean removeParsedUsage(Date startDate, Date endDate, long timeStart) {
+        if (_parseExecutor == null) {
+            return true;
+        }
+        s_logger.info("Removing usage records parsed between " + startDate + " and " + endDate + " by the failed usage job");
+        try {
+            _usageDao.removeUsageRecords(startDate, endDate);
+            _usageVMSnapshotDao.clearProcessed(new Date(timeStart));
+        } catch (Exception e) {
+            s_logger.error("Unable to remove the usage records parsed between " + startDate + " and " + endDate + " by the failed usage job", e);
+            if (_unremovedUsageStart == null || startDate.before(_unremovedUsageStart)) {
+                _unremovedUsageStart = startDate;
+                _unremovedUsageTimeStart = timeStart;
+            }
+            if (_unremovedUsageEnd == null || endDate.after(_unremovedUsageEnd)) {
+                _unremovedUsageEnd = endDate;
+            }
+            _alertMgr.sendAlert(AlertManager.AlertType.ALERT_TYPE_USAGE_SERVER_RESULT, 0, new Long(0), "Unable to remove the usage records of a failed usage job",
+                    "Usage records parsed between " + startDate + " and " + endDate + " by a failed usage job could not be removed, usage is not parsed until they are");
+            return false;
+        }
+        _unremovedUsageStart = null;
+        _unremovedUsageEnd = null;
+        return true;
+    }
+
+    protected boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
         boolean parsed = false;
 
         parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
@@ -44,6 +44,7 @@ public class StorageUsageParser {
 
     private static UsageDao s_usageDao;
     private static UsageStorageDao s_usageStorageDao;
+    private static volatile boolean s_aggregateInDb = false;
 
     @Inject
     private UsageDao _usageDao;
@@ -56,6 +57,16 @@ public class StorageUsageParser {
         s_usageStorageDao = _usageStorageDao;
     }
 
+    /**
+     * When set the window clipping and duration summing of the storage usage entries is done by the usage DB
+     * in one query instead of loading every entry of the account. The source and sizes of a usage record then
+     * come from the latest entry of the template, ISO or snapshot, not from whichever entry the usage DB
+     * happened to return last.
+     */
+    public static void setAggregateInDb(boolean aggregateInDb) {
+        s_aggregateInDb = aggregateInDb;
+    }
+
     public static boolean parse(AccountVO account, Date startDate, Date endDate) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Parsing all Storage usage events for account: " + account.getId());
@@ -64,6 +75,26 @@ public class StorageUsageParser {
             endDate = new Date();
         }
 
+        if (s_aggregateInDb) {
+            List<Pair<UsageStorageVO, Long>> storageDurations = s_usageStorageDao.getUsageDurations(account.getId(), startDate, endDate);
+            if (storageDurations.isEmpty()) {
+                s_logger.debug("No Storage usage events for this period");
+                return true;
+            }
+
+            for (Pair<UsageStorageVO, Long> storageDuration : storageDurations) {
+                long useTime = storageDuration.second().longValue();
+
+                // Only create a usage record if we have a runningTime of bigger than zero.
+                if (useTime > 0L) {
+                    UsageStorageVO info = storageDuration.first();
+                    createUsageRecord(info.getZoneId(), info.getStorageType(), useTime, startDate, endDate, account, info.getId(), info.getSourceId(), info.getSize(),
+                        info.getVirtualSize());
+                }
+            }
+            return true;
+        }
+
         // - query usage_volume table with the following criteria:
         //     - look for an entry for accountId with start date in the given range
         //     - look for an entry for accountId with end date in the given range
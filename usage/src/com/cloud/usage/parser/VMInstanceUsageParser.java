@@ -43,6 +43,7 @@ public class VMInstanceUsageParser {
 
     private static UsageDao s_usageDao;
     private static UsageVMInstanceDao s_usageInstanceDao;
+    private static volatile boolean s_aggregateInDb = false;
 
     @Inject
     private UsageDao _usageDao;;
@@ -55,6 +56,16 @@ public class VMInstanceUsageParser {
         s_usageInstanceDao = _usageInstanceDao;
     }
 
+    /**
+     * When set the window clipping and duration summing of the vm usage entries is done by the usage DB
+     * in one query instead of loading every entry of the account. The name, zone, template and hypervisor
+     * of a usage record then come from the latest entry of the vm, not from whichever entry the usage DB
+     * happened to return last.
+     */
+    public static void setAggregateInDb(boolean aggregateInDb) {
+        s_aggregateInDb = aggregateInDb;
+    }
+
     public static boolean parse(AccountVO account, Date startDate, Date endDate) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Parsing all VMInstance usage events for account: " + account.getId());
@@ -63,6 +74,13 @@ public class VMInstanceUsageParser {
             endDate = new Date();
         }
 
+        if (s_aggregateInDb) {
+            List<Pair<UsageVMInstanceVO, Long>> vmDurations = s_usageInstanceDao.getUsageDurations(account.getId(), startDate, endDate);
+            createUsageRecords(UsageTypes.RUNNING_VM, vmDurations, startDate, endDate, account);
+            createUsageRecords(UsageTypes.ALLOCATED_VM, vmDurations, startDate, endDate, account);
+            return true;
+        }
+
         // - query usage_vm_instance table with the following criteria:
         //     - look for an entry for accountId with start date in the given range
         //     - look for an entry for accountId with end date in the given range
@@ -160,6 +178,19 @@ public class VMInstanceUsageParser {
         usageDataMap.put(key, vmUsageInfo);
     }
 
+    private static void createUsageRecords(int type, List<Pair<UsageVMInstanceVO, Long>> vmDurations, Date startDate, Date endDate, AccountVO account) {
+        for (Pair<UsageVMInstanceVO, Long> vmDuration : vmDurations) {
+            UsageVMInstanceVO info = vmDuration.first();
+            long usageTime = vmDuration.second().longValue();
+
+            // Only create a usage record if we have a runningTime of bigger than zero.
+            if ((info.getUsageType() == type) && (usageTime > 0L)) {
+                createUsageRecord(type, usageTime, startDate, endDate, account, info.getVmInstanceId(), info.getVmName(), info.getZoneId(), info.getSerivceOfferingId(),
+                    info.getTemplateId(), info.getHypervisorType(), info.getCpuCores(), info.getCpuSpeed(), info.getMemory());
+            }
+        }
+    }
+
     private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, String vmName, long zoneId,
         long serviceOfferingId, long templateId, String hypervisorType, Long cpuCores, Long cpuSpeed, Long memory) {
         // Our smallest increment is hourly for now
@@ -17,6 +17,8 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -43,6 +45,7 @@ public class VolumeUsageParser {
 
     private static UsageDao s_usageDao;
     private static UsageVolumeDao s_usageVolumeDao;
+    private static volatile boolean s_aggregateInDb = false;
 
     @Inject
     private UsageDao _usageDao;
@@ -55,6 +58,16 @@ public class VolumeUsageParser {
         s_usageVolumeDao = _usageVolumeDao;
     }
 
+    /**
+     * When set the window clipping and duration summing of the volume usage entries is done by the
+     * usage DB in one query instead of loading every entry of the account. The zone and template of
+     * a usage record then come from the latest created entry of the volume, not from whichever entry
+     * the usage DB happened to return last.
+     */
+    public static void setAggregateInDb(boolean aggregateInDb) {
+        s_aggregateInDb = aggregateInDb;
+    }
+
     public static boolean parse(AccountVO account, Date startDate, Date endDate) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Parsing all Volume usage events for account: " + account.getId());
@@ -63,33 +76,52 @@ public class VolumeUsageParser {
             endDate = new Date();
         }
 
-        // - query usage_volume table with the following criteria:
-        //     - look for an entry for accountId with start date in the given range
-        //     - look for an entry for accountId with end date in the given range
-        //     - look for an entry for accountId with end date null (currently running vm or owned IP)
-        //     - look for an entry for accountId with start date before given range *and* end date after given range
-        List<UsageVolumeVO> usageUsageVols = s_usageVolumeDao.getUsageRecords(account.getId(), account.getDomainId(), startDate, endDate, false, 0);
+        Collection<Pair<UsageVolumeVO, Long>> volumeDurations;
+        if (s_aggregateInDb) {
+            volumeDurations = s_usageVolumeDao.getUsageDurations(account.getId(), startDate, endDate);
+        } else {
+            // - query usage_volume table with the following criteria:
+            //     - look for an entry for accountId with start date in the given range
+            //     - look for an entry for accountId with end date in the given range
+            //     - look for an entry for accountId with end date null (currently running vm or owned IP)
+            //     - look for an entry for accountId with start date before given range *and* end date after given range
+            List<UsageVolumeVO> usageUsageVols = s_usageVolumeDao.getUsageRecords(account.getId(), account.getDomainId(), startDate, endDate, false, 0);
+            volumeDurations = sumDurations(usageUsageVols, startDate, endDate);
+        }
 
-        if (usageUsageVols.isEmpty()) {
+        if (volumeDurations.isEmpty()) {
             s_logger.debug("No volume usage events for this period");
             return true;
         }
 
-        // This map has both the running time *and* the usage amount.
-        Map<String, Pair<Long, Long>> usageMap = new HashMap<String, Pair<Long, Long>>();
+        for (Pair<UsageVolumeVO, Long> volumeDuration : volumeDurations) {
+            long useTime = volumeDuration.second().longValue();
 
-        Map<String, VolInfo> diskOfferingMap = new HashMap<String, VolInfo>();
+            // Only create a usage record if we have a runningTime of bigger than zero.
+            if (useTime > 0L) {
+                UsageVolumeVO info = volumeDuration.first();
+                createUsageRecord(UsageTypes.VOLUME, useTime, startDate, endDate, account, info.getId(), info.getZoneId(), info.getDiskOfferingId(),
+                    info.getTemplateId(), info.getSize());
+            }
+        }
 
-        // loop through all the usage volumes, create a usage record for each
+        return true;
+    }
+
+    /**
+     * Clips the given usage volume entries to the range and sums their durations per volume, disk offering and size,
+     * keeping the zone and template of the last entry of the list, even one created after the range.
+     */
+    public static Collection<Pair<UsageVolumeVO, Long>> sumDurations(List<UsageVolumeVO> usageUsageVols, Date startDate, Date endDate) {
+        // This map has the usage time of each volume, the other one the entry the usage record is created from.
+        Map<String, Long> usageMap = new HashMap<String, Long>();
+        Map<String, UsageVolumeVO> volInfoMap = new HashMap<String, UsageVolumeVO>();
+
+        // loop through all the usage volumes, sum the duration of each
         for (UsageVolumeVO usageVol : usageUsageVols) {
-            long volId = usageVol.getId();
-            Long doId = usageVol.getDiskOfferingId();
-            long zoneId = usageVol.getZoneId();
-            Long templateId = usageVol.getTemplateId();
-            long size = usageVol.getSize();
-            String key = volId + "-" + doId + "-" + size;
+            String key = usageVol.getId() + "-" + usageVol.getDiskOfferingId() + "-" + usageVol.getSize();
 
-            diskOfferingMap.put(key, new VolInfo(volId, zoneId, doId, templateId, size));
+            volInfoMap.put(key, usageVol);
 
             Date volCreateDate = usageVol.getCreated();
             Date volDeleteDate = usageVol.getDeleted();
@@ -110,34 +142,18 @@ public class VolumeUsageParser {
 
             long currentDuration = (volDeleteDate.getTime() - volCreateDate.getTime()) + 1; // make sure this is an inclusive check for milliseconds (i.e. use n - m + 1 to find total number of millis to charge)
 
-            updateVolUsageData(usageMap, key, usageVol.getId(), currentDuration);
-        }
-
-        for (String volIdKey : usageMap.keySet()) {
-            Pair<Long, Long> voltimeInfo = usageMap.get(volIdKey);
-            long useTime = voltimeInfo.second().longValue();
-
-            // Only create a usage record if we have a runningTime of bigger than zero.
-            if (useTime > 0L) {
-                VolInfo info = diskOfferingMap.get(volIdKey);
-                createUsageRecord(UsageTypes.VOLUME, useTime, startDate, endDate, account, info.getVolumeId(), info.getZoneId(), info.getDiskOfferingId(),
-                    info.getTemplateId(), info.getSize());
+            Long useTime = usageMap.get(key);
+            if (useTime != null) {
+                currentDuration += useTime.longValue();
             }
+            usageMap.put(key, currentDuration);
         }
 
-        return true;
-    }
-
-    private static void updateVolUsageData(Map<String, Pair<Long, Long>> usageDataMap, String key, long volId, long duration) {
-        Pair<Long, Long> volUsageInfo = usageDataMap.get(key);
-        if (volUsageInfo == null) {
-            volUsageInfo = new Pair<Long, Long>(new Long(volId), new Long(duration));
-        } else {
-            Long runningTime = volUsageInfo.second();
-            runningTime = new Long(runningTime.longValue() + duration);
-            volUsageInfo = new Pair<Long, Long>(volUsageInfo.first(), runningTime);
+        List<Pair<UsageVolumeVO, Long>> volumeDurations = new ArrayList<Pair<UsageVolumeVO, Long>>();
+        for (String volIdKey : usageMap.keySet()) {
+            volumeDurations.add(new Pair<UsageVolumeVO, Long>(volInfoMap.get(volIdKey), usageMap.get(volIdKey)));
         }
-        usageDataMap.put(key, volUsageInfo);
+        return volumeDurations;
     }
 
     private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId,
@@ -171,40 +187,4 @@ public class VolumeUsageParser {
                 size, startDate, endDate);
         s_usageDao.persist(usageRecord);
     }
-
-    private static class VolInfo {
-        private long volId;
-        private long zoneId;
-        private Long diskOfferingId;
-        private Long templateId;
-        private long size;
-
-        public VolInfo(long volId, long zoneId, Long diskOfferingId, Long templateId, long size) {
-            this.volId = volId;
-            this.zoneId = zoneId;
-            this.diskOfferingId = diskOfferingId;
-            this.templateId = templateId;
-            this.size = size;
-        }
-
-        public long getZoneId() {
-            return zoneId;
-        }
-
-        public long getVolumeId() {
-            return volId;
-        }
-
-        public Long getDiskOfferingId() {
-            return diskOfferingId;
-        }
-
-        public Long getTemplateId() {
-            return templateId;
-        }
-
-        public long getSize() {
-            return size;
-        }
-    }
 }
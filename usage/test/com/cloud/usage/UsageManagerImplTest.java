@@ -0,0 +1,155 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.internal.util.reflection.Whitebox;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.alert.AlertManager;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageVMSnapshotDao;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.db.Filter;
+
+public class UsageManagerImplTest {
+
+    private UsageManagerImpl usageMgr;
+    private AccountDao accountDao;
+    private UsageDao usageDao;
+    private UsageVMSnapshotDao usageVMSnapshotDao;
+    private AlertManager alertMgr;
+    private ExecutorService parseExecutor;
+
+    private final Date startDate = new Date(1400000000000L);
+    private final Date endDate = new Date(1400003600000L);
+    // ids of the parsed accounts, and the threads they were parsed on
+    private final Set<Long> parsedAccounts = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final Set<String> parserThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Before
+    public void setUp() {
+        usageMgr = spy(new UsageManagerImpl());
+        accountDao = mock(AccountDao.class);
+        usageDao = mock(UsageDao.class);
+        usageVMSnapshotDao = mock(UsageVMSnapshotDao.class);
+        alertMgr = mock(AlertManager.class);
+        parseExecutor = Executors.newFixedThreadPool(4);
+        Whitebox.setInternalState(usageMgr, "_accountDao", accountDao);
+        Whitebox.setInternalState(usageMgr, "_usageDao", usageDao);
+        Whitebox.setInternalState(usageMgr, "_usageVMSnapshotDao", usageVMSnapshotDao);
+        Whitebox.setInternalState(usageMgr, "_alertMgr", alertMgr);
+        Whitebox.setInternalState(usageMgr, "_parseExecutor", parseExecutor);
+        Whitebox.setInternalState(usageMgr, "_aggregationWorkers", 4);
+        when(usageDao.listPublicTemplatesByAccount(anyLong())).thenReturn(new ArrayList<Long>());
+
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                AccountVO account = (AccountVO)invocation.getArguments()[0];
+                parsedAccounts.add(account.getId());
+                parserThreads.add(Thread.currentThread().getName());
+                return account.getId() != 13L;
+            }
+        }).when(usageMgr).parseHelperTables(any(AccountVO.class), eq(startDate), eq(endDate));
+    }
+
+    @After
+    public void tearDown() {
+        parseExecutor.shutdownNow();
+    }
+
+    private static List<AccountVO> createAccounts(long... ids) {
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        for (long id : ids) {
+            AccountVO account = new AccountVO();
+            account.setId(id);
+            accounts.add(account);
+        }
+        return accounts;
+    }
+
+    @Test
+    public void testAccountsAreParsedOnParserThreads() throws Exception {
+        when(accountDao.listAll(any(Filter.class))).thenReturn(createAccounts(1, 2, 3, 4, 5), new ArrayList<AccountVO>());
+        when(accountDao.findRecentlyDeletedAccounts(any(Long.class), any(Date.class), any(Filter.class))).thenReturn(createAccounts(6),
+                new ArrayList<AccountVO>());
+
+        assertTrue(usageMgr.parseAccountsInParallel(startDate, endDate, startDate));
+
+        assertEquals(6, parsedAccounts.size());
+        assertFalse(parserThreads.contains(Thread.currentThread().getName()));
+        // only the public templates of deleted accounts are marked deleted
+        verify(usageDao, times(1)).listPublicTemplatesByAccount(anyLong());
+        verify(usageDao).listPublicTemplatesByAccount(6L);
+    }
+
+    @Test
+    public void testFailedAccountFailsTheRun() throws Exception {
+        when(accountDao.listAll(any(Filter.class))).thenReturn(createAccounts(11, 12, 13, 14), new ArrayList<AccountVO>());
+        when(accountDao.findRecentlyDeletedAccounts(any(Long.class), any(Date.class), any(Filter.class))).thenReturn(new ArrayList<AccountVO>());
+
+        assertFalse(usageMgr.parseAccountsInParallel(startDate, endDate, startDate));
+        // the other accounts are still parsed, their records are removed with the failed run
+        assertEquals(new HashSet<Long>(Arrays.asList(11L, 12L, 13L, 14L)), parsedAccounts);
+    }
+
+    @Test
+    public void testFailedRemovalRaisesAlertAndIsRetried() {
+        doThrow(new RuntimeException("usage DB unavailable")).when(usageDao).removeUsageRecords(startDate, endDate);
+
+        assertFalse(usageMgr.removeParsedUsage(startDate, endDate, 0));
+        verify(alertMgr).sendAlert(eq(AlertManager.AlertType.ALERT_TYPE_USAGE_SERVER_RESULT), eq(0L), eq(0L), any(String.class), any(String.class));
+        verify(usageVMSnapshotDao, never()).clearProcessed(any(Date.class));
+        assertEquals(startDate, Whitebox.getInternalState(usageMgr, "_unremovedUsageStart"));
+
+        doNothing().when(usageDao).removeUsageRecords(startDate, endDate);
+        assertTrue(usageMgr.removeParsedUsage(startDate, endDate, 0));
+        assertEquals(null, Whitebox.getInternalState(usageMgr, "_unremovedUsageStart"));
+    }
+}
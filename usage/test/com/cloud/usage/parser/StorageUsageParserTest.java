@@ -0,0 +1,143 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.cloud.usage.StorageTypes;
+import com.cloud.usage.UsageStorageVO;
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageStorageDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+
+/**
+ * Parses the same storage usage both ways: from the usage_storage entries in Java, and from the sums
+ * UsageStorageDao.getUsageDurations returns for them. StorageUsageParserIT checks those sums against the usage DB.
+ */
+public class StorageUsageParserTest {
+
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private final Date startDate = DateUtil.parseDateString(GMT, "2015-01-01 00:00:00");
+    private final Date endDate = new Date(DateUtil.parseDateString(GMT, "2015-01-01 23:59:59").getTime() + 999L);
+
+    private StorageUsageParser parser;
+    private UsageStorageDao usageStorageDao;
+    private AccountVO account;
+
+    @Before
+    public void setUp() {
+        usageStorageDao = mock(UsageStorageDao.class);
+        parser = new StorageUsageParser();
+        Whitebox.setInternalState(parser, "_usageStorageDao", usageStorageDao);
+
+        account = new AccountVO(2L);
+        account.setDomainId(1L);
+
+        // entries in the order they were created, the usage DB returns 0 for a missing source or virtual size
+        List<UsageStorageVO> usageStorages = Arrays.asList(
+            // registered before and still there after the range
+            entry(1L, 1L, StorageTypes.TEMPLATE, 7L, 2147483648L, 21474836480L, "2014-12-20 10:00:00", null),
+            // taken and deleted inside the range
+            entry(2L, 1L, StorageTypes.SNAPSHOT, 0L, 1073741824L, 0L, "2015-01-01 06:00:00", "2015-01-01 08:00:00"),
+            // copied to another zone inside the range, one record per zone
+            entry(3L, 1L, StorageTypes.ISO, 0L, 367001600L, 0L, "2014-12-01 00:00:00", null),
+            entry(3L, 2L, StorageTypes.ISO, 0L, 367001600L, 0L, "2015-01-01 12:00:00", null),
+            // a template and a snapshot sharing the id
+            entry(4L, 1L, StorageTypes.TEMPLATE, 0L, 2147483648L, 21474836480L, "2015-01-01 01:00:00", "2015-01-01 02:00:00"),
+            entry(4L, 1L, StorageTypes.SNAPSHOT, 0L, 1073741824L, 0L, "2015-01-01 03:00:00", null),
+            // taken after the range
+            entry(5L, 1L, StorageTypes.SNAPSHOT, 0L, 1073741824L, 0L, "2015-01-02 00:00:00", null));
+        when(usageStorageDao.getUsageRecords(anyLong(), anyLong(), any(Date.class), any(Date.class), anyBoolean(), anyInt())).thenReturn(usageStorages);
+
+        // what the usage DB sums for the entries above
+        List<Pair<UsageStorageVO, Long>> storageDurations = Arrays.asList(
+            duration(entry(1L, 1L, StorageTypes.TEMPLATE, 7L, 2147483648L, 21474836480L, null, null), 86400000L),
+            duration(entry(2L, 1L, StorageTypes.SNAPSHOT, 0L, 1073741824L, 0L, null, null), 7200001L),
+            duration(entry(3L, 1L, StorageTypes.ISO, 0L, 367001600L, 0L, null, null), 86400000L),
+            duration(entry(3L, 2L, StorageTypes.ISO, 0L, 367001600L, 0L, null, null), 43200000L),
+            duration(entry(4L, 1L, StorageTypes.TEMPLATE, 0L, 2147483648L, 21474836480L, null, null), 3600001L),
+            duration(entry(4L, 1L, StorageTypes.SNAPSHOT, 0L, 1073741824L, 0L, null, null), 75600000L));
+        when(usageStorageDao.getUsageDurations(anyLong(), any(Date.class), any(Date.class))).thenReturn(storageDurations);
+    }
+
+    @After
+    public void tearDown() {
+        StorageUsageParser.setAggregateInDb(false);
+    }
+
+    @Test
+    public void testParseInDbCreatesSameUsageRecords() {
+        Set<String> expected = parseUsageRecords(false);
+        Set<String> actual = parseUsageRecords(true);
+
+        assertEquals("Unexpected number of usage records", 6, expected.size());
+        assertEquals("Usage records created from the usage DB durations differ from the parser", expected, actual);
+    }
+
+    private UsageStorageVO entry(long id, long zoneId, int type, Long sourceId, long size, Long virtualSize, String created, String deleted) {
+        return new UsageStorageVO(id, zoneId, 2L, 1L, type, sourceId, size, virtualSize, created == null ? null : DateUtil.parseDateString(GMT, created),
+            deleted == null ? null : DateUtil.parseDateString(GMT, deleted));
+    }
+
+    private Pair<UsageStorageVO, Long> duration(UsageStorageVO usageStorage, long duration) {
+        return new Pair<UsageStorageVO, Long>(usageStorage, duration);
+    }
+
+    private Set<String> parseUsageRecords(boolean aggregateInDb) {
+        UsageDao usageDao = mock(UsageDao.class);
+        Whitebox.setInternalState(parser, "_usageDao", usageDao);
+        parser.init();
+
+        StorageUsageParser.setAggregateInDb(aggregateInDb);
+        StorageUsageParser.parse(account, startDate, endDate);
+
+        ArgumentCaptor<UsageVO> usageRecords = ArgumentCaptor.forClass(UsageVO.class);
+        verify(usageDao, atLeast(0)).persist(usageRecords.capture());
+        Set<String> records = new HashSet<String>();
+        for (UsageVO usageRecord : usageRecords.getAllValues()) {
+            records.add(usageRecord.getUsageType() + "-" + usageRecord.getUsageId() + "-" + usageRecord.getZoneId() + "-" + usageRecord.getTemplateId() + "-"
+                + usageRecord.getSize() + "-" + usageRecord.getVirtualSize() + "-" + usageRecord.getRawUsage() + "-" + usageRecord.getUsageDisplay() + "-"
+                + usageRecord.getDescription());
+        }
+        return records;
+    }
+}
@@ -0,0 +1,142 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.cloudstack.usage.UsageTypes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+
+/**
+ * Parses the same vm usage both ways: from the usage_vm_instance entries in Java, and from the sums
+ * UsageVMInstanceDao.getUsageDurations returns for them. VMInstanceUsageParserIT checks those sums against the usage DB.
+ */
+public class VMInstanceUsageParserTest {
+
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private final Date startDate = DateUtil.parseDateString(GMT, "2015-01-01 00:00:00");
+    private final Date endDate = new Date(DateUtil.parseDateString(GMT, "2015-01-01 23:59:59").getTime() + 999L);
+
+    private VMInstanceUsageParser parser;
+    private UsageVMInstanceDao usageInstanceDao;
+    private AccountVO account;
+
+    @Before
+    public void setUp() {
+        usageInstanceDao = mock(UsageVMInstanceDao.class);
+        parser = new VMInstanceUsageParser();
+        Whitebox.setInternalState(parser, "_usageInstanceDao", usageInstanceDao);
+
+        account = new AccountVO(2L);
+        account.setDomainId(1L);
+
+        // entries in the order they were created
+        List<UsageVMInstanceVO> usageInstances = Arrays.asList(
+            // running before the range, stopped and started again inside it
+            entry(UsageTypes.RUNNING_VM, 1L, 1L, 1L, 5L, 1L, 500L, 512L, "2014-12-31 20:00:00", "2015-01-01 02:00:00"),
+            entry(UsageTypes.RUNNING_VM, 1L, 1L, 1L, 5L, 1L, 500L, 512L, "2015-01-01 04:00:00", null),
+            entry(UsageTypes.ALLOCATED_VM, 1L, 1L, 1L, 5L, 1L, 500L, 512L, "2014-12-01 00:00:00", null),
+            // migrated to another zone inside the range, no compute size on the offering
+            entry(UsageTypes.RUNNING_VM, 2L, 1L, 2L, 6L, null, null, null, "2015-01-01 01:00:00", "2015-01-01 03:00:00"),
+            entry(UsageTypes.RUNNING_VM, 2L, 2L, 2L, 6L, null, null, null, "2015-01-01 05:00:00", "2015-01-01 06:00:00"),
+            // scaled inside the range, one record per size
+            entry(UsageTypes.RUNNING_VM, 3L, 1L, 1L, 5L, 1L, 500L, 512L, "2015-01-01 00:00:00", "2015-01-01 12:00:00"),
+            entry(UsageTypes.RUNNING_VM, 3L, 1L, 1L, 5L, 2L, 500L, 1024L, "2015-01-01 12:00:00", null),
+            // started after the range
+            entry(UsageTypes.RUNNING_VM, 4L, 1L, 1L, 5L, 1L, 500L, 512L, "2015-01-02 01:00:00", null));
+        when(usageInstanceDao.getUsageRecords(anyLong(), any(Date.class), any(Date.class))).thenReturn(usageInstances);
+
+        // what the usage DB sums for the entries above
+        List<Pair<UsageVMInstanceVO, Long>> vmDurations = Arrays.asList(
+            duration(entry(UsageTypes.RUNNING_VM, 1L, 1L, 1L, 5L, 1L, 500L, 512L, null, null), 7200001L + 72000000L),
+            duration(entry(UsageTypes.ALLOCATED_VM, 1L, 1L, 1L, 5L, 1L, 500L, 512L, null, null), 86400000L),
+            duration(entry(UsageTypes.RUNNING_VM, 2L, 2L, 2L, 6L, null, null, null, null, null), 7200001L + 3600001L),
+            duration(entry(UsageTypes.RUNNING_VM, 3L, 1L, 1L, 5L, 1L, 500L, 512L, null, null), 43200001L),
+            duration(entry(UsageTypes.RUNNING_VM, 3L, 1L, 1L, 5L, 2L, 500L, 1024L, null, null), 43200000L));
+        when(usageInstanceDao.getUsageDurations(anyLong(), any(Date.class), any(Date.class))).thenReturn(vmDurations);
+    }
+
+    @After
+    public void tearDown() {
+        VMInstanceUsageParser.setAggregateInDb(false);
+    }
+
+    @Test
+    public void testParseInDbCreatesSameUsageRecords() {
+        Set<String> expected = parseUsageRecords(false);
+        Set<String> actual = parseUsageRecords(true);
+
+        assertEquals("Unexpected number of usage records", 5, expected.size());
+        assertEquals("Usage records created from the usage DB durations differ from the parser", expected, actual);
+    }
+
+    private UsageVMInstanceVO entry(int usageType, long vmId, long zoneId, long soId, long tId, Long cpuCores, Long cpuSpeed, Long memory, String startDate,
+        String endDate) {
+        return new UsageVMInstanceVO(usageType, zoneId, 2L, vmId, "i-2-" + vmId + "-VM", soId, tId, cpuSpeed, cpuCores, memory, "KVM",
+            startDate == null ? null : DateUtil.parseDateString(GMT, startDate), endDate == null ? null : DateUtil.parseDateString(GMT, endDate));
+    }
+
+    private Pair<UsageVMInstanceVO, Long> duration(UsageVMInstanceVO usageInstance, long duration) {
+        return new Pair<UsageVMInstanceVO, Long>(usageInstance, duration);
+    }
+
+    private Set<String> parseUsageRecords(boolean aggregateInDb) {
+        UsageDao usageDao = mock(UsageDao.class);
+        Whitebox.setInternalState(parser, "_usageDao", usageDao);
+        parser.init();
+
+        VMInstanceUsageParser.setAggregateInDb(aggregateInDb);
+        VMInstanceUsageParser.parse(account, startDate, endDate);
+
+        ArgumentCaptor<UsageVO> usageRecords = ArgumentCaptor.forClass(UsageVO.class);
+        verify(usageDao, atLeast(0)).persist(usageRecords.capture());
+        Set<String> records = new HashSet<String>();
+        for (UsageVO usageRecord : usageRecords.getAllValues()) {
+            records.add(usageRecord.getUsageType() + "-" + usageRecord.getVmInstanceId() + "-" + usageRecord.getVmName() + "-" + usageRecord.getZoneId() + "-"
+                + usageRecord.getOfferingId() + "-" + usageRecord.getTemplateId() + "-" + usageRecord.getType() + "-" + usageRecord.getCpuCores() + "-"
+                + usageRecord.getCpuSpeed() + "-" + usageRecord.getMemory() + "-" + usageRecord.getRawUsage() + "-" + usageRecord.getUsageDisplay() + "-"
+                + usageRecord.getDescription());
+        }
+        return records;
+    }
+}
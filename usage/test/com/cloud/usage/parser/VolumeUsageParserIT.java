@@ -0,0 +1,190 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.xml.FlatXmlDataSetBuilder;
+import org.dbunit.ext.mysql.MySqlConnection;
+import org.dbunit.operation.DatabaseOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.mockito.ArgumentCaptor;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.UsageVolumeVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageVolumeDaoImpl;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+import com.cloud.utils.PropertiesUtil;
+
+/**
+ * Checks that the durations summed by the usage DB, and the usage records created from them, are the same as
+ * the ones VolumeUsageParser computes in Java.
+ */
+@RunWith(Parameterized.class)
+public class VolumeUsageParserIT {
+
+    protected static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    protected Connection usageConn;
+
+    protected MySqlConnection dbuUsageConn;
+
+    protected Properties properties = new Properties();
+
+    protected UsageVolumeDaoImpl usageVolumeDao = new UsageVolumeDaoImpl();
+
+    protected long accountId;
+
+    protected Date startDate;
+
+    protected Date endDate;
+
+    public VolumeUsageParserIT(long accountId, String startDate, long startMillis, String endDate, long endMillis) {
+        this.accountId = accountId;
+        this.startDate = new Date(DateUtil.parseDateString(GMT, startDate).getTime() + startMillis);
+        this.endDate = new Date(DateUtil.parseDateString(GMT, endDate).getTime() + endMillis);
+    }
+
+    @Parameters
+    public static Collection<Object[]> data() {
+        Object [][] data = new Object[][] {
+                // daily aggregation
+                {2L, "2015-01-01 00:00:00", 0L, "2015-01-01 23:59:59", 999L},
+                // the next range starts 1 ms after the end of the previous one
+                {2L, "2015-01-01 00:00:00", 1L, "2015-01-02 00:00:00", 0L},
+                // hourly aggregation
+                {2L, "2015-01-01 06:00:00", 0L, "2015-01-01 06:59:59", 999L},
+                {2L, "2015-01-01 10:00:00", 0L, "2015-01-01 10:59:59", 999L},
+                {3L, "2015-01-01 00:00:00", 0L, "2015-01-01 23:59:59", 999L}
+        };
+        return Arrays.asList(data);
+    }
+
+    protected Connection createConnection(String dbSchema) throws SQLException {
+        String dbUrl = "jdbc:mysql://"+properties.getProperty("db."+dbSchema+".host") +
+                ":" + properties.getProperty("db."+dbSchema+".port") + "/" +
+                properties.getProperty("db."+dbSchema+".name");
+        return DriverManager.getConnection(dbUrl, properties.getProperty("db."+dbSchema+".username"),
+                properties.getProperty("db."+dbSchema+".password"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        PropertiesUtil.loadFromFile(properties, PropertiesUtil.findConfigFile("db.properties"));
+
+        Class.forName("com.mysql.jdbc.Driver");
+        usageConn = createConnection("usage");
+
+        dbuUsageConn = new MySqlConnection(usageConn, properties.getProperty("db.usage.name"));
+        DatabaseOperation.CLEAN_INSERT.execute(dbuUsageConn, getUsageDataSet());
+    }
+
+    @After
+    public void tearDown() throws DataSetException, FileNotFoundException, DatabaseUnitException, SQLException {
+        DatabaseOperation.DELETE_ALL.execute(dbuUsageConn, getUsageDataSet());
+    }
+
+    @Test
+    public void testUsageDurations() {
+        List<UsageVolumeVO> usageVols = usageVolumeDao.getUsageRecords(accountId, null, startDate, endDate, false, 0);
+        Map<String, Long> expected = toMap(VolumeUsageParser.sumDurations(usageVols, startDate, endDate));
+        Map<String, Long> actual = toMap(usageVolumeDao.getUsageDurations(accountId, startDate, endDate));
+
+        assertFalse("No volume usage found in the range", expected.isEmpty());
+        assertEquals("Durations summed in the usage DB differ from the parser", expected, actual);
+    }
+
+    @Test
+    public void testUsageRecords() {
+        Set<String> expected = parseUsageRecords(false);
+        Set<String> actual = parseUsageRecords(true);
+
+        assertFalse("No volume usage record created for the range", expected.isEmpty());
+        assertEquals("Usage records created from the usage DB durations differ from the parser", expected, actual);
+    }
+
+    protected Set<String> parseUsageRecords(boolean aggregateInDb) {
+        UsageDao usageDao = mock(UsageDao.class);
+        VolumeUsageParser parser = new VolumeUsageParser();
+        Whitebox.setInternalState(parser, "_usageDao", usageDao);
+        Whitebox.setInternalState(parser, "_usageVolumeDao", usageVolumeDao);
+        parser.init();
+
+        AccountVO account = new AccountVO(accountId);
+        account.setDomainId(1L);
+        VolumeUsageParser.setAggregateInDb(aggregateInDb);
+        try {
+            VolumeUsageParser.parse(account, startDate, endDate);
+        } finally {
+            VolumeUsageParser.setAggregateInDb(false);
+        }
+
+        ArgumentCaptor<UsageVO> usageRecords = ArgumentCaptor.forClass(UsageVO.class);
+        verify(usageDao, atLeast(0)).persist(usageRecords.capture());
+        Set<String> records = new HashSet<String>();
+        for (UsageVO usageRecord : usageRecords.getAllValues()) {
+            records.add(usageRecord.getUsageId() + "-" + usageRecord.getZoneId() + "-" + usageRecord.getOfferingId() + "-" + usageRecord.getTemplateId() + "-"
+                + usageRecord.getSize() + "-" + usageRecord.getRawUsage() + "-" + usageRecord.getDescription());
+        }
+        return records;
+    }
+
+    protected Map<String, Long> toMap(Collection<Pair<UsageVolumeVO, Long>> volumeDurations) {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        for (Pair<UsageVolumeVO, Long> volumeDuration : volumeDurations) {
+            UsageVolumeVO vol = volumeDuration.first();
+            String key = vol.getId() + "-" + vol.getZoneId() + "-" + vol.getDiskOfferingId() + "-" + vol.getTemplateId() + "-" + vol.getSize();
+            durations.put(key, volumeDuration.second());
+        }
+        return durations;
+    }
+
+    protected IDataSet getUsageDataSet() throws DataSetException, FileNotFoundException {
+        return new FlatXmlDataSetBuilder().setColumnSensing(true).build(PropertiesUtil.openStreamFromURL("cloud_usage_volume.xml"));
+    }
+}
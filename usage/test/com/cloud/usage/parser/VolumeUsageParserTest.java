@@ -0,0 +1,163 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.internal.util.reflection.Whitebox;
+
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.UsageVolumeVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageVolumeDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
+
+/**
+ * Parses the same volume usage both ways: from the usage_volume entries in Java, and from the sums
+ * UsageVolumeDao.getUsageDurations returns for them. VolumeUsageParserIT checks those sums against the usage DB.
+ */
+public class VolumeUsageParserTest {
+
+    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    private final Date startDate = DateUtil.parseDateString(GMT, "2015-01-01 00:00:00");
+    private final Date endDate = new Date(DateUtil.parseDateString(GMT, "2015-01-01 23:59:59").getTime() + 999L);
+
+    private VolumeUsageParser parser;
+    private UsageVolumeDao usageVolumeDao;
+    private AccountVO account;
+
+    @Before
+    public void setUp() {
+        usageVolumeDao = mock(UsageVolumeDao.class);
+        parser = new VolumeUsageParser();
+        Whitebox.setInternalState(parser, "_usageVolumeDao", usageVolumeDao);
+
+        account = new AccountVO(2L);
+        account.setDomainId(1L);
+    }
+
+    @After
+    public void tearDown() {
+        VolumeUsageParser.setAggregateInDb(false);
+    }
+
+    @Test
+    public void testParseInDbCreatesSameUsageRecords() {
+        // entries in the order they were created
+        List<UsageVolumeVO> usageVols = Arrays.asList(
+            // allocated before and still allocated after the range
+            entry(1L, 1L, 3L, null, 1073741824L, "2014-12-20 10:00:00", null),
+            // created and deleted inside the range
+            entry(2L, 1L, 3L, null, 1073741824L, "2015-01-01 06:30:15", "2015-01-01 08:00:00"),
+            // created from a template without disk offering
+            entry(3L, 1L, null, 5L, 21474836480L, "2014-12-31 23:00:00", "2015-01-01 12:00:00"),
+            // deleted after the range
+            entry(4L, 2L, 4L, null, 5368709120L, "2015-01-01 22:00:00", "2015-01-02 01:00:00"),
+            // resized inside the range, one record per size
+            entry(5L, 1L, 3L, null, 1073741824L, "2014-12-01 00:00:00", "2015-01-01 10:00:00"),
+            entry(5L, 1L, 3L, null, 2147483648L, "2015-01-01 10:00:00", null),
+            // detached and attached again
+            entry(6L, 1L, 3L, null, 1073741824L, "2015-01-01 01:00:00", "2015-01-01 02:00:00"),
+            entry(6L, 1L, 3L, null, 1073741824L, "2015-01-01 03:00:00", "2015-01-01 04:00:00"),
+            // migrated to another zone inside the range
+            entry(12L, 1L, 3L, null, 1073741824L, "2014-12-15 00:00:00", "2015-01-01 14:00:00"),
+            entry(12L, 2L, 3L, null, 1073741824L, "2015-01-01 14:00:00", null),
+            // created after the range
+            entry(8L, 1L, 3L, null, 1073741824L, "2015-01-02 00:00:00", null));
+        when(usageVolumeDao.getUsageRecords(anyLong(), anyLong(), any(Date.class), any(Date.class), anyBoolean(), anyInt())).thenReturn(usageVols);
+
+        // what the usage DB sums for the entries above
+        List<Pair<UsageVolumeVO, Long>> volumeDurations = Arrays.asList(
+            duration(entry(1L, 1L, 3L, null, 1073741824L, null, null), 86400000L),
+            duration(entry(2L, 1L, 3L, null, 1073741824L, null, null), 5385001L),
+            duration(entry(3L, 1L, null, 5L, 21474836480L, null, null), 43200001L),
+            duration(entry(4L, 2L, 4L, null, 5368709120L, null, null), 7200000L),
+            duration(entry(5L, 1L, 3L, null, 1073741824L, null, null), 36000001L),
+            duration(entry(5L, 1L, 3L, null, 2147483648L, null, null), 50400000L),
+            duration(entry(6L, 1L, 3L, null, 1073741824L, null, null), 3600001L + 3600001L),
+            duration(entry(12L, 2L, 3L, null, 1073741824L, null, null), 50400001L + 36000000L));
+        when(usageVolumeDao.getUsageDurations(anyLong(), any(Date.class), any(Date.class))).thenReturn(volumeDurations);
+
+        Set<String> expected = parseUsageRecords(false);
+        Set<String> actual = parseUsageRecords(true);
+
+        assertEquals("Unexpected number of usage records", 8, expected.size());
+        assertEquals("Usage records created from the usage DB durations differ from the parser", expected, actual);
+    }
+
+    @Test
+    public void testParseKeepsZoneOfLastEntry() {
+        // the usage DB does not return the entries of a volume in creation order
+        List<UsageVolumeVO> usageVols = Arrays.asList(
+            entry(12L, 2L, 3L, null, 1073741824L, "2015-01-01 14:00:00", null),
+            entry(12L, 1L, 3L, null, 1073741824L, "2014-12-15 00:00:00", "2015-01-01 14:00:00"));
+        when(usageVolumeDao.getUsageRecords(anyLong(), anyLong(), any(Date.class), any(Date.class), anyBoolean(), anyInt())).thenReturn(usageVols);
+
+        Set<String> records = parseUsageRecords(false);
+
+        assertEquals(new HashSet<String>(Arrays.asList("12-1-3-null-1073741824-24.0-Volume Id: 12 usage time (DiskOffering: 3)")), records);
+    }
+
+    private UsageVolumeVO entry(long volId, long zoneId, Long doId, Long tId, long size, String created, String deleted) {
+        return new UsageVolumeVO(volId, zoneId, 2L, 1L, doId, tId, size, created == null ? null : DateUtil.parseDateString(GMT, created),
+            deleted == null ? null : DateUtil.parseDateString(GMT, deleted));
+    }
+
+    private Pair<UsageVolumeVO, Long> duration(UsageVolumeVO usageVol, long duration) {
+        return new Pair<UsageVolumeVO, Long>(usageVol, duration);
+    }
+
+    private Set<String> parseUsageRecords(boolean aggregateInDb) {
+        UsageDao usageDao = mock(UsageDao.class);
+        Whitebox.setInternalState(parser, "_usageDao", usageDao);
+        parser.init();
+
+        VolumeUsageParser.setAggregateInDb(aggregateInDb);
+        VolumeUsageParser.parse(account, startDate, endDate);
+
+        ArgumentCaptor<UsageVO> usageRecords = ArgumentCaptor.forClass(UsageVO.class);
+        verify(usageDao, atLeast(0)).persist(usageRecords.capture());
+        Set<String> records = new HashSet<String>();
+        for (UsageVO usageRecord : usageRecords.getAllValues()) {
+            records.add(usageRecord.getUsageId() + "-" + usageRecord.getZoneId() + "-" + usageRecord.getOfferingId() + "-" + usageRecord.getTemplateId() + "-"
+                + usageRecord.getSize() + "-" + usageRecord.getRawUsage() + "-" + usageRecord.getDescription());
+        }
+        return records;
+    }
+}
@@ -0,0 +1,465 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.cloud.utils.S3Utils.ClientOptions;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Moves large files to and from S3 as parts that are transferred in parallel.
+ *
+ * One engine is meant to be shared by all transfers of a resource, so the
+ * number of parts in flight is bounded by its thread pool. Parts are uploaded
+ * straight from the source file. An interrupted multipart upload is left on
+ * the S3 side and picked up again by the next upload of the same key, where
+ * parts that already match the local file are not sent again; an upload that
+ * failed is aborted. Downloaded data is checked against the object's ETag
+ * before it is renamed into place.
+ */
+public class S3TransferEngine {
+    private static final Logger s_logger = Logger.getLogger(S3TransferEngine.class);
+
+    // S3 does not accept parts smaller than 5M, except for the last one
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    // user metadata of multipart objects, needed to recompute their ETag on download
+    static final String PART_SIZE_METADATA = "cloudstack-part-size";
+
+    private final long partSize;
+    private final ExecutorService executor;
+
+    public S3TransferEngine(long partSize, int concurrency) {
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        executor = Executors.newFixedThreadPool(Math.max(concurrency, 1), new NamedThreadFactory("S3Transfer"));
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Upload a file to S3, as a multipart upload if it is larger than the part size.
+     */
+    public void upload(final ClientOptions clientOptions, final File sourceFile, final String bucketName, final String key) throws InterruptedException {
+        final AmazonS3 client = S3Utils.acquireClient(clientOptions);
+        final long size = sourceFile.length();
+
+        if (size <= partSize) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(format("Sending file %1$s as S3 object %2$s in bucket %3$s", sourceFile.getName(), key, bucketName));
+            }
+            client.putObject(bucketName, key, sourceFile);
+            return;
+        }
+
+        final int partCount = (int)((size + partSize - 1) / partSize);
+        final Map<Integer, PartETag> uploaded = new ConcurrentHashMap<Integer, PartETag>();
+
+        String uploadId = findUpload(client, bucketName, key);
+        if (uploadId != null) {
+            Map<Integer, PartETag> parts = findUploadedParts(client, bucketName, key, uploadId, sourceFile, size, partCount);
+            if (parts != null) {
+                uploaded.putAll(parts);
+                s_logger.info(format("Resuming upload %1$s of %2$s to S3 object %3$s, %4$d of %5$d parts are already there", uploadId, sourceFile.getName(), key,
+                        uploaded.size(), partCount));
+            } else {
+                abortUpload(client, bucketName, key, uploadId);
+                uploadId = null;
+            }
+        }
+        if (uploadId == null) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.addUserMetadata(PART_SIZE_METADATA, Long.toString(partSize));
+            uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(format("Multipart sending file %1$s as S3 object %2$s in bucket %3$s in %4$d parts, upload %5$s", sourceFile.getName(), key, bucketName,
+                        partCount, uploadId));
+            }
+        }
+
+        final String id = uploadId;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 1; i <= partCount; i++) {
+            if (uploaded.containsKey(i)) {
+                continue;
+            }
+            final int partNumber = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    long offset = getPartOffset(partNumber);
+                    UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(key).withUploadId(id).withPartNumber(partNumber)
+                            .withFile(sourceFile).withFileOffset(offset).withPartSize(getPartLength(partNumber, size));
+                    uploaded.put(partNumber, client.uploadPart(request).getPartETag());
+                    return null;
+                }
+            }));
+        }
+        try {
+            waitFor(futures, format("Failed to upload %1$s to S3 object %2$s", sourceFile.getName(), key));
+
+            List<PartETag> etags = new ArrayList<PartETag>(uploaded.values());
+            Collections.sort(etags, new Comparator<PartETag>() {
+                @Override
+                public int compare(PartETag a, PartETag b) {
+                    return Integer.compare(a.getPartNumber(), b.getPartNumber());
+                }
+            });
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, etags));
+        } catch (RuntimeException e) {
+            // only an interrupted upload is kept to be resumed, S3 would hold on to the parts of a failed one for good
+            abortUpload(client, bucketName, key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Download an S3 object into targetFile. Objects larger than the part size
+     * are fetched as byte ranges in parallel. The data is written next to the
+     * target first and renamed into place once complete and verified.
+     */
+    public File download(final ClientOptions clientOptions, final String bucketName, final String key, final File targetFile) throws InterruptedException {
+        final AmazonS3 client = S3Utils.acquireClient(clientOptions);
+        final ObjectMetadata metadata = client.getObjectMetadata(bucketName, key);
+        final long size = metadata.getContentLength();
+        final File partFile = new File(targetFile.getParentFile(), targetFile.getName() + ".part");
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(format("Downloading object %1$s of %2$d bytes from bucket %3$s to %4$s", key, size, bucketName, targetFile.getAbsolutePath()));
+        }
+
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(partFile, "rw");
+            out.setLength(size);
+            final FileChannel channel = out.getChannel();
+
+            final int partCount = (int)Math.max(1, (size + partSize - 1) / partSize);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 1; i <= partCount; i++) {
+                final int partNumber = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        long offset = getPartOffset(partNumber);
+                        long length = getPartLength(partNumber, size);
+                        GetObjectRequest request = new GetObjectRequest(bucketName, key);
+                        if (partCount > 1) {
+                            request.setRange(offset, offset + length - 1);
+                        }
+                        S3Object object = client.getObject(request);
+                        try {
+                            copy(object.getObjectContent(), channel, offset, length);
+                        } finally {
+                            object.getObjectContent().close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            waitFor(futures, format("Failed to download S3 object %1$s from bucket %2$s", key, bucketName));
+
+            channel.force(true);
+            out.close();
+            out = null;
+            verify(metadata, partFile, size, key);
+            if (!partFile.renameTo(targetFile)) {
+                throw new CloudRuntimeException(format("Unable to rename %1$s to %2$s", partFile.getAbsolutePath(), targetFile.getAbsolutePath()));
+            }
+            return targetFile;
+        } catch (IOException e) {
+            throw new CloudRuntimeException(format("Unable to write %1$s to download S3 object %2$s", partFile.getAbsolutePath(), key), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    s_logger.debug("Failed to close " + partFile.getAbsolutePath());
+                }
+            }
+            partFile.delete();
+        }
+    }
+
+    private long getPartOffset(int partNumber) {
+        return (partNumber - 1) * partSize;
+    }
+
+    private long getPartLength(int partNumber, long size) {
+        return Math.min(partSize, size - getPartOffset(partNumber));
+    }
+
+    /**
+     * Check downloaded data against the ETag of its object. The ETag of a simple
+     * object is the MD5 sum of its data, the one of a multipart object is the MD5
+     * sum of the MD5 sums of its parts followed by the part count, which can only
+     * be recomputed when the part size of the upload was recorded with the object.
+     */
+    private void verify(ObjectMetadata metadata, File file, long size, String key) throws IOException, InterruptedException {
+        String etag = metadata.getETag() != null ? metadata.getETag().replace("\"", "") : null;
+        String actual = null;
+        if (etag != null && etag.indexOf('-') < 0) {
+            actual = md5(file, 0, size);
+        } else if (etag != null && metadata.getUserMetadata().get(PART_SIZE_METADATA) != null) {
+            try {
+                actual = multipartETag(file, size, Long.parseLong(metadata.getUserMetadata().get(PART_SIZE_METADATA)));
+            } catch (NumberFormatException e) {
+                s_logger.debug(format("Invalid part size recorded with S3 object %1$s: %2$s", key, e.getMessage()));
+            }
+        }
+
+        if (actual == null) {
+            s_logger.debug(format("Unable to verify download of S3 object %1$s, its ETag %2$s is not a checksum of known parts", key, etag));
+        } else if (!etag.equalsIgnoreCase(actual)) {
+            throw new CloudRuntimeException(format("Downloaded data of S3 object %1$s does not match its ETag %2$s, got %3$s", key, etag, actual));
+        }
+    }
+
+    private String multipartETag(final File file, final long size, final long uploadPartSize) throws IOException, InterruptedException {
+        if (uploadPartSize <= 0) {
+            throw new NumberFormatException("part size " + uploadPartSize);
+        }
+        final int partCount = (int)Math.max(1, (size + uploadPartSize - 1) / uploadPartSize);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < partCount; i++) {
+            final long offset = i * uploadPartSize;
+            futures.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return digest(file, offset, Math.min(uploadPartSize, size - offset));
+                }
+            }));
+        }
+        waitFor(futures, format("Failed to compute the part checksums of %1$s", file.getAbsolutePath()));
+
+        MessageDigest digest = createMd5();
+        for (Future<?> future : futures) {
+            try {
+                digest.update((byte[])future.get());
+            } catch (ExecutionException e) {
+                // waitFor already reported failed parts
+                throw new IOException(e.getCause());
+            }
+        }
+        return format("%032x-%d", new BigInteger(1, digest.digest()), partCount);
+    }
+
+    private static void copy(InputStream in, FileChannel channel, long offset, long length) throws IOException {
+        byte[] block = new byte[COPY_BUFFER_SIZE];
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            int bytes = in.read(block, 0, (int)Math.min(block.length, end - position));
+            if (bytes < 0) {
+                throw new IOException("Connection closed after " + (position - offset) + " of " + length + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    private static void waitFor(List<Future<?>> futures, String errorMessage) throws InterruptedException {
+        Throwable failure = null;
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        // no point in moving the remaining parts
+                        for (Future<?> other : futures) {
+                            other.cancel(true);
+                        }
+                    }
+                } catch (CancellationException e) {
+                    // cancelled after an earlier part failed
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        if (failure != null) {
+            throw new CloudRuntimeException(errorMessage + ": " + failure.getMessage(), failure);
+        }
+    }
+
+    private static void abortUpload(AmazonS3 client, String bucketName, String key, String uploadId) {
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (AmazonClientException e) {
+            s_logger.warn(format("Unable to abort upload %1$s of S3 object %2$s: %3$s", uploadId, key, e.getMessage()));
+        }
+    }
+
+    /**
+     * Older unfinished uploads of key are aborted, so at most one is left behind per key.
+     *
+     * @return id of the most recent unfinished multipart upload of key, null if there is none
+     */
+    private static String findUpload(AmazonS3 client, String bucketName, String key) {
+        try {
+            MultipartUploadListing listing = client.listMultipartUploads(new ListMultipartUploadsRequest(bucketName).withPrefix(key));
+            MultipartUpload latest = null;
+            for (MultipartUpload upload : listing.getMultipartUploads()) {
+                if (!key.equals(upload.getKey())) {
+                    continue;
+                }
+                if (latest == null || upload.getInitiated().after(latest.getInitiated())) {
+                    if (latest != null) {
+                        abortUpload(client, bucketName, key, latest.getUploadId());
+                    }
+                    latest = upload;
+                } else {
+                    abortUpload(client, bucketName, key, upload.getUploadId());
+                }
+            }
+            return latest != null ? latest.getUploadId() : null;
+        } catch (AmazonClientException e) {
+            s_logger.debug(format("Unable to list multipart uploads of %1$s, starting a new one: %2$s", key, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Find the parts of an earlier upload that can be kept. A part is kept if its
+     * ETag matches the MD5 sum of the same range of the local file.
+     *
+     * @return the parts to keep, null if the upload cannot be resumed because it was
+     * cut into other parts than this engine would use or it could not be checked
+     */
+    private Map<Integer, PartETag> findUploadedParts(AmazonS3 client, String bucketName, String key, String uploadId, File sourceFile, long size, int partCount) {
+        Map<Integer, PartETag> parts = new ConcurrentHashMap<Integer, PartETag>();
+        try {
+            ListPartsRequest request = new ListPartsRequest(bucketName, key, uploadId);
+            PartListing listing;
+            do {
+                listing = client.listParts(request);
+                for (PartSummary part : listing.getParts()) {
+                    int partNumber = part.getPartNumber();
+                    if (partNumber > partCount || part.getSize() != getPartLength(partNumber, size)) {
+                        s_logger.debug(format("Part %1$d of upload %2$s has %3$d bytes, not resuming an upload of another part size", partNumber, uploadId,
+                                part.getSize()));
+                        return null;
+                    }
+                    String etag = part.getETag().replace("\"", "");
+                    if (etag.equalsIgnoreCase(md5(sourceFile, getPartOffset(partNumber), part.getSize()))) {
+                        parts.put(partNumber, new PartETag(partNumber, etag));
+                    }
+                }
+                request.setPartNumberMarker(listing.getNextPartNumberMarker());
+            } while (listing.isTruncated());
+        } catch (AmazonClientException e) {
+            s_logger.debug(format("Unable to list parts of upload %1$s, starting a new one: %2$s", uploadId, e.getMessage()));
+            return null;
+        } catch (IOException e) {
+            s_logger.debug(format("Unable to read %1$s, starting a new upload: %2$s", sourceFile.getAbsolutePath(), e.getMessage()));
+            return null;
+        }
+        return parts;
+    }
+
+    private static String md5(File file, long offset, long length) throws IOException {
+        return format("%032x", new BigInteger(1, digest(file, offset, length)));
+    }
+
+    private static MessageDigest createMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to compute MD5 sums", e);
+        }
+    }
+
+    private static byte[] digest(File file, long offset, long length) throws IOException {
+        MessageDigest digest = createMd5();
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                int bytes = channel.read(buffer, position);
+                if (bytes < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += bytes;
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -187,8 +187,13 @@ public final class S3Utils {
             LOGGER.debug(format("Multipart sending file %1$s as S3 object %2$s in " + "bucket %3$s", sourceFile.getName(), key, bucketName));
         }
         TransferManager tm = new TransferManager(S3Utils.acquireClient(clientOptions));
-        Upload upload = tm.upload(bucketName, key, sourceFile);
-        upload.waitForCompletion();
+        try {
+            Upload upload = tm.upload(bucketName, key, sourceFile);
+            upload.waitForCompletion();
+        } finally {
+            // each call has its own transfer manager, don't leave its threads behind
+            tm.shutdownNow();
+        }
     }
 
     // multi-part upload object
@@ -204,8 +209,13 @@ public final class S3Utils {
             LOGGER.debug(format("Multipart sending stream as S3 object %1$s in " + "bucket %2$s", key, bucketName));
         }
         TransferManager tm = new TransferManager(S3Utils.acquireClient(clientOptions));
-        Upload upload = tm.upload(bucketName, key, sourceStream, null);
-        upload.waitForCompletion();
+        try {
+            Upload upload = tm.upload(bucketName, key, sourceStream, null);
+            upload.waitForCompletion();
+        } finally {
+            // each call has its own transfer manager, don't leave its threads behind
+            tm.shutdownNow();
+        }
     }
 
     // multi-part upload object
@@ -218,8 +228,13 @@ public final class S3Utils {
             LOGGER.debug("Multipart sending object to S3 using PutObjectRequest");
         }
         TransferManager tm = new TransferManager(S3Utils.acquireClient(clientOptions));
-        Upload upload = tm.upload(req);
-        upload.waitForCompletion();
+        try {
+            Upload upload = tm.upload(req);
+            upload.waitForCompletion();
+        } finally {
+            // each call has its own transfer manager, don't leave its threads behind
+            tm.shutdownNow();
+        }
 
     }
 
@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -36,6 +37,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
@@ -63,8 +65,12 @@ public class Script implements Callable<String> {
     long _timeout;
     Process _process;
     Thread _thread;
+    Integer _helperExitValue;
 
     public int getExitValue()  {
+        if (_helperExitValue != null) {
+            return _helperExitValue;
+        }
         return _process.exitValue();
     }
 
@@ -185,6 +191,23 @@ public class Script implements Callable<String> {
             _logger.debug("Executing: " + buildCommandLine(command));
         }
 
+        ScriptHelper helper = ScriptHelper.getInstance();
+        if (helper != null && helper.accepts(command)) {
+            try {
+                ScriptHelper.Result result = helper.execute(_command, _workDir, _timeout);
+                if (result != null) {
+                    return interpretHelperResult(result, interpreter);
+                }
+                _logger.debug("No script helper is free, forking: " + buildCommandLine(command));
+            } catch (TimeoutException e) {
+                _logger.warn("Timed out: " + buildCommandLine(command));
+                return ERR_TIMEOUT;
+            } catch (Exception ex) {
+                _logger.warn("Exception: " + buildCommandLine(command), ex);
+                return stackTraceAsString(ex);
+            }
+        }
+
         try {
             ProcessBuilder pb = new ProcessBuilder(command);
             pb.redirectErrorStream(true);
@@ -284,6 +307,32 @@ public class Script implements Callable<String> {
         }
     }
 
+    private String interpretHelperResult(ScriptHelper.Result result, OutputInterpreter interpreter) throws IOException {
+        _helperExitValue = result.getExitValue();
+
+        BufferedReader reader = new BufferedReader(new StringReader(result.getOutput()));
+        if (result.getExitValue() == 0) {
+            _logger.debug("Execution is successful.");
+            if (interpreter != null) {
+                return interpreter.interpret(reader);
+            } else {
+                return String.valueOf(result.getExitValue());
+            }
+        }
+
+        _logger.debug("Exit value is " + result.getExitValue());
+        String error;
+        if (interpreter != null) {
+            error = interpreter.processError(reader);
+        } else {
+            error = String.valueOf(result.getExitValue());
+        }
+        if (_logger.isDebugEnabled()) {
+            _logger.debug(error);
+        }
+        return error;
+    }
+
     @Override
     public String call() {
         try {
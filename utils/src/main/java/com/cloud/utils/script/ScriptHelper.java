@@ -0,0 +1,292 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.script;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs the commands of {@link Script} through a pool of long lived helper processes
+ * (scripts/util/script_helper.py) instead of forking the jvm for each of them. The helper runs
+ * python scripts in a child of its already initialized interpreter.
+ *
+ * The helper is optional, Script only uses it once {@link #initialize(String, String, int)} was called.
+ * On timeout the helper running the command is killed, which kills the command, and a new helper
+ * is started for the next command.
+ */
+public class ScriptHelper {
+    private static final Logger s_logger = Logger.getLogger(ScriptHelper.class);
+
+    private static volatile ScriptHelper s_instance;
+    // how long a command waits for a free helper before it is forked instead
+    private static final long MAX_SLOT_WAIT = 1000;
+    private static final ScheduledExecutorService s_timer = Executors.newScheduledThreadPool(1, new NamedThreadFactory("ScriptHelper-Timer"));
+
+    private final String _interpreter;
+    private final String _interpreterName;
+    private final String _helperScript;
+    private final Semaphore _slots;
+    private final LinkedBlockingQueue<HelperProcess> _idle = new LinkedBlockingQueue<HelperProcess>();
+
+    public static class Result {
+        private final int _exitValue;
+        private final String _output;
+
+        public Result(int exitValue, String output) {
+            _exitValue = exitValue;
+            _output = output;
+        }
+
+        public int getExitValue() {
+            return _exitValue;
+        }
+
+        public String getOutput() {
+            return _output;
+        }
+    }
+
+    private class HelperProcess {
+        private final Process _process;
+        private final DataOutputStream _out;
+        private final DataInputStream _in;
+
+        HelperProcess() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(_interpreter, _helperScript);
+            pb.redirectError(Redirect.INHERIT);
+            _process = pb.start();
+            _out = new DataOutputStream(_process.getOutputStream());
+            _in = new DataInputStream(_process.getInputStream());
+        }
+
+        Result run(List<String> command, String workDir) throws IOException {
+            StringBuilder request = new StringBuilder(workDir != null ? workDir : "");
+            for (String arg : command) {
+                request.append('\0').append(arg);
+            }
+            byte[] payload = request.toString().getBytes("UTF-8");
+            _out.writeInt(payload.length);
+            _out.write(payload);
+            _out.flush();
+
+            int exitValue = _in.readInt();
+            byte[] output = new byte[_in.readInt()];
+            _in.readFully(output);
+            return new Result(exitValue, new String(output, "UTF-8"));
+        }
+
+        void destroy() {
+            IOUtils.closeQuietly(_out);
+            IOUtils.closeQuietly(_in);
+            _process.destroy();
+        }
+    }
+
+    private ScriptHelper(String interpreter, String helperScript, int poolSize) {
+        _interpreter = interpreter;
+        _interpreterName = new File(interpreter).getName();
+        _helperScript = helperScript;
+        _slots = new Semaphore(poolSize);
+    }
+
+    /**
+     * Makes Script run its commands through at most poolSize helper processes. Script keeps forking
+     * the commands if the helper cannot be started.
+     */
+    public static synchronized void initialize(String interpreter, String helperScript, int poolSize) {
+        shutdown();
+        if (helperScript == null || poolSize <= 0) {
+            return;
+        }
+        ScriptHelper helper = new ScriptHelper(interpreter, helperScript, poolSize);
+        try {
+            helper._idle.offer(helper.new HelperProcess());
+        } catch (IOException e) {
+            s_logger.warn("Unable to start script helper " + interpreter + " " + helperScript + ", scripts will be forked: " + e.getMessage());
+            return;
+        }
+        s_logger.info("Running scripts through " + poolSize + " helper processes " + interpreter + " " + helperScript);
+        s_instance = helper;
+    }
+
+    public static synchronized void shutdown() {
+        ScriptHelper helper = s_instance;
+        s_instance = null;
+        if (helper != null) {
+            HelperProcess process;
+            while ((process = helper._idle.poll()) != null) {
+                process.destroy();
+            }
+        }
+    }
+
+    public static ScriptHelper getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * The helper runs python scripts in a child of its own interpreter, so a script written for another
+     * python (python3 vs python, ...) has to be forked instead.
+     */
+    public boolean accepts(String[] command) {
+        String interpreter = getPythonInterpreter(command[0]);
+        return interpreter == null || interpreter.equals(_interpreterName);
+    }
+
+    /**
+     * @return the name of the interpreter in the shebang of a python script, null for anything else
+     */
+    static String getPythonInterpreter(String path) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+        String firstLine;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file), 128);
+            firstLine = reader.readLine();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        if (firstLine == null || !firstLine.startsWith("#!") || !firstLine.contains("python")) {
+            return null;
+        }
+
+        String[] words = firstLine.substring(2).trim().split("\\s+");
+        String interpreter = new File(words[0]).getName();
+        if (interpreter.equals("env") && words.length > 1) {
+            interpreter = words[1];
+        }
+        return interpreter;
+    }
+
+    /**
+     * Runs the command in a helper, blocks until the command is done. Like a forked command, it is
+     * not interrupted by anything but the timeout, which includes the time spent waiting for a free helper.
+     *
+     * @return the result, or null if no helper became free in time and the command did not run, the
+     * caller then forks it
+     * @throws TimeoutException if the command did not finish within timeout ms, it was killed
+     * @throws IOException if the helper failed, the command may not have run
+     */
+    public Result execute(List<String> command, String workDir, long timeout) throws IOException, TimeoutException {
+        long start = System.currentTimeMillis();
+        if (!acquireSlot(timeout > 0 ? Math.min(timeout, MAX_SLOT_WAIT) : MAX_SLOT_WAIT)) {
+            return null;
+        }
+        if (timeout > 0) {
+            timeout -= System.currentTimeMillis() - start;
+            if (timeout <= 0) {
+                _slots.release();
+                throw new TimeoutException("Timed out waiting for a script helper");
+            }
+        }
+
+        HelperProcess helper = null;
+        boolean reusable = false;
+        try {
+            helper = _idle.poll();
+            if (helper == null) {
+                helper = new HelperProcess();
+            }
+
+            final HelperProcess running = helper;
+            final AtomicBoolean timedOut = new AtomicBoolean(false);
+            ScheduledFuture<?> future = null;
+            if (timeout > 0) {
+                future = s_timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut.set(true);
+                        running.destroy();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                Result result = helper.run(command, workDir);
+                reusable = true;
+                return result;
+            } catch (IOException e) {
+                if (timedOut.get()) {
+                    throw new TimeoutException("Timed out after " + timeout + " ms");
+                }
+                throw e;
+            } finally {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                if (timedOut.get()) {
+                    reusable = false;
+                }
+            }
+        } finally {
+            if (helper != null) {
+                if (reusable && s_instance == this) {
+                    _idle.offer(helper);
+                } else {
+                    helper.destroy();
+                }
+            }
+            _slots.release();
+        }
+    }
+
+    private boolean acquireSlot(long wait) {
+        boolean interrupted = false;
+        long deadline = System.currentTimeMillis() + wait;
+        try {
+            while (true) {
+                try {
+                    return _slots.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // like a forked command the wait is not interrupted, the interrupt is kept for the caller
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
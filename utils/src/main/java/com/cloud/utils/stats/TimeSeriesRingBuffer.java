@@ -0,0 +1,198 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.stats;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size history of a single metric kept in primitive arrays. Samples falling into the same
+ * resolution slot are averaged, so a buffer with a coarse resolution keeps a downsampled history.
+ * Once full, the oldest slot is overwritten.
+ */
+public class TimeSeriesRingBuffer {
+    private final long _resolution;
+    private final long[] _timestamps;
+    private final double[] _sums;
+    private final int[] _counts;
+    private int _head = -1;
+    private int _size;
+
+    /**
+     * @param capacity number of slots kept
+     * @param resolution width of a slot in milliseconds, 0 to keep every sample in its own slot
+     */
+    public TimeSeriesRingBuffer(int capacity, long resolution) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        _resolution = resolution;
+        _timestamps = new long[capacity];
+        _sums = new double[capacity];
+        _counts = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return _timestamps.length;
+    }
+
+    public long getResolution() {
+        return _resolution;
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * Adds a sample. Samples older than the latest one are ignored.
+     */
+    public synchronized void add(long timestamp, double value) {
+        long slot = _resolution > 0 ? timestamp - (timestamp % _resolution) : timestamp;
+        if (_size > 0) {
+            if (slot < _timestamps[_head]) {
+                return;
+            }
+            if (slot == _timestamps[_head] && _resolution > 0) {
+                _sums[_head] += value;
+                _counts[_head]++;
+                return;
+            }
+        }
+
+        _head = (_head + 1) % _timestamps.length;
+        _timestamps[_head] = slot;
+        _sums[_head] = value;
+        _counts[_head] = 1;
+        if (_size < _timestamps.length) {
+            _size++;
+        }
+    }
+
+    /**
+     * @return the summary of the slots at or after since, oldest first
+     */
+    public synchronized Summary summarize(long since) {
+        int count = 0;
+        double[] values = new double[_size];
+        long first = 0;
+        long last = 0;
+        for (int i = _size - 1; i >= 0; i--) {
+            int index = (_head - i + _timestamps.length) % _timestamps.length;
+            if (_timestamps[index] < since) {
+                continue;
+            }
+            if (count == 0) {
+                first = _timestamps[index];
+            }
+            last = _timestamps[index];
+            values[count++] = _sums[index] / _counts[index];
+        }
+        return new Summary(Arrays.copyOf(values, count), first, last);
+    }
+
+    /**
+     * Statistics over a window of a ring buffer.
+     */
+    public static class Summary {
+        private final double[] _values;
+        private final long _firstTimestamp;
+        private final long _lastTimestamp;
+
+        Summary(double[] values, long firstTimestamp, long lastTimestamp) {
+            _values = values;
+            _firstTimestamp = firstTimestamp;
+            _lastTimestamp = lastTimestamp;
+        }
+
+        public int getCount() {
+            return _values.length;
+        }
+
+        /**
+         * @return the values of the window, oldest first
+         */
+        public double[] getValues() {
+            return _values;
+        }
+
+        public long getFirstTimestamp() {
+            return _firstTimestamp;
+        }
+
+        public long getLastTimestamp() {
+            return _lastTimestamp;
+        }
+
+        public double getLast() {
+            return _values.length == 0 ? 0 : _values[_values.length - 1];
+        }
+
+        public double getAverage() {
+            if (_values.length == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (double value : _values) {
+                sum += value;
+            }
+            return sum / _values.length;
+        }
+
+        public double getMinimum() {
+            double min = _values.length == 0 ? 0 : Double.MAX_VALUE;
+            for (double value : _values) {
+                min = Math.min(min, value);
+            }
+            return min;
+        }
+
+        public double getMaximum() {
+            double max = _values.length == 0 ? 0 : -Double.MAX_VALUE;
+            for (double value : _values) {
+                max = Math.max(max, value);
+            }
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the nearest-rank percentile of the window
+         */
+        public double getPercentile(double percentile) {
+            if (_values.length == 0) {
+                return 0;
+            }
+            double[] sorted = Arrays.copyOf(_values, _values.length);
+            Arrays.sort(sorted);
+            int rank = (int)Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+        }
+
+        /**
+         * @return the change of the value per second between the first and the last slot of the window
+         */
+        public double getRate() {
+            if (_values.length < 2 || _lastTimestamp == _firstTimestamp) {
+                return 0;
+            }
+            return (_values[_values.length - 1] - _values[0]) * 1000 / (_lastTimestamp - _firstTimestamp);
+        }
+    }
+}
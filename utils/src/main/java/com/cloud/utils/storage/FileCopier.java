@@ -0,0 +1,208 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copies a file in process with NIO channels. Plain copies go through
+ * FileChannel.transferTo. When a checksum is wanted or holes should be kept,
+ * the data is read once into a direct buffer and digested on the way through.
+ * The copy can be limited to a bandwidth and reports its progress to a listener.
+ */
+public class FileCopier {
+    private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    public interface ProgressListener {
+        /**
+         * @param copied bytes copied so far
+         * @param total size of the source file
+         * @return false to stop the copy
+         */
+        boolean onProgress(long copied, long total);
+    }
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private long bandwidthLimit = 0;
+    private boolean sparse = false;
+    private String checksumAlgorithm;
+    private ProgressListener listener;
+    private String checksum;
+
+    /**
+     * @param bytesPerSecond maximum copy rate, 0 for no limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        bandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * @param sparse skip writing blocks of zeroes so holes in the source stay holes in the copy
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * @param algorithm MessageDigest algorithm to compute over the copied data, null for none
+     */
+    public void setChecksumAlgorithm(String algorithm) {
+        checksumAlgorithm = algorithm;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return hex checksum of the last completed copy, null if none was requested or the copy was stopped
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Copy src to dest, replacing dest if it exists.
+     * @return number of bytes copied, less than the size of src if the listener stopped the copy
+     */
+    public long copy(File src, File dest) throws IOException {
+        checksum = null;
+        MessageDigest digest = null;
+        if (checksumAlgorithm != null) {
+            try {
+                digest = MessageDigest.getInstance(checksumAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Unsupported checksum algorithm " + checksumAlgorithm, e);
+            }
+        }
+
+        try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long copied;
+            if (digest == null && !sparse) {
+                copied = transfer(in, out, size);
+            } else {
+                copied = stream(in, out, size, digest);
+            }
+
+            if (copied < size) {
+                return copied;
+            }
+            if (sparse && out.size() < size) {
+                // the source ended with a hole
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+            out.force(true);
+            if (digest != null) {
+                checksum = String.format("%0" + digest.getDigestLength() * 2 + "x", new BigInteger(1, digest.digest()));
+            }
+            return copied;
+        }
+    }
+
+    private long transfer(FileChannel in, FileChannel out, long size) throws IOException {
+        long start = System.nanoTime();
+        long position = 0;
+        while (position < size) {
+            long count = in.transferTo(position, Math.min(blockSize, size - position), out);
+            if (count <= 0) {
+                throw new IOException("Source file was truncated at " + position + " of " + size + " bytes");
+            }
+            position += count;
+            if (!progress(position, size, start)) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private long stream(FileChannel in, FileChannel out, long size, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+        long start = System.nanoTime();
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int count = in.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Source file was truncated at " + position + " of " + size + " bytes");
+            }
+            buffer.flip();
+
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+            if (!sparse || !isZero(buffer)) {
+                long offset = position;
+                while (buffer.hasRemaining()) {
+                    offset += out.write(buffer, offset);
+                }
+            }
+            position += count;
+            if (!progress(position, size, start)) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private boolean progress(long copied, long total, long start) throws IOException {
+        if (bandwidthLimit > 0) {
+            long due = copied * 1000 / bandwidthLimit;
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            if (due > elapsed) {
+                try {
+                    Thread.sleep(due - elapsed);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while copying");
+                }
+            }
+        }
+        return listener == null || listener.onProgress(copied, total);
+    }
+
+    private static boolean isZero(ByteBuffer buffer) {
+        int i = buffer.position();
+        int limit = buffer.limit();
+        for (; i + 8 <= limit; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,438 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.cloud.utils.S3Utils.ClientOptions;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class S3TransferEngineTest {
+    private static final String BUCKET = "test_bucket";
+    private static final int PART_SIZE = (int)S3TransferEngine.MIN_PART_SIZE;
+
+    private final FakeS3 s3 = new FakeS3();
+    private HttpServer server;
+    private ClientOptions options;
+    private S3TransferEngine engine;
+    private File dir;
+    private byte[] content;
+    private File source;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", s3);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+        options = new TestClientOptions("http://127.0.0.1:" + server.getAddress().getPort());
+        engine = new S3TransferEngine(PART_SIZE, 3);
+
+        dir = Files.createTempDirectory("s3transfer").toFile();
+        content = new byte[2 * PART_SIZE + 4321];
+        new Random(11).nextBytes(content);
+        source = new File(dir, "template.qcow2");
+        FileUtils.writeByteArrayToFile(source, content);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown();
+        server.stop(0);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testMultipartUploadAndDownload() throws Exception {
+        engine.upload(options, source, BUCKET, "template/1/template.qcow2");
+        assertEquals(3, s3.partUploads.get());
+        assertArrayEquals(content, s3.objects.get("/" + BUCKET + "/template/1/template.qcow2"));
+
+        File target = new File(dir, "downloaded.qcow2");
+        engine.download(options, BUCKET, "template/1/template.qcow2", target);
+        assertEquals(3, s3.rangeGets.get());
+        assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+        assertFalse(new File(dir, "downloaded.qcow2.part").exists());
+    }
+
+    @Test
+    public void testSmallObject() throws Exception {
+        byte[] small = new byte[1000];
+        new Random(3).nextBytes(small);
+        File smallFile = new File(dir, "small");
+        FileUtils.writeByteArrayToFile(smallFile, small);
+
+        engine.upload(options, smallFile, BUCKET, "small");
+        assertEquals(0, s3.partUploads.get());
+
+        File target = new File(dir, "small.copy");
+        engine.download(options, BUCKET, "small", target);
+        assertEquals(0, s3.rangeGets.get());
+        assertArrayEquals(small, FileUtils.readFileToByteArray(target));
+    }
+
+    @Test
+    public void testUploadResumesUnfinishedUpload() throws Exception {
+        // an earlier attempt got the first part across and a broken second part
+        String key = "/" + BUCKET + "/snapshots/2/snap";
+        Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+        parts.put(1, java.util.Arrays.copyOfRange(content, 0, PART_SIZE));
+        parts.put(2, new byte[PART_SIZE]);
+        s3.uploads.put("earlier", new Upload(key, parts));
+
+        engine.upload(options, source, BUCKET, "snapshots/2/snap");
+
+        assertEquals(2, s3.partUploads.get());
+        assertArrayEquals(content, s3.objects.get(key));
+        assertEquals(0, s3.uploads.size());
+    }
+
+    @Test
+    public void testUploadOfOtherPartSizeIsNotResumed() throws Exception {
+        String key = "/" + BUCKET + "/snapshots/3/snap";
+        Map<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+        parts.put(1, java.util.Arrays.copyOfRange(content, 0, 2 * PART_SIZE));
+        s3.uploads.put("earlier", new Upload(key, parts));
+
+        engine.upload(options, source, BUCKET, "snapshots/3/snap");
+
+        assertEquals(1, s3.aborts.get());
+        assertEquals(3, s3.partUploads.get());
+        assertArrayEquals(content, s3.objects.get(key));
+    }
+
+    @Test
+    public void testFailedUploadIsAborted() throws Exception {
+        s3.failingPart = 2;
+        try {
+            engine.upload(options, source, BUCKET, "template/4/template.qcow2");
+            fail("the failed part should fail the upload");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertEquals(1, s3.aborts.get());
+        assertEquals(0, s3.uploads.size());
+    }
+
+    @Test
+    public void testCorruptedDownloadIsRejected() throws Exception {
+        engine.upload(options, source, BUCKET, "template/5/template.qcow2");
+        assertTrue(s3.etags.get("/" + BUCKET + "/template/5/template.qcow2").endsWith("-3"));
+
+        s3.corruptRanges = true;
+        File target = new File(dir, "corrupted.qcow2");
+        try {
+            engine.download(options, BUCKET, "template/5/template.qcow2", target);
+            fail("the corrupted data should not match the ETag");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertFalse(target.exists());
+        assertFalse(new File(dir, "corrupted.qcow2.part").exists());
+    }
+
+    private static byte[] md5Digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String md5(byte[] data) {
+        return String.format("%032x", new BigInteger(1, md5Digest(data)));
+    }
+
+    private static class Upload {
+        final String path;
+        final Map<Integer, byte[]> parts;
+        final Map<String, String> metadata = new HashMap<String, String>();
+
+        Upload(String path, Map<Integer, byte[]> parts) {
+            this.path = path;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * Just enough of the S3 REST API, with path style addressing, for the transfer engine.
+     */
+    private static class FakeS3 implements HttpHandler {
+        final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+        final Map<String, String> etags = new ConcurrentHashMap<String, String>();
+        final Map<String, Map<String, String>> metadata = new ConcurrentHashMap<String, Map<String, String>>();
+        final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+        final AtomicInteger partUploads = new AtomicInteger();
+        final AtomicInteger rangeGets = new AtomicInteger();
+        final AtomicInteger aborts = new AtomicInteger();
+        volatile int failingPart;
+        volatile boolean corruptRanges;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                String path = exchange.getRequestURI().getPath();
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+
+                if ("PUT".equals(method) && query.containsKey("partNumber")) {
+                    if (Integer.parseInt(query.get("partNumber")) == failingPart) {
+                        send(exchange, 500, "<Error><Code>InternalError</Code><Message>part failed</Message></Error>");
+                        return;
+                    }
+                    uploads.get(query.get("uploadId")).parts.put(Integer.parseInt(query.get("partNumber")), body);
+                    partUploads.incrementAndGet();
+                    setHeader(exchange, "ETag", "\"" + md5(body) + "\"");
+                    send(exchange, 200, null);
+                } else if ("PUT".equals(method)) {
+                    objects.put(path, body);
+                    etags.put(path, md5(body));
+                    metadata.remove(path);
+                    setHeader(exchange, "ETag", "\"" + md5(body) + "\"");
+                    send(exchange, 200, null);
+                } else if ("POST".equals(method) && query.containsKey("uploads")) {
+                    String id = UUID.randomUUID().toString();
+                    Upload upload = new Upload(path, new ConcurrentHashMap<Integer, byte[]>());
+                    for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                        if (header.getKey().toLowerCase().startsWith("x-amz-meta-")) {
+                            upload.metadata.put(header.getKey().toLowerCase(), header.getValue().get(0));
+                        }
+                    }
+                    uploads.put(id, upload);
+                    send(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + BUCKET + "</Bucket><Key>" + key(path) + "</Key><UploadId>" + id
+                            + "</UploadId></InitiateMultipartUploadResult>");
+                } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+                    Upload upload = uploads.remove(query.get("uploadId"));
+                    ByteArrayOutputStream object = new ByteArrayOutputStream();
+                    ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+                    int partCount = 0;
+                    Matcher m = Pattern.compile("<PartNumber>(\\d+)</PartNumber>").matcher(new String(body, StandardCharsets.UTF_8));
+                    while (m.find()) {
+                        byte[] part = upload.parts.get(Integer.parseInt(m.group(1)));
+                        object.write(part);
+                        partDigests.write(md5Digest(part));
+                        partCount++;
+                    }
+                    // the ETag of a multipart object as S3 computes it
+                    String etag = md5(partDigests.toByteArray()) + "-" + partCount;
+                    objects.put(path, object.toByteArray());
+                    etags.put(path, etag);
+                    metadata.put(path, upload.metadata);
+                    send(exchange, 200, "<CompleteMultipartUploadResult><Location>" + path + "</Location><Bucket>" + BUCKET + "</Bucket><Key>" + key(path)
+                            + "</Key><ETag>\"" + etag + "\"</ETag></CompleteMultipartUploadResult>");
+                } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+                    uploads.remove(query.get("uploadId"));
+                    aborts.incrementAndGet();
+                    send(exchange, 204, null);
+                } else if ("GET".equals(method) && query.containsKey("uploads")) {
+                    StringBuilder xml = new StringBuilder("<ListMultipartUploadsResult><Bucket>" + BUCKET + "</Bucket><IsTruncated>false</IsTruncated>");
+                    for (Map.Entry<String, Upload> entry : uploads.entrySet()) {
+                        xml.append("<Upload><Key>").append(key(entry.getValue().path)).append("</Key><UploadId>").append(entry.getKey())
+                                .append("</UploadId><Initiated>2015-01-01T00:00:00.000Z</Initiated></Upload>");
+                    }
+                    send(exchange, 200, xml.append("</ListMultipartUploadsResult>").toString());
+                } else if ("GET".equals(method) && query.containsKey("uploadId")) {
+                    Upload upload = uploads.get(query.get("uploadId"));
+                    StringBuilder xml = new StringBuilder("<ListPartsResult><Bucket>" + BUCKET + "</Bucket><Key>" + key(path) + "</Key><UploadId>"
+                            + query.get("uploadId") + "</UploadId><IsTruncated>false</IsTruncated>");
+                    for (Map.Entry<Integer, byte[]> part : new TreeMap<Integer, byte[]>(upload.parts).entrySet()) {
+                        xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><LastModified>2015-01-01T00:00:00.000Z</LastModified><ETag>\"")
+                                .append(md5(part.getValue())).append("\"</ETag><Size>").append(part.getValue().length).append("</Size></Part>");
+                    }
+                    send(exchange, 200, xml.append("</ListPartsResult>").toString());
+                } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                    byte[] object = objects.get(path);
+                    if (object == null) {
+                        send(exchange, 404, "<Error><Code>NoSuchKey</Code><Message>no such key</Message></Error>");
+                        return;
+                    }
+                    int start = 0;
+                    int end = object.length;
+                    String range = exchange.getRequestHeaders().getFirst("Range");
+                    if (range != null) {
+                        String[] bounds = range.substring("bytes=".length()).split("-");
+                        start = Integer.parseInt(bounds[0]);
+                        end = Integer.parseInt(bounds[1]) + 1;
+                        rangeGets.incrementAndGet();
+                    }
+                    setHeader(exchange, "ETag", "\"" + etags.get(path) + "\"");
+                    if (metadata.containsKey(path)) {
+                        for (Map.Entry<String, String> entry : metadata.get(path).entrySet()) {
+                            setHeader(exchange, entry.getKey(), entry.getValue());
+                        }
+                    }
+                    exchange.getResponseHeaders().add("Last-Modified", "Thu, 01 Jan 2015 00:00:00 GMT");
+                    if ("HEAD".equals(method)) {
+                        setHeader(exchange, "Content-Length", Integer.toString(object.length));
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    if (range != null) {
+                        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + object.length);
+                    }
+                    exchange.sendResponseHeaders(range != null ? 206 : 200, end - start);
+                    OutputStream out = exchange.getResponseBody();
+                    if (range != null && corruptRanges) {
+                        object = object.clone();
+                        object[start] ^= 1;
+                    }
+                    out.write(object, start, end - start);
+                    out.close();
+                } else {
+                    send(exchange, 400, "<Error><Code>InvalidRequest</Code><Message>unsupported</Message></Error>");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * The SDK looks some headers up case sensitively, while Headers.add
+         * would send ETag as Etag, so they go into the backing map directly.
+         */
+        @SuppressWarnings("unchecked")
+        private static void setHeader(HttpExchange exchange, String name, String value) throws IOException {
+            try {
+                Field map = exchange.getResponseHeaders().getClass().getDeclaredField("map");
+                map.setAccessible(true);
+                ((Map<String, List<String>>)map.get(exchange.getResponseHeaders())).put(name, Collections.singletonList(value));
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static String key(String path) {
+            return path.substring(BUCKET.length() + 2);
+        }
+
+        private static Map<String, String> parseQuery(String query) {
+            Map<String, String> params = new HashMap<String, String>();
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    int eq = param.indexOf('=');
+                    params.put(eq < 0 ? param : param.substring(0, eq), eq < 0 ? "" : param.substring(eq + 1));
+                }
+            }
+            return params;
+        }
+
+        private static void send(HttpExchange exchange, int code, String xml) throws IOException {
+            byte[] data = xml != null ? xml.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(code, data.length > 0 ? data.length : -1);
+            if (data.length > 0) {
+                OutputStream out = exchange.getResponseBody();
+                out.write(data);
+                out.close();
+            }
+        }
+    }
+
+    private static class TestClientOptions implements ClientOptions {
+        private final String endPoint;
+
+        TestClientOptions(String endPoint) {
+            this.endPoint = endPoint;
+        }
+
+        @Override
+        public String getAccessKey() {
+            return "access";
+        }
+
+        @Override
+        public String getSecretKey() {
+            return "secret";
+        }
+
+        @Override
+        public String getEndPoint() {
+            return endPoint;
+        }
+
+        @Override
+        public Boolean isHttps() {
+            return false;
+        }
+
+        @Override
+        public Integer getConnectionTimeout() {
+            return null;
+        }
+
+        @Override
+        public Integer getMaxErrorRetry() {
+            return 0;
+        }
+
+        @Override
+        public Integer getSocketTimeout() {
+            return null;
+        }
+
+        @Override
+        public Boolean getUseTCPKeepAlive() {
+            return null;
+        }
+
+        @Override
+        public Integer getConnectionTtl() {
+            return null;
+        }
+    }
+}
@@ -20,8 +20,10 @@
 package com.cloud.utils;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.apache.log4j.Logger;
 import org.junit.Assert;
@@ -33,6 +35,7 @@ import org.mockito.Mockito;
 
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
+import com.cloud.utils.script.ScriptHelper;
 
 public class ScriptTest {
     @Test
@@ -132,4 +135,144 @@ public class ScriptTest {
         String script = Script.findScript("/bin", "pwd");
         Assert.assertNotNull("/bin/pwd shoud be there on linux", script);
     }
+
+    private static String findScriptHelper() {
+        Assume.assumeTrue(SystemUtils.IS_OS_LINUX);
+        Assume.assumeTrue(Script.runSimpleBashScriptForExitValue("python -c pass") == 0);
+        String helper = Script.findScript("../scripts/util", "script_helper.py");
+        Assume.assumeNotNull(helper);
+        return helper;
+    }
+
+    @Test
+    public void testScriptHelper() throws IOException {
+        ScriptHelper.initialize("python", findScriptHelper(), 2);
+        File pythonScript = File.createTempFile("scripthelper", ".py");
+        try {
+            Assert.assertNotNull(ScriptHelper.getInstance());
+
+            Script script = new Script("/bin/echo");
+            script.add("bar");
+            OutputInterpreter.AllLinesParser resultParser = new OutputInterpreter.AllLinesParser();
+            Assert.assertNull(script.execute(resultParser));
+            Assert.assertEquals("bar\n", resultParser.getLines());
+
+            script = new Script("/bin/false");
+            Assert.assertEquals("1", script.execute(null));
+            Assert.assertEquals(1, script.getExitValue());
+
+            // python scripts run in a child of the helper
+            FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/env python\nimport sys\nprint(sys.argv[1])\nsys.exit(3)\n");
+            script = new Script(pythonScript.getAbsolutePath());
+            script.add("foo");
+            Assert.assertEquals("foo", script.execute().trim());
+            Assert.assertEquals(3, script.getExitValue());
+
+            // the script finds the modules next to it
+            File module = new File(pythonScript.getParentFile(), pythonScript.getName().replace(".py", "_module.py"));
+            try {
+                FileUtils.writeStringToFile(module, "VALUE = 'sibling'\n");
+                FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/env python\nimport " + module.getName().replace(".py", "") + " as m\nprint(m.VALUE)\n");
+                script = new Script(pythonScript.getAbsolutePath());
+                OutputInterpreter.OneLineParser lineParser = new OutputInterpreter.OneLineParser();
+                Assert.assertNull(script.execute(lineParser));
+                Assert.assertEquals("sibling", lineParser.getLine());
+            } finally {
+                module.delete();
+            }
+
+            script = new Script("/bin/sleep", 500);
+            script.add("10");
+            Assert.assertEquals(Script.ERR_TIMEOUT, script.execute());
+            // the helper that timed out is replaced
+            Assert.assertEquals("hello world!", Script.runSimpleBashScript("echo 'hello world!'"));
+        } finally {
+            ScriptHelper.shutdown();
+            pythonScript.delete();
+        }
+    }
+
+    @Test
+    public void testScriptIsForkedWhenNoHelperIsFree() throws Exception {
+        ScriptHelper.initialize("python", findScriptHelper(), 1);
+        try {
+            // keep the only helper busy
+            Thread busy = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Script script = new Script("/bin/sleep", 10000);
+                    script.add("5");
+                    script.execute();
+                }
+            });
+            busy.start();
+            Thread.sleep(500);
+
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("hello world!", Script.runSimpleBashScript("echo 'hello world!'"));
+            Assert.assertTrue("the script waited for the busy helper", System.currentTimeMillis() - start < 4000);
+            busy.join();
+        } finally {
+            ScriptHelper.shutdown();
+        }
+    }
+
+    private static long runScripts(String command, int count, Logger logger) {
+        Profiler profiler = new Profiler();
+        profiler.start();
+        for (int i = 0; i < count; i++) {
+            Assert.assertNull(new Script(command, logger).execute());
+        }
+        profiler.stop();
+        return profiler.getDurationInMillis();
+    }
+
+    @Test
+    public void testScriptHelperAcceptsScriptsOfItsInterpreter() throws IOException {
+        ScriptHelper.initialize("python", findScriptHelper(), 1);
+        File pythonScript = File.createTempFile("scripthelper", ".py");
+        try {
+            ScriptHelper helper = ScriptHelper.getInstance();
+            Assert.assertNotNull(helper);
+            Assert.assertTrue(helper.accepts(new String[] {"/bin/true"}));
+
+            FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/python\n");
+            Assert.assertTrue(helper.accepts(new String[] {pythonScript.getAbsolutePath()}));
+            FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/env python\n");
+            Assert.assertTrue(helper.accepts(new String[] {pythonScript.getAbsolutePath()}));
+            FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/env python3\n");
+            Assert.assertFalse(helper.accepts(new String[] {pythonScript.getAbsolutePath()}));
+            FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/python2.6 -u\n");
+            Assert.assertFalse(helper.accepts(new String[] {pythonScript.getAbsolutePath()}));
+        } finally {
+            ScriptHelper.shutdown();
+            pythonScript.delete();
+        }
+    }
+
+    @Test
+    @Ignore("benchmark, forks several hundred processes")
+    public void testScriptHelperBenchmark() throws IOException {
+        String helper = findScriptHelper();
+        final int count = 100;
+        Logger mock = Mockito.mock(Logger.class);
+        File pythonScript = File.createTempFile("scripthelper", ".py");
+        try {
+            FileUtils.writeStringToFile(pythonScript, "#!/usr/bin/env python\nimport os, re, logging\n");
+            pythonScript.setExecutable(true);
+            final String python = pythonScript.getAbsolutePath();
+
+            long forkedTrue = runScripts("/bin/true", count, mock);
+            long forkedPython = runScripts(python, count, mock);
+            ScriptHelper.initialize("python", helper, 1);
+            long helperTrue = runScripts("/bin/true", count, mock);
+            long helperPython = runScripts(python, count, mock);
+
+            Logger.getLogger(ScriptTest.class).info(count + " runs of /bin/true: forked " + forkedTrue + " ms, through the script helper " + helperTrue + " ms");
+            Logger.getLogger(ScriptTest.class).info(count + " runs of a python script: forked " + forkedPython + " ms, through the script helper " + helperPython + " ms");
+        } finally {
+            ScriptHelper.shutdown();
+            pythonScript.delete();
+        }
+    }
 }
@@ -0,0 +1,84 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.stats;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TimeSeriesRingBufferTest {
+
+    @Test
+    public void oldestSamplesAreOverwritten() {
+        TimeSeriesRingBuffer buffer = new TimeSeriesRingBuffer(3, 0);
+        for (int i = 1; i <= 5; i++) {
+            buffer.add(i * 1000L, i);
+        }
+        assertEquals(3, buffer.size());
+        assertArrayEquals(new double[] {3, 4, 5}, buffer.summarize(0).getValues(), 0);
+        assertArrayEquals(new double[] {4, 5}, buffer.summarize(4000L).getValues(), 0);
+    }
+
+    @Test
+    public void samplesAreDownsampled() {
+        TimeSeriesRingBuffer buffer = new TimeSeriesRingBuffer(10, 60000L);
+        buffer.add(0, 10);
+        buffer.add(30000L, 20);
+        buffer.add(60000L, 40);
+        TimeSeriesRingBuffer.Summary summary = buffer.summarize(0);
+        assertArrayEquals(new double[] {15, 40}, summary.getValues(), 0);
+        assertEquals(0, summary.getFirstTimestamp());
+        assertEquals(60000L, summary.getLastTimestamp());
+    }
+
+    @Test
+    public void outOfOrderSamplesAreIgnored() {
+        TimeSeriesRingBuffer buffer = new TimeSeriesRingBuffer(10, 0);
+        buffer.add(2000L, 2);
+        buffer.add(1000L, 1);
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void summaryStatistics() {
+        TimeSeriesRingBuffer buffer = new TimeSeriesRingBuffer(100, 0);
+        for (int i = 1; i <= 100; i++) {
+            buffer.add(i * 1000L, i);
+        }
+        TimeSeriesRingBuffer.Summary summary = buffer.summarize(0);
+        assertEquals(100, summary.getCount());
+        assertEquals(50.5, summary.getAverage(), 0.001);
+        assertEquals(1, summary.getMinimum(), 0);
+        assertEquals(100, summary.getMaximum(), 0);
+        assertEquals(95, summary.getPercentile(95), 0);
+        assertEquals(1, summary.getRate(), 0.001);
+        assertEquals(100, summary.getLast(), 0);
+    }
+
+    @Test
+    public void emptySummary() {
+        TimeSeriesRingBuffer.Summary summary = new TimeSeriesRingBuffer(10, 0).summarize(0);
+        assertEquals(0, summary.getCount());
+        assertEquals(0, summary.getAverage(), 0);
+        assertEquals(0, summary.getPercentile(95), 0);
+        assertEquals(0, summary.getRate(), 0);
+    }
+}
@@ -0,0 +1,121 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.utils.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileCopierTest {
+
+    File dir;
+    File src;
+    File dest;
+    byte[] content = new byte[3 * 1024 * 1024 + 17];
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("filecopier").toFile();
+        src = new File(dir, "src");
+        dest = new File(dir, "dest");
+        new Random(7).nextBytes(content);
+        FileUtils.writeByteArrayToFile(src, content);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        FileCopier copier = new FileCopier();
+        assertEquals(content.length, copier.copy(src, dest));
+        assertArrayEquals(content, FileUtils.readFileToByteArray(dest));
+        assertNull(copier.getChecksum());
+    }
+
+    @Test
+    public void testCopyWithChecksum() throws Exception {
+        FileCopier copier = new FileCopier();
+        copier.setChecksumAlgorithm("MD5");
+        copier.copy(src, dest);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(dest));
+        String expected = String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(content)));
+        assertEquals(expected, copier.getChecksum());
+    }
+
+    @Test
+    public void testSparseCopy() throws Exception {
+        // 1M of data, an 8M hole and a trailing 1M hole
+        RandomAccessFile raf = new RandomAccessFile(src, "rw");
+        raf.setLength(0);
+        raf.write(content, 0, 1024 * 1024);
+        raf.setLength(10 * 1024 * 1024);
+        raf.close();
+
+        FileCopier copier = new FileCopier();
+        copier.setSparse(true);
+        copier.setChecksumAlgorithm("MD5");
+        assertEquals(10 * 1024 * 1024, copier.copy(src, dest));
+        assertEquals(src.length(), dest.length());
+        assertArrayEquals(FileUtils.readFileToByteArray(src), FileUtils.readFileToByteArray(dest));
+    }
+
+    @Test
+    public void testProgressAndStop() throws Exception {
+        final long[] reported = new long[1];
+        FileCopier copier = new FileCopier();
+        copier.setProgressListener(new FileCopier.ProgressListener() {
+            @Override
+            public boolean onProgress(long copied, long total) {
+                reported[0] = copied;
+                return copied < 2 * 1024 * 1024;
+            }
+        });
+        long copied = copier.copy(src, dest);
+        assertEquals(2 * 1024 * 1024, copied);
+        assertEquals(copied, reported[0]);
+    }
+
+    @Test
+    public void testBandwidthLimit() throws Exception {
+        FileCopier copier = new FileCopier();
+        copier.setBlockSize(256 * 1024);
+        copier.setBandwidthLimit(8 * 1024 * 1024);
+        long start = System.currentTimeMillis();
+        copier.copy(src, dest);
+        // 3M at 8M/s takes at least 375ms
+        assertTrue(System.currentTimeMillis() - start >= 350);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(dest));
+    }
+}
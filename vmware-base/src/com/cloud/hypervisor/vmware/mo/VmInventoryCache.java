@@ -0,0 +1,241 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.mo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InvalidCollectorVersionFaultMsg;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+
+/**
+ * Keeps the given properties of all VMs on a host or cluster in memory. The first call on a vCenter session
+ * creates a private PropertyCollector with a filter over the VMs and loads the full inventory; later calls
+ * only poll WaitForUpdatesEx without waiting and apply the reported changes.
+ *
+ * PropertyCollectors are bound to the session that created them, so callers must always pass the
+ * same VmwareContext, one that is kept out of the context pool, and destroy the cache before closing it.
+ */
+public class VmInventoryCache {
+    private static final Logger s_logger = Logger.getLogger(VmInventoryCache.class);
+
+    private final ManagedObjectReference _morHyperHost;
+    private final String[] _propertyPaths;
+
+    private ManagedObjectReference _morCollector;
+    private ManagedObjectReference _morFilter;
+    private String _version;
+
+    // VM MOR value -> (VM MOR, property path -> value)
+    private final Map<String, ManagedObjectReference> _vms = new LinkedHashMap<String, ManagedObjectReference>();
+    private final Map<String, Map<String, Object>> _vmProperties = new HashMap<String, Map<String, Object>>();
+
+    public VmInventoryCache(ManagedObjectReference morHyperHost, String[] propertyPaths) {
+        assert (morHyperHost != null);
+        assert (propertyPaths != null && propertyPaths.length > 0);
+
+        _morHyperHost = morHyperHost;
+        _propertyPaths = propertyPaths.clone();
+    }
+
+    public boolean isTracking(ManagedObjectReference morHyperHost, String[] propertyPaths) {
+        return _morHyperHost.getValue().equals(morHyperHost.getValue()) && Arrays.equals(_propertyPaths, propertyPaths);
+    }
+
+    /**
+     * Brings the cache up to date with vCenter and returns the VM properties in the same shape as
+     * VmwareHypervisorHost.getVmPropertiesOnHyperHost().
+     */
+    public synchronized ObjectContent[] getVmProperties(VmwareContext context) throws Exception {
+        try {
+            if (_morFilter == null) {
+                createFilter(context);
+            }
+            try {
+                pollUpdates(context);
+            } catch (InvalidCollectorVersionFaultMsg e) {
+                s_logger.info("PropertyCollector version " + _version + " of " + _morHyperHost.getValue() + " is no longer valid, reload VM inventory");
+                destroy(context);
+                createFilter(context);
+                pollUpdates(context);
+            }
+        } catch (Exception e) {
+            // start over with a full load on the next call rather than serve a partially applied update
+            reset();
+            throw e;
+        }
+
+        ObjectContent[] ocs = new ObjectContent[_vms.size()];
+        int i = 0;
+        for (Map.Entry<String, ManagedObjectReference> entry : _vms.entrySet()) {
+            ObjectContent oc = new ObjectContent();
+            oc.setObj(entry.getValue());
+            for (Map.Entry<String, Object> prop : _vmProperties.get(entry.getKey()).entrySet()) {
+                DynamicProperty dynamicProperty = new DynamicProperty();
+                dynamicProperty.setName(prop.getKey());
+                dynamicProperty.setVal(prop.getValue());
+                oc.getPropSet().add(dynamicProperty);
+            }
+            ocs[i++] = oc;
+        }
+        return ocs;
+    }
+
+    public synchronized void destroy(VmwareContext context) {
+        if (_morCollector != null) {
+            try {
+                // destroying the collector also destroys the filters it owns
+                context.getService().destroyPropertyCollector(_morCollector);
+            } catch (Exception e) {
+                s_logger.debug("[ignored] failed to destroy PropertyCollector of " + _morHyperHost.getValue() + ": " + e.getMessage());
+            }
+        }
+        reset();
+    }
+
+    private void reset() {
+        _morCollector = null;
+        _morFilter = null;
+        _version = null;
+        _vms.clear();
+        _vmProperties.clear();
+    }
+
+    private void createFilter(VmwareContext context) throws Exception {
+        VimPortType service = context.getService();
+
+        PropertySpec pSpec = new PropertySpec();
+        pSpec.setType("VirtualMachine");
+        pSpec.getPathSet().addAll(Arrays.asList(_propertyPaths));
+
+        TraversalSpec host2VmTraversal = new TraversalSpec();
+        host2VmTraversal.setType("HostSystem");
+        host2VmTraversal.setPath("vm");
+        host2VmTraversal.setName("host2VmTraversal");
+
+        ObjectSpec oSpec = new ObjectSpec();
+        oSpec.setObj(_morHyperHost);
+        oSpec.setSkip(Boolean.TRUE);
+        if (_morHyperHost.getType().equals("ClusterComputeResource")) {
+            TraversalSpec cluster2HostTraversal = new TraversalSpec();
+            cluster2HostTraversal.setType("ClusterComputeResource");
+            cluster2HostTraversal.setPath("host");
+            cluster2HostTraversal.setName("cluster2HostTraversal");
+            cluster2HostTraversal.getSelectSet().add(host2VmTraversal);
+            oSpec.getSelectSet().add(cluster2HostTraversal);
+        } else {
+            oSpec.getSelectSet().add(host2VmTraversal);
+        }
+
+        PropertyFilterSpec pfSpec = new PropertyFilterSpec();
+        pfSpec.getPropSet().add(pSpec);
+        pfSpec.getObjectSet().add(oSpec);
+
+        // a private collector keeps our version sequence apart from the task waits done on the session's default collector
+        _morCollector = service.createPropertyCollector(context.getPropertyCollector());
+        _morFilter = service.createFilter(_morCollector, pfSpec, true);
+        _version = "";
+
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Created VM inventory filter on " + _morHyperHost.getType() + " " + _morHyperHost.getValue() + ", properties: " + Arrays.toString(_propertyPaths));
+    }
+
+    private void pollUpdates(VmwareContext context) throws Exception {
+        WaitOptions options = new WaitOptions();
+        options.setMaxWaitSeconds(0);
+
+        while (true) {
+            UpdateSet updateSet = context.getService().waitForUpdatesEx(_morCollector, _version, options);
+            if (updateSet == null) {
+                // nothing changed since the last version
+                return;
+            }
+
+            _version = updateSet.getVersion();
+            for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+                for (ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                    applyUpdate(objUpdate);
+                }
+            }
+
+            if (updateSet.isTruncated() == null || !updateSet.isTruncated().booleanValue()) {
+                return;
+            }
+        }
+    }
+
+    private void applyUpdate(ObjectUpdate objUpdate) {
+        ManagedObjectReference morVm = objUpdate.getObj();
+        String vmKey = morVm.getValue();
+
+        switch (objUpdate.getKind()) {
+        case LEAVE:
+            _vms.remove(vmKey);
+            _vmProperties.remove(vmKey);
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("VM " + vmKey + " left the inventory of " + _morHyperHost.getValue());
+            return;
+
+        case ENTER:
+            _vms.put(vmKey, morVm);
+            _vmProperties.put(vmKey, new HashMap<String, Object>());
+            break;
+
+        default:
+            break;
+        }
+
+        Map<String, Object> props = _vmProperties.get(vmKey);
+        if (props == null) {
+            // MODIFY for a VM we never saw enter, treat it as entering
+            _vms.put(vmKey, morVm);
+            props = new HashMap<String, Object>();
+            _vmProperties.put(vmKey, props);
+        }
+
+        List<PropertyChange> changes = objUpdate.getChangeSet();
+        if (changes != null) {
+            for (PropertyChange change : changes) {
+                if (change.getOp() == PropertyChangeOp.REMOVE || change.getOp() == PropertyChangeOp.INDIRECT_REMOVE || change.getVal() == null) {
+                    props.remove(change.getName());
+                } else {
+                    props.put(change.getName(), change.getVal());
+                }
+            }
+        }
+    }
+}
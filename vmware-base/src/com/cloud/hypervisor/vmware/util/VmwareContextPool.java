@@ -17,29 +17,55 @@
 package com.cloud.hypervisor.vmware.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
-import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
-public class VmwareContextPool {
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Keeps idle vCenter sessions per vCenter and user for reuse. Each pool key has its own idle queue,
+ * so borrowers of different vCenters never contend. A borrower that finds no idle session reserves
+ * one of the session slots of the key before opening a session; once all slots are taken, borrowers
+ * wait for a session to be returned or closed instead of opening another one. Idle sessions are
+ * validated in the background, so a borrowed session is normally usable.
+ */
+public class VmwareContextPool implements VmwareContextPoolMBean {
     private static final Logger s_logger = Logger.getLogger(VmwareContextPool.class);
 
     private static final long DEFAULT_CHECK_INTERVAL = 10000;
     private static final int DEFAULT_IDLE_QUEUE_LENGTH = 128;
+    private static final int DEFAULT_MAX_SESSIONS = 128;
+    private static final long DEFAULT_MAX_WAIT = 30000;
 
-    private List<VmwareContext> _outstandingRegistry = new ArrayList<VmwareContext>();
+    private final Queue<VmwareContext> _outstandingRegistry = new ConcurrentLinkedQueue<VmwareContext>();
 
-    private Map<String, List<VmwareContext>> _pool;
+    private final ConcurrentMap<String, KeyedPool> _pool = new ConcurrentHashMap<String, KeyedPool>();
     private int _maxIdleQueueLength = DEFAULT_IDLE_QUEUE_LENGTH;
     private long _idleCheckIntervalMs = DEFAULT_CHECK_INTERVAL;
+    private volatile int _maxSessions = DEFAULT_MAX_SESSIONS;
+    private volatile long _maxWaitMs = DEFAULT_MAX_WAIT;
+
+    private final AtomicLong _reuseCount = new AtomicLong();
+    private final AtomicLong _waitCount = new AtomicLong();
+    private final AtomicLong _waitTimeoutCount = new AtomicLong();
+    private final AtomicLong _invalidContextCount = new AtomicLong();
 
-    private Timer _timer = new Timer();
+    private final ScheduledExecutorService _keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("VmwareContextPool-KeepAlive"));
 
     public VmwareContextPool() {
         this(DEFAULT_IDLE_QUEUE_LENGTH, DEFAULT_CHECK_INTERVAL);
@@ -50,82 +76,133 @@ public class VmwareContextPool {
     }
 
     public VmwareContextPool(int maxIdleQueueLength, long idleCheckIntervalMs) {
-        _pool = new HashMap<String, List<VmwareContext>>();
-
         _maxIdleQueueLength = maxIdleQueueLength;
         _idleCheckIntervalMs = idleCheckIntervalMs;
 
-        _timer.scheduleAtFixedRate(getTimerTask(), _idleCheckIntervalMs, _idleCheckIntervalMs);
+        _keepAliveExecutor.scheduleAtFixedRate(getKeepAliveTask(), _idleCheckIntervalMs, _idleCheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * limit the number of sessions kept open per vCenter and user, borrowers wait up to maxWaitMs
+     * for an idle session or a free slot once the limit is reached
+     */
+    public void setSessionLimit(int maxSessions, long maxWaitMs) {
+        _maxSessions = maxSessions;
+        _maxWaitMs = maxWaitMs;
     }
 
     public void registerOutstandingContext(VmwareContext context) {
+        registerOutstandingContext(context, false);
+    }
+
+    /**
+     * @param reserved whether the session was opened in the slot getContext reserved for the caller,
+     * sessions opened without one add to the count of the key
+     */
+    public void registerOutstandingContext(VmwareContext context, boolean reserved) {
         assert (context != null);
-        synchronized (this) {
-            _outstandingRegistry.add(context);
+        _outstandingRegistry.add(context);
+        if (context.getPoolKey() != null && !reserved) {
+            getKeyedPool(context.getPoolKey()).sessions.incrementAndGet();
         }
     }
 
     public void unregisterOutstandingContext(VmwareContext context) {
         assert (context != null);
-        synchronized (this) {
-            _outstandingRegistry.remove(context);
+        if (_outstandingRegistry.remove(context) && context.getPoolKey() != null) {
+            KeyedPool keyedPool = getKeyedPool(context.getPoolKey());
+            keyedPool.sessions.decrementAndGet();
+            keyedPool.signal();
         }
     }
 
+    /**
+     * Gives back the slot reserved by getContext when opening the session failed
+     */
+    public void releaseReservation(String vCenterAddress, String vCenterUserName) {
+        KeyedPool keyedPool = getKeyedPool(composePoolKey(vCenterAddress, vCenterUserName));
+        keyedPool.sessions.decrementAndGet();
+        keyedPool.signal();
+    }
+
+    /**
+     * @return an idle context, or null if the caller should open a new session. A slot is then reserved
+     * for that session, the caller registers the session as reserved or releases the reservation if opening it fails.
+     * @throws CloudRuntimeException if the session limit is reached and no session became available in time
+     */
     public VmwareContext getContext(String vCenterAddress, String vCenterUserName) {
         String poolKey = composePoolKey(vCenterAddress, vCenterUserName);
-        synchronized (this) {
-            List<VmwareContext> l = _pool.get(poolKey);
-            if (l == null)
-                return null;
+        KeyedPool keyedPool = getKeyedPool(poolKey);
 
-            if (l.size() > 0) {
-                VmwareContext context = l.remove(0);
-                context.setPoolInfo(this, poolKey);
-
-                if (s_logger.isTraceEnabled())
-                    s_logger.trace("Return a VmwareContext from the idle pool: " + poolKey + ". current pool size: " + l.size() + ", outstanding count: " +
-                        VmwareContext.getOutstandingContextCount());
-                return context;
+        VmwareContext context;
+        long deadline = System.currentTimeMillis() + _maxWaitMs;
+        boolean waited = false;
+        while ((context = keyedPool.idle.poll()) == null) {
+            if (keyedPool.reserve(_maxSessions)) {
+                return null;
             }
 
-            // TODO, we need to control the maximum number of outstanding VmwareContext object in the future
-            return null;
+            if (!waited) {
+                waited = true;
+                _waitCount.incrementAndGet();
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                _waitTimeoutCount.incrementAndGet();
+                throw new CloudRuntimeException("No vCenter session of " + poolKey + " became available within " + _maxWaitMs + " ms, all " + _maxSessions +
+                    " sessions are in use");
+            }
+            try {
+                keyedPool.await(_maxSessions, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CloudRuntimeException("Interrupted while waiting for a vCenter session of " + poolKey);
+            }
         }
+
+        _reuseCount.incrementAndGet();
+        context.setPoolInfo(this, poolKey);
+
+        if (s_logger.isTraceEnabled())
+            s_logger.trace("Return a VmwareContext from the idle pool: " + poolKey + ". current pool size: " + keyedPool.idle.size() + ", outstanding count: " +
+                VmwareContext.getOutstandingContextCount());
+        return context;
     }
 
     public void returnContext(VmwareContext context) {
         assert (context.getPool() == this);
         assert (context.getPoolKey() != null);
-        synchronized (this) {
-            List<VmwareContext> l = _pool.get(context.getPoolKey());
-            if (l == null) {
-                l = new ArrayList<VmwareContext>();
-                _pool.put(context.getPoolKey(), l);
-            }
 
-            if (l.size() < _maxIdleQueueLength) {
-                context.clearStockObjects();
-                l.add(context);
-
-                if (s_logger.isTraceEnabled())
-                    s_logger.trace("Recycle VmwareContext into idle pool: " + context.getPoolKey() + ", current idle pool size: " + l.size() + ", outstanding count: " +
-                        VmwareContext.getOutstandingContextCount());
-            } else {
-                if (s_logger.isTraceEnabled())
-                    s_logger.trace("VmwareContextPool queue exceeds limits, queue size: " + l.size());
-                context.close();
-            }
+        context.clearStockObjects();
+        KeyedPool keyedPool = getKeyedPool(context.getPoolKey());
+        BlockingQueue<VmwareContext> idle = keyedPool.idle;
+        if (keyedPool.offer(context)) {
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("Recycle VmwareContext into idle pool: " + context.getPoolKey() + ", current idle pool size: " + idle.size() + ", outstanding count: " +
+                    VmwareContext.getOutstandingContextCount());
+        } else {
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("VmwareContextPool queue exceeds limits, queue size: " + idle.size());
+            context.close();
         }
     }
 
-    private TimerTask getTimerTask() {
-        return new ManagedContextTimerTask() {
+    private KeyedPool getKeyedPool(String poolKey) {
+        KeyedPool keyedPool = _pool.get(poolKey);
+        if (keyedPool == null) {
+            KeyedPool newPool = new KeyedPool(_maxIdleQueueLength);
+            keyedPool = _pool.putIfAbsent(poolKey, newPool);
+            if (keyedPool == null)
+                keyedPool = newPool;
+        }
+        return keyedPool;
+    }
+
+    private Runnable getKeepAliveTask() {
+        return new ManagedContextRunnable() {
             @Override
             protected void runInContext() {
                 try {
-                    // doIdleCheck();
-
                     doKeepAlive();
                 } catch (Throwable e) {
                     s_logger.error("Unexpected exception", e);
@@ -134,30 +211,31 @@ public class VmwareContextPool {
         };
     }
 
-    private void getKeepAliveCheckContexts(List<VmwareContext> l, int batchSize) {
-        synchronized (this) {
-            int size = Math.min(_outstandingRegistry.size(), batchSize);
-            while (size > 0) {
-                VmwareContext context = _outstandingRegistry.remove(0);
-                l.add(context);
-
-                _outstandingRegistry.add(context);
-                size--;
-            }
-        }
-    }
-
     private void doKeepAlive() {
-        List<VmwareContext> l = new ArrayList<VmwareContext>();
-        int batchSize = (int)(_idleCheckIntervalMs / 1000);    // calculate batch size at 1 request/sec rate
-        getKeepAliveCheckContexts(l, batchSize);
+        int batchSize = (int)Math.max(1, _idleCheckIntervalMs / 1000);    // calculate batch size at 1 request/sec rate
+        for (KeyedPool keyedPool : _pool.values()) {
+            // check the idle contexts that have waited longest, they are taken out of the queue
+            // meanwhile so no borrower gets a context that is being checked
+            List<VmwareContext> l = new ArrayList<VmwareContext>();
+            keyedPool.idle.drainTo(l, batchSize);
 
-        for (VmwareContext context : l) {
-            try {
-                context.idleCheck();
-            } catch (Throwable e) {
-                s_logger.warn("Exception caught during VmwareContext idle check, close and discard the context", e);
-                context.close();
+            for (VmwareContext context : l) {
+                // validation makes a call on the session, which also keeps it from timing out
+                boolean valid = false;
+                try {
+                    valid = context.validate();
+                } catch (Throwable e) {
+                    s_logger.warn("Exception caught during VmwareContext idle check", e);
+                }
+                if (!valid) {
+                    _invalidContextCount.incrementAndGet();
+                    s_logger.info("Idle VmwareContext of " + context.getPoolKey() + " is no longer valid, close and discard the context");
+                    context.close();
+                    continue;
+                }
+
+                if (!keyedPool.offer(context))
+                    context.close();
             }
         }
     }
@@ -167,4 +245,81 @@ public class VmwareContextPool {
         assert (vCenterAddress != null);
         return vCenterUserName + "@" + vCenterAddress;
     }
+
+    @Override
+    public int getIdleContextCount() {
+        int count = 0;
+        for (KeyedPool keyedPool : _pool.values())
+            count += keyedPool.idle.size();
+        return count;
+    }
+
+    @Override
+    public int getOutstandingContextCount() {
+        return _outstandingRegistry.size();
+    }
+
+    @Override
+    public long getReuseCount() {
+        return _reuseCount.get();
+    }
+
+    @Override
+    public long getWaitCount() {
+        return _waitCount.get();
+    }
+
+    @Override
+    public long getWaitTimeoutCount() {
+        return _waitTimeoutCount.get();
+    }
+
+    @Override
+    public long getInvalidContextCount() {
+        return _invalidContextCount.get();
+    }
+
+    private static class KeyedPool {
+        final BlockingQueue<VmwareContext> idle;
+        // open sessions of this key, idle or in use, plus the slots reserved for sessions being opened
+        final AtomicInteger sessions = new AtomicInteger();
+
+        KeyedPool(int maxIdleQueueLength) {
+            idle = new ArrayBlockingQueue<VmwareContext>(Math.max(1, maxIdleQueueLength));
+        }
+
+        boolean reserve(int maxSessions) {
+            while (true) {
+                int current = sessions.get();
+                if (current >= maxSessions) {
+                    return false;
+                }
+                if (sessions.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        boolean offer(VmwareContext context) {
+            if (!idle.offer(context)) {
+                return false;
+            }
+            signal();
+            return true;
+        }
+
+        /**
+         * wakes up the borrowers waiting for an idle session or a free slot
+         */
+        synchronized void signal() {
+            notifyAll();
+        }
+
+        synchronized void await(int maxSessions, long timeoutMs) throws InterruptedException {
+            // checked under the lock that signal() takes, so a session returned or closed meanwhile is not missed
+            if (idle.isEmpty() && sessions.get() >= maxSessions) {
+                wait(timeoutMs);
+            }
+        }
+    }
 }
@@ -0,0 +1,180 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.mo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.InvalidCollectorVersionFaultMsg;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+
+public class VmInventoryCacheTest {
+
+    private static final String[] PROPERTIES = new String[] {"name", "runtime.powerState"};
+
+    private VmwareContext context;
+    private VimPortType service;
+    private ManagedObjectReference morHost;
+    private ManagedObjectReference morCollector;
+
+    @Before
+    public void setUp() throws Exception {
+        context = mock(VmwareContext.class);
+        service = mock(VimPortType.class);
+        morHost = createMor("HostSystem", "host-1");
+        morCollector = createMor("PropertyCollector", "session[1]pc");
+
+        ManagedObjectReference morDefaultCollector = createMor("PropertyCollector", "propertyCollector");
+        when(context.getService()).thenReturn(service);
+        when(context.getPropertyCollector()).thenReturn(morDefaultCollector);
+        when(service.createPropertyCollector(morDefaultCollector)).thenReturn(morCollector);
+        when(service.createFilter(eq(morCollector), any(PropertyFilterSpec.class), anyBoolean())).thenReturn(createMor("PropertyFilter", "filter-1"));
+    }
+
+    private static ManagedObjectReference createMor(String type, String value) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setValue(value);
+        return mor;
+    }
+
+    private static ObjectUpdate createUpdate(ObjectUpdateKind kind, String vm, PropertyChangeOp op, String name, Object val) {
+        ObjectUpdate update = new ObjectUpdate();
+        update.setKind(kind);
+        update.setObj(createMor("VirtualMachine", vm));
+        if (name != null) {
+            PropertyChange change = new PropertyChange();
+            change.setName(name);
+            change.setOp(op);
+            change.setVal(val);
+            update.getChangeSet().add(change);
+        }
+        return update;
+    }
+
+    private static UpdateSet createUpdateSet(String version, ObjectUpdate... updates) {
+        PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+        for (ObjectUpdate update : updates) {
+            filterUpdate.getObjectSet().add(update);
+        }
+        UpdateSet updateSet = new UpdateSet();
+        updateSet.setVersion(version);
+        updateSet.getFilterSet().add(filterUpdate);
+        return updateSet;
+    }
+
+    private static Object getProperty(ObjectContent[] ocs, String vm, String name) {
+        for (ObjectContent oc : ocs) {
+            if (oc.getObj().getValue().equals(vm)) {
+                for (DynamicProperty prop : oc.getPropSet()) {
+                    if (prop.getName().equals(name)) {
+                        return prop.getVal();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testInitialLoadAndIncrementalUpdates() throws Exception {
+        when(service.waitForUpdatesEx(eq(morCollector), eq(""), any(WaitOptions.class))).thenReturn(
+            createUpdateSet("1", createUpdate(ObjectUpdateKind.ENTER, "vm-1", PropertyChangeOp.ASSIGN, "name", "i-2-3-VM"),
+                createUpdate(ObjectUpdateKind.ENTER, "vm-2", PropertyChangeOp.ASSIGN, "name", "r-4-VM")));
+        when(service.waitForUpdatesEx(eq(morCollector), eq("1"), any(WaitOptions.class))).thenReturn(
+            createUpdateSet("2", createUpdate(ObjectUpdateKind.MODIFY, "vm-1", PropertyChangeOp.ASSIGN, "runtime.powerState", "poweredOn"),
+                createUpdate(ObjectUpdateKind.LEAVE, "vm-2", null, null, null)));
+
+        VmInventoryCache inventory = new VmInventoryCache(morHost, PROPERTIES);
+        ObjectContent[] ocs = inventory.getVmProperties(context);
+        assertEquals(2, ocs.length);
+        assertEquals("r-4-VM", getProperty(ocs, "vm-2", "name"));
+
+        ocs = inventory.getVmProperties(context);
+        assertEquals(1, ocs.length);
+        assertEquals("i-2-3-VM", getProperty(ocs, "vm-1", "name"));
+        assertEquals("poweredOn", getProperty(ocs, "vm-1", "runtime.powerState"));
+
+        // no changes since version 2, answered from memory
+        ocs = inventory.getVmProperties(context);
+        assertEquals(1, ocs.length);
+        verify(service, times(1)).createFilter(eq(morCollector), any(PropertyFilterSpec.class), anyBoolean());
+    }
+
+    @Test
+    public void testRemovedPropertyIsDropped() throws Exception {
+        when(service.waitForUpdatesEx(eq(morCollector), eq(""), any(WaitOptions.class))).thenReturn(
+            createUpdateSet("1", createUpdate(ObjectUpdateKind.ENTER, "vm-1", PropertyChangeOp.ASSIGN, "runtime.powerState", "poweredOn")));
+        when(service.waitForUpdatesEx(eq(morCollector), eq("1"), any(WaitOptions.class))).thenReturn(
+            createUpdateSet("2", createUpdate(ObjectUpdateKind.MODIFY, "vm-1", PropertyChangeOp.REMOVE, "runtime.powerState", null)));
+
+        VmInventoryCache inventory = new VmInventoryCache(morHost, PROPERTIES);
+        inventory.getVmProperties(context);
+        ObjectContent[] ocs = inventory.getVmProperties(context);
+        assertEquals(1, ocs.length);
+        assertEquals(0, ocs[0].getPropSet().size());
+    }
+
+    @Test
+    public void testInvalidVersionReloadsInventory() throws Exception {
+        when(service.waitForUpdatesEx(eq(morCollector), eq(""), any(WaitOptions.class))).thenReturn(
+            createUpdateSet("1", createUpdate(ObjectUpdateKind.ENTER, "vm-1", PropertyChangeOp.ASSIGN, "name", "i-2-3-VM")));
+        when(service.waitForUpdatesEx(eq(morCollector), eq("1"), any(WaitOptions.class))).thenThrow(new InvalidCollectorVersionFaultMsg("invalid version", new InvalidCollectorVersion()));
+
+        VmInventoryCache inventory = new VmInventoryCache(morHost, PROPERTIES);
+        inventory.getVmProperties(context);
+        ObjectContent[] ocs = inventory.getVmProperties(context);
+        assertEquals(1, ocs.length);
+        assertEquals("i-2-3-VM", getProperty(ocs, "vm-1", "name"));
+
+        verify(service, times(1)).destroyPropertyCollector(morCollector);
+        verify(service, times(2)).createFilter(eq(morCollector), any(PropertyFilterSpec.class), anyBoolean());
+    }
+
+    @Test
+    public void testIsTracking() {
+        VmInventoryCache inventory = new VmInventoryCache(morHost, PROPERTIES);
+        assertTrue(inventory.isTracking(createMor("HostSystem", "host-1"), new String[] {"name", "runtime.powerState"}));
+        assertFalse(inventory.isTracking(createMor("HostSystem", "host-2"), PROPERTIES));
+        assertFalse(inventory.isTracking(morHost, new String[] {"name"}));
+    }
+}
@@ -0,0 +1,244 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.vmware.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class VmwareContextPoolTest {
+
+    private static final String ADDRESS = "10.1.1.1";
+    private static final String USER = "admin";
+
+    private VmwareContext createContext(VmwareContextPool pool, VmwareClient client) {
+        return createContext(pool, client, false);
+    }
+
+    private VmwareContext createContext(VmwareContextPool pool, VmwareClient client, boolean reserved) {
+        VmwareContext context = new VmwareContext(client, ADDRESS);
+        context.setPoolInfo(pool, VmwareContextPool.composePoolKey(ADDRESS, USER));
+        pool.registerOutstandingContext(context, reserved);
+        return context;
+    }
+
+    @Test
+    public void testReturnedContextIsReused() {
+        VmwareContextPool pool = new VmwareContextPool();
+        assertNull(pool.getContext(ADDRESS, USER));
+
+        VmwareContext context = createContext(pool, Mockito.mock(VmwareClient.class));
+        pool.returnContext(context);
+        assertEquals(1, pool.getIdleContextCount());
+
+        assertSame(context, pool.getContext(ADDRESS, USER));
+        assertEquals(0, pool.getIdleContextCount());
+        assertEquals(1, pool.getReuseCount());
+    }
+
+    @Test
+    public void testClosedContextIsUnregistered() {
+        VmwareContextPool pool = new VmwareContextPool();
+        VmwareContext context = createContext(pool, Mockito.mock(VmwareClient.class));
+        assertEquals(1, pool.getOutstandingContextCount());
+
+        context.close();
+        assertEquals(0, pool.getOutstandingContextCount());
+    }
+
+    @Test
+    public void testWaitForIdleContextAtSessionLimit() throws Exception {
+        final VmwareContextPool pool = new VmwareContextPool();
+        pool.setSessionLimit(1, 5000);
+        final VmwareContext context = createContext(pool, Mockito.mock(VmwareClient.class));
+
+        Thread returner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pool.returnContext(context);
+            }
+        });
+        returner.start();
+
+        // the only session is in use, wait for it rather than opening another one
+        assertSame(context, pool.getContext(ADDRESS, USER));
+        assertEquals(1, pool.getWaitCount());
+        assertEquals(0, pool.getWaitTimeoutCount());
+        returner.join();
+    }
+
+    @Test
+    public void testWaitTimesOutAtSessionLimit() {
+        VmwareContextPool pool = new VmwareContextPool();
+        pool.setSessionLimit(1, 100);
+        createContext(pool, Mockito.mock(VmwareClient.class));
+
+        try {
+            pool.getContext(ADDRESS, USER);
+            fail("no session beyond the limit should be opened");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+        assertEquals(1, pool.getWaitTimeoutCount());
+    }
+
+    @Test
+    public void testBurstOfBorrowersStaysWithinLimit() throws Exception {
+        final VmwareContextPool pool = new VmwareContextPool();
+        pool.setSessionLimit(2, 300);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger reserved = new AtomicInteger();
+        final AtomicInteger timedOut = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 8; i++) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        try {
+                            assertNull(pool.getContext(ADDRESS, USER));
+                            reserved.incrementAndGet();
+                        } catch (CloudRuntimeException e) {
+                            timedOut.incrementAndGet();
+                        }
+                        return null;
+                    }
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(2, reserved.get());
+        assertEquals(6, timedOut.get());
+    }
+
+    @Test
+    public void testClosedSessionWakesUpWaiter() throws Exception {
+        final VmwareContextPool pool = new VmwareContextPool();
+        pool.setSessionLimit(1, 10000);
+        final VmwareContext context = createContext(pool, Mockito.mock(VmwareClient.class));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<VmwareContext> borrower = executor.submit(new Callable<VmwareContext>() {
+                @Override
+                public VmwareContext call() {
+                    return pool.getContext(ADDRESS, USER);
+                }
+            });
+            Thread.sleep(200);
+            context.close();
+
+            // the slot of the closed session goes to the waiter, long before the wait times out
+            assertNull(borrower.get(5, TimeUnit.SECONDS));
+            assertEquals(1, pool.getWaitCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReleasedReservationFreesSlot() {
+        VmwareContextPool pool = new VmwareContextPool();
+        pool.setSessionLimit(1, 100);
+
+        assertNull(pool.getContext(ADDRESS, USER));
+        // opening the session failed
+        pool.releaseReservation(ADDRESS, USER);
+        assertNull(pool.getContext(ADDRESS, USER));
+
+        // the reserved slot is taken by the session once it is opened
+        createContext(pool, Mockito.mock(VmwareClient.class), true);
+        assertEquals(1, pool.getOutstandingContextCount());
+        try {
+            pool.getContext(ADDRESS, USER);
+            fail("the only slot is in use");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDirectSessionDoesNotTakeReservation() {
+        VmwareContextPool pool = new VmwareContextPool();
+        pool.setSessionLimit(2, 100);
+
+        assertNull(pool.getContext(ADDRESS, USER));
+        // a session opened without going through getContext while the reserved one is being opened
+        VmwareContext direct = createContext(pool, Mockito.mock(VmwareClient.class));
+        // opening the reserved session failed, its slot is given back and the direct session keeps its own
+        pool.releaseReservation(ADDRESS, USER);
+
+        assertNull(pool.getContext(ADDRESS, USER));
+        try {
+            pool.getContext(ADDRESS, USER);
+            fail("both slots are in use");
+        } catch (CloudRuntimeException e) {
+            // expected
+        }
+
+        direct.close();
+        assertNull(pool.getContext(ADDRESS, USER));
+    }
+
+    @Test
+    public void testInvalidIdleContextIsDiscarded() throws Exception {
+        VmwareContextPool pool = new VmwareContextPool(16, 100);
+        VmwareClient validClient = Mockito.mock(VmwareClient.class);
+        Mockito.when(validClient.validate()).thenReturn(true);
+        VmwareClient invalidClient = Mockito.mock(VmwareClient.class);
+        Mockito.when(invalidClient.validate()).thenReturn(false);
+
+        pool.returnContext(createContext(pool, validClient));
+        pool.returnContext(createContext(pool, invalidClient));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getInvalidContextCount() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+
+        assertEquals(1, pool.getInvalidContextCount());
+        assertEquals(1, pool.getIdleContextCount());
+        assertEquals(1, pool.getOutstandingContextCount());
+        Mockito.verify(invalidClient).disconnect();
+    }
+}